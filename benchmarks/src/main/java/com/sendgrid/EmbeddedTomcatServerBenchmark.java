@@ -0,0 +1,115 @@
+package com.sendgrid;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import com.sendgrid.bench.Payloads;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Embedded Tomcat Server Benchmark - WAR extraction at startup
+ *
+ * By default a synthetic WAR shaped like this application's (a few MB of already-compressed jars under
+ * WEB-INF/lib plus pages and classes) is generated; pass -p war=/path/to/app.war to extract a real one.
+ * extractWar is a full extraction; prepareUnchanged is a restart with the same WAR, which only checks the
+ * manifest.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+public class EmbeddedTomcatServerBenchmark {
+    
+    @Param({""})
+    public String war;
+    
+    private Path workDir;
+    private Path warFile;
+    private Path webappDir;
+    
+    @Setup
+    public void setUp() throws IOException {
+        workDir = Files.createTempDirectory("war-bench");
+        warFile = war.isEmpty() ? writeSyntheticWar(workDir.resolve("app.war")) : Paths.get(war);
+        webappDir = workDir.resolve("webapp");
+        EmbeddedTomcatServer.prepareWebapp(warFile, webappDir);
+    }
+    
+    @TearDown
+    public void tearDown() throws IOException {
+        try (Stream<Path> paths = Files.walk(workDir)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+    
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 3)
+    @Measurement(iterations = 15)
+    public void extractWar() throws IOException {
+        EmbeddedTomcatServer.extractWar(warFile, webappDir);
+    }
+    
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @Warmup(iterations = 5)
+    @Measurement(iterations = 30)
+    public void prepareUnchanged() throws IOException {
+        EmbeddedTomcatServer.prepareWebapp(warFile, webappDir);
+    }
+    
+    private static Path writeSyntheticWar(Path file) throws IOException {
+        Random random = new Random(7);
+        try (ZipOutputStream zip = new ZipOutputStream(Files.newOutputStream(file))) {
+            // Jars are incompressible and stored as-is, like a real WEB-INF/lib
+            for (int i = 0; i < 20; i++) {
+                byte[] jar = new byte[64 * 1024 + random.nextInt(512 * 1024)];
+                random.nextBytes(jar);
+                CRC32 crc = new CRC32();
+                crc.update(jar);
+                ZipEntry entry = new ZipEntry("WEB-INF/lib/dependency-" + i + ".jar");
+                entry.setMethod(ZipEntry.STORED);
+                entry.setSize(jar.length);
+                entry.setCompressedSize(jar.length);
+                entry.setCrc(crc.getValue());
+                write(zip, entry, jar);
+            }
+            for (int i = 0; i < 60; i++) {
+                byte[] classFile = new byte[2 * 1024 + random.nextInt(16 * 1024)];
+                random.nextBytes(classFile);
+                write(zip, new ZipEntry("WEB-INF/classes/com/sendgrid/Generated" + i + ".class"), classFile);
+            }
+            for (int i = 0; i < 10; i++) {
+                byte[] page = Payloads.emailHtml(8 * 1024).getBytes(StandardCharsets.UTF_8);
+                write(zip, new ZipEntry("page" + i + ".html"), page);
+            }
+        }
+        return file;
+    }
+    
+    private static void write(ZipOutputStream zip, ZipEntry entry, byte[] content) throws IOException {
+        zip.putNextEntry(entry);
+        zip.write(content);
+        zip.closeEntry();
+    }
+}
@@ -0,0 +1,47 @@
+package com.sendgrid.bench;
+
+import java.util.Random;
+
+/**
+ * Payloads - Deterministic, realistic inputs shared by the benchmarks
+ */
+public final class Payloads {
+    
+    private static final String[] WORDS = ("your order has shipped and will arrive soon thanks for shopping with us "
+            + "track package receipt invoice account welcome newsletter offer discount code spring sale").split(" ");
+    
+    private Payloads() {
+    }
+    
+    /**
+     * Email HTML of roughly the requested size: table layout, inline styles, links, quotes and non-ASCII text,
+     * so JSON escaping has the usual mix of characters to handle
+     * @param bytes Approximate size in bytes
+     * @return HTML document
+     */
+    public static String emailHtml(int bytes) {
+        Random random = new Random(42);
+        StringBuilder html = new StringBuilder(bytes + 512);
+        html.append("<!DOCTYPE html>\n<html><head><meta charset=\"utf-8\"><title>Spring sale</title></head>\n")
+            .append("<body style=\"margin:0;padding:0;font-family:Arial, sans-serif\">\n")
+            .append("<table role=\"presentation\" width=\"100%\" cellpadding=\"0\" cellspacing=\"0\">\n");
+        while (html.length() < bytes) {
+            html.append("  <tr><td style=\"padding:12px 24px;color:#333333\">\n    <p>");
+            for (int i = 0; i < 24; i++) {
+                html.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+            }
+            html.append("\u2014 {{first_name}}, see <a href=\"https://example.com/offer?id=")
+                .append(random.nextInt(100000)).append("&amp;utm_source=email\">the offer</a>.</p>\n  </td></tr>\n");
+        }
+        html.append("</table>\n</body></html>\n");
+        return html.toString();
+    }
+    
+    /**
+     * @param html HTML content
+     * @return The content as a model would return it: inside a markdown code fence
+     */
+    public static String fenced(String html) {
+        return "```html\n" + html + "\n```\n";
+    }
+}
@@ -0,0 +1,67 @@
+package com.sendgrid.json;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Error Messages Benchmark - Error-envelope parsing for the upstream error bodies the servlets actually see
+ *
+ * "html" is a proxy's error page during an outage and "empty" a bodiless 5xx; both used to go through a JSON
+ * parse exception.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ErrorMessagesBenchmark {
+    
+    @Param({"sendgrid", "sendgrid-field", "openai", "html", "empty"})
+    public String body;
+    
+    private String responseBody;
+    
+    @Setup
+    public void setUp() {
+        switch (body) {
+            case "sendgrid":
+                responseBody = "{\"errors\":[{\"message\":\"The template_id is invalid.\",\"field\":\"template_id\","
+                        + "\"help\":null}]}";
+                break;
+            case "sendgrid-field":
+                responseBody = "{\"errors\":[{\"field\":\"html_content\"}]}";
+                break;
+            case "openai":
+                responseBody = "{\"error\":{\"message\":\"Rate limit reached for gpt-4o-mini\",\"type\":\"requests\","
+                        + "\"param\":null,\"code\":\"rate_limit_exceeded\"}}";
+                break;
+            case "html":
+                responseBody = "<html>\r\n<head><title>502 Bad Gateway</title></head>\r\n<body>\r\n"
+                        + "<center><h1>502 Bad Gateway</h1></center>\r\n</body>\r\n</html>\r\n";
+                break;
+            default:
+                responseBody = "";
+        }
+    }
+    
+    @Benchmark
+    public String sendGrid() {
+        return ErrorMessages.sendGrid(responseBody);
+    }
+    
+    @Benchmark
+    public String openAi() {
+        return ErrorMessages.openAi(responseBody);
+    }
+}
@@ -0,0 +1,52 @@
+package com.sendgrid.servlet;
+
+import java.util.concurrent.TimeUnit;
+import com.sendgrid.bench.Payloads;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Sent Email Template Code Benchmark - Form parameters to the SendGrid create-version request body
+ *
+ * Building the JSONObject and serializing it are measured separately: serialization escapes the whole HTML
+ * content and is where large versions spend their time.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SentEmailTemplateCodeBenchmark {
+    
+    @Param({"2048", "65536", "524288"})
+    public int htmlBytes;
+    
+    private String html;
+    
+    @Setup
+    public void setUp() {
+        html = Payloads.emailHtml(htmlBytes);
+    }
+    
+    @Benchmark
+    public JSONObject buildRequestBody() {
+        return SentEmailTemplateCode.buildRequestBody(" d-2c214ac919e84170b21855cc129b4a5f ", "1", "Spring sale ",
+                html, "true", "Spring sale starts now", null, "code");
+    }
+    
+    @Benchmark
+    public String buildAndSerializeRequestBody() {
+        return buildRequestBody().toString();
+    }
+}
@@ -0,0 +1,89 @@
+package com.sendgrid.servlet;
+
+import java.io.CharArrayWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import com.sendgrid.bench.Payloads;
+import com.sendgrid.template.CodeFenceFilter;
+import com.sendgrid.template.EmailWrapper;
+import com.sendgrid.template.EmailWrapperRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Template AI Output Benchmark - Post-processing of model output in TemplateAIServlet
+ *
+ * Covers fence stripping of a complete completion, the streaming fence filter fed SSE-sized deltas, and wrapping
+ * the result in the default email wrapper, both as raw HTML and escaped into a JSON string.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TemplateAIOutputBenchmark {
+    
+    // Typical size of one streamed content delta
+    private static final int DELTA_CHARS = 24;
+    
+    @Param({"4096", "32768"})
+    public int htmlBytes;
+    
+    private String completion;
+    private List<String> deltas;
+    private EmailWrapper wrapper;
+    private CharArrayWriter out;
+    
+    @Setup
+    public void setUp() {
+        completion = Payloads.fenced(Payloads.emailHtml(htmlBytes));
+        deltas = new ArrayList<>();
+        for (int i = 0; i < completion.length(); i += DELTA_CHARS) {
+            deltas.add(completion.substring(i, Math.min(completion.length(), i + DELTA_CHARS)));
+        }
+        wrapper = new EmailWrapperRegistry(false).find(EmailWrapperRegistry.DEFAULT_WRAPPER)
+                .orElseThrow(() -> new IllegalStateException("Default email wrapper is missing"));
+        out = new CharArrayWriter(htmlBytes * 2);
+    }
+    
+    @Benchmark
+    public CharSequence stripCodeFences() {
+        return TemplateAIServlet.stripCodeFences(completion);
+    }
+    
+    @Benchmark
+    public void streamThroughFenceFilter(Blackhole blackhole) {
+        CodeFenceFilter filter = new CodeFenceFilter();
+        for (String delta : deltas) {
+            blackhole.consume(filter.accept(delta));
+        }
+        blackhole.consume(filter.finish());
+    }
+    
+    @Benchmark
+    public int stripAndWrapHtml() throws IOException {
+        out.reset();
+        wrapper.writeHtml(out, TemplateAIServlet.stripCodeFences(completion));
+        return out.size();
+    }
+    
+    @Benchmark
+    public int stripAndWrapJsonEscaped() throws IOException {
+        out.reset();
+        wrapper.writeJsonEscaped(out, TemplateAIServlet.stripCodeFences(completion));
+        return out.size();
+    }
+}
@@ -0,0 +1,116 @@
+package com.sendgrid.loadtest;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * App Process - The application under test, booted through EmbeddedTomcatServer in its own JVM.
+ *
+ * A separate process keeps the load generator and stubs from competing with the application for heap and JIT,
+ * and starts the application exactly as it is deployed. It runs from the application directory with the built
+ * classes and target/lib, so it finds target/sendGridBasicRailway.war on its own.
+ */
+final class AppProcess {
+    
+    private static final String MAIN_CLASS = "com.sendgrid.EmbeddedTomcatServer";
+    
+    private final Process process;
+    private final int port;
+    private final Path log;
+    
+    private AppProcess(Process process, int port, Path log) {
+        this.process = process;
+        this.port = port;
+        this.log = log;
+    }
+    
+    /**
+     * Start the application on a free port
+     * @param appDir Application directory, built with mvn package
+     * @param jvmOptions Extra JVM options, separated by spaces
+     * @param environment Environment variables added to this process's environment
+     * @param log File receiving the application's console output
+     * @return Running process
+     * @throws IOException if the application is not built or cannot be started
+     */
+    static AppProcess start(Path appDir, String jvmOptions, Map<String, String> environment, Path log) throws IOException {
+        Path classes = appDir.resolve("target/classes");
+        Path lib = appDir.resolve("target/lib");
+        if (!Files.isDirectory(classes) || !Files.isDirectory(lib)) {
+            throw new IOException("Application is not built in " + appDir.toAbsolutePath()
+                    + " (expected target/classes and target/lib); run mvn package -DskipTests first");
+        }
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        
+        List<String> command = new ArrayList<>();
+        command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+        for (String option : jvmOptions.trim().split("\\s+")) {
+            if (!option.isEmpty()) {
+                command.add(option);
+            }
+        }
+        command.add("-cp");
+        command.add(classes + File.pathSeparator + lib + File.separator + "*");
+        command.add(MAIN_CLASS);
+        
+        Files.createDirectories(log.toAbsolutePath().getParent());
+        ProcessBuilder builder = new ProcessBuilder(command)
+            .directory(appDir.toFile())
+            .redirectErrorStream(true)
+            .redirectOutput(log.toFile());
+        builder.environment().putAll(environment);
+        builder.environment().put("PORT", Integer.toString(port));
+        return new AppProcess(builder.start(), port, log);
+    }
+    
+    String baseUrl() {
+        return "http://127.0.0.1:" + port;
+    }
+    
+    /**
+     * Wait until the application answers HTTP requests
+     * @param timeoutMillis Time allowed for the boot
+     * @throws IOException if the process exits or does not answer in time
+     */
+    void awaitReady(long timeoutMillis) throws IOException, InterruptedException {
+        HttpClient client = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(1)).build();
+        HttpRequest probe = HttpRequest.newBuilder(URI.create(baseUrl() + "/metrics")).timeout(Duration.ofSeconds(5)).build();
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (System.currentTimeMillis() < deadline) {
+            if (!process.isAlive()) {
+                throw new IOException("Application exited with code " + process.exitValue() + "; see " + log);
+            }
+            try {
+                if (client.send(probe, HttpResponse.BodyHandlers.discarding()).statusCode() == 200) {
+                    return;
+                }
+            } catch (IOException e) {
+                // Not listening yet
+            }
+            Thread.sleep(200);
+        }
+        throw new IOException("Application did not answer within " + timeoutMillis + "ms; see " + log);
+    }
+    
+    void stop() throws InterruptedException {
+        process.destroy();
+        if (!process.waitFor(15, TimeUnit.SECONDS)) {
+            process.destroyForcibly().waitFor();
+        }
+    }
+}
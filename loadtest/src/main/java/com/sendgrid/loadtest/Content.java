@@ -0,0 +1,40 @@
+package com.sendgrid.loadtest;
+
+/**
+ * Content - Generated HTML of a realistic size for templates, AI completions and web pages
+ */
+final class Content {
+    
+    private static final String[] PARAGRAPHS = {
+        "Thanks for being with us this season. Here is a short look at what changed and what is coming next.",
+        "Your order has shipped and is on its way. Track the delivery or change the address from your account.",
+        "We have updated our terms. Nothing changes for you today, but please take a minute to review them.",
+        "Join us for the product webinar on Thursday. Seats are limited, so save yours while they last.",
+        "Your monthly summary is ready: activity, invoices and the features your team used the most."
+    };
+    
+    private Content() {
+    }
+    
+    /**
+     * @param title Heading and document title
+     * @param bytes Approximate size of the document
+     * @param seed Varies the paragraphs between documents
+     * @return Email-style HTML document
+     */
+    static String html(String title, int bytes, int seed) {
+        StringBuilder html = new StringBuilder(bytes + 512);
+        html.append("<!DOCTYPE html><html><head><meta charset=\"utf-8\"><title>").append(title)
+            .append("</title><style>body{font-family:Arial,sans-serif;color:#333}.cta{background:#1a82e2;color:#fff}</style>")
+            .append("</head><body><table width=\"100%\" cellpadding=\"0\" cellspacing=\"0\"><tr><td><h1>")
+            .append(title).append("</h1>");
+        int i = Math.floorMod(seed, PARAGRAPHS.length);
+        while (html.length() < bytes) {
+            html.append("<p>Hello {{first_name}}, ").append(PARAGRAPHS[i % PARAGRAPHS.length]).append("</p>\n");
+            i++;
+        }
+        html.append("<a class=\"cta\" href=\"https://example.com/account\">Open your account</a>")
+            .append("</td></tr></table></body></html>");
+        return html.toString();
+    }
+}
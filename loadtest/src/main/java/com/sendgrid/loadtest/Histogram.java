@@ -0,0 +1,81 @@
+package com.sendgrid.loadtest;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram - Lock-free latency histogram in microseconds with log-linear buckets.
+ *
+ * Values below 128 have a bucket each; above that every power of two is split into 64 buckets, so any percentile
+ * is within 1.6% of the recorded value whatever its magnitude, in a fixed 30 KB.
+ */
+final class Histogram {
+    
+    private static final int LINEAR = 128;
+    private static final int SUB_BUCKETS = 64;
+    private static final int SUB_BUCKET_BITS = 6;
+    
+    private final AtomicLongArray counts = new AtomicLongArray(LINEAR + (64 - SUB_BUCKET_BITS - 1) * SUB_BUCKETS);
+    private final LongAdder total = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+    
+    void record(long micros) {
+        long value = Math.max(0, micros);
+        counts.incrementAndGet(index(value));
+        total.increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+    
+    long count() {
+        return total.sum();
+    }
+    
+    double meanMicros() {
+        long count = total.sum();
+        return count == 0 ? 0 : sum.sum() / (double) count;
+    }
+    
+    long maxMicros() {
+        return max.get();
+    }
+    
+    /**
+     * @param percentile Percentile between 0 and 100
+     * @return Upper bound of the bucket holding that percentile, at most the recorded maximum
+     */
+    long percentileMicros(double percentile) {
+        long count = total.sum();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(count * percentile / 100.0));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(upperBound(i), max.get());
+            }
+        }
+        return max.get();
+    }
+    
+    private static int index(long value) {
+        if (value < LINEAR) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return LINEAR + (shift - 1) * SUB_BUCKETS + (int) (value >> shift) - SUB_BUCKETS;
+    }
+    
+    private static long upperBound(int index) {
+        if (index < LINEAR) {
+            return index;
+        }
+        int shift = (index - LINEAR) / SUB_BUCKETS + 1;
+        long subBucket = (index - LINEAR) % SUB_BUCKETS + SUB_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
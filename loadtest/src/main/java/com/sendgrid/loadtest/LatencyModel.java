@@ -0,0 +1,55 @@
+package com.sendgrid.loadtest;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Latency Model - Log-normal response delay given by its median and 99th percentile, e.g. "80ms:600ms".
+ *
+ * Real API latencies are skewed: most calls are close to the median and a long tail is far slower. A log-normal
+ * distribution fitted to two percentiles reproduces that tail, which is what queues and timeouts react to.
+ */
+final class LatencyModel {
+    
+    private static final double Z_99 = 2.3263;
+    
+    private final String spec;
+    private final double mu;
+    private final double sigma;
+    private final boolean none;
+    
+    private LatencyModel(String spec, long medianMillis, long p99Millis) {
+        this.spec = spec;
+        this.none = medianMillis <= 0;
+        this.mu = none ? 0 : Math.log(medianMillis);
+        this.sigma = none ? 0 : Math.log(Math.max(p99Millis, medianMillis) / (double) medianMillis) / Z_99;
+    }
+    
+    /**
+     * @param spec "median:p99", a single fixed delay, or "0" for none
+     * @return Model
+     */
+    static LatencyModel parse(String spec) {
+        int colon = spec.indexOf(':');
+        if (colon < 0) {
+            long fixed = Options.parseMillis(spec);
+            return new LatencyModel(spec, fixed, fixed);
+        }
+        return new LatencyModel(spec, Options.parseMillis(spec.substring(0, colon)),
+                Options.parseMillis(spec.substring(colon + 1)));
+    }
+    
+    /**
+     * @return Delay for one response
+     */
+    long sampleMillis() {
+        if (none) {
+            return 0;
+        }
+        return Math.round(Math.exp(mu + sigma * ThreadLocalRandom.current().nextGaussian()));
+    }
+    
+    @Override
+    public String toString() {
+        return spec;
+    }
+}
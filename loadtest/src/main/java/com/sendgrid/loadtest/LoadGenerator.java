@@ -0,0 +1,128 @@
+package com.sendgrid.loadtest;
+
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Load Generator - Drives the application with the workload's request mix.
+ *
+ * The closed model runs a fixed number of users that each send one request at a time, optionally pausing between
+ * requests; throughput is what the application sustains. The open model sends requests at a fixed rate whatever
+ * the response times, and measures each request from its scheduled send time, so a stalled server shows up as
+ * latency instead of silently lowering the load (coordinated omission).
+ */
+final class LoadGenerator {
+    
+    private final HttpClient client;
+    private final Workload workload;
+    private final long seed;
+    private final AtomicLong userSeeds = new AtomicLong();
+    
+    LoadGenerator(HttpClient client, Workload workload, long seed) {
+        this.client = client;
+        this.workload = workload;
+        this.seed = seed;
+    }
+    
+    /**
+     * Run a fixed number of users
+     * @param users Concurrent users
+     * @param durationMillis Run time
+     * @param thinkMillis Pause after each response
+     * @param results Where outcomes are recorded, or null to discard them (warm-up)
+     */
+    void runClosed(int users, long durationMillis, long thinkMillis, Results results) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < users; i++) {
+            Random random = new Random(seed + userSeeds.incrementAndGet());
+            Thread thread = new Thread(() -> {
+                while (System.nanoTime() < deadline && !Thread.currentThread().isInterrupted()) {
+                    Workload.Endpoint endpoint = workload.pick(random);
+                    HttpRequest request = workload.request(endpoint, random);
+                    long started = System.nanoTime();
+                    try {
+                        HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+                        if (results != null) {
+                            results.of(endpoint).record(micros(started), Workload.succeeded(response));
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } catch (Exception e) {
+                        if (results != null) {
+                            results.of(endpoint).error(micros(started));
+                        }
+                    }
+                    if (thinkMillis > 0) {
+                        try {
+                            Thread.sleep(thinkMillis);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                }
+            }, "load-user-" + i);
+            thread.setDaemon(true);
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+    
+    /**
+     * Send requests at a fixed rate
+     * @param ratePerSecond Requests started per second
+     * @param durationMillis Run time
+     * @param maxInFlight Requests allowed in flight; beyond that a scheduled request is dropped and counted
+     * @param results Where outcomes are recorded, or null to discard them (warm-up)
+     */
+    void runOpen(double ratePerSecond, long durationMillis, int maxInFlight, Results results) throws InterruptedException {
+        Random random = new Random(seed + userSeeds.incrementAndGet());
+        Semaphore inFlight = new Semaphore(maxInFlight);
+        long intervalNanos = (long) (1e9 / ratePerSecond);
+        long start = System.nanoTime();
+        long end = start + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+        for (long scheduled = start; scheduled < end; scheduled += intervalNanos) {
+            long wait = scheduled - System.nanoTime();
+            if (wait > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+            Workload.Endpoint endpoint = workload.pick(random);
+            if (!inFlight.tryAcquire()) {
+                if (results != null) {
+                    results.drop();
+                }
+                continue;
+            }
+            long intended = scheduled;
+            client.sendAsync(workload.request(endpoint, random), HttpResponse.BodyHandlers.ofString())
+                .whenComplete((response, failure) -> {
+                    inFlight.release();
+                    if (results == null) {
+                        return;
+                    }
+                    if (failure != null) {
+                        results.of(endpoint).error(micros(intended));
+                    } else {
+                        results.of(endpoint).record(micros(intended), Workload.succeeded(response));
+                    }
+                });
+        }
+        // Let the requests still in flight finish so they are counted
+        inFlight.acquire(maxInFlight);
+        inFlight.release(maxInFlight);
+    }
+    
+    private static long micros(long startedNanos) {
+        return (System.nanoTime() - startedNanos) / 1000;
+    }
+}
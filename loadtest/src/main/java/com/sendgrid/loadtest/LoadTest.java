@@ -0,0 +1,245 @@
+package com.sendgrid.loadtest;
+
+import java.io.IOException;
+import java.net.http.HttpClient;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Stream;
+import org.json.JSONObject;
+
+/**
+ * Load Test - Boots the application against local SendGrid, OpenAI and web page stubs and measures it under load.
+ *
+ * Nothing leaves the machine: the application is pointed at the stubs through SENDGRID_API_URL and OPENAI_API_URL
+ * with dummy API keys. Results can be saved as JSON and compared with an earlier run to see what a change did.
+ */
+public final class LoadTest {
+    
+    private static final String USAGE = String.join("\n",
+            "Usage: java -jar loadtest/target/loadtest.jar [options]",
+            "",
+            "Application",
+            "  --app-dir DIR              Built application directory (default: current directory)",
+            "  --app-jvm \"OPTIONS\"        JVM options for the application (default: -Xmx512m)",
+            "  --app-log FILE             Application console output (default: target/loadtest-app.log)",
+            "  --target URL               Load an application that is already running instead of booting one",
+            "  --stubs-only               Only start the stub servers and print their URLs",
+            "Load",
+            "  --users N                  Closed model: concurrent users (default: 50)",
+            "  --think DURATION           Closed model: pause after each response (default: 0ms)",
+            "  --rate N                   Open model: requests per second instead of --users",
+            "  --max-in-flight N          Open model: pending requests before new ones are dropped (default: 2000)",
+            "  --duration DURATION        Measured run (default: 60s)",
+            "  --warmup DURATION          Unmeasured run first, for JIT and caches (default: 15s)",
+            "  --mix WEIGHTS              Default: templates=40,version=15,create=5,ai=10,page=30 (also: webhook)",
+            "  --webhook-events N         Events per Event Webhook post (default: 100)",
+            "  --ai-prompts N             Distinct AI prompts (default: 200)",
+            "  --ai-stream SHARE          Share of AI requests that stream (default: 0.5)",
+            "  --timeout DURATION         Client timeout per request (default: 60s)",
+            "  --seed N                   Random seed for the request sequence (default: 42)",
+            "SendGrid stub",
+            "  --templates N              Seeded templates (default: 200)",
+            "  --html-bytes N             HTML size of versions and completions (default: 8000)",
+            "  --sendgrid-latency M:P99   Response time median and p99 (default: 60ms:400ms)",
+            "  --sendgrid-rate-limit N/D  Requests per window and endpoint family (default: 1000/1s)",
+            "  --sendgrid-429-rate SHARE  Extra random 429s (default: 0)",
+            "  --sendgrid-error-rate SHARE  Random 503s (default: 0)",
+            "OpenAI stub",
+            "  --openai-latency M:P99     Completion time, or time to first token when streaming (default: 800ms:3s)",
+            "  --openai-delta DURATION    Delay between streamed deltas (default: 5ms)",
+            "  --openai-429-rate SHARE    Random 429s (default: 0)",
+            "  --openai-error-rate SHARE  Random 500s (default: 0)",
+            "Page origin stub",
+            "  --pages N                  Distinct pages (default: 100)",
+            "  --page-bytes N             Page size (default: 50000)",
+            "  --page-max-age SECONDS     Cache-Control max-age (default: 30)",
+            "  --page-latency M:P99       Response time (default: 30ms:200ms)",
+            "Stub ports (default: any free port): --sendgrid-port, --openai-port, --origin-port",
+            "Results",
+            "  --json FILE                Save the results",
+            "  --baseline FILE            Compare with results saved by an earlier run");
+    
+    private LoadTest() {
+    }
+    
+    public static void main(String[] args) throws Exception {
+        if (Arrays.asList(args).contains("--help")) {
+            System.out.println(USAGE);
+            return;
+        }
+        Options options;
+        try {
+            options = new Options(args);
+            run(options);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Run with --help for the options");
+            System.exit(2);
+        }
+    }
+    
+    private static void run(Options options) throws Exception {
+        int htmlBytes = options.intValue("html-bytes", 8000);
+        SendGridStub sendGrid = new SendGridStub(options.intValue("sendgrid-port", 0), options.intValue("templates", 200),
+                htmlBytes, LatencyModel.parse(options.string("sendgrid-latency", "60ms:400ms")),
+                options.string("sendgrid-rate-limit", "1000/1s"), options.doubleValue("sendgrid-429-rate", 0),
+                options.doubleValue("sendgrid-error-rate", 0));
+        OpenAIStub openAI = new OpenAIStub(options.intValue("openai-port", 0),
+                LatencyModel.parse(options.string("openai-latency", "800ms:3s")), options.millis("openai-delta", "5ms"),
+                htmlBytes, options.doubleValue("openai-429-rate", 0), options.doubleValue("openai-error-rate", 0));
+        PageOriginStub origin = new PageOriginStub(options.intValue("origin-port", 0), options.intValue("pages", 100),
+                options.intValue("page-bytes", 50000), options.intValue("page-max-age", 30),
+                LatencyModel.parse(options.string("page-latency", "30ms:200ms")));
+        List<StubServer> stubs = List.of(sendGrid, openAI, origin);
+        
+        boolean stubsOnly = options.flag("stubs-only");
+        String target = options.string("target", null);
+        Path appDir = Paths.get(options.string("app-dir", "."));
+        String appJvm = options.string("app-jvm", "-Xmx512m");
+        Path appLog = Paths.get(options.string("app-log", "target/loadtest-app.log"));
+        int users = options.intValue("users", 50);
+        long thinkMillis = options.millis("think", "0ms");
+        double rate = options.doubleValue("rate", 0);
+        int maxInFlight = options.intValue("max-in-flight", 2000);
+        long durationMillis = options.millis("duration", "60s");
+        long warmupMillis = options.millis("warmup", "15s");
+        String mix = options.string("mix", "templates=40,version=15,create=5,ai=10,page=30");
+        int aiPrompts = options.intValue("ai-prompts", 200);
+        double aiStream = options.doubleValue("ai-stream", 0.5);
+        int webhookEvents = options.intValue("webhook-events", 100);
+        long timeoutMillis = options.millis("timeout", "60s");
+        long seed = options.intValue("seed", 42);
+        String jsonFile = options.string("json", null);
+        String baselineFile = options.string("baseline", null);
+        options.rejectUnknown();
+        
+        for (StubServer stub : stubs) {
+            stub.start();
+        }
+        System.out.println("SendGrid stub:    " + sendGrid.baseUrl());
+        System.out.println("OpenAI stub:      " + openAI.baseUrl());
+        System.out.println("Page origin stub: " + origin.baseUrl());
+        
+        if (stubsOnly) {
+            System.out.println();
+            System.out.println("Point the application at the stubs with:");
+            System.out.println("  SENDGRID_API_URL=" + sendGrid.baseUrl() + " OPENAI_API_URL=" + openAI.baseUrl()
+                    + " SENDGRID_API_KEY=SG.loadtest OPENAI_API_KEY=sk-loadtest");
+            System.out.println("Pages are at " + origin.baseUrl() + "/pages/{0.." + (origin.pageCount() - 1) + "}.html");
+            System.out.println("Press Ctrl+C to stop");
+            Thread.currentThread().join();
+            return;
+        }
+        
+        WebhookSigner webhookSigner = new WebhookSigner();
+        AppProcess app = null;
+        Path storeDir = null;
+        ExecutorService clientExecutor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "load-client");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            String appUrl = target;
+            if (appUrl == null) {
+                storeDir = Files.createTempDirectory("loadtest-template-store");
+                Map<String, String> environment = new HashMap<>();
+                environment.put("SENDGRID_API_URL", sendGrid.baseUrl());
+                environment.put("OPENAI_API_URL", openAI.baseUrl());
+                environment.put("SENDGRID_API_KEY", "SG.loadtest");
+                environment.put("OPENAI_API_KEY", "sk-loadtest");
+                environment.put("TEMPLATE_STORE_DIR", storeDir.toString());
+                environment.put("SENDGRID_WEBHOOK_PUBLIC_KEY", webhookSigner.publicKeyBase64());
+                System.out.println("Booting the application from " + appDir.toAbsolutePath().normalize() + " (log: "
+                        + appLog + ")");
+                long bootStarted = System.currentTimeMillis();
+                app = AppProcess.start(appDir, appJvm, environment, appLog);
+                app.awaitReady(120000);
+                appUrl = app.baseUrl();
+                System.out.println("Application ready at " + appUrl + " in " + (System.currentTimeMillis() - bootStarted)
+                        + "ms");
+            }
+            
+            HttpClient client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofSeconds(5))
+                .executor(clientExecutor)
+                .build();
+            Workload workload = new Workload(appUrl, origin.baseUrl(), origin.pageCount(), sendGrid.templateIds(), mix,
+                    aiPrompts, aiStream, htmlBytes, Duration.ofMillis(timeoutMillis), webhookSigner, webhookEvents);
+            LoadGenerator generator = new LoadGenerator(client, workload, seed);
+            String model = rate > 0 ? String.format("%.0f requests/s", rate) : users + " users";
+            
+            if (warmupMillis > 0) {
+                System.out.println("Warming up for " + warmupMillis / 1000.0 + "s with " + model);
+                drive(generator, rate, users, thinkMillis, maxInFlight, warmupMillis, null);
+            }
+            System.out.println("Measuring for " + durationMillis / 1000.0 + "s with " + model);
+            Results results = new Results();
+            drive(generator, rate, users, thinkMillis, maxInFlight, durationMillis, results);
+            
+            JSONObject settings = new JSONObject()
+                .put("model", model)
+                .put("mix", mix)
+                .put("durationMs", durationMillis)
+                .put("warmupMs", warmupMillis)
+                .put("appJvm", target == null ? appJvm : JSONObject.NULL)
+                .put("sendgridLatency", options.string("sendgrid-latency", "60ms:400ms"))
+                .put("openaiLatency", options.string("openai-latency", "800ms:3s"))
+                .put("javaVersion", System.getProperty("java.version"))
+                .put("cpus", Runtime.getRuntime().availableProcessors());
+            Report report = new Report(results, stubs, settings);
+            report.print(System.out);
+            if (jsonFile != null) {
+                report.save(Paths.get(jsonFile));
+                System.out.println("\nResults saved to " + jsonFile);
+            }
+            if (baselineFile != null) {
+                report.compare(Paths.get(baselineFile), System.out);
+            }
+        } finally {
+            if (app != null) {
+                app.stop();
+            }
+            for (StubServer stub : stubs) {
+                stub.stop();
+            }
+            clientExecutor.shutdownNow();
+            if (storeDir != null) {
+                deleteRecursively(storeDir);
+            }
+        }
+    }
+    
+    private static void drive(LoadGenerator generator, double rate, int users, long thinkMillis, int maxInFlight,
+            long durationMillis, Results results) throws InterruptedException {
+        if (results != null) {
+            results.start();
+        }
+        if (rate > 0) {
+            generator.runOpen(rate, durationMillis, maxInFlight, results);
+        } else {
+            generator.runClosed(users, durationMillis, thinkMillis, results);
+        }
+        if (results != null) {
+            results.end();
+        }
+    }
+    
+    private static void deleteRecursively(Path dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package com.sendgrid.loadtest;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import com.sun.net.httpserver.HttpExchange;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * OpenAI Stub - Emulates POST /v1/chat/completions, buffered or streamed as Server-Sent Events.
+ *
+ * A buffered completion is answered after a full generation delay. A streamed one sends its headers after the
+ * time to first token, then the content in small deltas with a fixed delay per delta, ending with data: [DONE].
+ * The content is HTML wrapped in a markdown code fence, as models tend to return it. Random 429s (with
+ * OpenAI's rate-limit headers) and 5xx can be injected.
+ */
+final class OpenAIStub extends StubServer {
+    
+    private static final String ROUTE = "POST /v1/chat/completions";
+    // Characters per streamed delta, roughly four tokens
+    private static final int DELTA_CHARS = 16;
+    
+    private final LatencyModel latency;
+    private final long deltaMillis;
+    private final int htmlBytes;
+    private final double throttleRate;
+    private final double errorRate;
+    
+    /**
+     * @param port Port to listen on, 0 for any free port
+     * @param latency Delay of a buffered completion, and time to first token of a streamed one
+     * @param deltaMillis Delay between streamed deltas
+     * @param htmlBytes Size of the generated HTML
+     * @param throttleRate Share of requests answered 429
+     * @param errorRate Share of requests answered 500
+     */
+    OpenAIStub(int port, LatencyModel latency, long deltaMillis, int htmlBytes, double throttleRate, double errorRate)
+            throws IOException {
+        super("openai", port);
+        this.latency = latency;
+        this.deltaMillis = deltaMillis;
+        this.htmlBytes = htmlBytes;
+        this.throttleRate = throttleRate;
+        this.errorRate = errorRate;
+    }
+    
+    @Override
+    void handle(HttpExchange exchange) throws IOException {
+        if (!exchange.getRequestURI().getPath().equals("/v1/chat/completions")
+                || !exchange.getRequestMethod().equals("POST")) {
+            sendJson(exchange, "other", 404, error("Unknown request URL", "invalid_request_error"));
+            return;
+        }
+        String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+        if (authorization == null || !authorization.startsWith("Bearer ")) {
+            sendJson(exchange, ROUTE, 401, error("You didn't provide an API key.", "invalid_request_error"));
+            return;
+        }
+        JSONObject request;
+        try {
+            request = new JSONObject(readBody(exchange));
+        } catch (JSONException e) {
+            sendJson(exchange, ROUTE, 400, error("We could not parse the JSON body of your request.", "invalid_request_error"));
+            return;
+        }
+        if (chance(throttleRate)) {
+            exchange.getResponseHeaders().set("x-ratelimit-remaining-requests", "0");
+            exchange.getResponseHeaders().set("x-ratelimit-reset-requests", "1s");
+            exchange.getResponseHeaders().set("Retry-After", "1");
+            sendJson(exchange, ROUTE, 429, error("Rate limit reached for requests", "requests"));
+            return;
+        }
+        
+        String content = "```html\n" + Content.html("Generated template", htmlBytes, prompt(request).hashCode()) + "\n```";
+        sleep(latency.sampleMillis());
+        if (chance(errorRate)) {
+            sendJson(exchange, ROUTE, 500, error("The server had an error while processing your request.", "server_error"));
+            return;
+        }
+        if (request.optBoolean("stream")) {
+            stream(exchange, request.optString("model"), content);
+            return;
+        }
+        
+        JSONObject message = new JSONObject().put("role", "assistant").put("content", content);
+        JSONObject completion = new JSONObject()
+            .put("id", "chatcmpl-stub")
+            .put("object", "chat.completion")
+            .put("created", System.currentTimeMillis() / 1000)
+            .put("model", request.optString("model"))
+            .put("choices", new JSONArray().put(new JSONObject().put("index", 0).put("message", message)
+                .put("finish_reason", "stop")))
+            .put("usage", new JSONObject().put("prompt_tokens", 60).put("completion_tokens", content.length() / 4)
+                .put("total_tokens", 60 + content.length() / 4));
+        sendJson(exchange, ROUTE, 200, completion);
+    }
+    
+    private void stream(HttpExchange exchange, String model, String content) throws IOException {
+        count(ROUTE + " (stream)", 200);
+        exchange.getResponseHeaders().set("Content-Type", "text/event-stream");
+        exchange.sendResponseHeaders(200, 0);
+        try (OutputStream out = exchange.getResponseBody()) {
+            for (int start = 0; start < content.length(); start += DELTA_CHARS) {
+                String delta = content.substring(start, Math.min(content.length(), start + DELTA_CHARS));
+                JSONObject chunk = new JSONObject()
+                    .put("id", "chatcmpl-stub")
+                    .put("object", "chat.completion.chunk")
+                    .put("model", model)
+                    .put("choices", new JSONArray().put(new JSONObject().put("index", 0)
+                        .put("delta", new JSONObject().put("content", delta)).put("finish_reason", JSONObject.NULL)));
+                out.write(("data: " + chunk + "\n\n").getBytes(StandardCharsets.UTF_8));
+                out.flush();
+                sleep(deltaMillis);
+            }
+            out.write("data: [DONE]\n\n".getBytes(StandardCharsets.UTF_8));
+        }
+    }
+    
+    private static String prompt(JSONObject request) {
+        JSONArray messages = request.optJSONArray("messages");
+        if (messages == null || messages.length() == 0) {
+            return "";
+        }
+        JSONObject last = messages.optJSONObject(messages.length() - 1);
+        return last != null ? last.optString("content") : "";
+    }
+    
+    private static JSONObject error(String message, String type) {
+        return new JSONObject().put("error", new JSONObject().put("message", message).put("type", type));
+    }
+}
@@ -0,0 +1,109 @@
+package com.sendgrid.loadtest;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Options - Command line options of the load test, given as --name value, --name=value or a bare --flag
+ */
+final class Options {
+    
+    private final Map<String, String> values = new LinkedHashMap<>();
+    private final Set<String> used = new HashSet<>();
+    
+    Options(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (!arg.startsWith("--")) {
+                throw new IllegalArgumentException("Unexpected argument: " + arg);
+            }
+            String name = arg.substring(2);
+            int equals = name.indexOf('=');
+            if (equals >= 0) {
+                values.put(name.substring(0, equals), name.substring(equals + 1));
+            } else if (i + 1 < args.length && !args[i + 1].startsWith("--")) {
+                values.put(name, args[++i]);
+            } else {
+                values.put(name, "true");
+            }
+        }
+    }
+    
+    String string(String name, String defaultValue) {
+        used.add(name);
+        return values.getOrDefault(name, defaultValue);
+    }
+    
+    boolean flag(String name) {
+        return Boolean.parseBoolean(string(name, "false"));
+    }
+    
+    int intValue(String name, int defaultValue) {
+        String value = string(name, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("--" + name + " expects a whole number: " + value);
+        }
+    }
+    
+    double doubleValue(String name, double defaultValue) {
+        String value = string(name, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("--" + name + " expects a number: " + value);
+        }
+    }
+    
+    long millis(String name, String defaultValue) {
+        try {
+            return parseMillis(string(name, defaultValue));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("--" + name + ": " + e.getMessage());
+        }
+    }
+    
+    /**
+     * @throws IllegalArgumentException naming the first option that no part of the load test reads
+     */
+    void rejectUnknown() {
+        for (String name : values.keySet()) {
+            if (!used.contains(name)) {
+                throw new IllegalArgumentException("Unknown option: --" + name);
+            }
+        }
+    }
+    
+    /**
+     * Parse a duration such as 250ms, 30s, 2m or a bare number of milliseconds
+     * @param value Duration text
+     * @return Milliseconds
+     */
+    static long parseMillis(String value) {
+        String text = value.trim().toLowerCase();
+        long unit = 1;
+        if (text.endsWith("ms")) {
+            text = text.substring(0, text.length() - 2);
+        } else if (text.endsWith("s")) {
+            text = text.substring(0, text.length() - 1);
+            unit = 1000;
+        } else if (text.endsWith("m")) {
+            text = text.substring(0, text.length() - 1);
+            unit = 60000;
+        }
+        try {
+            return Math.round(Double.parseDouble(text) * unit);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid duration: " + value);
+        }
+    }
+}
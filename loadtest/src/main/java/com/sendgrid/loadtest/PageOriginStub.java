@@ -0,0 +1,81 @@
+package com.sendgrid.loadtest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * Page Origin Stub - Web pages for /page-source to fetch: GET /pages/{n}.html.
+ *
+ * Pages carry Cache-Control max-age and an ETag, answer a matching If-None-Match with 304, and are sent gzipped
+ * when the client accepts it, so the application's page cache sees hits, revalidations and misses.
+ */
+final class PageOriginStub extends StubServer {
+    
+    private static final Pattern PAGE_PATH = Pattern.compile("^/pages/(\\d+)\\.html$");
+    
+    private final LatencyModel latency;
+    private final int maxAgeSeconds;
+    private final byte[][] pages;
+    private final byte[][] gzippedPages;
+    
+    /**
+     * @param port Port to listen on, 0 for any free port
+     * @param pageCount Number of distinct pages
+     * @param pageBytes Size of each page
+     * @param maxAgeSeconds Freshness lifetime sent with every page
+     * @param latency Delay of every response
+     */
+    PageOriginStub(int port, int pageCount, int pageBytes, int maxAgeSeconds, LatencyModel latency) throws IOException {
+        super("origin", port);
+        this.latency = latency;
+        this.maxAgeSeconds = maxAgeSeconds;
+        this.pages = new byte[pageCount][];
+        this.gzippedPages = new byte[pageCount][];
+        for (int i = 0; i < pageCount; i++) {
+            pages[i] = Content.html("Page " + i, pageBytes, i).getBytes(StandardCharsets.UTF_8);
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+                gzip.write(pages[i]);
+            }
+            gzippedPages[i] = compressed.toByteArray();
+        }
+    }
+    
+    /**
+     * @return Number of distinct pages
+     */
+    int pageCount() {
+        return pages.length;
+    }
+    
+    @Override
+    void handle(HttpExchange exchange) throws IOException {
+        Matcher matcher = PAGE_PATH.matcher(exchange.getRequestURI().getPath());
+        int page = matcher.matches() ? Integer.parseInt(matcher.group(1)) : -1;
+        if (page < 0 || page >= pages.length) {
+            send(exchange, "other", 404, "text/html", "<h1>Not Found</h1>".getBytes(StandardCharsets.UTF_8));
+            return;
+        }
+        sleep(latency.sampleMillis());
+        
+        String etag = "\"page-" + page + "\"";
+        exchange.getResponseHeaders().set("ETag", etag);
+        exchange.getResponseHeaders().set("Cache-Control", "max-age=" + maxAgeSeconds);
+        if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+            send(exchange, "GET /pages/{n}.html", 304, null, null);
+            return;
+        }
+        String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+            exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+            send(exchange, "GET /pages/{n}.html", 200, "text/html; charset=utf-8", gzippedPages[page]);
+        } else {
+            send(exchange, "GET /pages/{n}.html", 200, "text/html; charset=utf-8", pages[page]);
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package com.sendgrid.loadtest;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import org.json.JSONObject;
+
+/**
+ * Report - Prints the results of a run, saves them as JSON and compares them with a saved baseline run.
+ */
+final class Report {
+    
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+    
+    private final Results results;
+    private final List<StubServer> stubs;
+    private final JSONObject settings;
+    
+    /**
+     * @param results Measured requests
+     * @param stubs Stub servers whose response counts are reported
+     * @param settings Options of the run, saved with the results
+     */
+    Report(Results results, List<StubServer> stubs, JSONObject settings) {
+        this.results = results;
+        this.stubs = stubs;
+        this.settings = settings;
+    }
+    
+    void print(PrintStream out) {
+        double seconds = results.elapsedSeconds();
+        out.printf("%nMeasured %.1fs%n%n", seconds);
+        out.printf("%-26s %9s %9s %7s %7s %9s %9s %9s %9s %9s %9s%n", "endpoint", "requests", "ok", "failed",
+                "errors", "req/s", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms");
+        long total = 0;
+        long succeeded = 0;
+        for (Workload.Endpoint endpoint : Workload.Endpoint.values()) {
+            Results.EndpointResults r = results.of(endpoint);
+            if (r.requests() == 0) {
+                continue;
+            }
+            total += r.requests();
+            succeeded += r.succeeded.sum();
+            out.printf("%-26s %9d %9d %7d %7d %9.1f", endpoint.label(), r.requests(), r.succeeded.sum(), r.failed.sum(),
+                    r.errors.sum(), r.requests() / seconds);
+            for (double percentile : PERCENTILES) {
+                out.printf(" %9.1f", r.latency.percentileMicros(percentile) / 1000.0);
+            }
+            out.printf(" %9.1f%n", r.latency.maxMicros() / 1000.0);
+        }
+        out.printf("%-26s %9d %9d %35.1f%n", "total", total, succeeded, total / seconds);
+        if (results.dropped() > 0) {
+            out.printf("%d scheduled requests were not sent because --max-in-flight requests were pending%n",
+                    results.dropped());
+        }
+        
+        out.printf("%nUpstream stub responses%n");
+        for (StubServer stub : stubs) {
+            for (Map.Entry<String, Long> entry : stub.responseCounts().entrySet()) {
+                out.printf("  %-10s %-44s %9d%n", stub.getName(), entry.getKey(), entry.getValue());
+            }
+        }
+    }
+    
+    JSONObject toJson() {
+        double seconds = results.elapsedSeconds();
+        JSONObject endpoints = new JSONObject();
+        for (Workload.Endpoint endpoint : Workload.Endpoint.values()) {
+            Results.EndpointResults r = results.of(endpoint);
+            if (r.requests() == 0) {
+                continue;
+            }
+            endpoints.put(endpoint.key(), new JSONObject()
+                .put("label", endpoint.label())
+                .put("requests", r.requests())
+                .put("succeeded", r.succeeded.sum())
+                .put("failed", r.failed.sum())
+                .put("errors", r.errors.sum())
+                .put("rps", r.requests() / seconds)
+                .put("meanMs", r.latency.meanMicros() / 1000.0)
+                .put("p50Ms", r.latency.percentileMicros(50) / 1000.0)
+                .put("p90Ms", r.latency.percentileMicros(90) / 1000.0)
+                .put("p99Ms", r.latency.percentileMicros(99) / 1000.0)
+                .put("p999Ms", r.latency.percentileMicros(99.9) / 1000.0)
+                .put("maxMs", r.latency.maxMicros() / 1000.0));
+        }
+        JSONObject upstream = new JSONObject();
+        for (StubServer stub : stubs) {
+            upstream.put(stub.getName(), new JSONObject(stub.responseCounts()));
+        }
+        return new JSONObject()
+            .put("finishedAt", Instant.now().toString())
+            .put("seconds", seconds)
+            .put("settings", settings)
+            .put("dropped", results.dropped())
+            .put("endpoints", endpoints)
+            .put("upstream", upstream);
+    }
+    
+    void save(Path file) throws IOException {
+        Files.write(file, toJson().toString(2).getBytes(StandardCharsets.UTF_8));
+    }
+    
+    /**
+     * Print throughput and latency changes against an earlier run, per endpoint both runs measured
+     * @param baselineFile JSON saved by an earlier run
+     */
+    void compare(Path baselineFile, PrintStream out) throws IOException {
+        JSONObject baseline = new JSONObject(new String(Files.readAllBytes(baselineFile), StandardCharsets.UTF_8))
+            .getJSONObject("endpoints");
+        JSONObject current = toJson().getJSONObject("endpoints");
+        out.printf("%nCompared with %s (negative latency change is faster)%n", baselineFile);
+        out.printf("%-26s %10s %10s %10s %10s%n", "endpoint", "req/s", "p50", "p99", "failures");
+        for (Workload.Endpoint endpoint : Workload.Endpoint.values()) {
+            if (!baseline.has(endpoint.key()) || !current.has(endpoint.key())) {
+                continue;
+            }
+            JSONObject before = baseline.getJSONObject(endpoint.key());
+            JSONObject after = current.getJSONObject(endpoint.key());
+            out.printf("%-26s %10s %10s %10s %10s%n", endpoint.label(), change(before, after, "rps"),
+                    change(before, after, "p50Ms"), change(before, after, "p99Ms"),
+                    (before.getLong("failed") + before.getLong("errors")) + " -> "
+                            + (after.getLong("failed") + after.getLong("errors")));
+        }
+    }
+    
+    private static String change(JSONObject before, JSONObject after, String field) {
+        double from = before.getDouble(field);
+        double to = after.getDouble(field);
+        if (from == 0) {
+            return "n/a";
+        }
+        return String.format("%+.1f%%", (to - from) * 100 / from);
+    }
+}
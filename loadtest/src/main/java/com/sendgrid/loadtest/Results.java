@@ -0,0 +1,81 @@
+package com.sendgrid.loadtest;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Results - Outcomes and latencies of the measured requests, per endpoint
+ */
+final class Results {
+    
+    private final Map<Workload.Endpoint, EndpointResults> endpoints = new EnumMap<>(Workload.Endpoint.class);
+    private final LongAdder dropped = new LongAdder();
+    private volatile long startedAt;
+    private volatile long endedAt;
+    
+    Results() {
+        for (Workload.Endpoint endpoint : Workload.Endpoint.values()) {
+            endpoints.put(endpoint, new EndpointResults());
+        }
+    }
+    
+    void start() {
+        startedAt = System.nanoTime();
+    }
+    
+    void end() {
+        endedAt = System.nanoTime();
+    }
+    
+    double elapsedSeconds() {
+        return (endedAt - startedAt) / 1e9;
+    }
+    
+    EndpointResults of(Workload.Endpoint endpoint) {
+        return endpoints.get(endpoint);
+    }
+    
+    /**
+     * Count a request the open model did not send because too many were already in flight
+     */
+    void drop() {
+        dropped.increment();
+    }
+    
+    long dropped() {
+        return dropped.sum();
+    }
+    
+    /**
+     * Outcomes of one endpoint
+     */
+    static final class EndpointResults {
+        
+        final Histogram latency = new Histogram();
+        final LongAdder succeeded = new LongAdder();
+        final LongAdder failed = new LongAdder();
+        final LongAdder errors = new LongAdder();
+        
+        /**
+         * @param micros Time from the intended send to the complete response
+         * @param success Whether the application reported success
+         */
+        void record(long micros, boolean success) {
+            latency.record(micros);
+            (success ? succeeded : failed).increment();
+        }
+        
+        /**
+         * Record a request that got no response (connection error or client timeout)
+         */
+        void error(long micros) {
+            latency.record(micros);
+            errors.increment();
+        }
+        
+        long requests() {
+            return succeeded.sum() + failed.sum() + errors.sum();
+        }
+    }
+}
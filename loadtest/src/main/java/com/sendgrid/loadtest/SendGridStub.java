@@ -0,0 +1,377 @@
+package com.sendgrid.loadtest;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import com.sun.net.httpserver.HttpExchange;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * SendGrid Stub - Emulates the SendGrid v3 dynamic template endpoints the application calls:
+ * GET /v3/templates (paged), POST /v3/templates, GET /v3/templates/{id}, POST /v3/templates/{id}/versions and
+ * POST /v3/mail/send.
+ *
+ * Templates live in memory, seeded with a configurable number of templates of realistic size. Every response
+ * carries X-RateLimit-Limit, X-RateLimit-Remaining and X-RateLimit-Reset for its endpoint family (templates,
+ * versions or mail), each a fixed window like SendGrid's; an exhausted window answers 429. Random 429s and 5xx can be
+ * injected on top to exercise retries and circuit breakers.
+ */
+final class SendGridStub extends StubServer {
+    
+    private static final Pattern TEMPLATE_PATH = Pattern.compile("^/v3/templates/([A-Za-z0-9_-]+)$");
+    private static final Pattern VERSIONS_PATH = Pattern.compile("^/v3/templates/([A-Za-z0-9_-]+)/versions$");
+    private static final DateTimeFormatter UPDATED_AT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    private static final int MAX_PAGE_SIZE = 200;
+    // Versions kept per template, so a long run of version creates does not grow without bound
+    private static final int MAX_VERSIONS = 20;
+    private static final int MAX_PERSONALIZATIONS = 1000;
+    
+    private final LatencyModel latency;
+    private final RateWindow templatesWindow;
+    private final RateWindow versionsWindow;
+    private final RateWindow mailWindow;
+    private final double throttleRate;
+    private final double errorRate;
+    private final ConcurrentSkipListMap<String, JSONObject> templates = new ConcurrentSkipListMap<>();
+    
+    /**
+     * @param port Port to listen on, 0 for any free port
+     * @param templateCount Templates to seed, each with two versions
+     * @param htmlBytes Size of each version's HTML
+     * @param latency Delay of every response
+     * @param rateLimit Requests per window and family, e.g. "600/60s"
+     * @param throttleRate Share of requests answered 429 regardless of the window
+     * @param errorRate Share of requests answered 503
+     */
+    SendGridStub(int port, int templateCount, int htmlBytes, LatencyModel latency, String rateLimit,
+            double throttleRate, double errorRate) throws IOException {
+        super("sendgrid", port);
+        this.latency = latency;
+        this.templatesWindow = RateWindow.parse(rateLimit);
+        this.versionsWindow = RateWindow.parse(rateLimit);
+        this.mailWindow = RateWindow.parse(rateLimit);
+        this.throttleRate = throttleRate;
+        this.errorRate = errorRate;
+        for (int i = 0; i < templateCount; i++) {
+            JSONObject template = newTemplate(String.format("d-%032x", i), "Load test template " + i);
+            addVersion(template, "Version A", "Subject " + i, Content.html("Template " + i, htmlBytes, i), true);
+            addVersion(template, "Version B", "Subject " + i + " (B)", Content.html("Template " + i + " B", htmlBytes, i + 1), false);
+            templates.put(template.getString("id"), template);
+        }
+    }
+    
+    /**
+     * @return IDs of the seeded and created templates
+     */
+    List<String> templateIds() {
+        return new ArrayList<>(templates.keySet());
+    }
+    
+    @Override
+    void handle(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        String method = exchange.getRequestMethod();
+        Matcher versions = VERSIONS_PATH.matcher(path);
+        Matcher template = TEMPLATE_PATH.matcher(path);
+        
+        String route;
+        RateWindow window;
+        if (path.equals("/v3/templates") && method.equals("GET")) {
+            route = "GET /v3/templates";
+            window = templatesWindow;
+        } else if (path.equals("/v3/templates") && method.equals("POST")) {
+            route = "POST /v3/templates";
+            window = templatesWindow;
+        } else if (versions.matches() && method.equals("POST")) {
+            route = "POST /v3/templates/{id}/versions";
+            window = versionsWindow;
+        } else if (template.matches() && method.equals("GET")) {
+            route = "GET /v3/templates/{id}";
+            window = templatesWindow;
+        } else if (path.equals("/v3/mail/send") && method.equals("POST")) {
+            route = "POST /v3/mail/send";
+            window = mailWindow;
+        } else {
+            sendJson(exchange, "other", 404, errors(null, "resource not found"));
+            return;
+        }
+        String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+        if (authorization == null || !authorization.startsWith("Bearer ")) {
+            sendJson(exchange, route, 401, errors(null, "authorization required"));
+            return;
+        }
+        
+        long remaining = window.take();
+        exchange.getResponseHeaders().set("X-RateLimit-Limit", Long.toString(window.limit));
+        exchange.getResponseHeaders().set("X-RateLimit-Remaining", Long.toString(Math.max(0, remaining)));
+        exchange.getResponseHeaders().set("X-RateLimit-Reset", Long.toString(window.resetEpochSeconds()));
+        if (remaining < 0 || chance(throttleRate)) {
+            sendJson(exchange, route, 429, errors(null, "too many requests"));
+            return;
+        }
+        sleep(latency.sampleMillis());
+        if (chance(errorRate)) {
+            sendJson(exchange, route, 503, errors(null, "service unavailable"));
+            return;
+        }
+        
+        switch (route) {
+            case "GET /v3/templates":
+                listTemplates(exchange, route);
+                break;
+            case "POST /v3/templates":
+                createTemplate(exchange, route);
+                break;
+            case "POST /v3/templates/{id}/versions":
+                createVersion(exchange, route, versions.group(1));
+                break;
+            case "POST /v3/mail/send":
+                sendMail(exchange, route);
+                break;
+            default:
+                getTemplate(exchange, route, template.group(1));
+                break;
+        }
+    }
+    
+    private void listTemplates(HttpExchange exchange, String route) throws IOException {
+        Map<String, String> query = queryParameters(exchange);
+        int pageSize = Math.min(MAX_PAGE_SIZE, Math.max(1, parseInt(query.get("page_size"), 10)));
+        int offset = Math.max(0, parseInt(query.get("page_token"), 0));
+        List<JSONObject> all = new ArrayList<>(templates.values());
+        
+        JSONArray result = new JSONArray();
+        for (int i = offset; i < Math.min(all.size(), offset + pageSize); i++) {
+            result.put(summary(all.get(i)));
+        }
+        JSONObject metadata = new JSONObject().put("count", all.size())
+            .put("self", baseUrl() + "/v3/templates?page_size=" + pageSize + "&page_token=" + offset);
+        if (offset + pageSize < all.size()) {
+            metadata.put("next", baseUrl() + "/v3/templates?generations=dynamic&page_size=" + pageSize
+                    + "&page_token=" + (offset + pageSize));
+        }
+        sendJson(exchange, route, 200, new JSONObject().put("result", result).put("_metadata", metadata));
+    }
+    
+    private void getTemplate(HttpExchange exchange, String route, String templateId) throws IOException {
+        JSONObject template = templates.get(templateId);
+        if (template == null) {
+            sendJson(exchange, route, 404, errors(null, "resource not found"));
+            return;
+        }
+        String body;
+        synchronized (template) {
+            body = template.toString();
+        }
+        send(exchange, route, 200, "application/json", body.getBytes(StandardCharsets.UTF_8));
+    }
+    
+    private void createTemplate(HttpExchange exchange, String route) throws IOException {
+        JSONObject request = parse(readBody(exchange));
+        String name = request != null ? request.optString("name", "").trim() : "";
+        if (name.isEmpty()) {
+            sendJson(exchange, route, 400, errors("name", "name is required"));
+            return;
+        }
+        JSONObject template = newTemplate("d-" + UUID.randomUUID().toString().replace("-", ""), name);
+        templates.put(template.getString("id"), template);
+        sendJson(exchange, route, 201, template);
+    }
+    
+    private void createVersion(HttpExchange exchange, String route, String templateId) throws IOException {
+        JSONObject request = parse(readBody(exchange));
+        if (request == null) {
+            sendJson(exchange, route, 400, errors(null, "invalid JSON body"));
+            return;
+        }
+        JSONObject template = templates.get(templateId);
+        if (template == null) {
+            sendJson(exchange, route, 404, errors(null, "resource not found"));
+            return;
+        }
+        if (request.optString("name", "").trim().isEmpty()) {
+            sendJson(exchange, route, 400, errors("name", "name is required"));
+            return;
+        }
+        JSONObject version;
+        synchronized (template) {
+            version = addVersion(template, request.getString("name"), request.optString("subject", ""),
+                    request.optString("html_content", ""), request.optInt("active", 0) == 1);
+        }
+        sendJson(exchange, route, 201, version);
+    }
+    
+    /**
+     * Accept a dynamic template send after the checks SendGrid makes before queuing it
+     */
+    private void sendMail(HttpExchange exchange, String route) throws IOException {
+        JSONObject request = parse(readBody(exchange));
+        if (request == null) {
+            sendJson(exchange, route, 400, errors(null, "invalid JSON body"));
+            return;
+        }
+        JSONObject from = request.optJSONObject("from");
+        if (from == null || from.optString("email", "").isEmpty()) {
+            sendJson(exchange, route, 400, errors("from.email", "The from object must be provided for every email send."));
+            return;
+        }
+        if (!templates.containsKey(request.optString("template_id", ""))) {
+            sendJson(exchange, route, 400, errors("template_id", "The template_id must be a valid GUID"));
+            return;
+        }
+        JSONArray personalizations = request.optJSONArray("personalizations");
+        if (personalizations == null || personalizations.isEmpty() || personalizations.length() > MAX_PERSONALIZATIONS) {
+            sendJson(exchange, route, 400, errors("personalizations",
+                    "The personalizations field must have between 1 and 1000 items."));
+            return;
+        }
+        for (int i = 0; i < personalizations.length(); i++) {
+            JSONArray to = personalizations.getJSONObject(i).optJSONArray("to");
+            if (to == null || to.isEmpty() || to.getJSONObject(0).optString("email", "").indexOf('@') <= 0) {
+                sendJson(exchange, route, 400, errors("personalizations." + i + ".to",
+                        "Does not contain a valid address."));
+                return;
+            }
+        }
+        exchange.getResponseHeaders().set("X-Message-Id", UUID.randomUUID().toString().replace("-", ""));
+        send(exchange, route, 202, null, null);
+    }
+    
+    private JSONObject newTemplate(String id, String name) {
+        return new JSONObject().put("id", id).put("name", name).put("generation", "dynamic")
+            .put("updated_at", now()).put("versions", new JSONArray());
+    }
+    
+    /**
+     * Append a version; the caller holds the template's lock unless the template is not shared yet
+     */
+    private JSONObject addVersion(JSONObject template, String name, String subject, String html, boolean active) {
+        JSONArray versions = template.getJSONArray("versions");
+        if (active) {
+            for (int i = 0; i < versions.length(); i++) {
+                versions.getJSONObject(i).put("active", 0);
+            }
+        }
+        JSONObject version = new JSONObject()
+            .put("id", UUID.randomUUID().toString())
+            .put("template_id", template.getString("id"))
+            .put("active", active ? 1 : 0)
+            .put("name", name)
+            .put("subject", subject)
+            .put("html_content", html)
+            .put("plain_content", "")
+            .put("generate_plain_content", true)
+            .put("editor", "code")
+            .put("updated_at", now());
+        versions.put(version);
+        if (versions.length() > MAX_VERSIONS) {
+            versions.remove(0);
+        }
+        template.put("updated_at", version.getString("updated_at"));
+        return version;
+    }
+    
+    /**
+     * @return Template as listed: versions without their content
+     */
+    private static JSONObject summary(JSONObject template) {
+        synchronized (template) {
+            JSONArray versions = new JSONArray();
+            JSONArray full = template.getJSONArray("versions");
+            for (int i = 0; i < full.length(); i++) {
+                JSONObject version = full.getJSONObject(i);
+                versions.put(new JSONObject().put("id", version.getString("id"))
+                    .put("template_id", version.getString("template_id")).put("active", version.getInt("active"))
+                    .put("name", version.getString("name")).put("subject", version.getString("subject"))
+                    .put("updated_at", version.getString("updated_at")));
+            }
+            return new JSONObject().put("id", template.getString("id")).put("name", template.getString("name"))
+                .put("generation", "dynamic").put("updated_at", template.getString("updated_at"))
+                .put("versions", versions);
+        }
+    }
+    
+    private static JSONObject errors(String field, String message) {
+        return new JSONObject().put("errors", new JSONArray().put(new JSONObject().put("field", field == null
+                ? JSONObject.NULL : field).put("message", message)));
+    }
+    
+    private static JSONObject parse(String body) {
+        try {
+            return new JSONObject(body);
+        } catch (JSONException e) {
+            return null;
+        }
+    }
+    
+    private static int parseInt(String value, int defaultValue) {
+        try {
+            return value != null ? Integer.parseInt(value) : defaultValue;
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+    
+    private static String now() {
+        return LocalDateTime.now(ZoneOffset.UTC).format(UPDATED_AT);
+    }
+    
+    /**
+     * Fixed rate-limit window of one endpoint family
+     */
+    private static final class RateWindow {
+        
+        private final long limit;
+        private final long windowMillis;
+        private long windowStart;
+        private long used;
+        
+        private RateWindow(long limit, long windowMillis) {
+            this.limit = limit;
+            this.windowMillis = windowMillis;
+        }
+        
+        /**
+         * @param spec Requests per window, e.g. "600/60s"
+         */
+        static RateWindow parse(String spec) {
+            int slash = spec.indexOf('/');
+            if (slash < 0) {
+                throw new IllegalArgumentException("Rate limit must look like 600/60s: " + spec);
+            }
+            return new RateWindow(Long.parseLong(spec.substring(0, slash).trim()),
+                    Math.max(1, Options.parseMillis(spec.substring(slash + 1))));
+        }
+        
+        /**
+         * @return Requests left in the window after this one, or -1 if the window was already used up
+         */
+        synchronized long take() {
+            long now = System.currentTimeMillis();
+            if (now - windowStart >= windowMillis) {
+                windowStart = now - (now % windowMillis);
+                used = 0;
+            }
+            if (used >= limit) {
+                return -1;
+            }
+            used++;
+            return limit - used;
+        }
+        
+        synchronized long resetEpochSeconds() {
+            return (windowStart + windowMillis + 999) / 1000;
+        }
+    }
+}
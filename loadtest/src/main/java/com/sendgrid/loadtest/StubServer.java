@@ -0,0 +1,161 @@
+package com.sendgrid.loadtest;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.json.JSONObject;
+
+/**
+ * Stub Server - Base of the local servers that stand in for SendGrid, OpenAI and web pages during a load test.
+ *
+ * Runs on the JDK's built-in HTTP server with a thread per request in flight, so an emulated delay is a plain
+ * sleep that never holds up other requests. Responses are counted per route and status for the report.
+ */
+abstract class StubServer {
+    
+    private final String name;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final ConcurrentHashMap<String, LongAdder> responses = new ConcurrentHashMap<>();
+    
+    StubServer(String name, int port) throws IOException {
+        this.name = name;
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 1024);
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, name + "-stub-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(executor);
+        server.createContext("/", exchange -> {
+            try {
+                handle(exchange);
+            } catch (IOException ex) {
+                // The application gave up on the call (timeout, cancelled stream); nothing to answer
+            } catch (RuntimeException ex) {
+                sendJson(exchange, "error", 500, new JSONObject().put("error", String.valueOf(ex.getMessage())));
+            } finally {
+                exchange.close();
+            }
+        });
+    }
+    
+    /**
+     * Answer one request; the exchange is closed afterwards
+     */
+    abstract void handle(HttpExchange exchange) throws IOException;
+    
+    void start() {
+        server.start();
+    }
+    
+    void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+    
+    String getName() {
+        return name;
+    }
+    
+    /**
+     * @return Base URL, e.g. http://127.0.0.1:41234
+     */
+    String baseUrl() {
+        InetSocketAddress address = server.getAddress();
+        return "http://" + address.getAddress().getHostAddress() + ":" + address.getPort();
+    }
+    
+    /**
+     * @return Responses sent so far, keyed by "route status"
+     */
+    Map<String, Long> responseCounts() {
+        Map<String, Long> counts = new TreeMap<>();
+        responses.forEach((key, count) -> counts.put(key, count.sum()));
+        return counts;
+    }
+    
+    /**
+     * Send a complete response and count it
+     */
+    void send(HttpExchange exchange, String route, int status, String contentType, byte[] body) throws IOException {
+        responses.computeIfAbsent(route + " " + status, key -> new LongAdder()).increment();
+        if (contentType != null) {
+            exchange.getResponseHeaders().set("Content-Type", contentType);
+        }
+        if (body == null || body.length == 0) {
+            exchange.sendResponseHeaders(status, -1);
+            return;
+        }
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+    
+    void sendJson(HttpExchange exchange, String route, int status, JSONObject body) throws IOException {
+        send(exchange, route, status, "application/json", body.toString().getBytes(StandardCharsets.UTF_8));
+    }
+    
+    /**
+     * Count a response that the subclass streams itself
+     */
+    void count(String route, int status) {
+        responses.computeIfAbsent(route + " " + status, key -> new LongAdder()).increment();
+    }
+    
+    static String readBody(HttpExchange exchange) throws IOException {
+        return new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+    }
+    
+    static Map<String, String> queryParameters(HttpExchange exchange) {
+        Map<String, String> parameters = new HashMap<>();
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query == null) {
+            return parameters;
+        }
+        for (String pair : query.split("&")) {
+            int equals = pair.indexOf('=');
+            if (equals > 0) {
+                parameters.put(URLDecoder.decode(pair.substring(0, equals), StandardCharsets.UTF_8),
+                        URLDecoder.decode(pair.substring(equals + 1), StandardCharsets.UTF_8));
+            }
+        }
+        return parameters;
+    }
+    
+    /**
+     * @param probability Chance between 0 and 1
+     * @return true with the given probability
+     */
+    static boolean chance(double probability) {
+        return probability > 0 && ThreadLocalRandom.current().nextDouble() < probability;
+    }
+    
+    static void sleep(long millis) throws IOException {
+        if (millis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted");
+        }
+    }
+}
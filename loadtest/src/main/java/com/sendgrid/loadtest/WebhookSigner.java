@@ -0,0 +1,57 @@
+package com.sendgrid.loadtest;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.security.spec.ECGenParameterSpec;
+import java.util.Base64;
+
+/**
+ * Webhook Signer - Signs Event Webhook posts the way SendGrid does, with a key pair made for the run.
+ *
+ * The application is booted with the public key as SENDGRID_WEBHOOK_PUBLIC_KEY, so its signature check runs on
+ * every post exactly as it would for SendGrid's.
+ */
+final class WebhookSigner {
+    
+    static final String SIGNATURE_HEADER = "X-Twilio-Email-Event-Webhook-Signature";
+    static final String TIMESTAMP_HEADER = "X-Twilio-Email-Event-Webhook-Timestamp";
+    
+    private final KeyPair keyPair;
+    
+    WebhookSigner() {
+        try {
+            KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+            generator.initialize(new ECGenParameterSpec("secp256r1"));
+            this.keyPair = generator.generateKeyPair();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Could not create a P-256 key pair", e);
+        }
+    }
+    
+    /**
+     * @return Public key in the base64 form SendGrid shows in its settings
+     */
+    String publicKeyBase64() {
+        return Base64.getEncoder().encodeToString(keyPair.getPublic().getEncoded());
+    }
+    
+    /**
+     * @param timestamp Timestamp header value
+     * @param body Request body
+     * @return Signature header value
+     */
+    String sign(String timestamp, byte[] body) {
+        try {
+            Signature signature = Signature.getInstance("SHA256withECDSA");
+            signature.initSign(keyPair.getPrivate());
+            signature.update(timestamp.getBytes(StandardCharsets.UTF_8));
+            signature.update(body);
+            return Base64.getEncoder().encodeToString(signature.sign());
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Could not sign a webhook post", e);
+        }
+    }
+}
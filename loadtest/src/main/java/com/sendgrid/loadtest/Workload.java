@@ -0,0 +1,229 @@
+package com.sendgrid.loadtest;
+
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Workload - The mix of application requests a load test sends, weighted per endpoint.
+ *
+ * Covers the five servlet endpoints that reach an upstream: template listing, version creation, template
+ * creation, AI generation (buffered and streamed) and page source fetching. Requests draw from fixed pools of
+ * template IDs, prompts and pages, so the application's caches see a realistic share of repeats. Signed Event
+ * Webhook posts can be added to the mix; they never reach an upstream but arrive at SendGrid's rates.
+ */
+final class Workload {
+    
+    /**
+     * Endpoint of the application, with its name in --mix and the report
+     */
+    enum Endpoint {
+        TEMPLATES("templates", "GET /templates"),
+        VERSION("version", "POST /send-template-code"),
+        CREATE("create", "POST /createTemplateId"),
+        AI("ai", "POST /template-ai"),
+        PAGE("page", "GET /page-source"),
+        WEBHOOK("webhook", "POST /webhooks/sendgrid");
+        
+        private final String key;
+        private final String label;
+        
+        Endpoint(String key, String label) {
+            this.key = key;
+            this.label = label;
+        }
+        
+        String key() {
+            return key;
+        }
+        
+        String label() {
+            return label;
+        }
+    }
+    
+    private final String appUrl;
+    private final String originUrl;
+    private final int pageCount;
+    private final List<String> templateIds;
+    private final int promptCount;
+    private final double streamShare;
+    private final Duration timeout;
+    private final Endpoint[] endpoints;
+    private final int[] cumulativeWeights;
+    private final String versionHtml;
+    private final WebhookSigner webhookSigner;
+    private final int webhookEvents;
+    
+    /**
+     * @param appUrl Base URL of the application
+     * @param originUrl Base URL of the page origin stub
+     * @param pageCount Pages the origin serves
+     * @param templateIds Templates that exist upstream
+     * @param mix Weight per endpoint, e.g. "templates=40,version=15,create=5,ai=10,page=30"
+     * @param promptCount Distinct AI prompts to draw from
+     * @param streamShare Share of AI requests that stream
+     * @param htmlBytes Size of the HTML sent with version creates
+     * @param timeout Time allowed for each application response
+     * @param webhookSigner Signs Event Webhook posts
+     * @param webhookEvents Events per Event Webhook post
+     */
+    Workload(String appUrl, String originUrl, int pageCount, List<String> templateIds, String mix, int promptCount,
+            double streamShare, int htmlBytes, Duration timeout, WebhookSigner webhookSigner, int webhookEvents) {
+        this.appUrl = appUrl;
+        this.originUrl = originUrl;
+        this.pageCount = pageCount;
+        this.templateIds = templateIds;
+        this.promptCount = Math.max(1, promptCount);
+        this.streamShare = streamShare;
+        this.timeout = timeout;
+        this.versionHtml = Content.html("Load test version", htmlBytes, 0);
+        this.webhookSigner = webhookSigner;
+        this.webhookEvents = Math.max(1, webhookEvents);
+        
+        Map<Endpoint, Integer> weights = parseMix(mix);
+        this.endpoints = weights.keySet().toArray(new Endpoint[0]);
+        this.cumulativeWeights = new int[endpoints.length];
+        int running = 0;
+        for (int i = 0; i < endpoints.length; i++) {
+            running += weights.get(endpoints[i]);
+            cumulativeWeights[i] = running;
+        }
+        if (running == 0) {
+            throw new IllegalArgumentException("--mix gives every endpoint a weight of 0");
+        }
+    }
+    
+    /**
+     * @return Endpoint for the next request, drawn by weight
+     */
+    Endpoint pick(Random random) {
+        int draw = random.nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+        for (int i = 0; i < cumulativeWeights.length; i++) {
+            if (draw < cumulativeWeights[i]) {
+                return endpoints[i];
+            }
+        }
+        return endpoints[endpoints.length - 1];
+    }
+    
+    HttpRequest request(Endpoint endpoint, Random random) {
+        switch (endpoint) {
+            case TEMPLATES:
+                // Mostly the first page; a few prefix searches and deeper pages
+                int choice = random.nextInt(10);
+                String query = choice < 7 ? "limit=50" : choice < 9 ? "prefix=load%20test%20template%201&limit=50"
+                        : "offset=" + random.nextInt(Math.max(1, templateIds.size())) + "&limit=50";
+                return get("/templates?" + query);
+            case VERSION:
+                String templateId = templateIds.get(random.nextInt(templateIds.size()));
+                return post("/send-template-code", "template_id=" + templateId
+                        + "&name=" + encode("Load test " + random.nextInt(1000000))
+                        + "&subject=" + encode("Subject {{first_name}}")
+                        + "&active=" + (random.nextInt(10) == 0 ? "1" : "0")
+                        + "&generate_plain_content=true&editor=code"
+                        + "&html_content=" + encode(versionHtml));
+            case CREATE:
+                // Template names allow only lowercase letters, digits, underscores and hyphens
+                return post("/createTemplateId", "templateName=loadtest_created_" + random.nextInt(1000000));
+            case AI:
+                boolean stream = random.nextDouble() < streamShare;
+                return post("/template-ai", "prompt=" + encode("Newsletter for campaign " + random.nextInt(promptCount)
+                        + " with a hero image, three product cards and a footer") + (stream ? "&stream=true" : ""));
+            case WEBHOOK:
+                return webhook(random);
+            default:
+                String pageUrl = originUrl + "/pages/" + random.nextInt(pageCount) + ".html";
+                return get("/page-source?url=" + encode(pageUrl));
+        }
+    }
+    
+    /**
+     * A response counts as successful when the application answered 200 with a success envelope, or with a
+     * complete event stream for streamed AI requests
+     */
+    static boolean succeeded(HttpResponse<String> response) {
+        if (response.statusCode() != 200 && response.statusCode() != 202) {
+            return false;
+        }
+        String body = response.body();
+        if (response.headers().firstValue("Content-Type").orElse("").startsWith("text/event-stream")) {
+            return body.contains("event: end") && !body.contains("event: error");
+        }
+        return body.startsWith("{\"success\":true") || body.contains("\"success\":true");
+    }
+    
+    /**
+     * A signed post of events for the seeded templates, in the proportions of a typical send: every message
+     * processed and most delivered, then fewer opens and clicks
+     */
+    private HttpRequest webhook(Random random) {
+        String[] events = {"processed", "processed", "delivered", "delivered", "open", "open", "click", "deferred",
+            "bounce", "unsubscribe"};
+        long now = System.currentTimeMillis() / 1000;
+        StringBuilder body = new StringBuilder("[");
+        for (int i = 0; i < webhookEvents; i++) {
+            if (i > 0) {
+                body.append(',');
+            }
+            int template = random.nextInt(templateIds.size());
+            body.append("{\"email\":\"user").append(random.nextInt(1000000)).append("@example.com\"")
+                .append(",\"timestamp\":").append(now)
+                .append(",\"event\":\"").append(events[random.nextInt(events.length)]).append('"')
+                .append(",\"sg_event_id\":\"").append(UUID.randomUUID()).append('"')
+                .append(",\"sg_message_id\":\"").append(Long.toHexString(random.nextLong())).append(".filter0001\"")
+                .append(",\"template_id\":\"").append(templateIds.get(template)).append('"')
+                .append(",\"template_version_id\":\"").append(String.format("%08x-0000-4000-8000-%012x", template, random.nextInt(2)))
+                .append("\"}");
+        }
+        byte[] bytes = body.append(']').toString().getBytes(StandardCharsets.UTF_8);
+        String timestamp = Long.toString(now);
+        return HttpRequest.newBuilder(URI.create(appUrl + "/webhooks/sendgrid")).timeout(timeout)
+            .header("Content-Type", "application/json")
+            .header(WebhookSigner.TIMESTAMP_HEADER, timestamp)
+            .header(WebhookSigner.SIGNATURE_HEADER, webhookSigner.sign(timestamp, bytes))
+            .POST(HttpRequest.BodyPublishers.ofByteArray(bytes))
+            .build();
+    }
+    
+    private HttpRequest get(String pathAndQuery) {
+        return HttpRequest.newBuilder(URI.create(appUrl + pathAndQuery)).timeout(timeout).GET().build();
+    }
+    
+    private HttpRequest post(String path, String form) {
+        return HttpRequest.newBuilder(URI.create(appUrl + path)).timeout(timeout)
+            .header("Content-Type", "application/x-www-form-urlencoded")
+            .POST(HttpRequest.BodyPublishers.ofString(form))
+            .build();
+    }
+    
+    private static String encode(String value) {
+        return URLEncoder.encode(value, StandardCharsets.UTF_8);
+    }
+    
+    private static Map<Endpoint, Integer> parseMix(String mix) {
+        Map<Endpoint, Integer> weights = new EnumMap<>(Endpoint.class);
+        for (String part : mix.split(",")) {
+            String[] pair = part.trim().split("=");
+            Endpoint endpoint = null;
+            for (Endpoint candidate : Endpoint.values()) {
+                if (candidate.key().equals(pair[0].trim())) {
+                    endpoint = candidate;
+                }
+            }
+            if (endpoint == null || pair.length != 2) {
+                throw new IllegalArgumentException("--mix entries look like templates=40; unknown entry: " + part);
+            }
+            weights.put(endpoint, Integer.parseInt(pair[1].trim()));
+        }
+        return weights;
+    }
+}
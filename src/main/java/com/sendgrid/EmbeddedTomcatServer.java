@@ -1,21 +1,60 @@
 package com.sendgrid;
 
+import org.apache.catalina.Context;
 import org.apache.catalina.LifecycleException;
+import org.apache.catalina.Wrapper;
+import org.apache.catalina.connector.Connector;
+import org.apache.catalina.core.StandardContext;
+import org.apache.catalina.core.StandardThreadExecutor;
 import org.apache.catalina.startup.Tomcat;
+import org.apache.tomcat.JarScanFilter;
+import org.apache.tomcat.JarScanType;
+import org.apache.tomcat.util.scan.StandardJarScanner;
 
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.util.zip.ZipFile;
 
 public class EmbeddedTomcatServer {
     
     private static final int DEFAULT_PORT = 8080;
+    // First Java release with final (non-preview) virtual threads
+    private static final int VIRTUAL_THREADS_MIN_JAVA = 21;
+    // Written next to the exploded webapp, never inside it, so it is not served as a static file
+    private static final String MANIFEST_SUFFIX = ".manifest";
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+    private static final int EXTRACT_MAX_THREADS = 8;
+    
+    // Boot phases and their durations, reported once the server is ready
+    private static final List<String> bootPhases = new ArrayList<>();
     
     public static void main(String[] args) {
         try {
+            long phaseStarted = System.nanoTime();
             // Get port from environment variable (Railway provides PORT)
             String portEnv = System.getenv("PORT");
             int port = DEFAULT_PORT;
@@ -35,6 +74,10 @@ public class EmbeddedTomcatServer {
             tomcat.setPort(port);
             tomcat.setHostname("0.0.0.0");
             
+            // Tomcat 9 only creates the default HTTP connector when it is first requested
+            Connector connector = tomcat.getConnector();
+            configureRequestThreads(tomcat, connector);
+            
             // Get the base directory
             String baseDir = System.getProperty("java.io.tmpdir") + "/tomcat." + port;
             File baseDirFile = new File(baseDir);
@@ -44,6 +87,7 @@ public class EmbeddedTomcatServer {
             }
             tomcat.setBaseDir(baseDir);
             System.out.println("Tomcat base directory: " + baseDir);
+            phaseStarted = phase("configure server", phaseStarted);
             
             // Get the WAR file location
             String warPath = findWarFile();
@@ -55,30 +99,43 @@ public class EmbeddedTomcatServer {
             }
             
             System.out.println("Found WAR file at: " + warPath);
+            phaseStarted = phase("locate WAR", phaseStarted);
             
-            // Extract WAR to a temporary directory for deployment
-            String webappDir = baseDir + "/webapp";
-            System.out.println("Extracting WAR to: " + webappDir);
-            extractWar(warPath, webappDir);
-            
-            // Verify extraction
-            File webappDirFile = new File(webappDir);
-            if (!webappDirFile.exists() || !webappDirFile.isDirectory()) {
-                throw new IOException("Failed to extract WAR to: " + webappDir);
-            }
-            System.out.println("WAR extracted successfully");
+            boolean lean = leanStartup();
+            tomcat.setAddDefaultWebXmlToWebapp(!lean);
             
-            // Deploy the extracted webapp
             String contextPath = "";
-            tomcat.addWebapp(contextPath, webappDir);
+            Context context;
+            String webappMode = setting("webapp.mode", "WEBAPP_MODE", "extract");
+            if ("war".equalsIgnoreCase(webappMode)) {
+                // Serve classes, libraries and static files straight out of the WAR; nothing is written to disk
+                context = tomcat.addWebapp(contextPath, warPath);
+                ((StandardContext) context).setUnpackWAR(false);
+                System.out.println("Serving webapp directly from the WAR (no extraction)");
+            } else {
+                if (!"extract".equalsIgnoreCase(webappMode)) {
+                    System.err.println("WARNING: Unknown WEBAPP_MODE value: " + webappMode + ". Extracting the WAR");
+                }
+                // Extract WAR to a directory under the base directory, unless the last extraction is still current
+                Path webappDir = Paths.get(baseDir, "webapp");
+                prepareWebapp(Paths.get(warPath), webappDir);
+                context = tomcat.addWebapp(contextPath, webappDir.toString());
+            }
+            if (lean) {
+                configureLeanStartup(context);
+            }
             System.out.println("Webapp deployed at context path: " + (contextPath.isEmpty() ? "/" : contextPath));
+            phaseStarted = phase("prepare webapp", phaseStarted);
             
             // Start the server
             System.out.println("Starting Tomcat server...");
             tomcat.start();
+            phase("start Tomcat", phaseStarted);
             System.out.println("Tomcat started successfully on port " + port);
             System.out.println("Application available at http://0.0.0.0:" + port);
             System.out.println("Server is ready to accept connections");
+            System.out.println("Boot phases: " + String.join(", ", bootPhases) + " (ready "
+                    + ManagementFactory.getRuntimeMXBean().getUptime() + " ms after JVM start)");
             
             // Keep the server running
             tomcat.getServer().await();
@@ -97,92 +154,288 @@ public class EmbeddedTomcatServer {
         }
     }
     
+    /**
+     * Choose how the connector runs requests. TOMCAT_THREADS (or -Dtomcat.threads) set to "virtual" gives every
+     * request its own virtual thread on Java 21+; otherwise requests run on a bounded platform thread pool sized by
+     * TOMCAT_MAX_THREADS, TOMCAT_MIN_SPARE_THREADS and TOMCAT_MAX_QUEUE_SIZE.
+     */
+    private static void configureRequestThreads(Tomcat tomcat, Connector connector) {
+        String mode = setting("tomcat.threads", "TOMCAT_THREADS", "platform");
+        if ("virtual".equalsIgnoreCase(mode)) {
+            if (Runtime.version().feature() >= VIRTUAL_THREADS_MIN_JAVA) {
+                connector.setProperty("useVirtualThreads", "true");
+                System.out.println("Request threads: virtual (one per request)");
+                return;
+            }
+            System.err.println("WARNING: Virtual threads need Java " + VIRTUAL_THREADS_MIN_JAVA + "+ but this is Java "
+                    + Runtime.version().feature() + ". Using platform thread pool");
+        } else if (!"platform".equalsIgnoreCase(mode)) {
+            System.err.println("WARNING: Unknown TOMCAT_THREADS value: " + mode + ". Using platform thread pool");
+        }
+        
+        int maxThreads = intSetting("tomcat.maxThreads", "TOMCAT_MAX_THREADS", 200);
+        int minSpareThreads = intSetting("tomcat.minSpareThreads", "TOMCAT_MIN_SPARE_THREADS", 10);
+        int maxQueueSize = intSetting("tomcat.maxQueueSize", "TOMCAT_MAX_QUEUE_SIZE", 1000);
+        
+        // Shared, named pool instead of the connector's private one so it is visible and bounded on both ends:
+        // at most maxThreads workers and maxQueueSize waiting connections, beyond which Tomcat refuses work
+        StandardThreadExecutor executor = new StandardThreadExecutor();
+        executor.setName("http-workers");
+        executor.setNamePrefix("http-worker-");
+        executor.setMaxThreads(maxThreads);
+        executor.setMinSpareThreads(Math.min(minSpareThreads, maxThreads));
+        executor.setMaxQueueSize(maxQueueSize);
+        executor.setMaxIdleTime(60000);
+        tomcat.getService().addExecutor(executor);
+        connector.getProtocolHandler().setExecutor(executor);
+        System.out.println("Request threads: platform pool (maxThreads=" + maxThreads + ", minSpareThreads="
+                + minSpareThreads + ", maxQueueSize=" + maxQueueSize + ")");
+    }
+    
+    /**
+     * TOMCAT_STARTUP (or -Dtomcat.startup) set to "full" restores Tomcat's regular webapp startup; anything else
+     * starts lean.
+     */
+    private static boolean leanStartup() {
+        String mode = setting("tomcat.startup", "TOMCAT_STARTUP", "lean");
+        if ("full".equalsIgnoreCase(mode)) {
+            System.out.println("Startup: full (default web.xml, JAR scanning, container initializers)");
+            return false;
+        }
+        if (!"lean".equalsIgnoreCase(mode)) {
+            System.err.println("WARNING: Unknown TOMCAT_STARTUP value: " + mode + ". Using lean startup");
+        }
+        System.out.println("Startup: lean (no JSP support, no JAR scanning)");
+        return true;
+    }
+    
+    /**
+     * Skip the work Tomcat does on every boot that this webapp does not need. There are no JSPs and web.xml is
+     * metadata-complete, so Jasper's JSP servlet (from the default web.xml) and its TLD scan, the WebSocket
+     * initializer and the annotation and web-fragment scan of every JAR in WEB-INF/lib are all left out. Static
+     * files are served by the DefaultServlet and MIME mappings the default web.xml would otherwise have added.
+     */
+    private static void configureLeanStartup(Context context) {
+        StandardJarScanner jarScanner = new StandardJarScanner();
+        jarScanner.setScanClassPath(false);
+        jarScanner.setScanManifest(false);
+        jarScanner.setJarScanFilter(new JarScanFilter() {
+            @Override
+            public boolean check(JarScanType jarScanType, String jarName) {
+                return false;
+            }
+            
+            @Override
+            public boolean isSkipAll() {
+                return true;
+            }
+        });
+        context.setJarScanner(jarScanner);
+        // Every ServletContainerInitializer on the classpath is Tomcat's own (Jasper, WebSocket)
+        context.setContainerSciFilter(".*");
+        
+        Wrapper defaultServlet = Tomcat.addServlet(context, "default", "org.apache.catalina.servlets.DefaultServlet");
+        defaultServlet.addInitParameter("listings", "false");
+        defaultServlet.setLoadOnStartup(1);
+        context.addServletMappingDecoded("/", "default");
+        Tomcat.addDefaultMimeTypeMappings(context);
+    }
+    
+    private static long phase(String name, long startNanos) {
+        bootPhases.add(name + " " + elapsedMillis(startNanos) + " ms");
+        return System.nanoTime();
+    }
+    
+    private static String setting(String propertyName, String envName, String defaultValue) {
+        String value = System.getProperty(propertyName);
+        if (value == null || value.trim().isEmpty()) {
+            value = System.getenv(envName);
+        }
+        return value == null || value.trim().isEmpty() ? defaultValue : value.trim();
+    }
+    
+    private static int intSetting(String propertyName, String envName, int defaultValue) {
+        String value = setting(propertyName, envName, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            System.err.println("WARNING: Invalid " + envName + ": " + value + ". Using default: " + defaultValue);
+            return defaultValue;
+        }
+    }
+    
+    /**
+     * Locate the WAR: -Dwar.file.path if it exists, then the usual build locations, then any WAR in target/.
+     * Only the outcome is logged; the locations that were tried are listed when nothing is found.
+     */
     private static String findWarFile() {
-        // First, check if WAR path is provided as system property
         String warPathProperty = System.getProperty("war.file.path");
         if (warPathProperty != null && !warPathProperty.trim().isEmpty()) {
             File warFile = new File(warPathProperty);
-            if (warFile.exists() && warFile.isFile()) {
-                System.out.println("Found WAR file from system property: " + warFile.getAbsolutePath());
+            if (warFile.isFile()) {
                 return warFile.getAbsolutePath();
-            } else {
-                System.out.println("WARNING: WAR file from system property does not exist: " + warPathProperty);
             }
+            System.err.println("WARNING: WAR file from system property does not exist: " + warPathProperty);
         }
         
         String userDir = System.getProperty("user.dir");
-        System.out.println("Current working directory: " + userDir);
-        
-        // Try multiple locations where the WAR might be
         String[] possiblePaths = {
-            "target/sendGridBasicRailway.war",
             userDir + "/target/sendGridBasicRailway.war",
-            "sendGridBasicRailway.war",
             userDir + "/sendGridBasicRailway.war",
-            "../target/sendGridBasicRailway.war"
+            userDir + "/../target/sendGridBasicRailway.war"
         };
-        
-        System.out.println("Searching for WAR file...");
         for (String path : possiblePaths) {
             File file = new File(path);
-            System.out.println("  Checking: " + path + " -> " + file.getAbsolutePath() + " (exists: " + file.exists() + ")");
-            if (file.exists() && file.isFile()) {
-                System.out.println("  Found WAR file at: " + file.getAbsolutePath());
+            if (file.isFile()) {
                 return file.getAbsolutePath();
             }
         }
         
-        // If WAR not found, try to find any WAR file in target directory
-        System.out.println("WAR not found in standard locations, searching target directory...");
-        File targetDir = new File("target");
-        if (!targetDir.exists()) {
-            targetDir = new File(userDir + "/target");
+        // Any WAR in the target directory, e.g. after a rename of the build's finalName
+        File targetDir = new File(userDir, "target");
+        File[] files = targetDir.listFiles((dir, name) -> name.endsWith(".war"));
+        if (files != null && files.length > 0) {
+            Arrays.sort(files);
+            return files[0].getAbsolutePath();
         }
         
-        if (targetDir.exists() && targetDir.isDirectory()) {
-            System.out.println("  Target directory exists: " + targetDir.getAbsolutePath());
-            File[] files = targetDir.listFiles((dir, name) -> name.endsWith(".war"));
-            if (files != null && files.length > 0) {
-                System.out.println("  Found WAR file: " + files[0].getAbsolutePath());
-                return files[0].getAbsolutePath();
-            } else {
-                System.out.println("  No WAR files found in target directory");
+        System.err.println("Searched: " + String.join(", ", possiblePaths) + " and " + targetDir.getAbsolutePath() + "/*.war");
+        return null;
+    }
+    
+    /**
+     * Make sure webappDir holds the contents of the WAR, extracting it only when it has changed.
+     *
+     * After every extraction a manifest next to the directory records the WAR's size, modification time and
+     * SHA-256. On the next boot a matching size and mtime skips extraction without reading the WAR; a changed mtime
+     * with the same content (a rebuild that produced identical bytes, a copy that lost its timestamp) only refreshes
+     * the manifest. The manifest is removed before extracting, so an interrupted extraction is never reused.
+     */
+    static void prepareWebapp(Path war, Path webappDir) throws IOException {
+        long started = System.nanoTime();
+        Path manifestFile = webappDir.resolveSibling(webappDir.getFileName() + MANIFEST_SUFFIX);
+        String size = Long.toString(Files.size(war));
+        String modified = Long.toString(Files.getLastModifiedTime(war).toMillis());
+        
+        Properties manifest = new Properties();
+        if (Files.isRegularFile(manifestFile) && Files.isDirectory(webappDir)) {
+            try (InputStream in = Files.newInputStream(manifestFile)) {
+                manifest.load(in);
             }
-        } else {
-            System.out.println("  Target directory does not exist: " + targetDir.getAbsolutePath());
         }
         
-        System.out.println("ERROR: Could not find WAR file in any location");
-        return null;
+        String hash = null;
+        if (size.equals(manifest.getProperty("size"))) {
+            if (modified.equals(manifest.getProperty("modified"))) {
+                System.out.println("WAR unchanged, reusing extracted webapp at " + webappDir + " (checked in "
+                        + elapsedMillis(started) + " ms)");
+                return;
+            }
+            hash = sha256(war);
+            if (hash.equals(manifest.getProperty("sha256"))) {
+                writeManifest(manifestFile, size, modified, hash);
+                System.out.println("WAR content unchanged, reusing extracted webapp at " + webappDir + " (checked in "
+                        + elapsedMillis(started) + " ms)");
+                return;
+            }
+        }
+        
+        Files.deleteIfExists(manifestFile);
+        System.out.println("Extracting WAR to: " + webappDir);
+        extractWar(war, webappDir);
+        writeManifest(manifestFile, size, modified, hash != null ? hash : sha256(war));
+        System.out.println("WAR extracted in " + elapsedMillis(started) + " ms");
+    }
+    
+    private static void writeManifest(Path manifestFile, String size, String modified, String hash) throws IOException {
+        Properties manifest = new Properties();
+        manifest.setProperty("size", size);
+        manifest.setProperty("modified", modified);
+        manifest.setProperty("sha256", hash);
+        try (OutputStream out = Files.newOutputStream(manifestFile)) {
+            manifest.store(out, "Exploded WAR manifest, written by EmbeddedTomcatServer");
+        }
     }
     
-    private static void extractWar(String warPath, String destDir) throws IOException {
-        File dest = new File(destDir);
-        if (dest.exists()) {
-            deleteDirectory(dest);
+    private static String sha256(Path file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(COPY_BUFFER_SIZE);
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b));
         }
-        dest.mkdirs();
+        return hex.toString();
+    }
+    
+    /**
+     * Extract the WAR into a staging directory next to destDir and swap it in once every entry is written, so a
+     * failed extraction leaves no half-written webapp behind. Entries are read through ZipFile's random access and
+     * written in parallel; the WAR is mostly already-compressed jars, so the copy is I/O bound rather than limited
+     * by inflation.
+     */
+    static void extractWar(Path war, Path destDir) throws IOException {
+        Path staging = destDir.resolveSibling(destDir.getFileName() + ".extracting");
+        deleteDirectory(staging.toFile());
+        Files.createDirectories(staging);
         
-        try (ZipInputStream zis = new ZipInputStream(new FileInputStream(warPath))) {
-            ZipEntry entry = zis.getNextEntry();
-            while (entry != null) {
-                File file = new File(dest, entry.getName());
+        int threads = Math.max(1, Math.min(EXTRACT_MAX_THREADS, Runtime.getRuntime().availableProcessors()));
+        ExecutorService pool = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "war-extract");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try (ZipFile zip = new ZipFile(war.toFile())) {
+            List<Future<?>> copies = new ArrayList<>();
+            for (ZipEntry entry : Collections.list(zip.entries())) {
+                Path target = staging.resolve(entry.getName()).normalize();
+                if (!target.startsWith(staging)) {
+                    throw new IOException("WAR entry points outside the webapp directory: " + entry.getName());
+                }
                 if (entry.isDirectory()) {
-                    file.mkdirs();
-                } else {
-                    file.getParentFile().mkdirs();
-                    try (FileOutputStream fos = new FileOutputStream(file)) {
-                        byte[] buffer = new byte[1024];
-                        int len;
-                        while ((len = zis.read(buffer)) > 0) {
-                            fos.write(buffer, 0, len);
-                        }
-                    }
+                    Files.createDirectories(target);
+                    continue;
                 }
-                entry = zis.getNextEntry();
+                Files.createDirectories(target.getParent());
+                copies.add(pool.submit(() -> {
+                    try (InputStream in = new BufferedInputStream(zip.getInputStream(entry), COPY_BUFFER_SIZE)) {
+                        Files.copy(in, target);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> copy : copies) {
+                copy.get();
             }
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to extract WAR: " + war, e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while extracting WAR");
+        } finally {
+            pool.shutdownNow();
         }
-        System.out.println("WAR extracted to: " + destDir);
+        
+        deleteDirectory(destDir.toFile());
+        Files.move(staging, destDir, StandardCopyOption.ATOMIC_MOVE);
+    }
+    
+    private static long elapsedMillis(long startNanos) {
+        return (System.nanoTime() - startNanos) / 1_000_000;
     }
     
     private static void deleteDirectory(File directory) {
@@ -201,4 +454,3 @@ public class EmbeddedTomcatServer {
         }
     }
 }
-
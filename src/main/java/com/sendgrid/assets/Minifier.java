@@ -0,0 +1,127 @@
+package com.sendgrid.assets;
+
+/**
+ * Minifier - Conservative CSS and JavaScript minification.
+ *
+ * Only changes that cannot alter behaviour are made: comments and redundant whitespace go, strings and template
+ * literals are left exactly as written. JavaScript keeps its line breaks, so automatic semicolon insertion works
+ * as in the source; only indentation, blank lines and whole-line comments are removed.
+ */
+final class Minifier {
+    
+    // Whitespace before these characters can go; ':' is kept out so "a :hover" stays a descendant selector
+    private static final String CSS_NO_SPACE_BEFORE = "{};,>";
+    private static final String CSS_NO_SPACE_AFTER = "{};,>:";
+    
+    private Minifier() {
+    }
+    
+    /**
+     * @param source Stylesheet
+     * @return Stylesheet without comments and with minimal whitespace
+     */
+    static String css(String source) {
+        StringBuilder out = new StringBuilder(source.length());
+        boolean pendingSpace = false;
+        char quote = 0;
+        for (int i = 0; i < source.length(); i++) {
+            char c = source.charAt(i);
+            if (quote != 0) {
+                out.append(c);
+                if (c == '\\' && i + 1 < source.length()) {
+                    out.append(source.charAt(++i));
+                } else if (c == quote) {
+                    quote = 0;
+                }
+                continue;
+            }
+            if (c == '/' && i + 1 < source.length() && source.charAt(i + 1) == '*') {
+                int end = source.indexOf("*/", i + 2);
+                i = end < 0 ? source.length() : end + 1;
+                pendingSpace = true;
+                continue;
+            }
+            if (Character.isWhitespace(c)) {
+                pendingSpace = true;
+                continue;
+            }
+            int length = out.length();
+            char last = length > 0 ? out.charAt(length - 1) : 0;
+            if (pendingSpace && length > 0 && CSS_NO_SPACE_AFTER.indexOf(last) < 0 && CSS_NO_SPACE_BEFORE.indexOf(c) < 0) {
+                out.append(' ');
+            }
+            pendingSpace = false;
+            if (c == '}' && last == ';') {
+                out.setLength(length - 1);
+            }
+            if (c == '"' || c == '\'') {
+                quote = c;
+            }
+            out.append(c);
+        }
+        return out.toString();
+    }
+    
+    /**
+     * @param source Script
+     * @return Script without indentation, blank lines and whole-line comments
+     */
+    static String javascript(String source) {
+        StringBuilder out = new StringBuilder(source.length());
+        boolean inTemplate = false;
+        boolean inComment = false;
+        for (String line : source.split("\r?\n", -1)) {
+            if (inTemplate) {
+                // Inside a multi-line template literal every character is content
+                out.append(line).append('\n');
+                inTemplate = endsInTemplate(line, true);
+                continue;
+            }
+            String trimmed = line.trim();
+            if (inComment) {
+                int end = trimmed.indexOf("*/");
+                if (end < 0) {
+                    continue;
+                }
+                inComment = false;
+                trimmed = trimmed.substring(end + 2).trim();
+            }
+            if (trimmed.startsWith("/*")) {
+                int end = trimmed.indexOf("*/", 2);
+                if (end < 0) {
+                    inComment = true;
+                    continue;
+                }
+                trimmed = trimmed.substring(end + 2).trim();
+            }
+            if (trimmed.isEmpty() || trimmed.startsWith("//")) {
+                continue;
+            }
+            out.append(trimmed).append('\n');
+            inTemplate = endsInTemplate(trimmed, false);
+        }
+        return out.toString();
+    }
+    
+    /**
+     * Whether a template literal is still open at the end of a line
+     */
+    private static boolean endsInTemplate(String line, boolean inTemplate) {
+        char quote = inTemplate ? '`' : 0;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quote != 0) {
+                if (c == '\\') {
+                    i++;
+                } else if (c == quote) {
+                    quote = 0;
+                }
+            } else if (c == '"' || c == '\'' || c == '`') {
+                quote = c;
+            } else if (c == '/' && i + 1 < line.length() && line.charAt(i + 1) == '/') {
+                break;
+            }
+        }
+        return quote == '`';
+    }
+}
@@ -0,0 +1,253 @@
+package com.sendgrid.assets;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+import javax.servlet.ServletContext;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Static Assets - Minified, fingerprinted and precompressed copies of the webapp's pages, styles and scripts.
+ *
+ * Built once when the webapp starts, from the same files the default servlet would serve:
+ * - CSS and JavaScript are minified and also published under a fingerprinted name (style.css becomes
+ *   style.1a2b3c4d5e.css) whose content never changes, so browsers may cache it forever
+ * - HTML pages have their href/src references to those files rewritten to the fingerprinted names
+ * - every asset is gzip-compressed at the highest level, kept only if that makes it smaller
+ * Each representation carries a strong ETag derived from its content.
+ */
+public class StaticAssets {
+    
+    private static final Logger logger = LogManager.getLogger(StaticAssets.class);
+    
+    private static final Set<String> MINIFIED_EXTENSIONS = Set.of("css", "js");
+    private static final String PAGE_EXTENSION = "html";
+    private static final int FINGERPRINT_LENGTH = 10;
+    // Local references only: anything with a scheme, query or fragment is left alone
+    private static final Pattern REFERENCE = Pattern.compile("((?:href|src)\\s*=\\s*\")([^\"?#:]+)(\")");
+    
+    private final Map<String, Asset> assets;
+    
+    private StaticAssets(Map<String, Asset> assets) {
+        this.assets = assets;
+    }
+    
+    /**
+     * Run the asset pipeline over the webapp's resources
+     * @param context Servlet context whose resources are processed
+     * @return Processed assets
+     * @throws IOException if a resource cannot be read
+     */
+    public static StaticAssets build(ServletContext context) throws IOException {
+        long started = System.nanoTime();
+        Set<String> paths = new TreeSet<>();
+        collect(context, "/", paths);
+        
+        Map<String, Asset> assets = new HashMap<>();
+        // Fingerprinted name of every minified file, by original path, for rewriting page references
+        Map<String, String> fingerprinted = new HashMap<>();
+        List<String> pages = new ArrayList<>();
+        for (String path : paths) {
+            String extension = extension(path);
+            if (PAGE_EXTENSION.equals(extension)) {
+                pages.add(path);
+            } else if (MINIFIED_EXTENSIONS.contains(extension)) {
+                String source = read(context, path);
+                String minified = "css".equals(extension) ? Minifier.css(source) : Minifier.javascript(source);
+                byte[] content = minified.getBytes(StandardCharsets.UTF_8);
+                String hash = sha256(content);
+                String fingerprintedPath = withFingerprint(path, hash.substring(0, FINGERPRINT_LENGTH));
+                String contentType = contentType(context, path);
+                assets.put(path, new Asset(contentType, content, hash, false));
+                assets.put(fingerprintedPath, new Asset(contentType, content, hash, true));
+                fingerprinted.put(path, fingerprintedPath);
+            }
+        }
+        for (String path : pages) {
+            byte[] content = rewriteReferences(path, read(context, path), fingerprinted).getBytes(StandardCharsets.UTF_8);
+            assets.put(path, new Asset(contentType(context, path), content, sha256(content), false));
+        }
+        
+        logger.info("Static assets prepared: {} pages, {} fingerprinted files in {} ms", pages.size(),
+                fingerprinted.size(), (System.nanoTime() - started) / 1_000_000);
+        return new StaticAssets(assets);
+    }
+    
+    /**
+     * @param path Request path within the webapp, e.g. /css/style.css
+     * @return Processed asset, or null if the path is not one
+     */
+    public Asset get(String path) {
+        return assets.get(path);
+    }
+    
+    /**
+     * @return Number of servable paths, fingerprinted names included
+     */
+    public int size() {
+        return assets.size();
+    }
+    
+    private static void collect(ServletContext context, String directory, Set<String> paths) {
+        Set<String> children = context.getResourcePaths(directory);
+        if (children == null) {
+            return;
+        }
+        for (String child : children) {
+            if (child.equals("/WEB-INF/") || child.equals("/META-INF/")) {
+                continue;
+            }
+            if (child.endsWith("/")) {
+                collect(context, child, paths);
+            } else {
+                paths.add(child);
+            }
+        }
+    }
+    
+    /**
+     * Point href and src attributes that name a fingerprinted file at its fingerprinted name, keeping the
+     * reference relative or absolute as written
+     */
+    private static String rewriteReferences(String pagePath, String html, Map<String, String> fingerprinted) {
+        URI page = URI.create(pagePath);
+        Matcher matcher = REFERENCE.matcher(html);
+        StringBuilder out = new StringBuilder(html.length());
+        while (matcher.find()) {
+            String reference = matcher.group(2);
+            String target;
+            try {
+                target = page.resolve(reference).normalize().getPath();
+            } catch (IllegalArgumentException ex) {
+                target = null;
+            }
+            String replacement = reference;
+            String fingerprintedPath = target != null ? fingerprinted.get(target) : null;
+            if (fingerprintedPath != null) {
+                String fileName = fingerprintedPath.substring(fingerprintedPath.lastIndexOf('/') + 1);
+                replacement = reference.substring(0, reference.lastIndexOf('/') + 1) + fileName;
+            }
+            matcher.appendReplacement(out, Matcher.quoteReplacement(matcher.group(1) + replacement + matcher.group(3)));
+        }
+        matcher.appendTail(out);
+        return out.toString();
+    }
+    
+    private static String withFingerprint(String path, String fingerprint) {
+        int dot = path.lastIndexOf('.');
+        return path.substring(0, dot) + "." + fingerprint + path.substring(dot);
+    }
+    
+    private static String extension(String path) {
+        int dot = path.lastIndexOf('.');
+        return dot > path.lastIndexOf('/') ? path.substring(dot + 1) : "";
+    }
+    
+    private static String contentType(ServletContext context, String path) {
+        String mimeType = context.getMimeType(path);
+        return (mimeType != null ? mimeType : "application/octet-stream") + ";charset=UTF-8";
+    }
+    
+    private static String read(ServletContext context, String path) throws IOException {
+        try (InputStream in = context.getResourceAsStream(path)) {
+            if (in == null) {
+                throw new IOException("Static asset disappeared while building: " + path);
+            }
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+    
+    private static String sha256(byte[] content) {
+        try {
+            StringBuilder hex = new StringBuilder();
+            for (byte b : MessageDigest.getInstance("SHA-256").digest(content)) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+    
+    private static byte[] gzip(byte[] content) {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(content.length / 2);
+        try (GZIPOutputStream out = new GZIPOutputStream(buffer) {
+            {
+                def.setLevel(Deflater.BEST_COMPRESSION);
+            }
+        }) {
+            out.write(content);
+        } catch (IOException e) {
+            // Writing to memory does not fail
+            throw new IllegalStateException(e);
+        }
+        return buffer.toByteArray();
+    }
+    
+    /**
+     * Asset - One servable file with its identity and (when smaller) gzip representation
+     */
+    public static final class Asset {
+        
+        private final String contentType;
+        private final byte[] content;
+        private final byte[] gzipContent;
+        private final String etag;
+        private final boolean immutable;
+        
+        private Asset(String contentType, byte[] content, String hash, boolean immutable) {
+            this.contentType = contentType;
+            this.content = content;
+            byte[] compressed = gzip(content);
+            this.gzipContent = compressed.length < content.length ? compressed : null;
+            this.etag = "\"" + hash.substring(0, 2 * FINGERPRINT_LENGTH) + "\"";
+            this.immutable = immutable;
+        }
+        
+        public String getContentType() {
+            return contentType;
+        }
+        
+        /**
+         * @param gzip true for the gzip representation
+         * @return Response body, or null if there is no gzip representation
+         */
+        public byte[] getContent(boolean gzip) {
+            return gzip ? gzipContent : content;
+        }
+        
+        public boolean hasGzip() {
+            return gzipContent != null;
+        }
+        
+        /**
+         * @param gzip true for the gzip representation
+         * @return Strong ETag of that representation
+         */
+        public String getEtag(boolean gzip) {
+            return gzip ? etag.substring(0, etag.length() - 1) + "-gz\"" : etag;
+        }
+        
+        /**
+         * @return true if the asset lives under a fingerprinted name and never changes
+         */
+        public boolean isImmutable() {
+            return immutable;
+        }
+    }
+}
@@ -0,0 +1,284 @@
+package com.sendgrid.config;
+
+import java.util.Properties;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * App Config - Immutable snapshot of the application configuration.
+ *
+ * Each setting is resolved from sendgrid.properties first, then a system property of the same name,
+ * then the matching environment variable, then a default.
+ */
+public final class AppConfig {
+    
+    private static final Logger logger = LogManager.getLogger(AppConfig.class);
+    
+    static final String DEFAULT_SYSTEM_PROMPT = "You are an expert HTML email template designer. Generate complete, valid HTML email templates. Always return only the HTML code without any markdown formatting, explanations, or code blocks. Return pure HTML that can be used directly in email templates.";
+    
+    static final String DEFAULT_SENDGRID_API_URL = "https://api.sendgrid.com";
+    static final String DEFAULT_OPENAI_API_URL = "https://api.openai.com";
+    
+    private final String sendGridApiKey;
+    private final String openAIApiKey;
+    private final String openAISystemPrompt;
+    private final String sendGridApiUrl;
+    private final String openAIApiUrl;
+    private final String mailFromEmail;
+    private final String mailFromName;
+    private final String webhookPublicKey;
+    private final boolean webhookUnsignedAllowed;
+    private final int connectTimeoutMs;
+    private final int readTimeoutMs;
+    private final int maxConnectionsPerHost;
+    private final int ioThreads;
+    private final int circuitWindowSize;
+    private final int circuitFailureRatePercent;
+    private final int circuitSlowCallPercent;
+    private final int circuitSlowCallRatePercent;
+    private final int circuitOpenMs;
+    private final int sendGridMaxAttempts;
+    private final int sendGridMaxQueued;
+    private final boolean watchEnabled;
+    private final boolean wrapperReloadEnabled;
+    private final String templateStoreDir;
+    
+    private AppConfig(Properties properties) {
+        this.sendGridApiKey = setting(properties, "sendgrid.api.key", "SENDGRID_API_KEY");
+        this.openAIApiKey = setting(properties, "openai.api.key", "OPENAI_API_KEY");
+        String prompt = setting(properties, "openai.system.prompt", "OPENAI_SYSTEM_PROMPT");
+        this.openAISystemPrompt = prompt != null ? prompt : DEFAULT_SYSTEM_PROMPT;
+        this.sendGridApiUrl = baseUrl(setting(properties, "sendgrid.api.url", "SENDGRID_API_URL"), DEFAULT_SENDGRID_API_URL);
+        this.openAIApiUrl = baseUrl(setting(properties, "openai.api.url", "OPENAI_API_URL"), DEFAULT_OPENAI_API_URL);
+        this.mailFromEmail = setting(properties, "sendgrid.from.email", "SENDGRID_FROM_EMAIL");
+        this.mailFromName = setting(properties, "sendgrid.from.name", "SENDGRID_FROM_NAME");
+        this.webhookPublicKey = setting(properties, "sendgrid.webhook.public.key", "SENDGRID_WEBHOOK_PUBLIC_KEY");
+        this.webhookUnsignedAllowed = Boolean.parseBoolean(setting(properties, "sendgrid.webhook.allow.unsigned",
+                "SENDGRID_WEBHOOK_ALLOW_UNSIGNED"));
+        this.connectTimeoutMs = intSetting(properties, "upstream.connect.timeout.ms", "UPSTREAM_CONNECT_TIMEOUT_MS", 10000);
+        this.readTimeoutMs = intSetting(properties, "upstream.read.timeout.ms", "UPSTREAM_READ_TIMEOUT_MS", 30000);
+        this.maxConnectionsPerHost = intSetting(properties, "upstream.max.connections.per.host", "UPSTREAM_MAX_CONNECTIONS_PER_HOST", 50);
+        this.ioThreads = intSetting(properties, "upstream.io.threads", "UPSTREAM_IO_THREADS",
+                Math.max(4, Runtime.getRuntime().availableProcessors()));
+        this.circuitWindowSize = intSetting(properties, "upstream.circuit.window.size", "UPSTREAM_CIRCUIT_WINDOW_SIZE", 20);
+        this.circuitFailureRatePercent = intSetting(properties, "upstream.circuit.failure.rate.percent",
+                "UPSTREAM_CIRCUIT_FAILURE_RATE_PERCENT", 50);
+        this.circuitSlowCallPercent = intSetting(properties, "upstream.circuit.slow.call.percent",
+                "UPSTREAM_CIRCUIT_SLOW_CALL_PERCENT", 50);
+        this.circuitSlowCallRatePercent = intSetting(properties, "upstream.circuit.slow.call.rate.percent",
+                "UPSTREAM_CIRCUIT_SLOW_CALL_RATE_PERCENT", 80);
+        this.circuitOpenMs = intSetting(properties, "upstream.circuit.open.ms", "UPSTREAM_CIRCUIT_OPEN_MS", 30000);
+        this.sendGridMaxAttempts = intSetting(properties, "sendgrid.max.attempts", "SENDGRID_MAX_ATTEMPTS", 4);
+        this.sendGridMaxQueued = intSetting(properties, "sendgrid.max.queued", "SENDGRID_MAX_QUEUED", 1000);
+        this.watchEnabled = Boolean.parseBoolean(setting(properties, "config.watch", "CONFIG_WATCH"));
+        this.wrapperReloadEnabled = Boolean.parseBoolean(setting(properties, "email.wrapper.reload", "EMAIL_WRAPPER_RELOAD"));
+        String storeDir = setting(properties, "template.store.dir", "TEMPLATE_STORE_DIR");
+        this.templateStoreDir = storeDir != null ? storeDir
+                : System.getProperty("java.io.tmpdir") + "/sendgrid-template-store";
+    }
+    
+    /**
+     * Resolve a configuration snapshot
+     * @param properties Contents of sendgrid.properties (may be empty)
+     * @return Immutable configuration
+     */
+    public static AppConfig from(Properties properties) {
+        AppConfig config = new AppConfig(properties);
+        logger.info("Configuration loaded (SendGrid API key {}, OpenAI API key {})",
+                config.sendGridApiKey != null ? "set" : "missing", config.openAIApiKey != null ? "set" : "missing");
+        if (!DEFAULT_SENDGRID_API_URL.equals(config.sendGridApiUrl) || !DEFAULT_OPENAI_API_URL.equals(config.openAIApiUrl)) {
+            logger.warn("Upstream APIs overridden: SendGrid at {}, OpenAI at {}", config.sendGridApiUrl, config.openAIApiUrl);
+        }
+        return config;
+    }
+    
+    /**
+     * @return SendGrid API key, or null if not configured
+     */
+    public String getSendGridApiKey() {
+        return sendGridApiKey;
+    }
+    
+    /**
+     * @return OpenAI API key, or null if not configured
+     */
+    public String getOpenAIApiKey() {
+        return openAIApiKey;
+    }
+    
+    /**
+     * @return OpenAI system prompt, or the built-in default
+     */
+    public String getOpenAISystemPrompt() {
+        return openAISystemPrompt;
+    }
+    
+    /**
+     * @return Base URL of the SendGrid API, without a trailing slash; points at a stub server in load tests
+     */
+    public String getSendGridApiUrl() {
+        return sendGridApiUrl;
+    }
+    
+    /**
+     * @return Base URL of the OpenAI API, without a trailing slash
+     */
+    public String getOpenAIApiUrl() {
+        return openAIApiUrl;
+    }
+    
+    /**
+     * @return Verified sender address used by /send when the request names none, or null if not configured
+     */
+    public String getMailFromEmail() {
+        return mailFromEmail;
+    }
+    
+    /**
+     * @return Display name for the default sender, or null
+     */
+    public String getMailFromName() {
+        return mailFromName;
+    }
+    
+    /**
+     * @return Base64 Event Webhook verification key, or null if signature checks are not configured
+     */
+    public String getWebhookPublicKey() {
+        return webhookPublicKey;
+    }
+    
+    /**
+     * @return true if /webhooks/sendgrid may accept unsigned posts when no verification key is configured
+     */
+    public boolean isWebhookUnsignedAllowed() {
+        return webhookUnsignedAllowed;
+    }
+    
+    public int getConnectTimeoutMs() {
+        return connectTimeoutMs;
+    }
+    
+    public int getReadTimeoutMs() {
+        return readTimeoutMs;
+    }
+    
+    public int getMaxConnectionsPerHost() {
+        return maxConnectionsPerHost;
+    }
+    
+    /**
+     * @return Number of threads that run upstream response callbacks
+     */
+    public int getIoThreads() {
+        return ioThreads;
+    }
+    
+    /**
+     * @return Number of recent calls per upstream host the circuit breaker rates are computed over
+     */
+    public int getCircuitWindowSize() {
+        return circuitWindowSize;
+    }
+    
+    /**
+     * @return Share of failed calls (errors, timeouts, 5xx) that opens an upstream's circuit
+     */
+    public int getCircuitFailureRatePercent() {
+        return circuitFailureRatePercent;
+    }
+    
+    /**
+     * @return Share of a call's timeout after which the call counts as slow
+     */
+    public int getCircuitSlowCallPercent() {
+        return circuitSlowCallPercent;
+    }
+    
+    /**
+     * @return Share of slow calls that opens an upstream's circuit
+     */
+    public int getCircuitSlowCallRatePercent() {
+        return circuitSlowCallRatePercent;
+    }
+    
+    /**
+     * @return Time an open circuit rejects calls before letting probe calls through
+     */
+    public int getCircuitOpenMs() {
+        return circuitOpenMs;
+    }
+    
+    /**
+     * @return Attempts per SendGrid call, including retries after 429 and 5xx responses
+     */
+    public int getSendGridMaxAttempts() {
+        return sendGridMaxAttempts;
+    }
+    
+    /**
+     * @return Maximum SendGrid calls waiting for rate-limit budget per endpoint family
+     */
+    public int getSendGridMaxQueued() {
+        return sendGridMaxQueued;
+    }
+    
+    /**
+     * @return true if sendgrid.properties should be watched and reloaded on change
+     */
+    public boolean isWatchEnabled() {
+        return watchEnabled;
+    }
+    
+    /**
+     * @return true if email wrappers should be recompiled when their source file changes
+     */
+    public boolean isWrapperReloadEnabled() {
+        return wrapperReloadEnabled;
+    }
+    
+    /**
+     * @return Directory of the local template store
+     */
+    public String getTemplateStoreDir() {
+        return templateStoreDir;
+    }
+    
+    private static String setting(Properties properties, String propertyName, String envName) {
+        String value = properties.getProperty(propertyName);
+        if (value == null || value.trim().isEmpty()) {
+            value = System.getProperty(propertyName);
+        }
+        if (value == null || value.trim().isEmpty()) {
+            value = System.getenv(envName);
+        }
+        if (value == null || value.trim().isEmpty()) {
+            return null;
+        }
+        return value.trim();
+    }
+    
+    private static String baseUrl(String value, String defaultValue) {
+        if (value == null) {
+            return defaultValue;
+        }
+        if (!value.startsWith("http://") && !value.startsWith("https://")) {
+            logger.warn("Invalid API base URL: {}. Using default: {}", value, defaultValue);
+            return defaultValue;
+        }
+        return value.endsWith("/") ? value.substring(0, value.length() - 1) : value;
+    }
+    
+    private static int intSetting(Properties properties, String propertyName, String envName, int defaultValue) {
+        String value = setting(properties, propertyName, envName);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            logger.warn("Invalid value for {}: {}. Using default: {}", propertyName, value, defaultValue);
+            return defaultValue;
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package com.sendgrid.config;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Properties;
+import javax.servlet.ServletContext;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Config Service - Loads sendgrid.properties once at startup and holds the current {@link AppConfig}.
+ *
+ * When config.watch is enabled and the properties file lives on disk, the file is watched and a new
+ * snapshot is swapped in atomically on change, so API keys can be rotated without a restart.
+ */
+public class ConfigService {
+    
+    private static final Logger logger = LogManager.getLogger(ConfigService.class);
+    
+    /** Servlet context attribute under which the shared instance is stored */
+    public static final String CONTEXT_ATTRIBUTE = ConfigService.class.getName();
+    
+    private static final String PROPERTIES_RESOURCE = "sendgrid.properties";
+    private static final long RELOAD_DEBOUNCE_MS = 250;
+    
+    private final Path propertiesFile;
+    private volatile AppConfig current;
+    private WatchService watchService;
+    
+    private ConfigService(Path propertiesFile, AppConfig initial) {
+        this.propertiesFile = propertiesFile;
+        this.current = initial;
+    }
+    
+    /**
+     * Load the configuration and start watching for changes if enabled
+     * @return Config service holding the initial snapshot
+     */
+    public static ConfigService start() {
+        Path propertiesFile = locatePropertiesFile();
+        ConfigService service = new ConfigService(propertiesFile, AppConfig.from(loadProperties(propertiesFile)));
+        if (service.current.isWatchEnabled()) {
+            service.startWatching();
+        }
+        return service;
+    }
+    
+    /**
+     * Get the shared config service for a web application
+     * @param context Servlet context the service was registered in
+     * @return Shared config service
+     */
+    public static ConfigService get(ServletContext context) {
+        ConfigService service = (ConfigService) context.getAttribute(CONTEXT_ATTRIBUTE);
+        if (service == null) {
+            throw new IllegalStateException("ConfigService has not been initialized for this web application");
+        }
+        return service;
+    }
+    
+    /**
+     * @return Current configuration snapshot
+     */
+    public AppConfig get() {
+        return current;
+    }
+    
+    /**
+     * Stop watching the properties file
+     */
+    public void close() {
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException ex) {
+                logger.warn("Error closing config watcher: {}", ex.getMessage());
+            }
+        }
+    }
+    
+    private void startWatching() {
+        if (propertiesFile == null) {
+            logger.warn("config.watch is enabled but {} is not a file on disk; hot reload disabled", PROPERTIES_RESOURCE);
+            return;
+        }
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+            propertiesFile.getParent().register(watchService,
+                    StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException ex) {
+            logger.warn("Could not watch {}: {}", propertiesFile, ex.getMessage());
+            return;
+        }
+        
+        Thread watcher = new Thread(this::watchLoop, "config-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+        logger.info("Watching {} for configuration changes", propertiesFile);
+    }
+    
+    private void watchLoop() {
+        Path fileName = propertiesFile.getFileName();
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                boolean changed = false;
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (fileName.equals(event.context())) {
+                        changed = true;
+                    }
+                }
+                key.reset();
+                if (changed) {
+                    // Editors often truncate then write; let the burst settle so a half-written file is never loaded
+                    Thread.sleep(RELOAD_DEBOUNCE_MS);
+                    WatchKey pending;
+                    while ((pending = watchService.poll()) != null) {
+                        pending.pollEvents();
+                        pending.reset();
+                    }
+                    reload();
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException ex) {
+            // Shutting down
+        }
+    }
+    
+    private void reload() {
+        if (!Files.isReadable(propertiesFile)) {
+            logger.warn("Configuration file disappeared, keeping current configuration");
+            return;
+        }
+        current = AppConfig.from(loadProperties(propertiesFile));
+        logger.info("Configuration reloaded from {}", propertiesFile);
+    }
+    
+    private static Path locatePropertiesFile() {
+        URL resource = ConfigService.class.getClassLoader().getResource(PROPERTIES_RESOURCE);
+        if (resource == null || !"file".equals(resource.getProtocol())) {
+            return null;
+        }
+        try {
+            return Paths.get(resource.toURI());
+        } catch (URISyntaxException ex) {
+            return null;
+        }
+    }
+    
+    private static Properties loadProperties(Path propertiesFile) {
+        Properties properties = new Properties();
+        try (InputStream inputStream = propertiesFile != null
+                ? Files.newInputStream(propertiesFile)
+                : ConfigService.class.getClassLoader().getResourceAsStream(PROPERTIES_RESOURCE)) {
+            if (inputStream != null) {
+                properties.load(inputStream);
+            }
+        } catch (IOException ex) {
+            logger.warn("Could not read {} file: {}", PROPERTIES_RESOURCE, ex.getMessage());
+        }
+        return properties;
+    }
+}
@@ -0,0 +1,202 @@
+package com.sendgrid.http;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Circuit Breaker - Stops calling an upstream that is failing or too slow, and probes it until it recovers.
+ *
+ * The outcomes of the last windowSize calls are kept in a ring. Once half the window is filled, the breaker opens
+ * when the share of failed calls (connection errors, timeouts, 5xx responses) or of slow calls reaches its
+ * threshold. While open, calls are rejected at once with a {@link CircuitOpenException} instead of waiting out
+ * timeouts. After openMillis the breaker turns half-open and lets a few probe calls through: it closes when they
+ * all succeed and opens again on the first bad one.
+ *
+ * Each permit carries the generation it was granted in, so a call that started before a state change cannot
+ * decide the outcome of the next state.
+ */
+public class CircuitBreaker {
+    
+    private static final Logger logger = LogManager.getLogger(CircuitBreaker.class);
+    
+    private static final int HALF_OPEN_CALLS = 3;
+    
+    /**
+     * Breaker state, with its value for the upstream_circuit_state metric
+     */
+    public enum State {
+        CLOSED(0), HALF_OPEN(1), OPEN(2);
+        
+        private final int value;
+        
+        State(int value) {
+            this.value = value;
+        }
+        
+        public int getValue() {
+            return value;
+        }
+    }
+    
+    private final String name;
+    private final Settings settings;
+    
+    // All guarded by this
+    private State state = State.CLOSED;
+    private long generation;
+    private final boolean[] failed;
+    private final boolean[] slow;
+    private int recorded;
+    private int next;
+    private int failures;
+    private int slowCalls;
+    private long openedAt;
+    private int probesStarted;
+    private int probesSucceeded;
+    
+    public CircuitBreaker(String name, Settings settings) {
+        this.name = name;
+        this.settings = settings;
+        this.failed = new boolean[settings.windowSize];
+        this.slow = new boolean[settings.windowSize];
+    }
+    
+    /**
+     * Ask to make a call
+     * @return Permit to pass to {@link #record} or {@link #release} when the call ends
+     * @throws CircuitOpenException if the breaker is open, or half-open with all probes taken
+     */
+    public synchronized long acquire() throws CircuitOpenException {
+        if (state == State.OPEN) {
+            long retryAfter = openedAt + settings.openMillis - System.currentTimeMillis();
+            if (retryAfter > 0) {
+                throw new CircuitOpenException(name, retryAfter);
+            }
+            transition(State.HALF_OPEN);
+        }
+        if (state == State.HALF_OPEN) {
+            if (probesStarted >= HALF_OPEN_CALLS) {
+                throw new CircuitOpenException(name, 0);
+            }
+            probesStarted++;
+        }
+        return generation;
+    }
+    
+    /**
+     * Record how a call went
+     * @param permit Permit returned by {@link #acquire()}
+     * @param failure true for a connection error, timeout or 5xx response
+     * @param isSlow true if the response took longer than the slow-call threshold
+     */
+    public synchronized void record(long permit, boolean failure, boolean isSlow) {
+        if (permit != generation) {
+            return;
+        }
+        boolean bad = failure || isSlow;
+        if (state == State.HALF_OPEN) {
+            if (bad) {
+                logger.warn("Circuit for {} opened again: probe call {}", name, failure ? "failed" : "was slow");
+                transition(State.OPEN);
+            } else if (++probesSucceeded >= HALF_OPEN_CALLS) {
+                logger.info("Circuit for {} closed: {} probe calls succeeded", name, probesSucceeded);
+                transition(State.CLOSED);
+            }
+            return;
+        }
+        if (state != State.CLOSED) {
+            return;
+        }
+        
+        if (recorded == failed.length) {
+            failures -= failed[next] ? 1 : 0;
+            slowCalls -= slow[next] ? 1 : 0;
+        } else {
+            recorded++;
+        }
+        failed[next] = failure;
+        slow[next] = isSlow;
+        failures += failure ? 1 : 0;
+        slowCalls += isSlow ? 1 : 0;
+        next = (next + 1) % failed.length;
+        
+        if (recorded * 2 >= failed.length) {
+            int failureRate = failures * 100 / recorded;
+            int slowCallRate = slowCalls * 100 / recorded;
+            if (failureRate >= settings.failureRatePercent || slowCallRate >= settings.slowCallRatePercent) {
+                logger.warn("Circuit for {} opened for {}ms: {}% of the last {} calls failed, {}% were slow", name,
+                        settings.openMillis, failureRate, recorded, slowCallRate);
+                transition(State.OPEN);
+            }
+        }
+    }
+    
+    /**
+     * Give a permit back without an outcome, e.g. when the caller cancelled the call
+     * @param permit Permit returned by {@link #acquire()}
+     */
+    public synchronized void release(long permit) {
+        if (permit == generation && state == State.HALF_OPEN) {
+            probesStarted--;
+        }
+    }
+    
+    public synchronized State getState() {
+        if (state == State.OPEN && System.currentTimeMillis() >= openedAt + settings.openMillis) {
+            return State.HALF_OPEN;
+        }
+        return state;
+    }
+    
+    /**
+     * @param timeoutMillis Timeout of the call
+     * @return Time after which the call counts as slow
+     */
+    public long slowCallMillis(long timeoutMillis) {
+        return timeoutMillis * settings.slowCallPercentOfTimeout / 100;
+    }
+    
+    private void transition(State target) {
+        state = target;
+        generation++;
+        probesStarted = 0;
+        probesSucceeded = 0;
+        if (target == State.OPEN) {
+            openedAt = System.currentTimeMillis();
+        }
+        if (target == State.CLOSED) {
+            recorded = 0;
+            next = 0;
+            failures = 0;
+            slowCalls = 0;
+        }
+    }
+    
+    /**
+     * Settings - Thresholds shared by every breaker of a client
+     */
+    public static final class Settings {
+        
+        private final int windowSize;
+        private final int failureRatePercent;
+        private final int slowCallPercentOfTimeout;
+        private final int slowCallRatePercent;
+        private final long openMillis;
+        
+        /**
+         * @param windowSize Number of recent calls the rates are computed over
+         * @param failureRatePercent Failure rate that opens the breaker
+         * @param slowCallPercentOfTimeout Share of a call's timeout after which the call counts as slow
+         * @param slowCallRatePercent Slow-call rate that opens the breaker
+         * @param openMillis Time the breaker stays open before probing
+         */
+        public Settings(int windowSize, int failureRatePercent, int slowCallPercentOfTimeout, int slowCallRatePercent,
+                long openMillis) {
+            this.windowSize = Math.max(2, windowSize);
+            this.failureRatePercent = failureRatePercent;
+            this.slowCallPercentOfTimeout = slowCallPercentOfTimeout;
+            this.slowCallRatePercent = slowCallRatePercent;
+            this.openMillis = openMillis;
+        }
+    }
+}
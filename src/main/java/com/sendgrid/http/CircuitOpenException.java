@@ -0,0 +1,33 @@
+package com.sendgrid.http;
+
+import java.io.IOException;
+
+/**
+ * Circuit Open Exception - Raised instead of calling an upstream whose circuit breaker is open
+ */
+public class CircuitOpenException extends IOException {
+    
+    private static final long serialVersionUID = 1L;
+    
+    private final long retryAfterMillis;
+    
+    public CircuitOpenException(String upstream, long retryAfterMillis) {
+        super(upstream + " is unavailable (circuit open), retry in " + Math.max(1, (retryAfterMillis + 999) / 1000) + "s");
+        this.retryAfterMillis = retryAfterMillis;
+    }
+    
+    /**
+     * @return Time until the breaker lets probe calls through again; 0 while probes are running
+     */
+    public long getRetryAfterMillis() {
+        return retryAfterMillis;
+    }
+    
+    /**
+     * Rejections are expected and frequent during an outage; the stack trace would only cost time and log space
+     */
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+        return this;
+    }
+}
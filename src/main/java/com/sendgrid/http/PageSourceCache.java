@@ -0,0 +1,488 @@
+package com.sendgrid.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Flow;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+import javax.servlet.ServletContext;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Page Source Cache - Bounded LRU cache of fetched web pages, keyed by URL.
+ *
+ * Fresh entries (per Cache-Control max-age/s-maxage or Expires, otherwise a default TTL) are served without
+ * contacting the origin. Stale entries that carry an ETag or Last-Modified are revalidated with a conditional GET,
+ * so an unchanged page costs a 304 instead of a full download. Responses are requested compressed, limited to a
+ * maximum size (before and after decompression) and decoded with the charset the page declares. Concurrent
+ * requests for the same URL share one upstream fetch. If the origin cannot be reached or answers with a 5xx, a
+ * cached copy is served stale rather than failing.
+ */
+public class PageSourceCache {
+    
+    private static final Logger logger = LogManager.getLogger(PageSourceCache.class);
+    
+    /** Servlet context attribute under which the shared instance is stored */
+    public static final String CONTEXT_ATTRIBUTE = PageSourceCache.class.getName();
+    
+    private static final String USER_AGENT = "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36";
+    private static final Duration FETCH_TIMEOUT = Duration.ofSeconds(10);
+    private static final Pattern CHARSET_PARAM = Pattern.compile("charset\\s*=\\s*[\"']?([\\w.:-]+)", Pattern.CASE_INSENSITIVE);
+    private static final Pattern MAX_AGE = Pattern.compile("(?:^|[,\\s])max-age\\s*=\\s*\"?(\\d+)");
+    private static final Pattern S_MAXAGE = Pattern.compile("(?:^|[,\\s])s-maxage\\s*=\\s*\"?(\\d+)");
+    private static final Pattern META_CHARSET = Pattern.compile("<meta[^>]+charset\\s*=\\s*[\"']?([\\w.:-]+)", Pattern.CASE_INSENSITIVE);
+    // HTML5 requires the charset declaration within the first 1024 bytes
+    private static final int META_SNIFF_BYTES = 1024;
+    
+    private final UpstreamHttpClient upstreamClient;
+    private final int maxEntries;
+    private final long maxCacheChars;
+    private final int maxPageBytes;
+    private final long defaultTtlMillis;
+    // Access-ordered; guarded by this
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final ConcurrentHashMap<String, CompletableFuture<Page>> inFlight = new ConcurrentHashMap<>();
+    private long cachedChars;
+    
+    public PageSourceCache(UpstreamHttpClient upstreamClient, int maxEntries, long maxCacheBytes, int maxPageBytes,
+            long defaultTtlSeconds) {
+        this.upstreamClient = upstreamClient;
+        this.maxEntries = maxEntries;
+        // Pages are held as Java strings, two bytes per char
+        this.maxCacheChars = maxCacheBytes / 2;
+        this.maxPageBytes = maxPageBytes;
+        this.defaultTtlMillis = defaultTtlSeconds * 1000;
+        logger.info("Page source cache initialized (maxEntries={}, maxBytes={}, maxPageBytes={}, defaultTtl={}s)",
+                maxEntries, maxCacheBytes, maxPageBytes, defaultTtlSeconds);
+    }
+    
+    /**
+     * Get the shared cache for a web application
+     * @param context Servlet context the cache was registered in
+     * @return Shared cache instance
+     */
+    public static PageSourceCache get(ServletContext context) {
+        PageSourceCache cache = (PageSourceCache) context.getAttribute(CONTEXT_ATTRIBUTE);
+        if (cache == null) {
+            throw new IllegalStateException("PageSourceCache has not been initialized for this web application");
+        }
+        return cache;
+    }
+    
+    /**
+     * Get a page from the cache, revalidating or fetching it as needed. Cancelling the returned future does not
+     * abort a fetch shared with other callers.
+     * @param uri Absolute http or https URL
+     * @return Future completed with the page, or exceptionally with an IOException
+     */
+    public CompletableFuture<Page> fetch(URI uri) {
+        String key = uri.toString();
+        Entry cached;
+        synchronized (this) {
+            cached = entries.get(key);
+        }
+        if (cached != null && cached.isFresh(System.currentTimeMillis())) {
+            return CompletableFuture.completedFuture(cached.page(CacheStatus.HIT));
+        }
+        
+        CompletableFuture<Page> created = new CompletableFuture<>();
+        CompletableFuture<Page> shared = inFlight.putIfAbsent(key, created);
+        if (shared == null) {
+            shared = created;
+            load(uri, cached).whenComplete((page, failure) -> {
+                inFlight.remove(key, created);
+                Throwable cause = failure instanceof CompletionException && failure.getCause() != null
+                        ? failure.getCause() : failure;
+                if (cause instanceof IOException && cached != null) {
+                    logger.warn("Serving stale copy of {}: {}", key, cause.getMessage());
+                    created.complete(cached.page(CacheStatus.STALE));
+                } else if (failure != null) {
+                    created.completeExceptionally(failure);
+                } else {
+                    created.complete(page);
+                }
+            });
+        }
+        return shared.copy();
+    }
+    
+    /**
+     * @return Number of cached pages
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+    
+    /**
+     * Drop every cached page
+     */
+    public synchronized void clear() {
+        entries.clear();
+        cachedChars = 0;
+    }
+    
+    private CompletableFuture<Page> load(URI uri, Entry cached) {
+        HttpRequest.Builder builder = upstreamClient.newRequest(uri.toString(), FETCH_TIMEOUT)
+                .header("User-Agent", USER_AGENT)
+                .header("Accept-Encoding", "gzip, deflate")
+                .GET();
+        if (cached != null) {
+            if (cached.etag != null) {
+                builder.header("If-None-Match", cached.etag);
+            }
+            if (cached.lastModified != null) {
+                builder.header("If-Modified-Since", cached.lastModified);
+            }
+        }
+        
+        return upstreamClient.sendAsync("page-source", builder.build(), responseInfo -> new LimitedBodySubscriber(maxPageBytes))
+                .thenApply(httpResponse -> {
+                    long now = System.currentTimeMillis();
+                    int statusCode = httpResponse.statusCode();
+                    HttpHeaders headers = httpResponse.headers();
+                    
+                    if (statusCode == 304 && cached != null) {
+                        Entry revalidated = cached.revalidated(headers, now);
+                        store(uri.toString(), revalidated);
+                        return revalidated.page(CacheStatus.REVALIDATED);
+                    }
+                    if (statusCode >= 500 && cached != null) {
+                        logger.warn("Serving stale copy of {}: origin returned HTTP {}", uri, statusCode);
+                        return cached.page(CacheStatus.STALE);
+                    }
+                    if (statusCode < 200 || statusCode >= 300) {
+                        return new Page(statusCode, null, CacheStatus.MISS);
+                    }
+                    
+                    String body = decode(httpResponse.body(), headers);
+                    Entry entry = new Entry(body, headers, now);
+                    if (entry.isStorable()) {
+                        store(uri.toString(), entry);
+                    } else {
+                        remove(uri.toString());
+                    }
+                    return entry.page(CacheStatus.MISS);
+                });
+    }
+    
+    private synchronized void store(String key, Entry entry) {
+        if (entry.body.length() > maxCacheChars) {
+            return;
+        }
+        Entry previous = entries.put(key, entry);
+        if (previous != null) {
+            cachedChars -= previous.body.length();
+        }
+        cachedChars += entry.body.length();
+        
+        Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+        while ((entries.size() > maxEntries || cachedChars > maxCacheChars) && eldest.hasNext()) {
+            cachedChars -= eldest.next().getValue().body.length();
+            eldest.remove();
+        }
+    }
+    
+    private synchronized void remove(String key) {
+        Entry previous = entries.remove(key);
+        if (previous != null) {
+            cachedChars -= previous.body.length();
+        }
+    }
+    
+    /**
+     * Undo the content coding and decode the text with the declared, sniffed or default (UTF-8) charset
+     */
+    private String decode(byte[] raw, HttpHeaders headers) {
+        byte[] bytes;
+        try {
+            bytes = decompress(raw, headers.firstValue("Content-Encoding").orElse("identity"));
+        } catch (IOException ex) {
+            throw new PageFetchException("Could not decompress page: " + ex.getMessage());
+        }
+        
+        Charset charset = null;
+        Matcher declared = CHARSET_PARAM.matcher(headers.firstValue("Content-Type").orElse(""));
+        if (declared.find()) {
+            charset = charsetOrNull(declared.group(1));
+        }
+        if (charset == null) {
+            charset = bomCharset(bytes);
+        }
+        if (charset == null) {
+            String head = new String(bytes, 0, Math.min(bytes.length, META_SNIFF_BYTES), StandardCharsets.ISO_8859_1);
+            Matcher meta = META_CHARSET.matcher(head);
+            if (meta.find()) {
+                charset = charsetOrNull(meta.group(1));
+            }
+        }
+        return new String(bytes, charset != null ? charset : StandardCharsets.UTF_8);
+    }
+    
+    private byte[] decompress(byte[] raw, String contentEncoding) throws IOException {
+        String coding = contentEncoding.trim().toLowerCase(Locale.ROOT);
+        InputStream in;
+        if (coding.equals("gzip") || coding.equals("x-gzip")) {
+            in = new GZIPInputStream(new ByteArrayInputStream(raw));
+        } else if (coding.equals("deflate")) {
+            in = new InflaterInputStream(new ByteArrayInputStream(raw));
+        } else {
+            return raw;
+        }
+        try (InputStream decoded = in) {
+            // Bound the decompressed size as well, so a small compression bomb cannot exhaust the heap
+            byte[] bytes = decoded.readNBytes(maxPageBytes + 1);
+            if (bytes.length > maxPageBytes) {
+                throw new PageFetchException("Page exceeds " + maxPageBytes + " bytes");
+            }
+            return bytes;
+        }
+    }
+    
+    private static Charset bomCharset(byte[] bytes) {
+        if (bytes.length >= 3 && (bytes[0] & 0xFF) == 0xEF && (bytes[1] & 0xFF) == 0xBB && (bytes[2] & 0xFF) == 0xBF) {
+            return StandardCharsets.UTF_8;
+        }
+        if (bytes.length >= 2 && (bytes[0] & 0xFF) == 0xFE && (bytes[1] & 0xFF) == 0xFF) {
+            return StandardCharsets.UTF_16BE;
+        }
+        if (bytes.length >= 2 && (bytes[0] & 0xFF) == 0xFF && (bytes[1] & 0xFF) == 0xFE) {
+            return StandardCharsets.UTF_16LE;
+        }
+        return null;
+    }
+    
+    private static Charset charsetOrNull(String name) {
+        try {
+            return Charset.forName(name);
+        } catch (IllegalArgumentException ex) {
+            return null;
+        }
+    }
+    
+    private static long parseHttpDate(String value) {
+        try {
+            return ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+        } catch (DateTimeParseException ex) {
+            return -1;
+        }
+    }
+    
+    /**
+     * How a page was served
+     */
+    public enum CacheStatus {
+        /** Served from the cache without contacting the origin */
+        HIT,
+        /** Origin confirmed the cached copy with 304 Not Modified */
+        REVALIDATED,
+        /** Downloaded from the origin */
+        MISS,
+        /** Cached copy served because the origin failed or could not be reached */
+        STALE
+    }
+    
+    /**
+     * Page - Result of a page fetch
+     */
+    public static final class Page {
+        
+        private final int statusCode;
+        private final String body;
+        private final CacheStatus cacheStatus;
+        
+        Page(int statusCode, String body, CacheStatus cacheStatus) {
+            this.statusCode = statusCode;
+            this.body = body;
+            this.cacheStatus = cacheStatus;
+        }
+        
+        /**
+         * @return Origin status code (200 for cached pages)
+         */
+        public int getStatusCode() {
+            return statusCode;
+        }
+        
+        /**
+         * @return Decoded page source, or null if the origin did not answer with 2xx
+         */
+        public String getBody() {
+            return body;
+        }
+        
+        public CacheStatus getCacheStatus() {
+            return cacheStatus;
+        }
+    }
+    
+    /**
+     * Page Fetch Exception - The page was fetched but cannot be used (too large, corrupt compression)
+     */
+    public static final class PageFetchException extends RuntimeException {
+        
+        private static final long serialVersionUID = 1L;
+        
+        PageFetchException(String message) {
+            super(message);
+        }
+    }
+    
+    /**
+     * Cached page with its validators and freshness lifetime
+     */
+    private final class Entry {
+        
+        final String body;
+        final String etag;
+        final String lastModified;
+        final long expiresAt;
+        final boolean storable;
+        
+        Entry(String body, HttpHeaders headers, long now) {
+            this(body, headers.firstValue("ETag").orElse(null), headers.firstValue("Last-Modified").orElse(null),
+                    headers, now);
+        }
+        
+        private Entry(String body, String etag, String lastModified, HttpHeaders headers, long now) {
+            this.body = body;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            
+            String cacheControl = String.join(",", headers.allValues("Cache-Control")).toLowerCase(Locale.ROOT);
+            boolean varyAll = headers.allValues("Vary").stream().anyMatch(vary -> vary.contains("*"));
+            this.storable = !cacheControl.contains("no-store") && !varyAll;
+            this.expiresAt = cacheControl.contains("no-cache") ? 0 : now + freshnessMillis(cacheControl, headers);
+        }
+        
+        boolean isStorable() {
+            return storable;
+        }
+        
+        boolean isFresh(long now) {
+            return now < expiresAt;
+        }
+        
+        /**
+         * A 304 may carry updated validators and caching directives; the body stays the same
+         */
+        Entry revalidated(HttpHeaders headers, long now) {
+            return new Entry(body, headers.firstValue("ETag").orElse(etag),
+                    headers.firstValue("Last-Modified").orElse(lastModified), headers, now);
+        }
+        
+        Page page(CacheStatus status) {
+            return new Page(200, body, status);
+        }
+        
+        private long freshnessMillis(String cacheControl, HttpHeaders headers) {
+            // This cache is shared between users, so s-maxage takes precedence over max-age
+            long maxAge = directiveSeconds(cacheControl, S_MAXAGE);
+            if (maxAge < 0) {
+                maxAge = directiveSeconds(cacheControl, MAX_AGE);
+            }
+            if (maxAge >= 0) {
+                long age = headers.firstValueAsLong("Age").orElse(0);
+                return Math.max(0, maxAge - age) * 1000;
+            }
+            
+            String expires = headers.firstValue("Expires").orElse(null);
+            if (expires != null) {
+                long expiresAtOrigin = parseHttpDate(expires);
+                long date = headers.firstValue("Date").map(PageSourceCache::parseHttpDate).orElse(-1L);
+                // Unparseable Expires (e.g. "0") means already expired
+                return expiresAtOrigin < 0 ? 0 : Math.max(0, expiresAtOrigin - (date > 0 ? date : System.currentTimeMillis()));
+            }
+            return defaultTtlMillis;
+        }
+        
+        private long directiveSeconds(String cacheControl, Pattern directive) {
+            Matcher matcher = directive.matcher(cacheControl);
+            if (!matcher.find()) {
+                return -1;
+            }
+            try {
+                return Long.parseLong(matcher.group(1));
+            } catch (NumberFormatException ex) {
+                return Long.MAX_VALUE / 1000;
+            }
+        }
+    }
+    
+    /**
+     * Buffers the response body, failing as soon as it grows past the size limit instead of reading it all
+     */
+    private static final class LimitedBodySubscriber implements HttpResponse.BodySubscriber<byte[]> {
+        
+        private final int maxBytes;
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        private final CompletableFuture<byte[]> result = new CompletableFuture<>();
+        private Flow.Subscription subscription;
+        
+        LimitedBodySubscriber(int maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+        
+        @Override
+        public CompletionStage<byte[]> getBody() {
+            return result;
+        }
+        
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            subscription.request(Long.MAX_VALUE);
+        }
+        
+        @Override
+        public void onNext(List<ByteBuffer> items) {
+            if (result.isDone()) {
+                return;
+            }
+            for (ByteBuffer item : items) {
+                if (buffer.size() + item.remaining() > maxBytes) {
+                    subscription.cancel();
+                    result.completeExceptionally(new PageFetchException("Page exceeds " + maxBytes + " bytes"));
+                    return;
+                }
+                byte[] chunk = new byte[item.remaining()];
+                item.get(chunk);
+                buffer.write(chunk, 0, chunk.length);
+            }
+        }
+        
+        @Override
+        public void onError(Throwable throwable) {
+            result.completeExceptionally(throwable);
+        }
+        
+        @Override
+        public void onComplete() {
+            result.complete(buffer.toByteArray());
+        }
+    }
+}
@@ -0,0 +1,490 @@
+package com.sendgrid.http;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.OptionalLong;
+import java.util.TreeMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.ServletContext;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONObject;
+import com.sendgrid.config.AppConfig;
+import com.sendgrid.metrics.MetricsRegistry;
+
+/**
+ * Rate Limit Scheduler - Paces SendGrid v3 calls per endpoint family using the account's rate-limit headers.
+ *
+ * Each family (templates, versions, ...) is a token bucket whose size and refill time come from SendGrid's
+ * X-RateLimit-Limit, X-RateLimit-Remaining and X-RateLimit-Reset headers. Calls are dispatched while the bucket
+ * has budget and queue (without holding a thread) once it is empty; when the budget runs low the remaining calls
+ * are spread evenly until the reset. A 429 empties the bucket and the call is retried after the reset; 5xx
+ * responses are retried with jittered exponential backoff. Until a family has seen its first response, calls
+ * are sent straight through. Each family's calls are reported to the upstream metrics as sendgrid-{family}, and its
+ * budget, queue depth and retry counts are exported when metrics are scraped.
+ */
+public class RateLimitScheduler {
+    
+    private static final Logger logger = LogManager.getLogger(RateLimitScheduler.class);
+    
+    /** Servlet context attribute under which the shared instance is stored */
+    public static final String CONTEXT_ATTRIBUTE = RateLimitScheduler.class.getName();
+    
+    /** Template create/list calls (/v3/templates) */
+    public static final String TEMPLATES = "templates";
+    /** Template version calls (/v3/templates/{id}/versions) */
+    public static final String VERSIONS = "versions";
+    /** Mail send calls (/v3/mail/send) */
+    public static final String MAIL = "mail";
+    
+    // Used when a 429 carries neither X-RateLimit-Reset nor Retry-After
+    private static final long DEFAULT_RATE_LIMIT_WAIT_MS = 1000;
+    // A 429 whose reset is further away than this is returned to the caller instead of holding it
+    private static final long MAX_RATE_LIMIT_WAIT_MS = TimeUnit.SECONDS.toMillis(60);
+    private static final long BACKOFF_BASE_MS = 250;
+    private static final long BACKOFF_MAX_MS = TimeUnit.SECONDS.toMillis(8);
+    // Below this share of the limit, calls are spread over the rest of the window instead of sent in a burst
+    private static final int PACING_DIVISOR = 4;
+    
+    private final UpstreamHttpClient upstreamClient;
+    private final int maxAttempts;
+    private final int maxQueued;
+    private final ScheduledThreadPoolExecutor timer;
+    private final ConcurrentHashMap<String, Bucket> buckets = new ConcurrentHashMap<>();
+    
+    public RateLimitScheduler(UpstreamHttpClient upstreamClient, int maxAttempts, int maxQueued, MetricsRegistry metrics) {
+        this.upstreamClient = upstreamClient;
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.maxQueued = maxQueued;
+        
+        this.timer = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "sendgrid-scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timer.setRemoveOnCancelPolicy(true);
+        metrics.addCollector(this::collect);
+        logger.info("SendGrid rate limit scheduler initialized (maxAttempts={}, maxQueued={})", this.maxAttempts, maxQueued);
+    }
+    
+    /**
+     * Build a scheduler from the application configuration
+     * @param upstreamClient Client that performs the calls
+     * @param config Configuration snapshot
+     * @param metrics Registry the budget and retry metrics are exported to
+     * @return New scheduler instance
+     */
+    public static RateLimitScheduler fromConfig(UpstreamHttpClient upstreamClient, AppConfig config, MetricsRegistry metrics) {
+        return new RateLimitScheduler(upstreamClient, config.getSendGridMaxAttempts(), config.getSendGridMaxQueued(), metrics);
+    }
+    
+    /**
+     * Get the shared scheduler for a web application
+     * @param context Servlet context the scheduler was registered in
+     * @return Shared scheduler instance
+     */
+    public static RateLimitScheduler get(ServletContext context) {
+        RateLimitScheduler scheduler = (RateLimitScheduler) context.getAttribute(CONTEXT_ATTRIBUTE);
+        if (scheduler == null) {
+            throw new IllegalStateException("RateLimitScheduler has not been initialized for this web application");
+        }
+        return scheduler;
+    }
+    
+    /**
+     * Queue a SendGrid call in its endpoint family. Cancelling the returned future removes a queued call or
+     * aborts the one in flight.
+     * @param family Endpoint family, e.g. {@link #TEMPLATES}
+     * @param request Request to send
+     * @param bodyHandler Handler for the response body
+     * @return Future completed with the final response (after retries), or exceptionally with an IOException
+     */
+    public <T> CompletableFuture<HttpResponse<T>> submit(String family, HttpRequest request,
+            HttpResponse.BodyHandler<T> bodyHandler) {
+        Bucket bucket = buckets.computeIfAbsent(family, Bucket::new);
+        Pending<T> pending = new Pending<>(request, bodyHandler);
+        if (!bucket.enqueue(pending, false)) {
+            return CompletableFuture.failedFuture(new IOException("Too many queued SendGrid " + family + " requests"));
+        }
+        pending.result.whenComplete((response, failure) -> {
+            if (failure instanceof CancellationException) {
+                bucket.remove(pending);
+                CompletableFuture<?> call = pending.call;
+                if (call != null) {
+                    call.cancel(true);
+                }
+            }
+        });
+        return pending.result;
+    }
+    
+    /**
+     * Queue a SendGrid call and wait for it, buffering the response body as a string
+     * @param family Endpoint family, e.g. {@link #TEMPLATES}
+     * @param request Request to send
+     * @return Final response (after retries)
+     * @throws IOException if the call fails or the waiting thread is interrupted
+     */
+    public HttpResponse<String> send(String family, HttpRequest request) throws IOException {
+        CompletableFuture<HttpResponse<String>> future = submit(family, request, HttpResponse.BodyHandlers.ofString());
+        try {
+            return future.get();
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause.getMessage(), cause);
+        } catch (InterruptedException ex) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for SendGrid " + family + " request");
+        }
+    }
+    
+    /**
+     * @return Current budget and queue depth per endpoint family, keyed by family name
+     */
+    public JSONObject status() {
+        Map<String, Object> families = new TreeMap<>();
+        for (Bucket bucket : buckets.values()) {
+            families.put(bucket.family, bucket.status());
+        }
+        return new JSONObject(families);
+    }
+    
+    /**
+     * Write the per-family budget, queue depth and retry counts
+     * @param out Metric writer
+     * @throws IOException if the writer fails
+     */
+    private void collect(MetricsRegistry.MetricWriter out) throws IOException {
+        JSONObject status = status();
+        String[] family = {"family"};
+        String[] familyAndReason = {"family", "reason"};
+        out.header("sendgrid_rate_limit_remaining", "gauge", "Calls left in the current SendGrid rate-limit window (-1 until known)");
+        for (String name : status.keySet()) {
+            out.sample("sendgrid_rate_limit_remaining", family, List.of(name), status.getJSONObject(name).getLong("remaining"));
+        }
+        out.header("sendgrid_requests_queued", "gauge", "SendGrid calls waiting for rate-limit budget");
+        for (String name : status.keySet()) {
+            out.sample("sendgrid_requests_queued", family, List.of(name), status.getJSONObject(name).getLong("queued"));
+        }
+        out.header("sendgrid_retries_total", "counter", "SendGrid calls retried after a 429 or a retryable server error");
+        for (String name : status.keySet()) {
+            JSONObject bucket = status.getJSONObject(name);
+            out.sample("sendgrid_retries_total", familyAndReason, List.of(name, "rate_limited"), bucket.getLong("rateLimited"));
+            out.sample("sendgrid_retries_total", familyAndReason, List.of(name, "server_error"), bucket.getLong("retried"));
+        }
+    }
+    
+    /**
+     * Stop the timer; queued calls are failed
+     */
+    public void close() {
+        timer.shutdownNow();
+        for (Bucket bucket : buckets.values()) {
+            bucket.failAll();
+        }
+        logger.info("SendGrid rate limit scheduler closed");
+    }
+    
+    private static OptionalLong longHeader(HttpResponse<?> httpResponse, String name) {
+        String value = httpResponse.headers().firstValue(name).orElse(null);
+        if (value == null) {
+            return OptionalLong.empty();
+        }
+        try {
+            return OptionalLong.of(Long.parseLong(value.trim()));
+        } catch (NumberFormatException e) {
+            return OptionalLong.empty();
+        }
+    }
+    
+    /**
+     * @return Epoch millis at which SendGrid will accept requests again, from X-RateLimit-Reset (epoch seconds)
+     *         or Retry-After (seconds), defaulting to a short back-off
+     */
+    private static long resumeAt(HttpResponse<?> httpResponse, long now) {
+        OptionalLong reset = longHeader(httpResponse, "X-RateLimit-Reset");
+        if (reset.isPresent()) {
+            return Math.max(now, TimeUnit.SECONDS.toMillis(reset.getAsLong()));
+        }
+        OptionalLong retryAfter = longHeader(httpResponse, "Retry-After");
+        if (retryAfter.isPresent()) {
+            return now + TimeUnit.SECONDS.toMillis(retryAfter.getAsLong());
+        }
+        return now + DEFAULT_RATE_LIMIT_WAIT_MS;
+    }
+    
+    /**
+     * 5xx responses worth retrying: any for reads, but only 503 for writes, which SendGrid sends before
+     * doing any work; retrying another failed POST could create a duplicate template or version
+     */
+    private static boolean isRetryableServerError(HttpRequest request, int statusCode) {
+        if (statusCode < 500) {
+            return false;
+        }
+        return "GET".equals(request.method()) || statusCode == 503;
+    }
+    
+    private static long backoffMillis(int attempt) {
+        long ceiling = Math.min(BACKOFF_MAX_MS, BACKOFF_BASE_MS << Math.min(attempt - 1, 16));
+        return ThreadLocalRandom.current().nextLong(ceiling / 2, ceiling + 1);
+    }
+    
+    /**
+     * One queued or in-flight call
+     */
+    private static final class Pending<T> {
+        
+        final HttpRequest request;
+        final HttpResponse.BodyHandler<T> bodyHandler;
+        final CompletableFuture<HttpResponse<T>> result = new CompletableFuture<>();
+        volatile CompletableFuture<HttpResponse<T>> call;
+        int attempt;
+        
+        Pending(HttpRequest request, HttpResponse.BodyHandler<T> bodyHandler) {
+            this.request = request;
+            this.bodyHandler = bodyHandler;
+        }
+    }
+    
+    /**
+     * Token bucket and wait queue for one endpoint family
+     */
+    private final class Bucket {
+        
+        private final String family;
+        private final ArrayDeque<Pending<?>> queue = new ArrayDeque<>();
+        // -1 until the first response reports the account's limit
+        private int limit = -1;
+        private int remaining = -1;
+        private long resetAt;
+        private long nextSlotAt;
+        private long drainScheduledAt;
+        private int inFlight;
+        private long rateLimited;
+        private long retried;
+        
+        Bucket(String family) {
+            this.family = family;
+        }
+        
+        /**
+         * @param pending Call to queue
+         * @param retry true to put a retried call at the head of the queue
+         * @return false if the queue is full
+         */
+        boolean enqueue(Pending<?> pending, boolean retry) {
+            synchronized (this) {
+                if (retry) {
+                    queue.addFirst(pending);
+                } else {
+                    if (queue.size() >= maxQueued) {
+                        return false;
+                    }
+                    queue.addLast(pending);
+                }
+            }
+            drain();
+            return true;
+        }
+        
+        synchronized void remove(Pending<?> pending) {
+            queue.remove(pending);
+        }
+        
+        /**
+         * Dispatch queued calls while there is budget, and arrange to come back when there is not
+         */
+        void drain() {
+            List<Pending<?>> ready = new ArrayList<>();
+            synchronized (this) {
+                long now = System.currentTimeMillis();
+                if (limit > 0 && now >= resetAt && remaining < limit) {
+                    // New window; the next response corrects the estimate
+                    remaining = limit;
+                    nextSlotAt = 0;
+                }
+                while (!queue.isEmpty()) {
+                    long availableAt = availableAt(now);
+                    if (availableAt > now) {
+                        scheduleDrain(availableAt);
+                        break;
+                    }
+                    Pending<?> next = queue.poll();
+                    if (next.result.isDone()) {
+                        continue;
+                    }
+                    take(now);
+                    inFlight++;
+                    ready.add(next);
+                }
+            }
+            for (Pending<?> pending : ready) {
+                dispatch(pending);
+            }
+        }
+        
+        private long availableAt(long now) {
+            if (remaining < 0) {
+                return now;
+            }
+            if (remaining == 0) {
+                return Math.max(resetAt, now + 1);
+            }
+            return Math.max(now, nextSlotAt);
+        }
+        
+        private void take(long now) {
+            if (remaining <= 0) {
+                return;
+            }
+            remaining--;
+            if (remaining < limit / PACING_DIVISOR && resetAt > now) {
+                nextSlotAt = now + (resetAt - now) / (remaining + 1);
+            }
+        }
+        
+        private void scheduleDrain(long at) {
+            if (drainScheduledAt > 0 && drainScheduledAt <= at) {
+                return;
+            }
+            drainScheduledAt = at;
+            try {
+                timer.schedule(() -> {
+                    synchronized (this) {
+                        drainScheduledAt = 0;
+                    }
+                    drain();
+                }, at - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException ex) {
+                // Shutting down; close() fails what is left
+            }
+        }
+        
+        private <T> void dispatch(Pending<T> pending) {
+            pending.attempt++;
+            CompletableFuture<HttpResponse<T>> call = upstreamClient.sendAsync("sendgrid-" + family, pending.request,
+                    pending.bodyHandler);
+            pending.call = call;
+            if (pending.result.isDone()) {
+                call.cancel(true);
+            }
+            call.whenComplete((response, failure) -> {
+                synchronized (this) {
+                    inFlight--;
+                }
+                if (failure != null) {
+                    Throwable cause = failure instanceof CompletionException && failure.getCause() != null
+                            ? failure.getCause() : failure;
+                    pending.result.completeExceptionally(cause);
+                    drain();
+                    return;
+                }
+                
+                long now = System.currentTimeMillis();
+                int statusCode = response.statusCode();
+                update(response, now);
+                if (statusCode == 429 && pending.attempt < maxAttempts) {
+                    long resumeAt = resumeAt(response, now);
+                    if (resumeAt - now <= MAX_RATE_LIMIT_WAIT_MS) {
+                        rateLimited(resumeAt);
+                        logger.warn("SendGrid {} rate limit hit, retrying after {}ms", family, resumeAt - now);
+                        enqueue(pending, true);
+                        return;
+                    }
+                }
+                if (isRetryableServerError(pending.request, statusCode) && pending.attempt < maxAttempts) {
+                    long delay = backoffMillis(pending.attempt);
+                    logger.warn("SendGrid {} returned HTTP {}, retrying in {}ms", family, statusCode, delay);
+                    synchronized (this) {
+                        retried++;
+                    }
+                    try {
+                        timer.schedule(() -> enqueue(pending, true), delay, TimeUnit.MILLISECONDS);
+                    } catch (RejectedExecutionException ex) {
+                        pending.result.complete(response);
+                    }
+                    drain();
+                    return;
+                }
+                pending.result.complete(response);
+                drain();
+            });
+        }
+        
+        /**
+         * Adopt the budget SendGrid reports
+         */
+        private synchronized void update(HttpResponse<?> response, long now) {
+            OptionalLong reportedLimit = longHeader(response, "X-RateLimit-Limit");
+            OptionalLong reportedRemaining = longHeader(response, "X-RateLimit-Remaining");
+            OptionalLong reportedReset = longHeader(response, "X-RateLimit-Reset");
+            if (!reportedRemaining.isPresent() || !reportedReset.isPresent()) {
+                return;
+            }
+            if (reportedLimit.isPresent()) {
+                limit = (int) reportedLimit.getAsLong();
+            }
+            long reset = TimeUnit.SECONDS.toMillis(reportedReset.getAsLong());
+            int reported = (int) Math.max(0, reportedRemaining.getAsLong());
+            if (reset > resetAt || remaining < 0) {
+                // First response of a new window
+                resetAt = reset;
+                remaining = reported;
+            } else {
+                // Calls dispatched after this one was answered are already counted locally
+                remaining = Math.min(remaining, reported);
+            }
+        }
+        
+        private synchronized void rateLimited(long resumeAt) {
+            rateLimited++;
+            remaining = 0;
+            resetAt = Math.max(resetAt, resumeAt);
+            if (limit < 0) {
+                // No headers yet; refill with a single call and let the next response size the bucket
+                limit = 1;
+            }
+        }
+        
+        synchronized JSONObject status() {
+            JSONObject status = new JSONObject();
+            status.put("limit", limit);
+            status.put("remaining", remaining);
+            status.put("resetAt", resetAt);
+            status.put("queued", queue.size());
+            status.put("inFlight", inFlight);
+            status.put("rateLimited", rateLimited);
+            status.put("retried", retried);
+            return status;
+        }
+        
+        void failAll() {
+            List<Pending<?>> abandoned;
+            synchronized (this) {
+                abandoned = new ArrayList<>(queue);
+                queue.clear();
+            }
+            for (Pending<?> pending : abandoned) {
+                pending.result.completeExceptionally(new IOException("SendGrid scheduler is shutting down"));
+            }
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package com.sendgrid.http;
+
+import java.io.IOException;
+
+/**
+ * Upstream Exception - Raised when an upstream API answers with an error status code
+ */
+public class UpstreamException extends IOException {
+    
+    private static final long serialVersionUID = 1L;
+    
+    private final int statusCode;
+    private final String responseBody;
+    
+    public UpstreamException(int statusCode, String responseBody) {
+        super("Upstream API returned HTTP " + statusCode);
+        this.statusCode = statusCode;
+        this.responseBody = responseBody;
+    }
+    
+    /**
+     * @return HTTP status code returned by the upstream API
+     */
+    public int getStatusCode() {
+        return statusCode;
+    }
+    
+    /**
+     * @return Raw response body returned by the upstream API
+     */
+    public String getResponseBody() {
+        return responseBody;
+    }
+}
@@ -0,0 +1,473 @@
+package com.sendgrid.http;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.servlet.ServletContext;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import com.sendgrid.Client;
+import com.sendgrid.SendGrid;
+import com.sendgrid.config.AppConfig;
+import com.sendgrid.metrics.MetricsRegistry;
+
+/**
+ * Upstream HTTP Client - Shared, application-scoped client for all outbound SendGrid and OpenAI calls.
+ *
+ * Wraps a single pooled {@link HttpClient} (keep-alive, HTTP/2 where the upstream negotiates it) and a pooled
+ * Apache client backing the SendGrid SDK, so servlets reuse connections instead of paying a TLS handshake per request.
+ * Concurrent calls per host are capped so bursts cannot exhaust ephemeral ports; calls over the cap wait in a queue
+ * without holding a thread. Asynchronous calls complete on a small fixed pool of I/O threads. Each asynchronous call
+ * is timed per named upstream (status code, or "error"/"cancelled") and counted while in flight.
+ *
+ * Every host has a {@link CircuitBreaker}: once too many recent calls failed or were slow, calls to that host fail
+ * at once with a {@link CircuitOpenException} until probe calls show it has recovered. A call is judged when its
+ * response headers arrive, so a long streamed body does not count as slow.
+ */
+public class UpstreamHttpClient {
+    
+    private static final Logger logger = LogManager.getLogger(UpstreamHttpClient.class);
+    
+    /** Servlet context attribute under which the shared instance is stored */
+    public static final String CONTEXT_ATTRIBUTE = UpstreamHttpClient.class.getName();
+    
+    private final HttpClient httpClient;
+    private final ExecutorService ioExecutor;
+    private final CloseableHttpClient sdkHttpClient;
+    private final Client sendGridClient;
+    private final Duration readTimeout;
+    private final String sendGridApiUrl;
+    private final String openAIApiUrl;
+    private final int maxConnectionsPerHost;
+    private final ConcurrentHashMap<String, HostPermits> hostPermits = new ConcurrentHashMap<>();
+    private final CircuitBreaker.Settings circuitSettings;
+    private final ConcurrentHashMap<String, CircuitBreaker> circuitBreakers = new ConcurrentHashMap<>();
+    private final MetricsRegistry.Gauge circuitState;
+    private final MetricsRegistry.Counter circuitRejected;
+    private final MetricsRegistry.Histogram callDuration;
+    private final MetricsRegistry.Gauge callsInFlight;
+    
+    public UpstreamHttpClient(String sendGridApiUrl, String openAIApiUrl, int connectTimeoutMs, int readTimeoutMs,
+            int maxConnectionsPerHost, int ioThreads, CircuitBreaker.Settings circuitSettings, MetricsRegistry metrics) {
+        this.sendGridApiUrl = sendGridApiUrl;
+        this.openAIApiUrl = openAIApiUrl;
+        this.circuitSettings = circuitSettings;
+        this.circuitState = metrics.gauge("upstream_circuit_state",
+                "Circuit breaker state per upstream host (0 closed, 1 half-open, 2 open)", "host");
+        this.circuitRejected = metrics.counter("upstream_circuit_rejected_total",
+                "Calls failed fast because the upstream host's circuit was open", "host");
+        this.callDuration = metrics.histogram("upstream_request_duration_seconds",
+                "Upstream call latency until the response body was consumed", "upstream", "status");
+        this.callsInFlight = metrics.gauge("upstream_requests_in_flight", "Upstream calls currently running", "upstream");
+        this.readTimeout = Duration.ofMillis(readTimeoutMs);
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+        
+        AtomicInteger threadCount = new AtomicInteger();
+        this.ioExecutor = Executors.newFixedThreadPool(ioThreads, runnable -> {
+            Thread thread = new Thread(runnable, "upstream-io-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.httpClient = HttpClient.newBuilder()
+                .executor(ioExecutor)
+                .version(HttpClient.Version.HTTP_2)
+                .connectTimeout(Duration.ofMillis(connectTimeoutMs))
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .build();
+        
+        // The SendGrid SDK talks through Apache HttpClient; give it a pooled, keep-alive connection manager
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager(60, TimeUnit.SECONDS);
+        connectionManager.setDefaultMaxPerRoute(maxConnectionsPerHost);
+        connectionManager.setMaxTotal(maxConnectionsPerHost * 4);
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectTimeout(connectTimeoutMs)
+                .setConnectionRequestTimeout(connectTimeoutMs)
+                .setSocketTimeout(readTimeoutMs)
+                .build();
+        this.sdkHttpClient = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .evictIdleConnections(60, TimeUnit.SECONDS)
+                .build();
+        // The SDK only speaks plain HTTP in its test mode, which a local stub server needs
+        this.sendGridClient = new Client(sdkHttpClient, sendGridApiUrl.startsWith("http://"));
+        
+        logger.info("Upstream HTTP client initialized (connectTimeout={}ms, readTimeout={}ms, maxConnectionsPerHost={}, ioThreads={})",
+                connectTimeoutMs, readTimeoutMs, maxConnectionsPerHost, ioThreads);
+    }
+    
+    /**
+     * Build a client from the application configuration
+     * @param config Configuration snapshot; later reloads do not resize the pool
+     * @param metrics Registry for call latency, in-flight and circuit breaker metrics
+     * @return New client instance
+     */
+    public static UpstreamHttpClient fromConfig(AppConfig config, MetricsRegistry metrics) {
+        CircuitBreaker.Settings circuitSettings = new CircuitBreaker.Settings(config.getCircuitWindowSize(),
+                config.getCircuitFailureRatePercent(), config.getCircuitSlowCallPercent(),
+                config.getCircuitSlowCallRatePercent(), config.getCircuitOpenMs());
+        return new UpstreamHttpClient(config.getSendGridApiUrl(), config.getOpenAIApiUrl(), config.getConnectTimeoutMs(),
+                config.getReadTimeoutMs(), config.getMaxConnectionsPerHost(), config.getIoThreads(), circuitSettings, metrics);
+    }
+    
+    /**
+     * Get the shared client for a web application
+     * @param context Servlet context the client was registered in
+     * @return Shared client instance
+     */
+    public static UpstreamHttpClient get(ServletContext context) {
+        UpstreamHttpClient client = (UpstreamHttpClient) context.getAttribute(CONTEXT_ATTRIBUTE);
+        if (client == null) {
+            throw new IllegalStateException("UpstreamHttpClient has not been initialized for this web application");
+        }
+        return client;
+    }
+    
+    /**
+     * Resolve a SendGrid API path against the configured base URL
+     * @param path Path and query, e.g. /v3/templates
+     * @return Absolute URL
+     */
+    public String sendGridUrl(String path) {
+        return sendGridApiUrl + path;
+    }
+    
+    /**
+     * Resolve an OpenAI API path against the configured base URL
+     * @param path Path and query, e.g. /v1/chat/completions
+     * @return Absolute URL
+     */
+    public String openAIUrl(String path) {
+        return openAIApiUrl + path;
+    }
+    
+    /**
+     * Start building a request with the default read timeout
+     * @param url Absolute request URL
+     * @return Request builder
+     */
+    public HttpRequest.Builder newRequest(String url) {
+        return newRequest(url, readTimeout);
+    }
+    
+    /**
+     * Start building a request with a specific read timeout
+     * @param url Absolute request URL
+     * @param timeout Time allowed until the response headers arrive
+     * @return Request builder
+     */
+    public HttpRequest.Builder newRequest(String url, Duration timeout) {
+        return HttpRequest.newBuilder(URI.create(url)).timeout(timeout);
+    }
+    
+    /**
+     * Send a request and buffer the response body as a string
+     * @param request Request to send
+     * @return Response with body decoded using the declared charset
+     * @throws IOException if the call fails, times out or is interrupted
+     */
+    public HttpResponse<String> send(HttpRequest request) throws IOException {
+        return send(request, HttpResponse.BodyHandlers.ofString());
+    }
+    
+    /**
+     * Send a request, holding a per-host permit until the body handler has completed
+     * @param request Request to send
+     * @param bodyHandler Handler for the response body
+     * @return Response
+     * @throws IOException if the call fails, times out or is interrupted
+     */
+    public <T> HttpResponse<T> send(HttpRequest request, HttpResponse.BodyHandler<T> bodyHandler) throws IOException {
+        String host = hostOf(request);
+        CircuitBreaker breaker = circuitBreaker(host);
+        long circuitPermit;
+        try {
+            circuitPermit = breaker.acquire();
+        } catch (CircuitOpenException ex) {
+            circuitRejected.inc(host);
+            throw ex;
+        }
+        HostPermits permits = hostPermits.computeIfAbsent(host, h -> new HostPermits(maxConnectionsPerHost));
+        CompletableFuture<Void> permit = permits.acquire(readTimeout);
+        try {
+            permit.get();
+        } catch (ExecutionException ex) {
+            breaker.release(circuitPermit);
+            throw new IOException("Too many concurrent requests to " + host);
+        } catch (InterruptedException ex) {
+            breaker.release(circuitPermit);
+            if (!permit.cancel(false)) {
+                // The permit was granted just as we were interrupted
+                permits.release();
+            }
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while calling " + host);
+        }
+        AtomicBoolean judged = new AtomicBoolean();
+        try {
+            return httpClient.send(request, judgedBy(breaker, circuitPermit, request, judged, bodyHandler));
+        } catch (IOException ex) {
+            if (judged.compareAndSet(false, true)) {
+                breaker.record(circuitPermit, true, false);
+            }
+            if (ex.getMessage() == null) {
+                throw new IOException(ex.getClass().getSimpleName() + " while calling " + host, ex);
+            }
+            throw ex;
+        } catch (InterruptedException ex) {
+            if (judged.compareAndSet(false, true)) {
+                breaker.release(circuitPermit);
+            }
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while calling " + host);
+        } finally {
+            permits.release();
+        }
+    }
+    
+    /**
+     * Send a request without blocking the calling thread. The per-host permit is held until the body handler has
+     * completed; callbacks attached to the returned future run on the client's I/O threads. Cancelling the returned
+     * future aborts the upstream exchange.
+     * @param request Request to send
+     * @param bodyHandler Handler for the response body
+     * @return Future completed with the response, or exceptionally with an IOException
+     */
+    public <T> CompletableFuture<HttpResponse<T>> sendAsync(HttpRequest request, HttpResponse.BodyHandler<T> bodyHandler) {
+        return sendAsync(request.uri().getHost(), request, bodyHandler);
+    }
+    
+    /**
+     * Send a request without blocking, recording its metrics under an upstream name
+     * @param upstream Name used as the upstream label, e.g. sendgrid-templates or openai
+     * @param request Request to send
+     * @param bodyHandler Handler for the response body
+     * @return Future completed with the response, or exceptionally with an IOException (a
+     *         {@link CircuitOpenException} when the host's circuit is open)
+     */
+    public <T> CompletableFuture<HttpResponse<T>> sendAsync(String upstream, HttpRequest request,
+            HttpResponse.BodyHandler<T> bodyHandler) {
+        String host;
+        try {
+            host = hostOf(request);
+        } catch (IOException ex) {
+            return CompletableFuture.failedFuture(ex);
+        }
+        CircuitBreaker breaker = circuitBreaker(host);
+        long circuitPermit;
+        try {
+            circuitPermit = breaker.acquire();
+        } catch (CircuitOpenException ex) {
+            circuitRejected.inc(host);
+            return CompletableFuture.failedFuture(ex);
+        }
+        HostPermits permits = hostPermits.computeIfAbsent(host, h -> new HostPermits(maxConnectionsPerHost));
+        CompletableFuture<HttpResponse<T>> result = new CompletableFuture<>();
+        permits.acquire(readTimeout).whenComplete((granted, waitFailure) -> {
+            if (waitFailure != null) {
+                breaker.release(circuitPermit);
+                result.completeExceptionally(new IOException("Too many concurrent requests to " + host));
+                return;
+            }
+            if (result.isCancelled()) {
+                breaker.release(circuitPermit);
+                permits.release();
+                return;
+            }
+            long started = System.nanoTime();
+            callsInFlight.inc(upstream);
+            AtomicBoolean judged = new AtomicBoolean();
+            CompletableFuture<HttpResponse<T>> call = httpClient.sendAsync(request,
+                    judgedBy(breaker, circuitPermit, request, judged, bodyHandler));
+            call.whenComplete((response, failure) -> {
+                permits.release();
+                callsInFlight.dec(upstream);
+                callDuration.observeSince(started, upstream, outcome(response, failure));
+                if (failure != null) {
+                    Throwable cause = failure instanceof CompletionException && failure.getCause() != null
+                            ? failure.getCause() : failure;
+                    if (judged.compareAndSet(false, true)) {
+                        // No response headers: a connection error or timeout, unless the caller gave up first
+                        if (cause instanceof CancellationException) {
+                            breaker.release(circuitPermit);
+                        } else {
+                            breaker.record(circuitPermit, true, false);
+                        }
+                    }
+                    if (cause.getMessage() == null && !(cause instanceof CancellationException)) {
+                        // e.g. ConnectException carries no message; keep the error response meaningful
+                        cause = new IOException(cause.getClass().getSimpleName() + " while calling " + host, cause);
+                    }
+                    result.completeExceptionally(cause);
+                } else {
+                    result.complete(response);
+                }
+            });
+            // A streaming caller that stops reading must cancel, otherwise the exchange never completes
+            result.whenComplete((response, failure) -> {
+                if (failure instanceof CancellationException) {
+                    call.cancel(true);
+                }
+            });
+        });
+        return result;
+    }
+    
+    /**
+     * Create a SendGrid SDK client that reuses the shared connection pool
+     * @param apiKey SendGrid API key
+     * @return SendGrid client
+     */
+    public SendGrid sendGrid(String apiKey) {
+        SendGrid sendGrid = new SendGrid(apiKey, sendGridClient);
+        sendGrid.setHost(URI.create(sendGridApiUrl).getRawAuthority());
+        return sendGrid;
+    }
+    
+    /**
+     * Get the underlying JDK client
+     * @return Shared JDK HTTP client
+     */
+    public HttpClient getHttpClient() {
+        return httpClient;
+    }
+    
+    /**
+     * Release pooled connections and stop the I/O threads
+     */
+    public void close() {
+        ioExecutor.shutdownNow();
+        try {
+            sdkHttpClient.close();
+        } catch (IOException ex) {
+            logger.warn("Error closing SendGrid SDK connection pool: {}", ex.getMessage());
+        }
+        logger.info("Upstream HTTP client closed");
+    }
+    
+    /**
+     * Get the circuit breaker state of a host
+     * @param host Upstream host name
+     * @return Current state; CLOSED for hosts not called yet
+     */
+    public CircuitBreaker.State getCircuitState(String host) {
+        CircuitBreaker breaker = circuitBreakers.get(host);
+        return breaker != null ? breaker.getState() : CircuitBreaker.State.CLOSED;
+    }
+    
+    private CircuitBreaker circuitBreaker(String host) {
+        CircuitBreaker breaker = circuitBreakers.get(host);
+        if (breaker != null) {
+            return breaker;
+        }
+        return circuitBreakers.computeIfAbsent(host, h -> {
+            CircuitBreaker created = new CircuitBreaker(h, circuitSettings);
+            circuitState.set(() -> created.getState().getValue(), h);
+            return created;
+        });
+    }
+    
+    /**
+     * Wrap a body handler so the breaker judges the call as soon as its response headers arrive
+     */
+    private static <T> HttpResponse.BodyHandler<T> judgedBy(CircuitBreaker breaker, long circuitPermit,
+            HttpRequest request, AtomicBoolean judged, HttpResponse.BodyHandler<T> bodyHandler) {
+        long started = System.nanoTime();
+        long slowNanos = TimeUnit.MILLISECONDS.toNanos(
+                breaker.slowCallMillis(request.timeout().map(Duration::toMillis).orElse(Long.MAX_VALUE / 1000000L)));
+        return responseInfo -> {
+            if (judged.compareAndSet(false, true)) {
+                breaker.record(circuitPermit, responseInfo.statusCode() >= 500, System.nanoTime() - started > slowNanos);
+            }
+            return bodyHandler.apply(responseInfo);
+        };
+    }
+    
+    private static String outcome(HttpResponse<?> response, Throwable failure) {
+        if (failure == null) {
+            return Integer.toString(response.statusCode());
+        }
+        Throwable cause = failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure;
+        return cause instanceof CancellationException ? "cancelled" : "error";
+    }
+    
+    /**
+     * @return Host the request goes to, with the port when one is given, so that servers sharing a host (e.g. local
+     *         stub servers) get their own permits and circuit breaker
+     */
+    private static String hostOf(HttpRequest request) throws IOException {
+        String host = request.uri().getHost();
+        if (host == null) {
+            throw new IOException("Request URI has no host: " + request.uri());
+        }
+        int port = request.uri().getPort();
+        return port == -1 ? host : host + ":" + port;
+    }
+    
+    /**
+     * Fair per-host permit pool whose waiters are futures rather than blocked threads
+     */
+    private static final class HostPermits {
+        
+        private final int maxPermits;
+        private final ArrayDeque<CompletableFuture<Void>> waiters = new ArrayDeque<>();
+        private int inUse;
+        
+        HostPermits(int maxPermits) {
+            this.maxPermits = maxPermits;
+        }
+        
+        /**
+         * @param maxWait How long to wait in the queue before the returned future fails with a TimeoutException
+         * @return Future completed once a permit has been granted
+         */
+        CompletableFuture<Void> acquire(Duration maxWait) {
+            CompletableFuture<Void> waiter;
+            synchronized (this) {
+                if (inUse < maxPermits) {
+                    inUse++;
+                    return CompletableFuture.completedFuture(null);
+                }
+                waiter = new CompletableFuture<>();
+                waiters.add(waiter);
+            }
+            return waiter.orTimeout(maxWait.toMillis(), TimeUnit.MILLISECONDS);
+        }
+        
+        void release() {
+            while (true) {
+                CompletableFuture<Void> next;
+                synchronized (this) {
+                    next = waiters.poll();
+                    if (next == null) {
+                        inUse--;
+                        return;
+                    }
+                }
+                // Hand the permit straight to the next waiter; skip waiters that timed out or were cancelled
+                if (next.complete(null)) {
+                    return;
+                }
+            }
+        }
+    }
+}
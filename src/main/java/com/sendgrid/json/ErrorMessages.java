@@ -0,0 +1,79 @@
+package com.sendgrid.json;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Error Messages - Extracts the message for the client from an upstream error response body
+ *
+ * Bodies that are not a JSON object (HTML error pages from a proxy, plain text, empty bodies) are recognised
+ * before parsing, so the common outage case does not pay for building and throwing a parse exception.
+ */
+public final class ErrorMessages {
+    
+    private ErrorMessages() {
+    }
+    
+    /**
+     * Extract the first error message from a SendGrid error response
+     * @param responseBody Raw error response body
+     * @return Error message for the client; the raw body if it is not JSON
+     */
+    public static String sendGrid(String responseBody) {
+        JSONObject errorJson = parseObject(responseBody);
+        if (errorJson == null) {
+            return responseBody != null && !responseBody.isEmpty() ? responseBody : "SendGrid API error";
+        }
+        JSONArray errorsArray = errorJson.optJSONArray("errors");
+        if (errorsArray != null && errorsArray.length() > 0) {
+            JSONObject firstError = errorsArray.optJSONObject(0);
+            if (firstError != null && firstError.has("message")) {
+                return firstError.optString("message");
+            } else if (firstError != null && firstError.has("field")) {
+                return "Error in field '" + firstError.optString("field") + "': Invalid value";
+            }
+        } else if (errorJson.has("message")) {
+            return errorJson.optString("message");
+        }
+        return "SendGrid API error";
+    }
+    
+    /**
+     * Extract the error message from an OpenAI error response
+     * @param responseBody Raw error response body
+     * @return Error message for the client; the raw body if it is not JSON
+     */
+    public static String openAi(String responseBody) {
+        JSONObject errorJson = parseObject(responseBody);
+        if (errorJson == null) {
+            return responseBody != null && !responseBody.isEmpty() ? responseBody : "OpenAI API error";
+        }
+        JSONObject error = errorJson.optJSONObject("error");
+        if (error != null && error.has("message")) {
+            return error.optString("message");
+        }
+        return "OpenAI API error";
+    }
+    
+    /**
+     * @return The body as a JSON object, or null if it is not one
+     */
+    private static JSONObject parseObject(String responseBody) {
+        if (responseBody == null) {
+            return null;
+        }
+        int start = 0;
+        while (start < responseBody.length() && Character.isWhitespace(responseBody.charAt(start))) {
+            start++;
+        }
+        if (start == responseBody.length() || responseBody.charAt(start) != '{') {
+            return null;
+        }
+        try {
+            return new JSONObject(responseBody);
+        } catch (JSONException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package com.sendgrid.json;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+
+/**
+ * JSON Relay - Streams an upstream JSON body into a response envelope without buffering or parsing it.
+ *
+ * The envelope prefix (e.g. {"success":true,"statusCode":201,"data":) is written when the body starts, each
+ * chunk is decoded as UTF-8 and written as it arrives, and the suffix closes the envelope. Writes run on the given
+ * executor rather than the upstream I/O thread, one at a time in order, and the next chunk is requested once the
+ * previous one is written, so a slow client slows the upstream read instead of the body piling up in memory. The
+ * body itself is not validated: use it only for responses declared as JSON. The subscriber's body value is always
+ * null.
+ */
+public final class JsonRelay implements HttpResponse.BodySubscriber<String> {
+    
+    private final Writer out;
+    private final Executor writes;
+    private final String prefix;
+    private final String suffix;
+    private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private final CharBuffer chars = CharBuffer.allocate(8192);
+    private final CompletableFuture<String> result = new CompletableFuture<>();
+    // Bytes of a multi-byte sequence split across chunks
+    private ByteBuffer carry = ByteBuffer.allocate(0);
+    private Flow.Subscription subscription;
+    
+    /**
+     * @param out Response writer
+     * @param writes Runs the writes, one at a time in submission order
+     * @param prefix Envelope text written before the body
+     * @param suffix Envelope text written after the body
+     */
+    public JsonRelay(Writer out, Executor writes, String prefix, String suffix) {
+        this.out = out;
+        this.writes = writes;
+        this.prefix = prefix;
+        this.suffix = suffix;
+    }
+    
+    /**
+     * Check whether a response declares a JSON body
+     * @param headers Upstream response headers
+     * @return true if the Content-Type is application/json or a +json type
+     */
+    public static boolean isJson(HttpHeaders headers) {
+        String contentType = headers.firstValue("Content-Type").orElse("").toLowerCase(Locale.ROOT);
+        int parameters = contentType.indexOf(';');
+        String mediaType = (parameters >= 0 ? contentType.substring(0, parameters) : contentType).trim();
+        return mediaType.equals("application/json") || mediaType.endsWith("+json");
+    }
+    
+    @Override
+    public CompletionStage<String> getBody() {
+        return result;
+    }
+    
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        this.subscription = subscription;
+        writes.execute(() -> {
+            try {
+                out.write(prefix);
+                checkWriter();
+            } catch (IOException | RuntimeException ex) {
+                // RuntimeException: the response was recycled after a timeout
+                fail(ex);
+                return;
+            }
+            subscription.request(1);
+        });
+    }
+    
+    @Override
+    public void onNext(List<ByteBuffer> items) {
+        writes.execute(() -> {
+            if (result.isDone()) {
+                return;
+            }
+            try {
+                for (ByteBuffer item : items) {
+                    decode(item, false);
+                }
+                out.flush();
+                checkWriter();
+            } catch (IOException | RuntimeException ex) {
+                fail(ex);
+                return;
+            }
+            subscription.request(1);
+        });
+    }
+    
+    @Override
+    public void onError(Throwable throwable) {
+        result.completeExceptionally(throwable);
+    }
+    
+    @Override
+    public void onComplete() {
+        writes.execute(() -> {
+            if (result.isDone()) {
+                return;
+            }
+            try {
+                decode(ByteBuffer.allocate(0), true);
+                decoder.flush(chars);
+                drain();
+                out.write(suffix);
+                out.flush();
+                result.complete(null);
+            } catch (IOException | RuntimeException ex) {
+                result.completeExceptionally(ex);
+            }
+        });
+    }
+    
+    private void decode(ByteBuffer item, boolean endOfInput) throws IOException {
+        ByteBuffer input = item;
+        if (carry.hasRemaining()) {
+            input = ByteBuffer.allocate(carry.remaining() + item.remaining()).put(carry).put(item).flip();
+        }
+        while (true) {
+            CoderResult coderResult = decoder.decode(input, chars, endOfInput);
+            drain();
+            if (!coderResult.isOverflow()) {
+                break;
+            }
+        }
+        carry = input.hasRemaining() ? ByteBuffer.allocate(input.remaining()).put(input).flip() : ByteBuffer.allocate(0);
+    }
+    
+    private void drain() throws IOException {
+        chars.flip();
+        out.write(chars.array(), chars.arrayOffset() + chars.position(), chars.remaining());
+        chars.clear();
+    }
+    
+    private void checkWriter() throws IOException {
+        // PrintWriter swallows I/O errors, e.g. when the client has disconnected
+        if (out instanceof PrintWriter && ((PrintWriter) out).checkError()) {
+            throw new IOException("Client disconnected");
+        }
+    }
+    
+    private void fail(Exception ex) {
+        // The client is gone; stop reading the upstream body
+        subscription.cancel();
+        result.completeExceptionally(ex);
+    }
+}
@@ -0,0 +1,103 @@
+package com.sendgrid.json;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+
+/**
+ * JSON Strings - Writes JSON string content straight to a writer without building intermediate strings
+ */
+public final class JsonStrings {
+    
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    
+    private JsonStrings() {
+    }
+    
+    /**
+     * Write characters escaped for use inside a JSON string literal (without the surrounding quotes).
+     * Escaping matches org.json, including "&lt;/" written as "&lt;\/" so HTML can be embedded safely.
+     * @param out Destination writer
+     * @param value Characters to escape
+     * @throws IOException if the writer fails
+     */
+    public static void writeEscaped(Writer out, CharSequence value) throws IOException {
+        writeEscaped(out, value, 0, value.length());
+    }
+    
+    /**
+     * Write a range of characters escaped for use inside a JSON string literal
+     * @param out Destination writer
+     * @param value Characters to escape
+     * @param start Start index (inclusive)
+     * @param end End index (exclusive)
+     * @throws IOException if the writer fails
+     */
+    public static void writeEscaped(Writer out, CharSequence value, int start, int end) throws IOException {
+        int run = start;
+        char previous = 0;
+        for (int i = start; i < end; i++) {
+            char c = value.charAt(i);
+            String replacement = null;
+            switch (c) {
+                case '"':
+                    replacement = "\\\"";
+                    break;
+                case '\\':
+                    replacement = "\\\\";
+                    break;
+                case '/':
+                    if (previous == '<') {
+                        replacement = "\\/";
+                    }
+                    break;
+                case '\n':
+                    replacement = "\\n";
+                    break;
+                case '\r':
+                    replacement = "\\r";
+                    break;
+                case '\t':
+                    replacement = "\\t";
+                    break;
+                case '\b':
+                    replacement = "\\b";
+                    break;
+                case '\f':
+                    replacement = "\\f";
+                    break;
+                default:
+                    if (c < ' ' || (c >= '\u0080' && c < '\u00a0') || (c >= '\u2000' && c < '\u2100')) {
+                        replacement = "\\u" + HEX[(c >> 12) & 0xF] + HEX[(c >> 8) & 0xF] + HEX[(c >> 4) & 0xF] + HEX[c & 0xF];
+                    }
+            }
+            if (replacement != null) {
+                if (i > run) {
+                    out.append(value, run, i);
+                }
+                out.write(replacement);
+                run = i + 1;
+            }
+            previous = c;
+        }
+        if (end > run) {
+            out.append(value, run, end);
+        }
+    }
+    
+    /**
+     * Escape a complete value into a new string; intended for text escaped once and reused many times
+     * @param value Characters to escape
+     * @return Escaped string content without surrounding quotes
+     */
+    public static String escape(CharSequence value) {
+        StringWriter writer = new StringWriter(value.length() + 16);
+        try {
+            writeEscaped(writer, value);
+        } catch (IOException ex) {
+            // StringWriter never throws
+            throw new IllegalStateException(ex);
+        }
+        return writer.toString();
+    }
+}
@@ -0,0 +1,91 @@
+package com.sendgrid.logging;
+
+import java.util.regex.Pattern;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Payload Log - Size-capped, redacted logging of request and response bodies.
+ *
+ * Bodies go to the com.sendgrid.payload logger, which is off unless log4j2.xml (or the PAYLOAD_LOG_LEVEL
+ * environment variable) sets it to DEBUG. While it is off a call costs one level check: nothing is copied,
+ * serialized or formatted. When enabled, values of secret-looking keys are replaced, long strings such as
+ * html_content are cut to a prefix with their original length, and the whole line is capped.
+ */
+public final class PayloadLog {
+    
+    private static final Logger logger = LogManager.getLogger("com.sendgrid.payload");
+    
+    /** Longest string value kept in full */
+    static final int MAX_VALUE_CHARS = 256;
+    /** Longest logged payload */
+    static final int MAX_PAYLOAD_CHARS = 4096;
+    
+    private static final Pattern SECRET_KEY = Pattern.compile("(?i).*(api[_-]?key|authorization|password|secret|token).*");
+    
+    private PayloadLog() {
+    }
+    
+    /**
+     * @return true if payloads are being logged
+     */
+    public static boolean isEnabled() {
+        return logger.isDebugEnabled();
+    }
+    
+    /**
+     * Log a JSON body
+     * @param label What the body is, e.g. "SendGrid request"
+     * @param body Body to log; not modified
+     */
+    public static void log(String label, JSONObject body) {
+        if (!logger.isDebugEnabled()) {
+            return;
+        }
+        logger.debug("{}: {}", label, cap(redact(body).toString()));
+    }
+    
+    /**
+     * Log a body that is not parsed JSON
+     * @param label What the body is
+     * @param body Body to log
+     */
+    public static void log(String label, CharSequence body) {
+        if (!logger.isDebugEnabled()) {
+            return;
+        }
+        logger.debug("{}: {}", label, cap(body));
+    }
+    
+    private static Object redact(Object value) {
+        if (value instanceof JSONObject) {
+            JSONObject source = (JSONObject) value;
+            JSONObject copy = new JSONObject();
+            for (String key : source.keySet()) {
+                copy.put(key, SECRET_KEY.matcher(key).matches() ? "[REDACTED]" : redact(source.get(key)));
+            }
+            return copy;
+        }
+        if (value instanceof JSONArray) {
+            JSONArray copy = new JSONArray();
+            for (Object item : (JSONArray) value) {
+                copy.put(redact(item));
+            }
+            return copy;
+        }
+        if (value instanceof String && ((String) value).length() > MAX_VALUE_CHARS) {
+            String text = (String) value;
+            return text.substring(0, MAX_VALUE_CHARS) + "...[" + text.length() + " chars]";
+        }
+        return value;
+    }
+    
+    private static String cap(CharSequence text) {
+        if (text.length() <= MAX_PAYLOAD_CHARS) {
+            return text.toString();
+        }
+        return text.subSequence(0, MAX_PAYLOAD_CHARS) + "...[" + text.length() + " chars]";
+    }
+}
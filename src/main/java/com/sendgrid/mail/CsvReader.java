@@ -0,0 +1,198 @@
+package com.sendgrid.mail;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * CSV Reader - Reads RFC 4180 CSV one record at a time from a character stream.
+ *
+ * Quoted fields may contain delimiters, doubled quotes and line breaks; lines may end in LF or CRLF, and a
+ * leading byte order mark is skipped. The reader holds one buffer and the current record, reusing both, so
+ * memory does not grow with the input. A field longer than the configured limit is an error rather than a
+ * reason to keep buffering, which is what an unbalanced quote would otherwise cause.
+ */
+public final class CsvReader {
+    
+    private static final int BUFFER_SIZE = 64 * 1024;
+    
+    private final Reader reader;
+    private final char delimiter;
+    private final int maxFieldChars;
+    private final char[] buffer = new char[BUFFER_SIZE];
+    private final StringBuilder field = new StringBuilder();
+    private final List<String> fields = new ArrayList<>();
+    private int position;
+    private int limit;
+    private boolean started;
+    private long line = 1;
+    private long recordLine;
+    
+    /**
+     * @param reader Source of the CSV text; not buffered further
+     * @param delimiter Field delimiter, usually ','
+     * @param maxFieldChars Longest field accepted
+     */
+    public CsvReader(Reader reader, char delimiter, int maxFieldChars) {
+        if (delimiter == '"' || delimiter == '\r' || delimiter == '\n') {
+            throw new IllegalArgumentException("Invalid CSV delimiter");
+        }
+        this.reader = reader;
+        this.delimiter = delimiter;
+        this.maxFieldChars = maxFieldChars;
+    }
+    
+    /**
+     * Advance to the next record, skipping blank lines
+     * @return false at the end of the input
+     * @throws IOException if the input cannot be read
+     * @throws IllegalArgumentException if the input is not valid CSV
+     */
+    public boolean next() throws IOException {
+        fields.clear();
+        if (!started) {
+            started = true;
+            if (peek() == '\uFEFF') {
+                position++;
+            }
+        }
+        int c;
+        while ((c = peek()) == '\r' || c == '\n') {
+            position++;
+            if (c == '\n') {
+                line++;
+            }
+        }
+        if (c == -1) {
+            return false;
+        }
+        
+        recordLine = line;
+        while (true) {
+            field.setLength(0);
+            int end = peek() == '"' ? readQuoted() : readUnquoted();
+            fields.add(field.length() == 0 ? "" : field.toString());
+            if (end == delimiter) {
+                continue;
+            }
+            if (end == '\r' && peek() == '\n') {
+                position++;
+            }
+            if (end != -1) {
+                line++;
+            }
+            return true;
+        }
+    }
+    
+    /**
+     * @return Number of fields in the current record
+     */
+    public int size() {
+        return fields.size();
+    }
+    
+    /**
+     * @param index Field index
+     * @return Field value, or "" if the record has fewer fields
+     */
+    public String get(int index) {
+        return index < fields.size() ? fields.get(index) : "";
+    }
+    
+    /**
+     * @return Line on which the current record starts, counting from 1
+     */
+    public long getLine() {
+        return recordLine;
+    }
+    
+    /**
+     * Read an unquoted field, copying runs of ordinary characters straight from the buffer
+     * @return The character that ended the field: the delimiter, '\r', '\n' or -1
+     */
+    private int readUnquoted() throws IOException {
+        while (true) {
+            if (position == limit && !fill()) {
+                return -1;
+            }
+            int start = position;
+            while (position < limit) {
+                char c = buffer[position];
+                if (c == delimiter || c == '\r' || c == '\n') {
+                    append(start, position);
+                    position++;
+                    return c;
+                }
+                position++;
+            }
+            append(start, position);
+        }
+    }
+    
+    /**
+     * Read a quoted field, starting at its opening quote
+     * @return The character after the closing quote: the delimiter, '\r', '\n' or -1
+     */
+    private int readQuoted() throws IOException {
+        long startLine = line;
+        position++;
+        while (true) {
+            if (position == limit && !fill()) {
+                throw new IllegalArgumentException("Unterminated quoted field starting on line " + startLine);
+            }
+            int start = position;
+            while (position < limit && buffer[position] != '"') {
+                if (buffer[position] == '\n') {
+                    line++;
+                }
+                position++;
+            }
+            append(start, position);
+            if (position == limit) {
+                continue;
+            }
+            // At a quote: either an escaped quote or the end of the field
+            position++;
+            int next = peek();
+            if (next == '"') {
+                field.append('"');
+                position++;
+                continue;
+            }
+            if (next == -1) {
+                return -1;
+            }
+            if (next != delimiter && next != '\r' && next != '\n') {
+                throw new IllegalArgumentException("Unexpected character after quoted field on line " + line);
+            }
+            position++;
+            return next;
+        }
+    }
+    
+    private void append(int start, int end) {
+        if (end > start) {
+            if (field.length() + (end - start) > maxFieldChars) {
+                throw new IllegalArgumentException("Field longer than " + maxFieldChars + " characters on line " + line
+                        + " (unbalanced quote?)");
+            }
+            field.append(buffer, start, end - start);
+        }
+    }
+    
+    private int peek() throws IOException {
+        if (position == limit && !fill()) {
+            return -1;
+        }
+        return buffer[position];
+    }
+    
+    private boolean fill() throws IOException {
+        int read = reader.read(buffer, 0, buffer.length);
+        position = 0;
+        limit = Math.max(read, 0);
+        return read > 0;
+    }
+}
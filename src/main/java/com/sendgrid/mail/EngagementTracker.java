@@ -0,0 +1,545 @@
+package com.sendgrid.mail;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import javax.servlet.ServletContext;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+import com.sendgrid.metrics.MetricsRegistry;
+
+/**
+ * Engagement Tracker - Delivery and engagement counts per template and version, built from Event Webhook posts.
+ *
+ * A webhook request only queues its raw body. Worker threads parse the event arrays and count each event in
+ * LongAdder cells under its template and version, so counting takes no lock and readers see live totals at any
+ * time. Sends from this app tag every message with template_id and template_version_id custom args, which
+ * SendGrid copies onto each event; other events fall back to sg_template_id, and events with neither are
+ * counted as untracked only.
+ *
+ * Counts are persisted in an append-only journal of JSON lines: every flush interval, one record with the
+ * increments since the last flush, rewritten as a single totals record once the journal grows long. SendGrid
+ * delivers events at least once, so an event in a retried post is counted again.
+ */
+public class EngagementTracker implements MetricsRegistry.Collector {
+    
+    private static final Logger logger = LogManager.getLogger(EngagementTracker.class);
+    
+    /** Servlet context attribute under which the shared instance is stored */
+    public static final String CONTEXT_ATTRIBUTE = EngagementTracker.class.getName();
+    
+    /** Event types that are counted */
+    public static final List<String> EVENTS = List.of("processed", "delivered", "deferred", "bounce", "dropped",
+            "open", "click", "spamreport", "unsubscribe");
+    
+    private static final Map<String, Integer> EVENT_INDEX = new HashMap<>();
+    static {
+        for (int i = 0; i < EVENTS.size(); i++) {
+            EVENT_INDEX.put(EVENTS.get(i), i);
+        }
+    }
+    
+    // Bounds on the keys taken from event fields; events beyond them are counted as untracked
+    private static final int MAX_TEMPLATES = 10000;
+    private static final int MAX_VERSIONS_PER_TEMPLATE = 1000;
+    private static final int MAX_ID_LENGTH = 100;
+    // Rewrite the journal as one totals record once it holds this many
+    private static final int COMPACT_RECORDS = 200;
+    private static final long POLL_MS = 200;
+    private static final long CLOSE_WAIT_MS = 5000;
+    
+    private final Path file;
+    private final long maxQueuedBytes;
+    private final BlockingQueue<byte[]> queue = new LinkedBlockingQueue<>();
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private final ConcurrentHashMap<String, ConcurrentHashMap<String, Counters>> templates = new ConcurrentHashMap<>();
+    // Since startup, for the metrics
+    private final LongAdder[] received = newAdders();
+    private final LongAdder untracked = new LongAdder();
+    private final LongAdder ignored = new LongAdder();
+    private final LongAdder failedPayloads = new LongAdder();
+    private final List<Thread> workers = new ArrayList<>();
+    private final ScheduledThreadPoolExecutor flusher;
+    private volatile boolean closed;
+    private volatile long updatedAt;
+    
+    // Guarded by this
+    private BufferedWriter journal;
+    private int journalRecords;
+    private long flushedAt;
+    
+    /**
+     * @param directory Directory of the journal (shared with the template store)
+     * @param workerCount Threads that parse and count queued posts
+     * @param flushIntervalMs Time between journal writes
+     * @param maxQueuedBytes Most bytes of posts waiting to be counted; further posts are refused
+     */
+    public EngagementTracker(Path directory, int workerCount, long flushIntervalMs, long maxQueuedBytes) {
+        this.file = directory.resolve("engagement.jsonl");
+        this.maxQueuedBytes = maxQueuedBytes;
+        load();
+        try {
+            Files.createDirectories(directory);
+            journal = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                    StandardOpenOption.APPEND);
+        } catch (IOException ex) {
+            logger.warn("Engagement journal {} is not writable, keeping counts in memory only: {}", file, ex.getMessage());
+        }
+        
+        for (int i = 1; i <= Math.max(1, workerCount); i++) {
+            Thread worker = new Thread(this::work, "engagement-worker-" + i);
+            worker.setDaemon(true);
+            worker.start();
+            workers.add(worker);
+        }
+        this.flusher = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "engagement-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long interval = Math.max(100, flushIntervalMs);
+        flusher.scheduleWithFixedDelay(this::flushQuietly, interval, interval, TimeUnit.MILLISECONDS);
+        logger.info("Engagement tracker started ({} templates from {}, {} workers, flush every {}ms)", templates.size(),
+                file, workers.size(), interval);
+    }
+    
+    /**
+     * Get the shared tracker for a web application
+     * @param context Servlet context the tracker was registered in
+     * @return Shared tracker instance
+     */
+    public static EngagementTracker get(ServletContext context) {
+        EngagementTracker tracker = (EngagementTracker) context.getAttribute(CONTEXT_ATTRIBUTE);
+        if (tracker == null) {
+            throw new IllegalStateException("EngagementTracker has not been initialized for this web application");
+        }
+        return tracker;
+    }
+    
+    /**
+     * Queue a webhook post for counting
+     * @param body Raw request body, a JSON array of events
+     * @return false if the queue is full or the tracker closed; the sender should retry later
+     */
+    public boolean offer(byte[] body) {
+        if (closed) {
+            return false;
+        }
+        long total = queuedBytes.addAndGet(body.length);
+        if (total > maxQueuedBytes && total != body.length) {
+            queuedBytes.addAndGet(-body.length);
+            return false;
+        }
+        queue.add(body);
+        return true;
+    }
+    
+    /**
+     * @param templateId Template ID
+     * @return Counts of the template (see {@link #toJson()}), or null if no event was seen for it
+     */
+    public JSONObject toJson(String templateId) {
+        Map<String, Counters> versions = templates.get(templateId);
+        return versions != null ? templateJson(versions) : null;
+    }
+    
+    /**
+     * @return Counts of every template by ID: a total per event type, and the same per version ID under
+     *         "versions" ("" for events without a version)
+     */
+    public JSONObject toJson() {
+        JSONObject json = new JSONObject();
+        for (Map.Entry<String, ConcurrentHashMap<String, Counters>> template : templates.entrySet()) {
+            json.put(template.getKey(), templateJson(template.getValue()));
+        }
+        return json;
+    }
+    
+    /**
+     * @return Time the last event was counted, or 0 if none since startup
+     */
+    public long getUpdatedAt() {
+        return updatedAt;
+    }
+    
+    /**
+     * @return Time counts were last written to the journal, or 0 if not since startup
+     */
+    public synchronized long getFlushedAt() {
+        return flushedAt;
+    }
+    
+    /**
+     * Write the increments since the last flush to the journal, compacting it when it has grown long
+     */
+    public synchronized void flush() {
+        JSONObject counts = new JSONObject();
+        for (Map.Entry<String, ConcurrentHashMap<String, Counters>> template : templates.entrySet()) {
+            for (Map.Entry<String, Counters> version : template.getValue().entrySet()) {
+                Counters counters = version.getValue();
+                JSONObject delta = null;
+                for (int i = 0; i < counters.counts.length; i++) {
+                    // Counters only grow, so anything added during this loop is picked up by the next flush
+                    long total = counters.counts[i].sum();
+                    if (total > counters.persisted[i]) {
+                        if (delta == null) {
+                            delta = new JSONObject();
+                        }
+                        delta.put(EVENTS.get(i), total - counters.persisted[i]);
+                        counters.persisted[i] = total;
+                    }
+                }
+                if (delta != null) {
+                    JSONObject versions = counts.optJSONObject(template.getKey());
+                    if (versions == null) {
+                        versions = new JSONObject();
+                        counts.put(template.getKey(), versions);
+                    }
+                    versions.put(version.getKey(), delta);
+                }
+            }
+        }
+        if (counts.isEmpty()) {
+            return;
+        }
+        flushedAt = System.currentTimeMillis();
+        append(record(counts, flushedAt));
+        if (journalRecords >= COMPACT_RECORDS) {
+            compact();
+        }
+    }
+    
+    /**
+     * Stop accepting posts, count the ones still queued, and flush and close the journal
+     */
+    public void close() {
+        closed = true;
+        long deadline = System.currentTimeMillis() + CLOSE_WAIT_MS;
+        for (Thread worker : workers) {
+            try {
+                worker.join(Math.max(1, deadline - System.currentTimeMillis()));
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        flusher.shutdownNow();
+        synchronized (this) {
+            flush();
+            closeJournal();
+        }
+        logger.info("Engagement tracker closed ({} posts left uncounted)", queue.size());
+    }
+    
+    @Override
+    public void collect(MetricsRegistry.MetricWriter out) throws IOException {
+        String[] labelNames = {"event"};
+        out.header("sendgrid_webhook_events_total", "counter", "Event Webhook events counted, by type");
+        for (int i = 0; i < received.length; i++) {
+            out.sample("sendgrid_webhook_events_total", labelNames, List.of(EVENTS.get(i)), received[i].sum());
+        }
+        out.sample("sendgrid_webhook_events_total", labelNames, List.of("other"), ignored.sum());
+        out.header("sendgrid_webhook_events_untracked_total", "counter", "Counted events without a known template");
+        out.sample("sendgrid_webhook_events_untracked_total", untracked.sum());
+        out.header("sendgrid_webhook_posts_failed_total", "counter", "Queued posts that were not a valid event array");
+        out.sample("sendgrid_webhook_posts_failed_total", failedPayloads.sum());
+        out.header("sendgrid_webhook_queued_bytes", "gauge", "Bytes of webhook posts waiting to be counted");
+        out.sample("sendgrid_webhook_queued_bytes", queuedBytes.get());
+    }
+    
+    private void work() {
+        while (!closed || !queue.isEmpty()) {
+            byte[] body;
+            try {
+                body = queue.poll(POLL_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (body == null) {
+                continue;
+            }
+            queuedBytes.addAndGet(-body.length);
+            try {
+                countAll(body);
+            } catch (JSONException | ClassCastException ex) {
+                // Events before the error stay counted
+                failedPayloads.increment();
+                logger.warn("Stopped counting an Event Webhook post of {} bytes: {}", body.length, ex.getMessage());
+            }
+        }
+    }
+    
+    /**
+     * Count the events of one post, parsing the array element by element
+     */
+    private void countAll(byte[] body) {
+        JSONTokener tokener = new JSONTokener(new ByteArrayInputStream(body));
+        if (tokener.nextClean() != '[') {
+            throw tokener.syntaxError("Expected a JSON array of events");
+        }
+        if (tokener.nextClean() == ']') {
+            return;
+        }
+        tokener.back();
+        while (true) {
+            Object event = tokener.nextValue();
+            if (event instanceof JSONObject) {
+                count((JSONObject) event);
+            }
+            char next = tokener.nextClean();
+            if (next == ']') {
+                break;
+            }
+            if (next != ',') {
+                throw tokener.syntaxError("Expected ',' or ']' after an event");
+            }
+        }
+        updatedAt = System.currentTimeMillis();
+    }
+    
+    private void count(JSONObject event) {
+        Integer index = EVENT_INDEX.get(event.optString("event"));
+        if (index == null) {
+            ignored.increment();
+            return;
+        }
+        received[index].increment();
+        
+        String templateId = idField(event, "template_id");
+        if (templateId == null) {
+            templateId = idField(event, "sg_template_id");
+        }
+        if (templateId == null) {
+            untracked.increment();
+            return;
+        }
+        String versionId = idField(event, "template_version_id");
+        Counters counters = counters(templateId, versionId != null ? versionId : "");
+        if (counters == null) {
+            untracked.increment();
+            return;
+        }
+        counters.counts[index].increment();
+    }
+    
+    /**
+     * @return Counters for the key, created if the bounds allow, or null
+     */
+    private Counters counters(String templateId, String versionId) {
+        ConcurrentHashMap<String, Counters> versions = templates.get(templateId);
+        if (versions == null) {
+            if (templates.size() >= MAX_TEMPLATES) {
+                return null;
+            }
+            versions = templates.computeIfAbsent(templateId, id -> new ConcurrentHashMap<>());
+        }
+        Counters counters = versions.get(versionId);
+        if (counters == null) {
+            if (versions.size() >= MAX_VERSIONS_PER_TEMPLATE) {
+                return null;
+            }
+            counters = versions.computeIfAbsent(versionId, id -> new Counters());
+        }
+        return counters;
+    }
+    
+    private static String idField(JSONObject event, String name) {
+        String value = event.optString(name, "");
+        return value.isEmpty() || value.length() > MAX_ID_LENGTH ? null : value;
+    }
+    
+    private static JSONObject templateJson(Map<String, Counters> versions) {
+        long[] totals = new long[EVENTS.size()];
+        JSONObject versionsJson = new JSONObject();
+        for (Map.Entry<String, Counters> version : versions.entrySet()) {
+            JSONObject versionJson = new JSONObject();
+            LongAdder[] counts = version.getValue().counts;
+            for (int i = 0; i < counts.length; i++) {
+                long count = counts[i].sum();
+                totals[i] += count;
+                versionJson.put(EVENTS.get(i), count);
+            }
+            versionsJson.put(version.getKey(), versionJson);
+        }
+        JSONObject json = new JSONObject();
+        for (int i = 0; i < totals.length; i++) {
+            json.put(EVENTS.get(i), totals[i]);
+        }
+        json.put("versions", versionsJson);
+        return json;
+    }
+    
+    private static JSONObject record(JSONObject counts, long at) {
+        JSONObject record = new JSONObject();
+        record.put("op", "counts");
+        record.put("at", at);
+        record.put("counts", counts);
+        return record;
+    }
+    
+    /**
+     * Replay the journal: every record adds its counts
+     */
+    private void load() {
+        if (!Files.isRegularFile(file)) {
+            return;
+        }
+        long started = System.currentTimeMillis();
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                try {
+                    apply(new JSONObject(line));
+                    journalRecords++;
+                } catch (JSONException ex) {
+                    logger.warn("Skipping damaged engagement record in {}: {}", file, ex.getMessage());
+                }
+            }
+        } catch (IOException ex) {
+            logger.warn("Could not read engagement journal {}: {}", file, ex.getMessage());
+        }
+        logger.info("Engagement journal loaded: {} records in {}ms", journalRecords, System.currentTimeMillis() - started);
+    }
+    
+    private void apply(JSONObject record) {
+        if (!"counts".equals(record.optString("op"))) {
+            logger.warn("Ignoring unknown engagement record: {}", record.optString("op"));
+            return;
+        }
+        JSONObject counts = record.getJSONObject("counts");
+        for (String templateId : counts.keySet()) {
+            JSONObject versions = counts.getJSONObject(templateId);
+            for (String versionId : versions.keySet()) {
+                Counters counters = templates.computeIfAbsent(templateId, id -> new ConcurrentHashMap<>())
+                        .computeIfAbsent(versionId, id -> new Counters());
+                JSONObject delta = versions.getJSONObject(versionId);
+                for (String event : delta.keySet()) {
+                    Integer index = EVENT_INDEX.get(event);
+                    if (index != null) {
+                        long count = delta.getLong(event);
+                        counters.counts[index].add(count);
+                        counters.persisted[index] += count;
+                    }
+                }
+            }
+        }
+    }
+    
+    private void append(JSONObject record) {
+        journalRecords++;
+        if (journal == null) {
+            return;
+        }
+        try {
+            journal.write(record.toString());
+            journal.newLine();
+            journal.flush();
+        } catch (IOException ex) {
+            logger.warn("Could not write engagement journal, keeping counts in memory only: {}", ex.getMessage());
+            closeJournal();
+        }
+    }
+    
+    /**
+     * Replace the journal with one record of the persisted totals; the new file is moved into place atomically
+     */
+    private void compact() {
+        if (journal == null) {
+            return;
+        }
+        JSONObject counts = new JSONObject();
+        for (Map.Entry<String, ConcurrentHashMap<String, Counters>> template : templates.entrySet()) {
+            JSONObject versions = new JSONObject();
+            for (Map.Entry<String, Counters> version : template.getValue().entrySet()) {
+                JSONObject totals = new JSONObject();
+                long[] persisted = version.getValue().persisted;
+                for (int i = 0; i < persisted.length; i++) {
+                    if (persisted[i] > 0) {
+                        totals.put(EVENTS.get(i), persisted[i]);
+                    }
+                }
+                versions.put(version.getKey(), totals);
+            }
+            counts.put(template.getKey(), versions);
+        }
+        
+        Path compacted = file.resolveSibling(file.getFileName() + ".compact");
+        try (BufferedWriter writer = Files.newBufferedWriter(compacted, StandardCharsets.UTF_8)) {
+            writer.write(record(counts, flushedAt).toString());
+            writer.newLine();
+        } catch (IOException ex) {
+            logger.warn("Could not compact engagement journal: {}", ex.getMessage());
+            return;
+        }
+        closeJournal();
+        try {
+            Files.move(compacted, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            logger.info("Engagement journal compacted from {} records", journalRecords);
+            journalRecords = 1;
+            journal = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+        } catch (IOException ex) {
+            logger.warn("Could not replace engagement journal after compaction: {}", ex.getMessage());
+        }
+    }
+    
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (RuntimeException ex) {
+            logger.warn("Could not flush engagement counts: {}", ex.getMessage());
+        }
+    }
+    
+    private void closeJournal() {
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException ex) {
+                logger.warn("Could not close engagement journal: {}", ex.getMessage());
+            }
+            journal = null;
+        }
+    }
+    
+    private static LongAdder[] newAdders() {
+        LongAdder[] adders = new LongAdder[EVENTS.size()];
+        for (int i = 0; i < adders.length; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+    
+    /**
+     * Counters - Counts of one template version; persisted holds what the journal already has
+     */
+    private static final class Counters {
+        
+        final LongAdder[] counts = newAdders();
+        // Guarded by the tracker
+        final long[] persisted = new long[EVENTS.size()];
+    }
+}
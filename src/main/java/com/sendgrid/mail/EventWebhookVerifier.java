@@ -0,0 +1,77 @@
+package com.sendgrid.mail;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Base64;
+
+/**
+ * Event Webhook Verifier - Checks the signature SendGrid puts on Event Webhook requests.
+ *
+ * With signing enabled, SendGrid signs the timestamp header followed by the raw request body with ECDSA over
+ * P-256 and SHA-256, and sends the DER signature base64-encoded. The verification key is the base64 public key
+ * shown in the Mail Settings page. Instances are immutable and safe to share; each check uses its own
+ * Signature object.
+ */
+public final class EventWebhookVerifier {
+    
+    /** Header with the base64 signature */
+    public static final String SIGNATURE_HEADER = "X-Twilio-Email-Event-Webhook-Signature";
+    /** Header with the signing time, in seconds since the epoch */
+    public static final String TIMESTAMP_HEADER = "X-Twilio-Email-Event-Webhook-Timestamp";
+    
+    private final String encodedKey;
+    private final PublicKey publicKey;
+    
+    private EventWebhookVerifier(String encodedKey, PublicKey publicKey) {
+        this.encodedKey = encodedKey;
+        this.publicKey = publicKey;
+    }
+    
+    /**
+     * @param encodedKey Base64 verification key from SendGrid (X.509 SubjectPublicKeyInfo)
+     * @return Verifier for the key
+     * @throws IllegalArgumentException if the key is not a valid EC public key
+     */
+    public static EventWebhookVerifier fromBase64(String encodedKey) {
+        try {
+            byte[] der = Base64.getMimeDecoder().decode(encodedKey);
+            PublicKey key = KeyFactory.getInstance("EC").generatePublic(new X509EncodedKeySpec(der));
+            return new EventWebhookVerifier(encodedKey, key);
+        } catch (IllegalArgumentException | GeneralSecurityException ex) {
+            throw new IllegalArgumentException("Invalid Event Webhook verification key: " + ex.getMessage(), ex);
+        }
+    }
+    
+    /**
+     * @return The key this verifier was built from, as configured
+     */
+    public String getEncodedKey() {
+        return encodedKey;
+    }
+    
+    /**
+     * @param body Raw request body, exactly as received
+     * @param signature Value of the signature header
+     * @param timestamp Value of the timestamp header
+     * @return true if the signature matches the timestamp and body
+     */
+    public boolean verify(byte[] body, String signature, String timestamp) {
+        if (signature == null || timestamp == null) {
+            return false;
+        }
+        try {
+            Signature verifier = Signature.getInstance("SHA256withECDSA");
+            verifier.initVerify(publicKey);
+            verifier.update(timestamp.getBytes(StandardCharsets.UTF_8));
+            verifier.update(body);
+            return verifier.verify(Base64.getDecoder().decode(signature.trim()));
+        } catch (IllegalArgumentException | GeneralSecurityException ex) {
+            // Malformed base64 or DER: not a signature from SendGrid
+            return false;
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.sendgrid.mail;
+
+import java.util.Collections;
+import java.util.Map;
+import org.json.JSONObject;
+
+/**
+ * Recipient - One addressee of a templated send and the dynamic template data rendered for them
+ */
+public final class Recipient {
+    
+    // RFC 5321 limits
+    private static final int MAX_ADDRESS_LENGTH = 254;
+    private static final int MAX_LOCAL_PART_LENGTH = 64;
+    
+    private final String email;
+    private final String name;
+    private final Map<String, Object> dynamicTemplateData;
+    
+    /**
+     * @param email Recipient address
+     * @param name Display name, or null
+     * @param dynamicTemplateData Handlebars values for this recipient (plain maps, lists, strings, numbers, booleans)
+     */
+    public Recipient(String email, String name, Map<String, Object> dynamicTemplateData) {
+        this.email = email;
+        this.name = name;
+        this.dynamicTemplateData = dynamicTemplateData != null ? dynamicTemplateData : Collections.emptyMap();
+    }
+    
+    /**
+     * Read a recipient in the /send format: {"to": "...", "name": "...", "dynamic_template_data": {...}}
+     * @param json Recipient object; "email" is accepted in place of "to"
+     * @return Recipient
+     * @throws IllegalArgumentException if the address is missing or invalid
+     */
+    public static Recipient fromJson(JSONObject json) {
+        String email = json.optString("to", json.optString("email", "")).trim();
+        checkAddress(email);
+        String name = json.optString("name", "").trim();
+        JSONObject data = json.optJSONObject("dynamic_template_data");
+        if (data == null && json.has("dynamic_template_data") && !json.isNull("dynamic_template_data")) {
+            throw new IllegalArgumentException("dynamic_template_data must be an object");
+        }
+        return new Recipient(email, name.isEmpty() ? null : name, data != null ? data.toMap() : null);
+    }
+    
+    /**
+     * Check an address with the rules SendGrid rejects a whole request for, without a regex so that
+     * million-row inputs stay cheap
+     * @param email Address to check
+     * @throws IllegalArgumentException describing the problem
+     */
+    public static void checkAddress(String email) {
+        if (email == null || email.isEmpty()) {
+            throw new IllegalArgumentException("Email address is required");
+        }
+        if (!isValidAddress(email)) {
+            throw new IllegalArgumentException("Invalid email address: " + email);
+        }
+    }
+    
+    /**
+     * @param email Address to check
+     * @return true if the address is a plausible local-part@domain.tld
+     */
+    public static boolean isValidAddress(String email) {
+        int length = email.length();
+        int at = email.indexOf('@');
+        if (length > MAX_ADDRESS_LENGTH || at <= 0 || at > MAX_LOCAL_PART_LENGTH || at != email.lastIndexOf('@')) {
+            return false;
+        }
+        char previous = '.';
+        for (int i = 0; i < at; i++) {
+            char c = email.charAt(i);
+            if (c <= ' ' || c == 127 || "()<>[]\\,;:\"".indexOf(c) >= 0 || (c == '.' && previous == '.')) {
+                return false;
+            }
+            previous = c;
+        }
+        if (previous == '.') {
+            return false;
+        }
+        
+        boolean dotted = false;
+        previous = '.';
+        for (int i = at + 1; i < length; i++) {
+            char c = email.charAt(i);
+            if (c == '.') {
+                if (previous == '.' || previous == '-') {
+                    return false;
+                }
+                dotted = true;
+            } else if (c == '-') {
+                if (previous == '.') {
+                    return false;
+                }
+            } else if (!Character.isLetterOrDigit(c)) {
+                return false;
+            }
+            previous = c;
+        }
+        return dotted && previous != '.' && previous != '-';
+    }
+    
+    public String getEmail() {
+        return email;
+    }
+    
+    /**
+     * @return Display name, or null
+     */
+    public String getName() {
+        return name;
+    }
+    
+    public Map<String, Object> getDynamicTemplateData() {
+        return dynamicTemplateData;
+    }
+}
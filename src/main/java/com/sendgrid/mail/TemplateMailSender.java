@@ -0,0 +1,456 @@
+package com.sendgrid.mail;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import javax.servlet.ServletContext;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONObject;
+import com.sendgrid.helpers.mail.Mail;
+import com.sendgrid.helpers.mail.objects.Email;
+import com.sendgrid.helpers.mail.objects.Personalization;
+import com.sendgrid.http.RateLimitScheduler;
+import com.sendgrid.http.UpstreamHttpClient;
+import com.sendgrid.json.ErrorMessages;
+import com.sendgrid.template.TemplateStore;
+
+/**
+ * Template Mail Sender - Sends a dynamic template to a stream of recipients through /v3/mail/send.
+ *
+ * Recipients are packed into batches of up to 1000 personalizations, the most SendGrid accepts per call, and
+ * the request bodies are built with the SDK's Mail model. Batches go through the shared
+ * {@link RateLimitScheduler} in the mail family, with a fixed number in flight per send: once that many are
+ * pending, adding the next full batch blocks the producer, so a send holds a bounded number of recipients in
+ * memory however long its input is.
+ *
+ * Every message carries template_id and template_version_id custom args (the version that is active in the
+ * local template store when the send starts), which SendGrid copies onto its Event Webhook events so that
+ * {@link EngagementTracker} can count them per template and version.
+ */
+public class TemplateMailSender {
+    
+    private static final Logger logger = LogManager.getLogger(TemplateMailSender.class);
+    
+    /** Servlet context attribute under which the shared instance is stored */
+    public static final String CONTEXT_ATTRIBUTE = TemplateMailSender.class.getName();
+    
+    /** Most personalizations SendGrid accepts in one /v3/mail/send call */
+    public static final int MAX_BATCH_SIZE = 1000;
+    
+    private static final String MAIL_SEND_PATH = "/v3/mail/send";
+    // How often a producer blocked on a full pipeline checks whether the send was cancelled
+    private static final long CANCEL_CHECK_MS = 200;
+    
+    private final UpstreamHttpClient upstreamClient;
+    private final RateLimitScheduler scheduler;
+    private final TemplateStore templateStore;
+    
+    public TemplateMailSender(UpstreamHttpClient upstreamClient, RateLimitScheduler scheduler,
+            TemplateStore templateStore) {
+        this.upstreamClient = upstreamClient;
+        this.scheduler = scheduler;
+        this.templateStore = templateStore;
+    }
+    
+    /**
+     * Get the shared sender for a web application
+     * @param context Servlet context the sender was registered in
+     * @return Shared sender instance
+     */
+    public static TemplateMailSender get(ServletContext context) {
+        TemplateMailSender sender = (TemplateMailSender) context.getAttribute(CONTEXT_ATTRIBUTE);
+        if (sender == null) {
+            throw new IllegalStateException("TemplateMailSender has not been initialized for this web application");
+        }
+        return sender;
+    }
+    
+    /**
+     * Start a send. Recipients are then added one at a time from a single thread, and {@link Send#finish()}
+     * flushes the last partial batch.
+     * @param apiKey SendGrid API key
+     * @param templateId Dynamic template ID (d-...)
+     * @param from Verified sender
+     * @param batchSize Personalizations per call, capped at {@link #MAX_BATCH_SIZE}
+     * @param concurrency Maximum number of batches in flight at once
+     * @param listener Receives each batch's result as it completes; calls are never concurrent
+     * @return Send to add recipients to
+     */
+    public Send start(String apiKey, String templateId, Email from, int batchSize, int concurrency,
+            Consumer<BatchResult> listener) {
+        int size = Math.max(1, Math.min(batchSize, MAX_BATCH_SIZE));
+        int workers = Math.max(1, concurrency);
+        String versionId = templateStore.activeVersionId(apiKey, templateId);
+        logger.info("Sending template {} (version {}) in batches of {} with concurrency {}", templateId,
+                versionId != null ? versionId : "unknown", size, workers);
+        return new Send(apiKey, templateId, versionId, from, size, workers, listener);
+    }
+    
+    /**
+     * Build the /v3/mail/send body for one batch
+     * @param templateId Dynamic template ID
+     * @param versionId Active version ID, or null if not known
+     * @param from Verified sender
+     * @param recipients Recipients of the batch, one personalization each
+     * @return Request body
+     * @throws IOException if the body cannot be serialized
+     */
+    static String mailBody(String templateId, String versionId, Email from, List<Recipient> recipients)
+            throws IOException {
+        Mail mail = new Mail();
+        mail.setFrom(from);
+        mail.setTemplateId(templateId);
+        mail.addCustomArg("template_id", templateId);
+        if (versionId != null) {
+            mail.addCustomArg("template_version_id", versionId);
+        }
+        for (Recipient recipient : recipients) {
+            Personalization personalization = new Personalization();
+            personalization.addTo(new Email(recipient.getEmail(), recipient.getName()));
+            recipient.getDynamicTemplateData().forEach(personalization::addDynamicTemplateData);
+            mail.addPersonalization(personalization);
+        }
+        return mail.build();
+    }
+    
+    /**
+     * Send - One template send in progress: collects recipients into batches and dispatches them
+     */
+    public final class Send {
+        
+        private final String apiKey;
+        private final String templateId;
+        private final String versionId;
+        private final Email from;
+        private final int batchSize;
+        private final Consumer<BatchResult> listener;
+        private final Semaphore permits;
+        private final CompletableFuture<Summary> done = new CompletableFuture<>();
+        private final Set<CompletableFuture<?>> calls = ConcurrentHashMap.newKeySet();
+        private final AtomicInteger pending = new AtomicInteger();
+        private final AtomicInteger succeededBatches = new AtomicInteger();
+        private final AtomicInteger failedBatches = new AtomicInteger();
+        private final AtomicLong sent = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+        private List<Recipient> batch;
+        private long firstPosition;
+        private long lastPosition;
+        private int batches;
+        private long recipients;
+        private volatile boolean finished;
+        
+        private Send(String apiKey, String templateId, String versionId, Email from, int batchSize, int concurrency,
+                Consumer<BatchResult> listener) {
+            this.apiKey = apiKey;
+            this.templateId = templateId;
+            this.versionId = versionId;
+            this.from = from;
+            this.batchSize = batchSize;
+            this.listener = listener;
+            this.permits = new Semaphore(concurrency);
+            this.batch = new ArrayList<>(batchSize);
+            done.whenComplete((ignored, failure) -> {
+                if (failure instanceof CancellationException) {
+                    // Withdraw queued batches and abort the ones in flight
+                    calls.forEach(call -> call.cancel(true));
+                }
+            });
+        }
+        
+        /**
+         * Add a recipient; blocks while the maximum number of batches is in flight and this one is full
+         * @param recipient Validated recipient
+         * @param position Position of the recipient in the caller's input (index or row), reported per batch
+         * @throws IOException if the send was cancelled or the waiting thread interrupted
+         */
+        public void add(Recipient recipient, long position) throws IOException {
+            if (done.isDone()) {
+                throw new IOException("Send was cancelled");
+            }
+            if (batch.isEmpty()) {
+                firstPosition = position;
+            }
+            lastPosition = position;
+            batch.add(recipient);
+            recipients++;
+            if (batch.size() >= batchSize) {
+                dispatch();
+            }
+        }
+        
+        /**
+         * Send the last partial batch; no recipients may be added afterwards
+         * @return Future completed with the summary once every batch has a result; cancelling it stops the send
+         * @throws IOException if the send was cancelled or the waiting thread interrupted
+         */
+        public CompletableFuture<Summary> finish() throws IOException {
+            if (!batch.isEmpty() && !done.isDone()) {
+                dispatch();
+            }
+            finished = true;
+            completeIfIdle();
+            return done;
+        }
+        
+        /**
+         * Stop the send: queued batches are withdrawn and the ones in flight aborted
+         */
+        public void cancel() {
+            done.cancel(true);
+        }
+        
+        /**
+         * Totals so far, for progress reports; call from the thread that adds recipients
+         * @return Recipients added and batch outcomes known at this point
+         */
+        public Summary progress() {
+            return new Summary(recipients, batches, succeededBatches.get(), failedBatches.get(), sent.get(), failed.get());
+        }
+        
+        /**
+         * @return Future completed with the summary; cancelling it stops the send
+         */
+        public CompletableFuture<Summary> getFuture() {
+            return done;
+        }
+        
+        private void dispatch() throws IOException {
+            List<Recipient> recipientsOfBatch = batch;
+            int number = ++batches;
+            long first = firstPosition;
+            long last = lastPosition;
+            batch = new ArrayList<>(batchSize);
+            acquirePermit();
+            pending.incrementAndGet();
+            
+            HttpRequest httpRequest;
+            try {
+                httpRequest = upstreamClient.newRequest(upstreamClient.sendGridUrl(MAIL_SEND_PATH))
+                        .header("Authorization", "Bearer " + apiKey)
+                        .header("Content-Type", "application/json")
+                        .POST(HttpRequest.BodyPublishers.ofString(mailBody(templateId, versionId, from, recipientsOfBatch),
+                                StandardCharsets.UTF_8))
+                        .build();
+            } catch (IOException | RuntimeException ex) {
+                completed(BatchResult.failed(number, first, last, recipientsOfBatch.size(), ex));
+                return;
+            }
+            
+            CompletableFuture<HttpResponse<String>> call = scheduler.submit(RateLimitScheduler.MAIL, httpRequest,
+                    HttpResponse.BodyHandlers.ofString());
+            calls.add(call);
+            if (done.isCancelled()) {
+                call.cancel(true);
+            }
+            call.whenComplete((httpResponse, failure) -> {
+                calls.remove(call);
+                if (failure != null) {
+                    Throwable cause = failure instanceof CompletionException && failure.getCause() != null
+                            ? failure.getCause() : failure;
+                    completed(BatchResult.failed(number, first, last, recipientsOfBatch.size(), cause));
+                } else {
+                    completed(BatchResult.of(number, first, last, recipientsOfBatch.size(), httpResponse));
+                }
+            });
+        }
+        
+        private void acquirePermit() throws IOException {
+            try {
+                while (!permits.tryAcquire(CANCEL_CHECK_MS, TimeUnit.MILLISECONDS)) {
+                    if (done.isDone()) {
+                        throw new IOException("Send was cancelled");
+                    }
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                cancel();
+                throw new InterruptedIOException("Interrupted while waiting to send a batch");
+            }
+        }
+        
+        private void completed(BatchResult result) {
+            if (result.isSuccess()) {
+                succeededBatches.incrementAndGet();
+                sent.addAndGet(result.getRecipients());
+            } else {
+                failedBatches.incrementAndGet();
+                failed.addAndGet(result.getRecipients());
+                logger.warn("Batch {} of template {} failed: {}", result.getBatch(), templateId, result.getError());
+            }
+            if (!done.isDone()) {
+                synchronized (this) {
+                    try {
+                        listener.accept(result);
+                    } catch (RuntimeException ex) {
+                        logger.warn("Mail send listener failed: {}", ex.getMessage());
+                    }
+                }
+            }
+            permits.release();
+            pending.decrementAndGet();
+            completeIfIdle();
+        }
+        
+        private void completeIfIdle() {
+            if (finished && pending.get() == 0 && !done.isDone()) {
+                Summary summary = progress();
+                if (done.complete(summary)) {
+                    logger.info("Template {} sent: {}/{} recipients accepted in {} batch(es)", templateId,
+                            summary.getSent(), summary.getRecipients(), summary.getBatches());
+                }
+            }
+        }
+    }
+    
+    /**
+     * Batch Result - Outcome of one /v3/mail/send call
+     */
+    public static final class BatchResult {
+        
+        private final int batch;
+        private final long first;
+        private final long last;
+        private final int recipients;
+        private final boolean success;
+        private final int statusCode;
+        private final String messageId;
+        private final String error;
+        
+        private BatchResult(int batch, long first, long last, int recipients, boolean success, int statusCode,
+                String messageId, String error) {
+            this.batch = batch;
+            this.first = first;
+            this.last = last;
+            this.recipients = recipients;
+            this.success = success;
+            this.statusCode = statusCode;
+            this.messageId = messageId;
+            this.error = error;
+        }
+        
+        static BatchResult of(int batch, long first, long last, int recipients, HttpResponse<String> httpResponse) {
+            int statusCode = httpResponse.statusCode();
+            boolean success = statusCode < 400;
+            return new BatchResult(batch, first, last, recipients, success, statusCode,
+                    httpResponse.headers().firstValue("X-Message-Id").orElse(null),
+                    success ? null : ErrorMessages.sendGrid(httpResponse.body()));
+        }
+        
+        static BatchResult failed(int batch, long first, long last, int recipients, Throwable failure) {
+            String message = failure instanceof CancellationException ? "Cancelled" : failure.getMessage();
+            return new BatchResult(batch, first, last, recipients, false, 0, null,
+                    "Error calling SendGrid API: " + message);
+        }
+        
+        /**
+         * @return Batch number, starting at 1
+         */
+        public int getBatch() {
+            return batch;
+        }
+        
+        public int getRecipients() {
+            return recipients;
+        }
+        
+        public boolean isSuccess() {
+            return success;
+        }
+        
+        public String getError() {
+            return error;
+        }
+        
+        /**
+         * @return Result object in the /send response format
+         */
+        public JSONObject toJson() {
+            JSONObject json = new JSONObject();
+            json.put("batch", batch);
+            json.put("first", first);
+            json.put("last", last);
+            json.put("recipients", recipients);
+            json.put("success", success);
+            if (statusCode > 0) {
+                json.put("statusCode", statusCode);
+            }
+            if (messageId != null) {
+                json.put("messageId", messageId);
+            }
+            if (error != null) {
+                json.put("error", error);
+            }
+            return json;
+        }
+    }
+    
+    /**
+     * Summary - Totals of a finished send
+     */
+    public static final class Summary {
+        
+        private final long recipients;
+        private final int batches;
+        private final int succeededBatches;
+        private final int failedBatches;
+        private final long sent;
+        private final long failed;
+        
+        Summary(long recipients, int batches, int succeededBatches, int failedBatches, long sent, long failed) {
+            this.recipients = recipients;
+            this.batches = batches;
+            this.succeededBatches = succeededBatches;
+            this.failedBatches = failedBatches;
+            this.sent = sent;
+            this.failed = failed;
+        }
+        
+        public long getRecipients() {
+            return recipients;
+        }
+        
+        public int getBatches() {
+            return batches;
+        }
+        
+        /**
+         * @return Recipients in batches SendGrid accepted
+         */
+        public long getSent() {
+            return sent;
+        }
+        
+        /**
+         * @return Recipients in batches that failed
+         */
+        public long getFailed() {
+            return failed;
+        }
+        
+        public JSONObject toJson() {
+            JSONObject json = new JSONObject();
+            json.put("recipients", recipients);
+            json.put("batches", batches);
+            json.put("succeededBatches", succeededBatches);
+            json.put("failedBatches", failedBatches);
+            json.put("sent", sent);
+            json.put("failed", failed);
+            return json;
+        }
+    }
+}
@@ -0,0 +1,400 @@
+package com.sendgrid.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+import javax.servlet.ServletContext;
+
+/**
+ * Metrics Registry - Application-wide counters, gauges and latency histograms in the Prometheus text format.
+ *
+ * Metrics are registered once (usually in a constructor) and updated lock-free on the request path; label values
+ * pick a child series that is created on first use. Collectors add series that are read at scrape time instead,
+ * such as queue depths or Tomcat's thread-pool attributes.
+ */
+public class MetricsRegistry {
+    
+    /** Servlet context attribute under which the shared instance is stored */
+    public static final String CONTEXT_ATTRIBUTE = MetricsRegistry.class.getName();
+    
+    /** Latency buckets in seconds, from a fast cache hit to a long AI generation */
+    static final double[] LATENCY_BUCKETS = {0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60, 120};
+    
+    private final Map<String, Family<?>> families = new ConcurrentHashMap<>();
+    private final List<Family<?>> registrationOrder = new CopyOnWriteArrayList<>();
+    private final List<Collector> collectors = new CopyOnWriteArrayList<>();
+    
+    /**
+     * Get the shared registry for a web application
+     * @param context Servlet context the registry was registered in
+     * @return Shared registry instance
+     */
+    public static MetricsRegistry get(ServletContext context) {
+        MetricsRegistry registry = (MetricsRegistry) context.getAttribute(CONTEXT_ATTRIBUTE);
+        if (registry == null) {
+            throw new IllegalStateException("MetricsRegistry has not been initialized for this web application");
+        }
+        return registry;
+    }
+    
+    /**
+     * Register (or look up) a counter
+     * @param name Metric name, ending in _total
+     * @param help Description shown in the exposition
+     * @param labelNames Label names; values are given in the same order when incrementing
+     * @return Counter family
+     */
+    public Counter counter(String name, String help, String... labelNames) {
+        return register(new Counter(name, help, labelNames));
+    }
+    
+    /**
+     * Register (or look up) a gauge that is moved up and down by the code it measures
+     * @param name Metric name
+     * @param help Description shown in the exposition
+     * @param labelNames Label names
+     * @return Gauge family
+     */
+    public Gauge gauge(String name, String help, String... labelNames) {
+        return register(new Gauge(name, help, labelNames));
+    }
+    
+    /**
+     * Register (or look up) a latency histogram with the default buckets
+     * @param name Metric name, ending in _seconds
+     * @param help Description shown in the exposition
+     * @param labelNames Label names
+     * @return Histogram family
+     */
+    public Histogram histogram(String name, String help, String... labelNames) {
+        return register(new Histogram(name, help, labelNames));
+    }
+    
+    /**
+     * Add series that are read when the metrics are scraped
+     * @param collector Collector to call on every scrape
+     */
+    public void addCollector(Collector collector) {
+        collectors.add(collector);
+    }
+    
+    /**
+     * Write every metric in the Prometheus text exposition format (version 0.0.4)
+     * @param out Destination writer
+     * @throws IOException if the writer fails
+     */
+    public void writeTo(Writer out) throws IOException {
+        MetricWriter metricWriter = new MetricWriter(out);
+        for (Family<?> family : registrationOrder) {
+            family.writeTo(metricWriter);
+        }
+        for (Collector collector : collectors) {
+            collector.collect(metricWriter);
+        }
+    }
+    
+    @SuppressWarnings("unchecked")
+    private <F extends Family<?>> F register(F family) {
+        Family<?> existing = families.putIfAbsent(family.name, family);
+        if (existing == null) {
+            registrationOrder.add(family);
+            return family;
+        }
+        if (existing.getClass() != family.getClass() || !Arrays.equals(existing.labelNames, family.labelNames)) {
+            throw new IllegalArgumentException("Metric " + family.name + " is already registered with a different type or labels");
+        }
+        return (F) existing;
+    }
+    
+    /**
+     * Collector - Contributes series computed at scrape time
+     */
+    public interface Collector {
+        
+        /**
+         * Write the collector's series
+         * @param out Metric writer
+         * @throws IOException if the writer fails
+         */
+        void collect(MetricWriter out) throws IOException;
+    }
+    
+    /**
+     * Metric Writer - Writes metric headers and samples with correctly escaped labels
+     */
+    public static final class MetricWriter {
+        
+        private final Writer out;
+        
+        MetricWriter(Writer out) {
+            this.out = out;
+        }
+        
+        /**
+         * Write the HELP and TYPE lines that precede a metric's samples
+         * @param name Metric name
+         * @param type counter, gauge or histogram
+         * @param help Description
+         * @throws IOException if the writer fails
+         */
+        public void header(String name, String type, String help) throws IOException {
+            out.write("# HELP ");
+            out.write(name);
+            out.write(' ');
+            out.write(help.replace("\\", "\\\\").replace("\n", "\\n"));
+            out.write("\n# TYPE ");
+            out.write(name);
+            out.write(' ');
+            out.write(type);
+            out.write('\n');
+        }
+        
+        /**
+         * Write one sample line
+         * @param name Sample name
+         * @param labelNames Label names
+         * @param labelValues Label values, in the same order
+         * @param value Sample value
+         * @throws IOException if the writer fails
+         */
+        public void sample(String name, String[] labelNames, List<String> labelValues, double value) throws IOException {
+            out.write(name);
+            if (labelNames.length > 0) {
+                out.write('{');
+                for (int i = 0; i < labelNames.length; i++) {
+                    if (i > 0) {
+                        out.write(',');
+                    }
+                    out.write(labelNames[i]);
+                    out.write("=\"");
+                    String labelValue = labelValues.get(i);
+                    out.write(labelValue.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n"));
+                    out.write('"');
+                }
+                out.write('}');
+            }
+            out.write(' ');
+            out.write(formatValue(value));
+            out.write('\n');
+        }
+        
+        /**
+         * Write a sample for a metric without labels
+         * @param name Sample name
+         * @param value Sample value
+         * @throws IOException if the writer fails
+         */
+        public void sample(String name, double value) throws IOException {
+            sample(name, new String[0], List.of(), value);
+        }
+        
+        private static String formatValue(double value) {
+            if (Double.isInfinite(value)) {
+                return value > 0 ? "+Inf" : "-Inf";
+            }
+            if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+                return Long.toString((long) value);
+            }
+            return Double.toString(value);
+        }
+    }
+    
+    /**
+     * A named metric with one child series per combination of label values
+     */
+    private abstract static class Family<C> {
+        
+        final String name;
+        final String help;
+        final String[] labelNames;
+        // Sorted so series are exposed in a stable order
+        final ConcurrentSkipListMap<List<String>, C> children = new ConcurrentSkipListMap<>(MetricsRegistry::compareLabels);
+        
+        Family(String name, String help, String[] labelNames) {
+            this.name = name;
+            this.help = help;
+            this.labelNames = labelNames;
+        }
+        
+        C child(String... labelValues) {
+            if (labelValues.length != labelNames.length) {
+                throw new IllegalArgumentException(name + " expects labels " + Arrays.toString(labelNames));
+            }
+            List<String> key = Arrays.asList(labelValues);
+            C existing = children.get(key);
+            return existing != null ? existing : children.computeIfAbsent(List.copyOf(key), k -> newChild());
+        }
+        
+        abstract C newChild();
+        
+        abstract void writeTo(MetricWriter out) throws IOException;
+    }
+    
+    private static int compareLabels(List<String> a, List<String> b) {
+        for (int i = 0; i < Math.min(a.size(), b.size()); i++) {
+            int result = a.get(i).compareTo(b.get(i));
+            if (result != 0) {
+                return result;
+            }
+        }
+        return Integer.compare(a.size(), b.size());
+    }
+    
+    /**
+     * Counter - Monotonically increasing count
+     */
+    public static final class Counter extends Family<LongAdder> {
+        
+        Counter(String name, String help, String[] labelNames) {
+            super(name, help, labelNames);
+        }
+        
+        /**
+         * Add one
+         * @param labelValues Label values in registration order
+         */
+        public void inc(String... labelValues) {
+            child(labelValues).increment();
+        }
+        
+        @Override
+        LongAdder newChild() {
+            return new LongAdder();
+        }
+        
+        @Override
+        void writeTo(MetricWriter out) throws IOException {
+            out.header(name, "counter", help);
+            for (Map.Entry<List<String>, LongAdder> series : children.entrySet()) {
+                out.sample(name, labelNames, series.getKey(), series.getValue().sum());
+            }
+        }
+    }
+    
+    /**
+     * Gauge - Current value that goes up and down, either tracked with inc/dec or read from a supplier
+     */
+    public static final class Gauge extends Family<Gauge.Value> {
+        
+        Gauge(String name, String help, String[] labelNames) {
+            super(name, help, labelNames);
+        }
+        
+        public void inc(String... labelValues) {
+            child(labelValues).adder.increment();
+        }
+        
+        public void dec(String... labelValues) {
+            child(labelValues).adder.decrement();
+        }
+        
+        /**
+         * Read a series from a supplier at scrape time
+         * @param supplier Current value
+         * @param labelValues Label values in registration order
+         */
+        public void set(DoubleSupplier supplier, String... labelValues) {
+            child(labelValues).supplier = supplier;
+        }
+        
+        @Override
+        Value newChild() {
+            return new Value();
+        }
+        
+        @Override
+        void writeTo(MetricWriter out) throws IOException {
+            out.header(name, "gauge", help);
+            for (Map.Entry<List<String>, Value> series : children.entrySet()) {
+                Value value = series.getValue();
+                DoubleSupplier supplier = value.supplier;
+                out.sample(name, labelNames, series.getKey(), supplier != null ? supplier.getAsDouble() : value.adder.sum());
+            }
+        }
+        
+        static final class Value {
+            final LongAdder adder = new LongAdder();
+            volatile DoubleSupplier supplier;
+        }
+    }
+    
+    /**
+     * Histogram - Distribution of durations in cumulative buckets, plus their sum and count
+     */
+    public static final class Histogram extends Family<Histogram.Series> {
+        
+        Histogram(String name, String help, String[] labelNames) {
+            super(name, help, labelNames);
+        }
+        
+        /**
+         * Record one duration
+         * @param seconds Observed duration
+         * @param labelValues Label values in registration order
+         */
+        public void observe(double seconds, String... labelValues) {
+            Series series = child(labelValues);
+            int bucket = Arrays.binarySearch(LATENCY_BUCKETS, seconds);
+            if (bucket < 0) {
+                bucket = -bucket - 1;
+            }
+            // The last slot counts observations above the largest bucket
+            series.buckets[bucket].increment();
+            series.sum.add(seconds);
+        }
+        
+        /**
+         * Record the time since a System.nanoTime() reading
+         * @param startNanos Start of the measured operation
+         * @param labelValues Label values in registration order
+         */
+        public void observeSince(long startNanos, String... labelValues) {
+            observe((System.nanoTime() - startNanos) / 1e9, labelValues);
+        }
+        
+        @Override
+        Series newChild() {
+            return new Series();
+        }
+        
+        @Override
+        void writeTo(MetricWriter out) throws IOException {
+            out.header(name, "histogram", help);
+            String[] bucketLabels = Arrays.copyOf(labelNames, labelNames.length + 1);
+            bucketLabels[labelNames.length] = "le";
+            for (Map.Entry<List<String>, Series> entry : children.entrySet()) {
+                List<String> labelValues = entry.getKey();
+                Series series = entry.getValue();
+                String[] bucketValues = labelValues.toArray(new String[labelNames.length + 1]);
+                long cumulative = 0;
+                for (int i = 0; i <= LATENCY_BUCKETS.length; i++) {
+                    cumulative += series.buckets[i].sum();
+                    bucketValues[labelNames.length] = i < LATENCY_BUCKETS.length
+                            ? MetricWriter.formatValue(LATENCY_BUCKETS[i]) : "+Inf";
+                    out.sample(name + "_bucket", bucketLabels, Arrays.asList(bucketValues), cumulative);
+                }
+                out.sample(name + "_sum", labelNames, labelValues, series.sum.sum());
+                out.sample(name + "_count", labelNames, labelValues, cumulative);
+            }
+        }
+        
+        static final class Series {
+            final LongAdder[] buckets = new LongAdder[LATENCY_BUCKETS.length + 1];
+            final DoubleAdder sum = new DoubleAdder();
+            
+            Series() {
+                for (int i = 0; i < buckets.length; i++) {
+                    buckets[i] = new LongAdder();
+                }
+            }
+        }
+    }
+}
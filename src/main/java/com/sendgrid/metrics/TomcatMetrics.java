@@ -0,0 +1,127 @@
+package com.sendgrid.metrics;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Tomcat Metrics - Exports the connector thread pools and request processors that Tomcat registers in JMX.
+ *
+ * The webapp is loaded by its own class loader, so instead of holding references to the objects
+ * EmbeddedTomcatServer configured, the collector reads their MBeans from the platform MBean server on every
+ * scrape: the connector's ThreadPool (threads and connections), a shared Executor such as http-workers
+ * (active threads and queue depth) and the GlobalRequestProcessor (request, error and byte counts). MBeans that
+ * do not exist in the current mode, e.g. the executor when requests run on virtual threads, are simply skipped.
+ * JVM heap and thread counts are added so the pool numbers can be read against them.
+ */
+public class TomcatMetrics implements MetricsRegistry.Collector {
+    
+    private static final Logger logger = LogManager.getLogger(TomcatMetrics.class);
+    
+    private static final String[] NAME = {"name"};
+    
+    private final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    private volatile boolean warned;
+    
+    @Override
+    public void collect(MetricsRegistry.MetricWriter out) throws IOException {
+        try {
+            Set<ObjectName> threadPools = query("*:type=ThreadPool,*");
+            attribute(out, threadPools, "currentThreadCount", "tomcat_threads_current", "gauge",
+                    "Threads in the connector's request pool");
+            attribute(out, threadPools, "currentThreadsBusy", "tomcat_threads_busy", "gauge",
+                    "Connector threads currently processing a request");
+            attribute(out, threadPools, "maxThreads", "tomcat_threads_max", "gauge",
+                    "Maximum threads of the connector's request pool");
+            attribute(out, threadPools, "connectionCount", "tomcat_connections_current", "gauge",
+                    "Open connections on the connector");
+            attribute(out, threadPools, "maxConnections", "tomcat_connections_max", "gauge",
+                    "Maximum connections the connector accepts");
+            
+            Set<ObjectName> executors = query("*:type=Executor,*");
+            attribute(out, executors, "activeCount", "tomcat_executor_active_threads", "gauge",
+                    "Executor threads currently running a task");
+            attribute(out, executors, "poolSize", "tomcat_executor_pool_size", "gauge",
+                    "Threads currently in the executor");
+            attribute(out, executors, "maxThreads", "tomcat_executor_max_threads", "gauge",
+                    "Maximum threads of the executor");
+            attribute(out, executors, "queueSize", "tomcat_executor_queue_size", "gauge",
+                    "Tasks waiting for an executor thread");
+            
+            Set<ObjectName> processors = query("*:type=GlobalRequestProcessor,*");
+            attribute(out, processors, "requestCount", "tomcat_requests_total", "counter",
+                    "Requests processed by the connector");
+            attribute(out, processors, "errorCount", "tomcat_request_errors_total", "counter",
+                    "Requests the connector answered with an error status");
+            attribute(out, processors, "bytesReceived", "tomcat_received_bytes_total", "counter",
+                    "Bytes received by the connector");
+            attribute(out, processors, "bytesSent", "tomcat_sent_bytes_total", "counter",
+                    "Bytes sent by the connector");
+        } catch (JMException ex) {
+            if (!warned) {
+                warned = true;
+                logger.warn("Could not read Tomcat MBeans: {}", ex.getMessage());
+            }
+        }
+        
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        out.header("jvm_memory_heap_used_bytes", "gauge", "Heap memory in use");
+        out.sample("jvm_memory_heap_used_bytes", heap.getUsed());
+        out.header("jvm_memory_heap_max_bytes", "gauge", "Maximum heap memory (-1 if undefined)");
+        out.sample("jvm_memory_heap_max_bytes", heap.getMax());
+        out.header("jvm_threads_live", "gauge", "Live JVM platform threads");
+        out.sample("jvm_threads_live", ManagementFactory.getThreadMXBean().getThreadCount());
+    }
+    
+    private Set<ObjectName> query(String pattern) throws JMException {
+        // Sorted so series are exposed in a stable order
+        return new TreeSet<>(server.queryNames(new ObjectName(pattern), null));
+    }
+    
+    private static String label(ObjectName name) {
+        String value = name.getKeyProperty("name");
+        if (value == null) {
+            return "";
+        }
+        // Connector names are quoted ("http-nio-8080"), executor names are not
+        return value.startsWith("\"") ? ObjectName.unquote(value) : value;
+    }
+    
+    /**
+     * Write one numeric attribute of each MBean as a series labelled with the MBean's name property
+     */
+    private void attribute(MetricsRegistry.MetricWriter out, Set<ObjectName> names, String attribute, String metric,
+            String type, String help) throws IOException {
+        List<String> labels = new ArrayList<>();
+        List<Number> values = new ArrayList<>();
+        for (ObjectName name : names) {
+            Object value;
+            try {
+                value = server.getAttribute(name, attribute);
+            } catch (JMException | RuntimeException ex) {
+                // The MBean was unregistered since the query, or this pool type has no such attribute
+                continue;
+            }
+            if (value instanceof Number) {
+                labels.add(label(name));
+                values.add((Number) value);
+            }
+        }
+        if (values.isEmpty()) {
+            return;
+        }
+        out.header(metric, type, help);
+        for (int i = 0; i < values.size(); i++) {
+            out.sample(metric, NAME, List.of(labels.get(i)), values.get(i).doubleValue());
+        }
+    }
+}
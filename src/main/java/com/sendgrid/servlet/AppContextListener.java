@@ -0,0 +1,164 @@
+package com.sendgrid.servlet;
+
+import java.nio.file.Paths;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+import javax.servlet.annotation.WebListener;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import com.sendgrid.config.ConfigService;
+import com.sendgrid.http.PageSourceCache;
+import com.sendgrid.http.RateLimitScheduler;
+import com.sendgrid.http.UpstreamHttpClient;
+import com.sendgrid.mail.EngagementTracker;
+import com.sendgrid.mail.TemplateMailSender;
+import com.sendgrid.metrics.MetricsRegistry;
+import com.sendgrid.metrics.TomcatMetrics;
+import com.sendgrid.template.CompletionCache;
+import com.sendgrid.template.EmailWrapperRegistry;
+import com.sendgrid.template.TemplateCatalog;
+import com.sendgrid.template.TemplateStore;
+import com.sendgrid.template.TemplateVersionPublisher;
+
+/**
+ * App Context Listener - Creates and tears down application-scoped components shared by the servlets
+ */
+@WebListener
+public class AppContextListener implements ServletContextListener {
+    
+    private static final Logger logger = LogManager.getLogger(AppContextListener.class);
+    
+    @Override
+    public void contextInitialized(ServletContextEvent event) {
+        ServletContext context = event.getServletContext();
+        logger.info("Initializing application components");
+        
+        ConfigService configService = ConfigService.start();
+        context.setAttribute(ConfigService.CONTEXT_ATTRIBUTE, configService);
+        
+        MetricsRegistry metrics = new MetricsRegistry();
+        metrics.addCollector(new TomcatMetrics());
+        context.setAttribute(MetricsRegistry.CONTEXT_ATTRIBUTE, metrics);
+        
+        UpstreamHttpClient upstreamClient = UpstreamHttpClient.fromConfig(configService.get(), metrics);
+        context.setAttribute(UpstreamHttpClient.CONTEXT_ATTRIBUTE, upstreamClient);
+        context.setAttribute(ResponseWriterPool.CONTEXT_ATTRIBUTE,
+                new ResponseWriterPool((int) longParameter(context, "responseWriter.threads", 32)));
+        
+        RateLimitScheduler scheduler = RateLimitScheduler.fromConfig(upstreamClient, configService.get(), metrics);
+        context.setAttribute(RateLimitScheduler.CONTEXT_ATTRIBUTE, scheduler);
+        
+        TemplateStore templateStore = new TemplateStore(Paths.get(configService.get().getTemplateStoreDir()));
+        context.setAttribute(TemplateStore.CONTEXT_ATTRIBUTE, templateStore);
+        
+        TemplateCatalog templateCatalog = new TemplateCatalog(upstreamClient, scheduler, templateStore,
+                longParameter(context, "templateCatalog.ttlSeconds", 60),
+                longParameter(context, "templateCatalog.refreshIntervalSeconds", 300));
+        context.setAttribute(TemplateCatalog.CONTEXT_ATTRIBUTE, templateCatalog);
+        String apiKey = configService.get().getSendGridApiKey();
+        if (apiKey != null) {
+            templateCatalog.preload(apiKey);
+        }
+        
+        context.setAttribute(TemplateVersionPublisher.CONTEXT_ATTRIBUTE, new TemplateVersionPublisher(upstreamClient, scheduler));
+        context.setAttribute(TemplateMailSender.CONTEXT_ATTRIBUTE,
+                new TemplateMailSender(upstreamClient, scheduler, templateStore));
+        
+        EngagementTracker engagementTracker = new EngagementTracker(Paths.get(configService.get().getTemplateStoreDir()),
+                (int) longParameter(context, "engagement.workers", 2),
+                longParameter(context, "engagement.flushIntervalSeconds", 5) * 1000,
+                longParameter(context, "engagement.maxQueuedBytes", 64L * 1024 * 1024));
+        metrics.addCollector(engagementTracker);
+        context.setAttribute(EngagementTracker.CONTEXT_ATTRIBUTE, engagementTracker);
+        
+        context.setAttribute(PageSourceCache.CONTEXT_ATTRIBUTE, new PageSourceCache(upstreamClient,
+                (int) longParameter(context, "pageCache.maxEntries", 256),
+                longParameter(context, "pageCache.maxBytes", 64L * 1024 * 1024),
+                (int) longParameter(context, "pageCache.maxPageBytes", 5L * 1024 * 1024),
+                longParameter(context, "pageCache.defaultTtlSeconds", 300)));
+        
+        context.setAttribute(CompletionCache.CONTEXT_ATTRIBUTE, new CompletionCache(
+                (int) longParameter(context, "aiCache.maxEntries", 100),
+                longParameter(context, "aiCache.ttlSeconds", 600)));
+        
+        context.setAttribute(EmailWrapperRegistry.CONTEXT_ATTRIBUTE,
+                new EmailWrapperRegistry(configService.get().isWrapperReloadEnabled()));
+    }
+    
+    @Override
+    public void contextDestroyed(ServletContextEvent event) {
+        ServletContext context = event.getServletContext();
+        logger.info("Shutting down application components");
+        
+        context.removeAttribute(EmailWrapperRegistry.CONTEXT_ATTRIBUTE);
+        context.removeAttribute(CompletionCache.CONTEXT_ATTRIBUTE);
+        context.removeAttribute(PageSourceCache.CONTEXT_ATTRIBUTE);
+        context.removeAttribute(TemplateMailSender.CONTEXT_ATTRIBUTE);
+        
+        EngagementTracker engagementTracker = (EngagementTracker) context.getAttribute(EngagementTracker.CONTEXT_ATTRIBUTE);
+        if (engagementTracker != null) {
+            engagementTracker.close();
+            context.removeAttribute(EngagementTracker.CONTEXT_ATTRIBUTE);
+        }
+        context.removeAttribute(TemplateVersionPublisher.CONTEXT_ATTRIBUTE);
+        
+        TemplateCatalog templateCatalog = (TemplateCatalog) context.getAttribute(TemplateCatalog.CONTEXT_ATTRIBUTE);
+        if (templateCatalog != null) {
+            templateCatalog.close();
+            context.removeAttribute(TemplateCatalog.CONTEXT_ATTRIBUTE);
+        }
+        
+        TemplateStore templateStore = (TemplateStore) context.getAttribute(TemplateStore.CONTEXT_ATTRIBUTE);
+        if (templateStore != null) {
+            templateStore.close();
+            context.removeAttribute(TemplateStore.CONTEXT_ATTRIBUTE);
+        }
+        
+        RateLimitScheduler scheduler = (RateLimitScheduler) context.getAttribute(RateLimitScheduler.CONTEXT_ATTRIBUTE);
+        if (scheduler != null) {
+            scheduler.close();
+            context.removeAttribute(RateLimitScheduler.CONTEXT_ATTRIBUTE);
+        }
+        
+        ResponseWriterPool writerPool = (ResponseWriterPool) context.getAttribute(ResponseWriterPool.CONTEXT_ATTRIBUTE);
+        if (writerPool != null) {
+            writerPool.close();
+            context.removeAttribute(ResponseWriterPool.CONTEXT_ATTRIBUTE);
+        }
+        
+        UpstreamHttpClient upstreamClient = (UpstreamHttpClient) context.getAttribute(UpstreamHttpClient.CONTEXT_ATTRIBUTE);
+        if (upstreamClient != null) {
+            upstreamClient.close();
+            context.removeAttribute(UpstreamHttpClient.CONTEXT_ATTRIBUTE);
+        }
+        
+        ConfigService configService = (ConfigService) context.getAttribute(ConfigService.CONTEXT_ATTRIBUTE);
+        if (configService != null) {
+            configService.close();
+            context.removeAttribute(ConfigService.CONTEXT_ATTRIBUTE);
+        }
+        
+        context.removeAttribute(MetricsRegistry.CONTEXT_ATTRIBUTE);
+    }
+    
+    /**
+     * Read a numeric context parameter from web.xml
+     * @param context Servlet context
+     * @param name Parameter name
+     * @param defaultValue Value used when the parameter is missing or invalid
+     * @return Parameter value
+     */
+    private long longParameter(ServletContext context, String name, long defaultValue) {
+        String value = context.getInitParameter(name);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            logger.warn("Invalid context parameter {}: {}. Using default: {}", name, value, defaultValue);
+            return defaultValue;
+        }
+    }
+}
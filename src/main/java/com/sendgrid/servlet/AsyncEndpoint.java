@@ -0,0 +1,306 @@
+package com.sendgrid.servlet;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletConfig;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONObject;
+
+/**
+ * Async Endpoint - Concurrency cap and timeout for a servlet that finishes its requests asynchronously.
+ *
+ * Requests over the cap are rejected with 503 instead of queueing behind Tomcat worker threads, and a request
+ * whose upstream call has not answered within the timeout gets a 504. Both limits come from the servlet's
+ * maxConcurrent and asyncTimeoutMs init parameters. The permit is returned when the AsyncContext completes,
+ * however that happens, and a tracked upstream call that is still running at that point is cancelled.
+ *
+ * Responses finished from upstream callbacks are written on the {@link ResponseWriterPool}, never on the
+ * upstream I/O thread that delivered the answer.
+ */
+final class AsyncEndpoint {
+    
+    private static final Logger logger = LogManager.getLogger(AsyncEndpoint.class);
+    
+    private final String name;
+    private final Semaphore permits;
+    private final long timeoutMs;
+    private final Executor writerPool;
+    
+    private AsyncEndpoint(String name, int maxConcurrent, long timeoutMs, Executor writerPool) {
+        this.name = name;
+        this.permits = new Semaphore(maxConcurrent);
+        this.timeoutMs = timeoutMs;
+        this.writerPool = writerPool;
+        logger.info("Async endpoint {} (maxConcurrent={}, timeout={}ms)", name, maxConcurrent, timeoutMs);
+    }
+    
+    /**
+     * Build the limits for a servlet from its init parameters
+     * @param config Servlet configuration
+     * @param defaultMaxConcurrent Cap used when maxConcurrent is not set
+     * @param defaultTimeoutMs Timeout used when asyncTimeoutMs is not set
+     * @return Endpoint limits
+     */
+    static AsyncEndpoint fromConfig(ServletConfig config, int defaultMaxConcurrent, long defaultTimeoutMs) {
+        int maxConcurrent = (int) initParameter(config, "maxConcurrent", defaultMaxConcurrent);
+        long timeoutMs = initParameter(config, "asyncTimeoutMs", defaultTimeoutMs);
+        return new AsyncEndpoint(config.getServletName(), maxConcurrent, timeoutMs,
+                ResponseWriterPool.get(config.getServletContext()));
+    }
+    
+    /**
+     * Put a request into asynchronous mode, or reject it with 503 if the endpoint is at capacity
+     * @param request Current request
+     * @param response Current response
+     * @return Exchange to finish the request with, or null if it was rejected
+     * @throws IOException if the rejection could not be written
+     */
+    Exchange start(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        if (!permits.tryAcquire()) {
+            logger.warn("{} is at capacity, rejecting request", name);
+            response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            writeJson(response, error("Server is busy, please retry shortly", HttpServletResponse.SC_SERVICE_UNAVAILABLE));
+            return null;
+        }
+        
+        AsyncContext asyncContext;
+        try {
+            asyncContext = request.startAsync(request, response);
+        } catch (IllegalStateException ex) {
+            permits.release();
+            throw ex;
+        }
+        asyncContext.setTimeout(timeoutMs);
+        Exchange exchange = new Exchange(asyncContext, writerPool);
+        asyncContext.addListener(new AsyncListener() {
+            @Override
+            public void onComplete(AsyncEvent event) {
+                exchange.onCompleted();
+                permits.release();
+            }
+            
+            @Override
+            public void onTimeout(AsyncEvent event) {
+                logger.warn("{} request timed out after {}ms", name, timeoutMs);
+                if (exchange.claim()) {
+                    HttpServletResponse timedOut = (HttpServletResponse) event.getSuppliedResponse();
+                    timedOut.setStatus(HttpServletResponse.SC_GATEWAY_TIMEOUT);
+                    try {
+                        writeJson(timedOut, error("Upstream request timed out", HttpServletResponse.SC_GATEWAY_TIMEOUT));
+                    } catch (IOException ex) {
+                        logger.warn("Could not write timeout response: {}", ex.getMessage());
+                    }
+                }
+                exchange.complete();
+            }
+            
+            @Override
+            public void onError(AsyncEvent event) {
+                exchange.claim();
+                exchange.complete();
+            }
+            
+            @Override
+            public void onStartAsync(AsyncEvent event) {
+                // Not restarted
+            }
+        });
+        return exchange;
+    }
+    
+    private static String error(String message, int statusCode) {
+        JSONObject jsonResponse = new JSONObject();
+        jsonResponse.put("success", false);
+        jsonResponse.put("error", message);
+        jsonResponse.put("statusCode", statusCode);
+        return jsonResponse.toString();
+    }
+    
+    private static void writeJson(HttpServletResponse response, CharSequence json) throws IOException {
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        PrintWriter out = response.getWriter();
+        out.append(json);
+        out.flush();
+    }
+    
+    private static long initParameter(ServletConfig config, String name, long defaultValue) {
+        String value = config.getInitParameter(name);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            logger.warn("Invalid init-param {} for {}: {}. Using default: {}", name, config.getServletName(), value,
+                    defaultValue);
+            return defaultValue;
+        }
+    }
+    
+    /**
+     * Exchange - One in-flight asynchronous request.
+     *
+     * Whoever claims the exchange first (the upstream callback or the timeout) is the only one allowed to write
+     * the response, so a late upstream answer never interleaves with a timeout error. Writes from callbacks are
+     * queued with {@link #write(Runnable)} and run one at a time, in order, on the response writer pool.
+     */
+    static final class Exchange {
+        
+        private final AsyncContext asyncContext;
+        private final Executor writerPool;
+        private final AtomicBoolean claimed = new AtomicBoolean();
+        private final Queue<Runnable> writes = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean writing = new AtomicBoolean();
+        private volatile CompletableFuture<?> upstreamCall;
+        private volatile boolean completed;
+        
+        private Exchange(AsyncContext asyncContext, Executor writerPool) {
+            this.asyncContext = asyncContext;
+            this.writerPool = writerPool;
+        }
+        
+        /**
+         * Take the right to write the response
+         * @return true if the caller may write, false if the request already timed out or was answered
+         */
+        boolean claim() {
+            return claimed.compareAndSet(false, true);
+        }
+        
+        /**
+         * @return true once someone has taken the right to write the response
+         */
+        boolean isClaimed() {
+            return claimed.get();
+        }
+        
+        /**
+         * Cancel an upstream call if this request completes first (timeout, client disconnect)
+         * @param call Upstream call serving this request
+         */
+        void track(CompletableFuture<?> call) {
+            upstreamCall = call;
+            if (completed) {
+                call.cancel(true);
+            }
+        }
+        
+        /**
+         * @return true once the request has been completed and its response may no longer be written
+         */
+        boolean isCompleted() {
+            return completed;
+        }
+        
+        HttpServletResponse getResponse() {
+            return (HttpServletResponse) asyncContext.getResponse();
+        }
+        
+        /**
+         * Queue a write to the response. Writes run one at a time in the order they were queued, on the response
+         * writer pool, so the calling thread never blocks on the client; a write may block on a slow client, which
+         * only delays the writes queued after it. Writes should check {@link #isCompleted()} first.
+         * @param task Write to run
+         */
+        void write(Runnable task) {
+            writes.add(task);
+            scheduleWrites();
+        }
+        
+        /**
+         * Write a JSON body and complete the request, unless it has already been answered
+         * @param jsonResponse Response envelope
+         */
+        void send(JSONObject jsonResponse) {
+            send(jsonResponse.toString());
+        }
+        
+        /**
+         * Write a pre-serialized JSON body and complete the request, unless it has already been answered
+         * @param json Response envelope
+         */
+        void send(CharSequence json) {
+            write(() -> {
+                if (claim()) {
+                    try {
+                        writeJson(getResponse(), json);
+                    } catch (IOException ex) {
+                        logger.warn("Could not write response: {}", ex.getMessage());
+                    }
+                }
+                complete();
+            });
+        }
+        
+        /**
+         * Complete the request once the writes queued so far have run
+         */
+        void finish() {
+            write(this::complete);
+        }
+        
+        /**
+         * Complete the request now; safe to call more than once
+         */
+        void complete() {
+            completed = true;
+            try {
+                asyncContext.complete();
+            } catch (IllegalStateException ex) {
+                // Already completed by the container (timeout or client disconnect)
+            }
+        }
+        
+        private void scheduleWrites() {
+            if (!writing.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                writerPool.execute(this::runWrites);
+            } catch (RejectedExecutionException ex) {
+                // Shutting down
+                writing.set(false);
+                writes.clear();
+                complete();
+            }
+        }
+        
+        private void runWrites() {
+            Runnable task;
+            while ((task = writes.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException ex) {
+                    // Typically the response was recycled after a timeout or disconnect
+                    logger.warn("Response write failed: {}", ex.getMessage());
+                }
+            }
+            writing.set(false);
+            if (!writes.isEmpty()) {
+                scheduleWrites();
+            }
+        }
+        
+        private void onCompleted() {
+            completed = true;
+            CompletableFuture<?> call = upstreamCall;
+            if (call != null) {
+                call.cancel(true);
+            }
+        }
+    }
+}
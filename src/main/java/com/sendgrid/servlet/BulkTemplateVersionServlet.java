@@ -0,0 +1,243 @@
+package com.sendgrid.servlet;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import com.sendgrid.config.ConfigService;
+import com.sendgrid.template.TemplateCatalog;
+import com.sendgrid.template.TemplateVersionPublisher;
+
+/**
+ * Bulk Template Version Servlet - Creates many template versions in one request.
+ *
+ * The body is a JSON array of version objects or NDJSON (one object per line), using the same fields as
+ * /send-template-code. Versions are published with bounded parallelism and each result is streamed back as an
+ * NDJSON line as soon as it is known, followed by a summary line.
+ */
+@WebServlet(name = "BulkTemplateVersionServlet", urlPatterns = {"/send-template-code/bulk"}, asyncSupported = true)
+public class BulkTemplateVersionServlet extends HttpServlet {
+    
+    private static final Logger logger = LogManager.getLogger(BulkTemplateVersionServlet.class);
+    private static final long serialVersionUID = 1L;
+    
+    private transient ConfigService configService;
+    private transient TemplateVersionPublisher publisher;
+    private transient TemplateCatalog templateCatalog;
+    private transient AsyncEndpoint endpoint;
+    private int maxItems;
+    private int maxBodyChars;
+    private int defaultConcurrency;
+    private int maxConcurrency;
+    
+    @Override
+    public void init() throws ServletException {
+        super.init();
+        configService = ConfigService.get(getServletContext());
+        publisher = TemplateVersionPublisher.get(getServletContext());
+        templateCatalog = TemplateCatalog.get(getServletContext());
+        endpoint = AsyncEndpoint.fromConfig(getServletConfig(), 20, 600000);
+        maxItems = intParameter("maxItems", 1000);
+        maxBodyChars = intParameter("maxBodyChars", 20 * 1024 * 1024);
+        defaultConcurrency = intParameter("defaultConcurrency", 5);
+        maxConcurrency = intParameter("maxConcurrency", 20);
+    }
+    
+    @Override
+    protected void doPost(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        
+        logger.info("BulkTemplateVersionServlet - POST request received");
+        
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        
+        String apiKey = configService.get().getSendGridApiKey();
+        if (apiKey == null || apiKey.trim().isEmpty()) {
+            logger.error("SendGrid API key is not configured");
+            writeError(response, "SendGrid API key is not configured. Please set it in sendgrid.properties file or SENDGRID_API_KEY environment variable.", 0);
+            return;
+        }
+        
+        List<JSONObject> versions;
+        try {
+            versions = readVersions(request);
+        } catch (IllegalArgumentException | JSONException ex) {
+            writeError(response, ex.getMessage(), HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+        if (versions.isEmpty()) {
+            writeError(response, "At least one template version is required", HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+        
+        int concurrency = defaultConcurrency;
+        String concurrencyParam = request.getParameter("concurrency");
+        if (concurrencyParam != null && !concurrencyParam.trim().isEmpty()) {
+            try {
+                concurrency = Integer.parseInt(concurrencyParam.trim());
+            } catch (NumberFormatException e) {
+                writeError(response, "Invalid concurrency: " + concurrencyParam, HttpServletResponse.SC_BAD_REQUEST);
+                return;
+            }
+        }
+        concurrency = Math.max(1, Math.min(concurrency, maxConcurrency));
+        
+        AsyncEndpoint.Exchange exchange = endpoint.start(request, response);
+        if (exchange == null) {
+            return;
+        }
+        // The stream is ours from here on; a timeout just ends it instead of writing a JSON error into it
+        exchange.claim();
+        response.setContentType("application/x-ndjson");
+        response.setCharacterEncoding("UTF-8");
+        PrintWriter out = response.getWriter();
+        
+        logger.info("Publishing {} template version(s), concurrency {}", versions.size(), concurrency);
+        AtomicInteger succeeded = new AtomicInteger();
+        Set<String> changedTemplates = ConcurrentHashMap.newKeySet();
+        CompletableFuture<Void> batch = publisher.publishAll(apiKey, versions, concurrency, result -> {
+            if (result.isSuccess()) {
+                succeeded.incrementAndGet();
+                changedTemplates.add(result.getTemplateId());
+            }
+            exchange.write(() -> {
+                if (exchange.isCompleted()) {
+                    return;
+                }
+                try {
+                    result.writeJson(out);
+                } catch (IOException ex) {
+                    // PrintWriter does not throw; a failed write shows up in checkError() below
+                }
+                out.write('\n');
+                out.flush();
+                if (out.checkError()) {
+                    // Client went away; stop sending further versions
+                    logger.warn("Client disconnected during bulk publish");
+                    exchange.complete();
+                }
+            });
+        });
+        exchange.track(batch);
+        batch.whenComplete((ignored, failure) -> {
+            if (!changedTemplates.isEmpty()) {
+                // Cached templates embed their versions, so refresh the list and the stored templates
+                templateCatalog.refreshTemplates(apiKey, changedTemplates);
+            }
+            if (failure == null) {
+                JSONObject summary = new JSONObject();
+                summary.put("done", true);
+                summary.put("total", versions.size());
+                summary.put("succeeded", succeeded.get());
+                summary.put("failed", versions.size() - succeeded.get());
+                logger.info("Bulk publish finished: {}/{} succeeded", succeeded.get(), versions.size());
+                exchange.write(() -> {
+                    if (!exchange.isCompleted()) {
+                        out.write(summary.toString());
+                        out.write('\n');
+                        out.flush();
+                    }
+                });
+            }
+            exchange.finish();
+        });
+    }
+    
+    /**
+     * Read the version objects from a JSON array or NDJSON body
+     * @param request Current request
+     * @return Version payloads in request order
+     * @throws IOException if the body cannot be read
+     * @throws IllegalArgumentException if the body is too large or has too many items
+     */
+    private List<JSONObject> readVersions(HttpServletRequest request) throws IOException {
+        if (request.getCharacterEncoding() == null) {
+            request.setCharacterEncoding("UTF-8");
+        }
+        StringBuilder body = new StringBuilder();
+        try (BufferedReader reader = request.getReader()) {
+            char[] buffer = new char[8192];
+            int read;
+            while ((read = reader.read(buffer)) != -1) {
+                if (body.length() + read > maxBodyChars) {
+                    throw new IllegalArgumentException("Request body exceeds " + maxBodyChars + " characters");
+                }
+                body.append(buffer, 0, read);
+            }
+        }
+        
+        List<JSONObject> versions = new ArrayList<>();
+        String text = body.toString().trim();
+        if (text.startsWith("[")) {
+            JSONArray array = new JSONArray(text);
+            checkItemCount(array.length());
+            for (int i = 0; i < array.length(); i++) {
+                versions.add(array.getJSONObject(i));
+            }
+            return versions;
+        }
+        
+        int lineNumber = 0;
+        for (String line : text.split("\n")) {
+            lineNumber++;
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+            checkItemCount(versions.size() + 1);
+            try {
+                versions.add(new JSONObject(line));
+            } catch (JSONException ex) {
+                throw new IllegalArgumentException("Invalid JSON on line " + lineNumber + ": " + ex.getMessage());
+            }
+        }
+        return versions;
+    }
+    
+    private void checkItemCount(int count) {
+        if (count > maxItems) {
+            throw new IllegalArgumentException("At most " + maxItems + " template versions can be published per request");
+        }
+    }
+    
+    private static void writeError(HttpServletResponse response, String message, int statusCode) throws IOException {
+        JSONObject jsonResponse = new JSONObject();
+        jsonResponse.put("success", false);
+        jsonResponse.put("error", message);
+        if (statusCode > 0) {
+            response.setStatus(statusCode);
+            jsonResponse.put("statusCode", statusCode);
+        }
+        PrintWriter out = response.getWriter();
+        out.print(jsonResponse.toString());
+        out.flush();
+    }
+    
+    private int intParameter(String name, int defaultValue) {
+        String value = getInitParameter(name);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            logger.warn("Invalid init-param {}: {}. Using default: {}", name, value, defaultValue);
+            return defaultValue;
+        }
+    }
+}
@@ -1,9 +1,13 @@
 package com.sendgrid.servlet;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.PrintWriter;
-import java.util.Properties;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
 import javax.servlet.ServletException;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
@@ -11,21 +15,41 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import com.sendgrid.SendGrid;
-import com.sendgrid.Request;
-import com.sendgrid.Response;
-import com.sendgrid.Method;
 import org.json.JSONObject;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import com.sendgrid.config.ConfigService;
+import com.sendgrid.http.RateLimitScheduler;
+import com.sendgrid.http.UpstreamHttpClient;
+import com.sendgrid.json.ErrorMessages;
+import com.sendgrid.template.TemplateCatalog;
 
 /**
  * Create Template ID Servlet - Handles SendGrid dynamic email template creation
  */
-@WebServlet(name = "CreateTemplateId", urlPatterns = {"/createTemplateId"})
+@WebServlet(name = "CreateTemplateId", urlPatterns = {"/createTemplateId"}, asyncSupported = true)
 public class CreateTemplateId extends HttpServlet {
     
     private static final Logger logger = LogManager.getLogger(CreateTemplateId.class);
     private static final long serialVersionUID = 1L;
+    private static final String TEMPLATES_PATH = "/v3/templates";
+    
+    private transient ConfigService configService;
+    private transient UpstreamHttpClient upstreamClient;
+    private transient RateLimitScheduler scheduler;
+    private transient TemplateCatalog templateCatalog;
+    private transient AsyncEndpoint endpoint;
+    
+    @Override
+    public void init() throws ServletException {
+        super.init();
+        configService = ConfigService.get(getServletContext());
+        upstreamClient = UpstreamHttpClient.get(getServletContext());
+        scheduler = RateLimitScheduler.get(getServletContext());
+        templateCatalog = TemplateCatalog.get(getServletContext());
+        endpoint = AsyncEndpoint.fromConfig(getServletConfig(), 1000, 45000);
+    }
     
     @Override
     protected void doGet(HttpServletRequest request, HttpServletResponse response)
@@ -79,8 +103,8 @@ public class CreateTemplateId extends HttpServlet {
             return;
         }
         
-        // Get API key from properties file or environment variable
-        String apiKey = getApiKey();
+        // Get API key resolved at startup from properties file or environment variable
+        String apiKey = configService.get().getSendGridApiKey();
         
         // Check if API key is set
         if (apiKey == null || apiKey.trim().isEmpty()) {
@@ -92,123 +116,85 @@ public class CreateTemplateId extends HttpServlet {
             return;
         }
         
-        try {
-            // Initialize SendGrid client
-            SendGrid sg = new SendGrid(apiKey);
-            Request sgRequest = new Request();
-            
-            // Set request method and endpoint
-            sgRequest.setMethod(Method.POST);
-            sgRequest.setEndpoint("/templates");
-            
-            // Create request body with user-provided template name
-            JSONObject requestBody = new JSONObject(new HashMap<String, Object>() {
-                {
-                    put("name", normalizedTemplateName);
-                    put("generation", "dynamic");
-                }
-            });
-            
-            sgRequest.setBody(requestBody.toString());
-            
-            logger.info("Sending request to SendGrid API with template name: " + normalizedTemplateName);
-            
-            // Execute API call
-            Response sgResponse = sg.api(sgRequest);
+        // Create request body with user-provided template name
+        JSONObject requestBody = new JSONObject(new HashMap<String, Object>() {
+            {
+                put("name", normalizedTemplateName);
+                put("generation", "dynamic");
+            }
+        });
+        
+        // Same call the SendGrid SDK makes (POST /v3/templates), sent without blocking the request thread
+        HttpRequest httpRequest = upstreamClient.newRequest(upstreamClient.sendGridUrl(TEMPLATES_PATH))
+                .header("Authorization", "Bearer " + apiKey)
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(requestBody.toString(), StandardCharsets.UTF_8))
+                .build();
+        
+        AsyncEndpoint.Exchange exchange = endpoint.start(request, response);
+        if (exchange == null) {
+            return;
+        }
+        
+        logger.info("Sending request to SendGrid API with template name: {}", normalizedTemplateName);
+        
+        CompletableFuture<HttpResponse<String>> call = scheduler.submit(RateLimitScheduler.TEMPLATES, httpRequest,
+                HttpResponse.BodyHandlers.ofString());
+        exchange.track(call);
+        call.whenComplete((httpResponse, failure) -> {
+            if (failure instanceof CancellationException) {
+                // The request already completed (timeout); nothing left to answer
+                exchange.complete();
+                return;
+            }
+            if (failure instanceof IOException) {
+                logger.error("IOException occurred while calling SendGrid API", failure);
+                jsonResponse.put("success", false);
+                jsonResponse.put("error", "Error calling SendGrid API: " + failure.getMessage());
+                exchange.send(jsonResponse);
+                return;
+            }
+            if (failure != null) {
+                logger.error("Unexpected error occurred", failure);
+                jsonResponse.put("success", false);
+                jsonResponse.put("error", "An unexpected error occurred: " + failure.getMessage());
+                exchange.send(jsonResponse);
+                return;
+            }
             
-            int statusCode = sgResponse.getStatusCode();
-            String responseBody = sgResponse.getBody();
-            String responseHeaders = sgResponse.getHeaders().toString();
+            int statusCode = httpResponse.statusCode();
+            String responseBody = httpResponse.body();
             
-            logger.info("SendGrid API Response - Status Code: " + statusCode);
+            logger.info("SendGrid API Response - Status Code: {}", statusCode);
             
             // Check if the response indicates an error
             if (statusCode >= 400) {
-                // Try to parse error message from response body
-                String errorMessage = "SendGrid API error";
-                try {
-                    JSONObject errorJson = new JSONObject(responseBody);
-                    if (errorJson.has("errors")) {
-                        Object errors = errorJson.get("errors");
-                        if (errors instanceof org.json.JSONArray) {
-                            org.json.JSONArray errorsArray = (org.json.JSONArray) errors;
-                            if (errorsArray.length() > 0) {
-                                JSONObject firstError = errorsArray.getJSONObject(0);
-                                if (firstError.has("message")) {
-                                    errorMessage = firstError.getString("message");
-                                } else if (firstError.has("field")) {
-                                    errorMessage = "Error in field '" + firstError.getString("field") + "': " + 
-                                                  (firstError.has("message") ? firstError.getString("message") : "Invalid value");
-                                }
-                            }
-                        }
-                    } else if (errorJson.has("message")) {
-                        errorMessage = errorJson.getString("message");
-                    }
-                } catch (Exception e) {
-                    // If parsing fails, use the raw response body
-                    if (responseBody != null && !responseBody.isEmpty()) {
-                        errorMessage = responseBody;
-                    }
-                }
-                
                 jsonResponse.put("success", false);
-                jsonResponse.put("error", errorMessage);
+                jsonResponse.put("error", ErrorMessages.sendGrid(responseBody));
                 jsonResponse.put("statusCode", statusCode);
                 jsonResponse.put("responseBody", responseBody);
             } else {
-                // Success response
+                // Success response - the cached template list no longer matches SendGrid
+                templateCatalog.invalidate();
                 jsonResponse.put("success", true);
                 jsonResponse.put("templateName", normalizedTemplateName);
                 jsonResponse.put("statusCode", statusCode);
                 jsonResponse.put("responseBody", responseBody);
-                jsonResponse.put("responseHeaders", responseHeaders);
+                jsonResponse.put("responseHeaders", headersToString(httpResponse.headers()));
             }
-            
-        } catch (IOException ex) {
-            logger.error("IOException occurred while calling SendGrid API", ex);
-            jsonResponse.put("success", false);
-            jsonResponse.put("error", "Error calling SendGrid API: " + ex.getMessage());
-        } catch (Exception ex) {
-            logger.error("Unexpected error occurred", ex);
-            jsonResponse.put("success", false);
-            jsonResponse.put("error", "An unexpected error occurred: " + ex.getMessage());
-        }
-        
-        out.print(jsonResponse.toString());
-        out.flush();
+            exchange.send(jsonResponse);
+        });
     }
     
     /**
-     * Get SendGrid API key from properties file or environment variable
-     * @return API key string, or null if not found
+     * Format response headers the way the SendGrid SDK's Response.getHeaders() map prints them
+     * @param headers Upstream response headers
+     * @return Header map as a string
      */
-    private String getApiKey() {
-        // First try to read from properties file
-        try {
-            InputStream inputStream = getClass().getClassLoader().getResourceAsStream("sendgrid.properties");
-            if (inputStream != null) {
-                Properties properties = new Properties();
-                properties.load(inputStream);
-                String apiKey = properties.getProperty("sendgrid.api.key");
-                if (apiKey != null && !apiKey.trim().isEmpty()) {
-                    logger.info("API key loaded from sendgrid.properties file");
-                    return apiKey.trim();
-                }
-                inputStream.close();
-            }
-        } catch (IOException ex) {
-            logger.warn("Could not read sendgrid.properties file: " + ex.getMessage());
-        }
-        
-        // Fall back to environment variable
-        String apiKey = System.getenv("SENDGRID_API_KEY");
-        if (apiKey != null && !apiKey.trim().isEmpty()) {
-            logger.info("API key loaded from SENDGRID_API_KEY environment variable");
-            return apiKey.trim();
-        }
-        
-        return null;
+    private static String headersToString(HttpHeaders headers) {
+        Map<String, String> flattened = new LinkedHashMap<>();
+        headers.map().forEach((name, values) -> flattened.put(name, String.join(", ", values)));
+        return flattened.toString();
     }
 }
 
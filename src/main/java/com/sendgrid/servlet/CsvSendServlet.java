@@ -0,0 +1,392 @@
+package com.sendgrid.servlet;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONObject;
+import com.sendgrid.config.AppConfig;
+import com.sendgrid.helpers.mail.objects.Email;
+import com.sendgrid.mail.CsvReader;
+import com.sendgrid.mail.Recipient;
+import com.sendgrid.mail.TemplateMailSender;
+
+/**
+ * CSV Send Servlet - Sends a dynamic template to the recipients of an uploaded CSV file.
+ *
+ * The upload is multipart/form-data: form fields (or query parameters) with the /send options and column
+ * mapping, followed by the CSV file. The file is parsed straight from the request stream as it arrives, never
+ * stored, and each valid row becomes a recipient whose mapped columns are its dynamic_template_data. Rows are
+ * sent through the same batching as /send, so reading pauses while the batches in flight are at the limit and
+ * memory stays flat whatever the file size. The response streams batch results, rejected rows and periodic
+ * progress lines as NDJSON, followed by a summary line.
+ */
+@WebServlet(name = "CsvSendServlet", urlPatterns = {"/send/csv"}, asyncSupported = true)
+public class CsvSendServlet extends TemplateSendServlet {
+    
+    private static final Logger logger = LogManager.getLogger(CsvSendServlet.class);
+    private static final long serialVersionUID = 1L;
+    
+    private static final String[] EMAIL_COLUMNS = {"email", "e-mail", "email_address", "email address", "to"};
+    private static final int MULTIPART_BUFFER_BYTES = 64 * 1024;
+    private static final int MAX_FORM_FIELDS = 32;
+    private static final int MAX_FORM_FIELD_BYTES = 8 * 1024;
+    
+    private int maxFieldChars;
+    private int maxReportedErrors;
+    private long progressIntervalNanos;
+    
+    public CsvSendServlet() {
+        super(2, 21600000);
+    }
+    
+    @Override
+    public void init() throws ServletException {
+        super.init();
+        maxFieldChars = intParameter("maxFieldChars", 64 * 1024);
+        maxReportedErrors = intParameter("maxReportedErrors", 100);
+        progressIntervalNanos = TimeUnit.MILLISECONDS.toNanos(intParameter("progressIntervalMs", 2000));
+    }
+    
+    @Override
+    protected void doPost(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        
+        logger.info("CsvSendServlet - POST request received");
+        
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        
+        AppConfig config = configService.get();
+        String apiKey = apiKey(config, response);
+        if (apiKey == null) {
+            return;
+        }
+        
+        String boundary = MultipartStream.boundary(request.getContentType());
+        if (boundary == null) {
+            writeError(response, "Upload the recipients as multipart/form-data with a CSV file part",
+                    HttpServletResponse.SC_UNSUPPORTED_MEDIA_TYPE);
+            return;
+        }
+        
+        // Form fields before the file; the file itself is read row by row further down
+        CountingInputStream body = new CountingInputStream(request.getInputStream());
+        MultipartStream multipart = new MultipartStream(body, boundary, MULTIPART_BUFFER_BYTES);
+        Map<String, String> form = new HashMap<>();
+        MultipartStream.Part file = null;
+        try {
+            MultipartStream.Part part;
+            while ((part = multipart.next()) != null) {
+                if (part.getFilename() != null) {
+                    file = part;
+                    break;
+                }
+                if (part.getName() != null) {
+                    if (form.size() >= MAX_FORM_FIELDS) {
+                        throw new IOException("Too many form fields");
+                    }
+                    form.put(part.getName(), part.readString(MAX_FORM_FIELD_BYTES).trim());
+                }
+            }
+        } catch (IOException ex) {
+            writeError(response, "Invalid multipart body: " + ex.getMessage(), HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+        if (file == null) {
+            writeError(response, "A CSV file part is required", HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+        
+        String templateId = setting(form, request, "template_id");
+        if (!checkTemplateId(templateId, response)) {
+            return;
+        }
+        Email from = sender(config, setting(form, request, "from"), setting(form, request, "from_name"), response);
+        if (from == null) {
+            return;
+        }
+        
+        int batchSize;
+        int concurrency;
+        char delimiter;
+        CsvReader csv;
+        Columns columns;
+        try {
+            batchSize = intSetting(form, request, "batch_size", TemplateMailSender.MAX_BATCH_SIZE);
+            concurrency = intSetting(form, request, "concurrency", defaultConcurrency);
+            checkBatchSize(batchSize);
+            delimiter = delimiter(setting(form, request, "delimiter"));
+            csv = new CsvReader(new InputStreamReader(file.getContent(), StandardCharsets.UTF_8), delimiter, maxFieldChars);
+            if (!csv.next()) {
+                throw new IllegalArgumentException("The CSV file is empty");
+            }
+            columns = Columns.fromHeader(csv, setting(form, request, "email_column"), setting(form, request, "name_column"),
+                    setting(form, request, "fields"));
+        } catch (IllegalArgumentException ex) {
+            writeError(response, ex.getMessage(), HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        } catch (IOException ex) {
+            writeError(response, "Error reading upload: " + ex.getMessage(), HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+        
+        Report report = startSend(request, response, apiKey, templateId, from, batchSize, concurrency);
+        if (report == null) {
+            return;
+        }
+        logger.info("Sending template {} to CSV {} (email column {}, {} data field(s))", templateId,
+                file.getFilename(), columns.emailHeader, columns.keys.length);
+        
+        // Read the rows on this thread; adding a recipient blocks while the batches in flight are at the limit
+        long contentLength = request.getContentLengthLong();
+        long rows = 0;
+        long invalid = 0;
+        String inputError = null;
+        long nextProgress = System.nanoTime() + progressIntervalNanos;
+        try {
+            while (csv.next()) {
+                // Checked on every row, so a run of rejected rows still reports progress
+                if (System.nanoTime() - nextProgress >= 0) {
+                    nextProgress = System.nanoTime() + progressIntervalNanos;
+                    JSONObject progress = report.getSend().progress().toJson();
+                    progress.put("progress", true);
+                    progress.put("rows", rows);
+                    progress.put("invalid", invalid);
+                    progress.put("bytesRead", body.getCount());
+                    if (contentLength > 0) {
+                        progress.put("bytesTotal", contentLength);
+                    }
+                    report.line(progress);
+                }
+                rows++;
+                
+                String email = csv.get(columns.emailIndex).trim();
+                if (!Recipient.isValidAddress(email)) {
+                    invalid++;
+                    if (invalid <= maxReportedErrors) {
+                        JSONObject rejected = new JSONObject();
+                        rejected.put("row", csv.getLine());
+                        rejected.put("success", false);
+                        rejected.put("error", email.isEmpty() ? "Email address is required" : "Invalid email address: " + email);
+                        report.line(rejected);
+                    }
+                    continue;
+                }
+                report.getSend().add(columns.recipient(csv, email), csv.getLine());
+            }
+        } catch (IllegalArgumentException ex) {
+            inputError = ex.getMessage();
+            logger.warn("Stopped reading CSV for template {}: {}", templateId, inputError);
+        } catch (IOException ex) {
+            if (report.isCancelled()) {
+                report.abort();
+                return;
+            }
+            inputError = "Error reading upload: " + ex.getMessage();
+            logger.warn("Stopped reading CSV for template {}: {}", templateId, ex.getMessage());
+        }
+        
+        JSONObject counts = new JSONObject();
+        counts.put("rows", rows);
+        counts.put("invalid", invalid);
+        counts.put("bytesRead", body.getCount());
+        if (inputError != null) {
+            // The rest of the file is read but not sent, so the connection ends cleanly after the summary
+            discardRest(body);
+        }
+        report.finish(counts, inputError);
+    }
+    
+    /**
+     * Look up an option in the form fields sent before the file, then in the query string
+     */
+    private static String setting(Map<String, String> form, HttpServletRequest request, String name) {
+        String value = form.get(name);
+        if (value == null || value.isEmpty()) {
+            // Without a multipart config the container reads parameters from the query string only
+            value = request.getParameter(name);
+        }
+        if (value == null || value.trim().isEmpty()) {
+            return null;
+        }
+        return value.trim();
+    }
+    
+    private static int intSetting(Map<String, String> form, HttpServletRequest request, String name, int defaultValue) {
+        String value = setting(form, request, name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + name + ": " + value);
+        }
+    }
+    
+    private static char delimiter(String value) {
+        if (value == null) {
+            return ',';
+        }
+        if (value.equalsIgnoreCase("tab") || value.equals("\\t")) {
+            return '\t';
+        }
+        if (value.length() != 1 || value.charAt(0) == '"') {
+            throw new IllegalArgumentException("Invalid delimiter: " + value);
+        }
+        return value.charAt(0);
+    }
+    
+    /**
+     * Columns - Where the address, name and template data of a recipient are in each row
+     */
+    private static final class Columns {
+        
+        private final String emailHeader;
+        private final int emailIndex;
+        private final int nameIndex;
+        private final String[] keys;
+        private final int[] indexes;
+        
+        private Columns(String emailHeader, int emailIndex, int nameIndex, String[] keys, int[] indexes) {
+            this.emailHeader = emailHeader;
+            this.emailIndex = emailIndex;
+            this.nameIndex = nameIndex;
+            this.keys = keys;
+            this.indexes = indexes;
+        }
+        
+        /**
+         * Resolve the column mapping against the header row
+         * @param header Reader positioned on the header row
+         * @param emailColumn Address column, or null to look for a usual name such as "email"
+         * @param nameColumn Display name column, or null to use a "name" column if there is one
+         * @param fields Template data mapping as "key=Column,key2=Column2" (or just "Column"), or null to map every
+         *               other column under its header name
+         * @return Column mapping
+         * @throws IllegalArgumentException if a named column is not in the header
+         */
+        static Columns fromHeader(CsvReader header, String emailColumn, String nameColumn, String fields) {
+            Map<String, Integer> positions = new HashMap<>();
+            for (int i = 0; i < header.size(); i++) {
+                positions.putIfAbsent(header.get(i).trim().toLowerCase(Locale.ROOT), i);
+            }
+            
+            int emailIndex = -1;
+            if (emailColumn != null) {
+                emailIndex = column(positions, emailColumn);
+            } else {
+                for (String candidate : EMAIL_COLUMNS) {
+                    Integer position = positions.get(candidate);
+                    if (position != null) {
+                        emailIndex = position;
+                        break;
+                    }
+                }
+                if (emailIndex < 0) {
+                    throw new IllegalArgumentException("No email column in the CSV header; set email_column");
+                }
+            }
+            int nameIndex = nameColumn != null ? column(positions, nameColumn) : positions.getOrDefault("name", -1);
+            
+            List<String> keys = new ArrayList<>();
+            List<Integer> indexes = new ArrayList<>();
+            if (fields != null) {
+                for (String mapping : fields.split(",")) {
+                    if (mapping.trim().isEmpty()) {
+                        continue;
+                    }
+                    int equals = mapping.indexOf('=');
+                    String key = (equals >= 0 ? mapping.substring(0, equals) : mapping).trim();
+                    String column = (equals >= 0 ? mapping.substring(equals + 1) : mapping).trim();
+                    if (key.isEmpty()) {
+                        throw new IllegalArgumentException("Invalid fields mapping: " + mapping);
+                    }
+                    keys.add(key);
+                    indexes.add(column(positions, column));
+                }
+            } else {
+                for (int i = 0; i < header.size(); i++) {
+                    String key = header.get(i).trim();
+                    if (i != emailIndex && i != nameIndex && !key.isEmpty()) {
+                        keys.add(key);
+                        indexes.add(i);
+                    }
+                }
+            }
+            return new Columns(header.get(emailIndex).trim(), emailIndex, nameIndex, keys.toArray(new String[0]),
+                    indexes.stream().mapToInt(Integer::intValue).toArray());
+        }
+        
+        private static int column(Map<String, Integer> positions, String name) {
+            Integer position = positions.get(name.trim().toLowerCase(Locale.ROOT));
+            if (position == null) {
+                throw new IllegalArgumentException("Column not found in the CSV header: " + name);
+            }
+            return position;
+        }
+        
+        /**
+         * @return Recipient for the current row; empty cells are left out of the template data
+         */
+        Recipient recipient(CsvReader row, String email) {
+            Map<String, Object> data = new HashMap<>(keys.length * 2);
+            for (int i = 0; i < keys.length; i++) {
+                String value = row.get(indexes[i]);
+                if (!value.isEmpty()) {
+                    data.put(keys[i], value);
+                }
+            }
+            String name = nameIndex >= 0 ? row.get(nameIndex).trim() : "";
+            return new Recipient(email, name.isEmpty() ? null : name, data);
+        }
+    }
+    
+    /**
+     * Counts the bytes read from the request for progress reports
+     */
+    private static final class CountingInputStream extends FilterInputStream {
+        
+        private long count;
+        
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+        
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                count++;
+            }
+            return b;
+        }
+        
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, length);
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
+        
+        long getCount() {
+            return count;
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package com.sendgrid.servlet;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONObject;
+import com.sendgrid.config.AppConfig;
+import com.sendgrid.config.ConfigService;
+import com.sendgrid.mail.EngagementTracker;
+import com.sendgrid.mail.EventWebhookVerifier;
+
+/**
+ * Event Webhook Servlet - Receives SendGrid Event Webhook posts and queues them for the engagement counts.
+ *
+ * The body is read, its signature checked against the configured verification key and the timestamp against
+ * maxAgeSeconds, and the raw bytes handed to the {@link EngagementTracker}; the events are parsed later on
+ * its worker threads, so the request is answered as soon as the body is in. A full queue answers 503, which
+ * SendGrid retries.
+ */
+@WebServlet(name = "EventWebhookServlet", urlPatterns = {"/webhooks/sendgrid"})
+public class EventWebhookServlet extends HttpServlet {
+    
+    private static final Logger logger = LogManager.getLogger(EventWebhookServlet.class);
+    private static final long serialVersionUID = 1L;
+    
+    private transient ConfigService configService;
+    private transient EngagementTracker tracker;
+    // Rebuilt when the configured key changes
+    private transient volatile EventWebhookVerifier verifier;
+    private int maxBodyBytes;
+    private int maxAgeSeconds;
+    
+    @Override
+    public void init() throws ServletException {
+        super.init();
+        configService = ConfigService.get(getServletContext());
+        tracker = EngagementTracker.get(getServletContext());
+        maxBodyBytes = intParameter("maxBodyBytes", 8 * 1024 * 1024);
+        maxAgeSeconds = intParameter("maxAgeSeconds", 600);
+    }
+    
+    @Override
+    protected void doPost(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        
+        AppConfig config = configService.get();
+        EventWebhookVerifier currentVerifier;
+        try {
+            currentVerifier = verifier(config.getWebhookPublicKey());
+        } catch (IllegalArgumentException ex) {
+            logger.error("Event Webhook verification key is invalid: {}", ex.getMessage());
+            writeError(response, "Event Webhook verification key is invalid", HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            return;
+        }
+        if (currentVerifier == null && !config.isWebhookUnsignedAllowed()) {
+            logger.error("Event Webhook verification key is not configured");
+            writeError(response, "Event Webhook verification key is not configured. Please set SENDGRID_WEBHOOK_PUBLIC_KEY, or SENDGRID_WEBHOOK_ALLOW_UNSIGNED=true to accept unsigned posts.",
+                    HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            return;
+        }
+        
+        if (request.getContentLengthLong() > maxBodyBytes) {
+            writeError(response, "Event batch is larger than " + maxBodyBytes + " bytes", HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+            return;
+        }
+        byte[] body = request.getInputStream().readNBytes(maxBodyBytes + 1);
+        if (body.length > maxBodyBytes) {
+            writeError(response, "Event batch is larger than " + maxBodyBytes + " bytes", HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+            return;
+        }
+        if (body.length == 0) {
+            writeError(response, "Event batch is empty", HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+        
+        if (currentVerifier != null) {
+            String timestamp = request.getHeader(EventWebhookVerifier.TIMESTAMP_HEADER);
+            if (!isFresh(timestamp)) {
+                logger.warn("Rejected Event Webhook post with missing or expired timestamp: {}", timestamp);
+                writeError(response, "Missing or expired webhook timestamp", HttpServletResponse.SC_FORBIDDEN);
+                return;
+            }
+            if (!currentVerifier.verify(body, request.getHeader(EventWebhookVerifier.SIGNATURE_HEADER), timestamp)) {
+                logger.warn("Rejected Event Webhook post with an invalid signature ({} bytes)", body.length);
+                writeError(response, "Invalid webhook signature", HttpServletResponse.SC_FORBIDDEN);
+                return;
+            }
+        }
+        
+        if (!tracker.offer(body)) {
+            logger.warn("Event Webhook queue is full, asking SendGrid to retry a post of {} bytes", body.length);
+            response.setHeader("Retry-After", "5");
+            writeError(response, "Event queue is full, retry later", HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            return;
+        }
+        
+        response.setStatus(HttpServletResponse.SC_ACCEPTED);
+        JSONObject jsonResponse = new JSONObject();
+        jsonResponse.put("success", true);
+        jsonResponse.put("statusCode", HttpServletResponse.SC_ACCEPTED);
+        PrintWriter out = response.getWriter();
+        out.print(jsonResponse.toString());
+        out.flush();
+    }
+    
+    /**
+     * @param encodedKey Configured verification key, or null
+     * @return Verifier for the key, or null without one
+     * @throws IllegalArgumentException if the key is invalid
+     */
+    private EventWebhookVerifier verifier(String encodedKey) {
+        if (encodedKey == null) {
+            return null;
+        }
+        EventWebhookVerifier current = verifier;
+        if (current == null || !current.getEncodedKey().equals(encodedKey)) {
+            current = EventWebhookVerifier.fromBase64(encodedKey);
+            verifier = current;
+        }
+        return current;
+    }
+    
+    /**
+     * @param timestamp Timestamp header, in seconds since the epoch
+     * @return true if it is within maxAgeSeconds of now (any timestamp when the limit is 0)
+     */
+    private boolean isFresh(String timestamp) {
+        if (timestamp == null || timestamp.trim().isEmpty()) {
+            return false;
+        }
+        if (maxAgeSeconds <= 0) {
+            return true;
+        }
+        try {
+            long age = System.currentTimeMillis() / 1000 - Long.parseLong(timestamp.trim());
+            return Math.abs(age) <= maxAgeSeconds;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+    
+    private static void writeError(HttpServletResponse response, String message, int statusCode) throws IOException {
+        JSONObject jsonResponse = new JSONObject();
+        jsonResponse.put("success", false);
+        jsonResponse.put("error", message);
+        response.setStatus(statusCode);
+        jsonResponse.put("statusCode", statusCode);
+        PrintWriter out = response.getWriter();
+        out.print(jsonResponse.toString());
+        out.flush();
+    }
+    
+    private int intParameter(String name, int defaultValue) {
+        String value = getInitParameter(name);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            logger.warn("Invalid init-param {}: {}. Using default: {}", name, value, defaultValue);
+            return defaultValue;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com.sendgrid.servlet;
+
+import java.io.IOException;
+import java.util.Set;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import com.sendgrid.metrics.MetricsRegistry;
+
+/**
+ * Metrics Filter - Times every request per servlet, method and response status.
+ *
+ * A request that goes asynchronous is recorded when its AsyncContext completes rather than when the container
+ * thread leaves the filter, so the latency includes the upstream call that answers it.
+ */
+public class MetricsFilter implements Filter {
+    
+    // Tomcat passes any token through as the method, so unknown ones share a label instead of adding series
+    private static final Set<String> METHODS = Set.of("GET", "HEAD", "POST", "PUT", "DELETE", "OPTIONS", "PATCH", "TRACE");
+    
+    private MetricsRegistry.Histogram requestDuration;
+    private MetricsRegistry.Gauge requestsInFlight;
+    
+    @Override
+    public void init(FilterConfig filterConfig) throws ServletException {
+        MetricsRegistry metrics = MetricsRegistry.get(filterConfig.getServletContext());
+        requestDuration = metrics.histogram("http_server_requests_seconds",
+                "Time from receiving a request until its response was completed", "servlet", "method", "status");
+        requestsInFlight = metrics.gauge("http_server_requests_in_flight", "Requests currently being processed", "servlet");
+    }
+    
+    @Override
+    public void doFilter(ServletRequest req, ServletResponse resp, FilterChain chain)
+            throws IOException, ServletException {
+        
+        HttpServletRequest request = (HttpServletRequest) req;
+        HttpServletResponse response = (HttpServletResponse) resp;
+        String servlet = request.getHttpServletMapping().getServletName();
+        String method = METHODS.contains(request.getMethod()) ? request.getMethod() : "OTHER";
+        long started = System.nanoTime();
+        
+        requestsInFlight.inc(servlet);
+        boolean handled = false;
+        try {
+            chain.doFilter(request, response);
+            handled = true;
+        } finally {
+            if (!handled) {
+                // The exception becomes a 500 once the container handles it
+                record(servlet, method, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, started);
+            } else if (request.isAsyncStarted()) {
+                // Tomcat defers completion until this thread has left the filter, so the listener always fires
+                request.getAsyncContext().addListener(new AsyncListener() {
+                    @Override
+                    public void onComplete(AsyncEvent event) {
+                        HttpServletResponse completed = (HttpServletResponse) event.getSuppliedResponse();
+                        record(servlet, method, completed.getStatus(), started);
+                    }
+                    
+                    @Override
+                    public void onTimeout(AsyncEvent event) {
+                        // Recorded in onComplete
+                    }
+                    
+                    @Override
+                    public void onError(AsyncEvent event) {
+                        // Recorded in onComplete
+                    }
+                    
+                    @Override
+                    public void onStartAsync(AsyncEvent event) {
+                        // Not restarted
+                    }
+                });
+            } else {
+                record(servlet, method, response.getStatus(), started);
+            }
+        }
+    }
+    
+    private void record(String servlet, String method, int status, long started) {
+        requestsInFlight.dec(servlet);
+        requestDuration.observeSince(started, servlet, method, Integer.toString(status));
+    }
+}
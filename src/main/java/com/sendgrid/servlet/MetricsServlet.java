@@ -0,0 +1,40 @@
+package com.sendgrid.servlet;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import com.sendgrid.metrics.MetricsRegistry;
+
+/**
+ * Metrics Servlet - Serves request, upstream and Tomcat metrics in the Prometheus text format
+ */
+@WebServlet(name = "MetricsServlet", urlPatterns = {"/metrics"})
+public class MetricsServlet extends HttpServlet {
+    
+    private static final long serialVersionUID = 1L;
+    
+    private transient MetricsRegistry metrics;
+    
+    @Override
+    public void init() throws ServletException {
+        super.init();
+        metrics = MetricsRegistry.get(getServletContext());
+    }
+    
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        
+        response.setContentType("text/plain; version=0.0.4");
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader("Cache-Control", "no-store");
+        
+        PrintWriter out = response.getWriter();
+        metrics.writeTo(out);
+        out.flush();
+    }
+}
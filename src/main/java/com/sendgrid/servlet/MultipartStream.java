@@ -0,0 +1,308 @@
+package com.sendgrid.servlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * Multipart Stream - Reads a multipart/form-data body part by part, straight from the request stream.
+ *
+ * The container's Part API spools each upload to disk before the servlet sees it; this reader instead hands
+ * out each part's content as an InputStream that ends at the next boundary, holding only a fixed buffer. Parts
+ * must be read in order: moving to the next part skips whatever is left of the current one.
+ */
+final class MultipartStream {
+    
+    // Limit on one part's header block, which is all this reader buffers beyond its fixed buffer
+    private static final int MAX_HEADER_BYTES = 16 * 1024;
+    
+    private final InputStream in;
+    private final byte[] delimiter;
+    private final byte[] buffer;
+    private int head;
+    private int tail;
+    private boolean eof;
+    private PartInputStream current;
+    private boolean finished;
+    
+    /**
+     * @param in Request body
+     * @param boundary Boundary from the Content-Type header
+     * @param bufferSize Read buffer size
+     */
+    MultipartStream(InputStream in, String boundary, int bufferSize) {
+        this.in = in;
+        this.delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+        this.buffer = new byte[Math.max(bufferSize, delimiter.length * 4)];
+        // The first boundary may start the body; a leading CRLF lets it match like the others
+        buffer[0] = '\r';
+        buffer[1] = '\n';
+        tail = 2;
+        // Everything before the first boundary is preamble, read as an unnamed part and skipped
+        current = new PartInputStream();
+    }
+    
+    /**
+     * @param contentType Content-Type header of the request
+     * @return Boundary parameter of a multipart/form-data type, or null
+     */
+    static String boundary(String contentType) {
+        if (contentType == null || !contentType.toLowerCase(Locale.ROOT).startsWith("multipart/form-data")) {
+            return null;
+        }
+        for (String parameter : contentType.split(";")) {
+            String trimmed = parameter.trim();
+            if (trimmed.toLowerCase(Locale.ROOT).startsWith("boundary=")) {
+                String boundary = trimmed.substring("boundary=".length());
+                if (boundary.length() > 1 && boundary.startsWith("\"") && boundary.endsWith("\"")) {
+                    boundary = boundary.substring(1, boundary.length() - 1);
+                }
+                return boundary.isEmpty() || boundary.length() > 70 ? null : boundary;
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Move to the next part, skipping the rest of the current one
+     * @return Next part, or null after the closing boundary
+     * @throws IOException if the body cannot be read or is not valid multipart
+     */
+    Part next() throws IOException {
+        if (finished) {
+            return null;
+        }
+        current.skipRest();
+        // After a boundary: "--" closes the body, otherwise optional padding then CRLF starts a part
+        int c = read();
+        if (c == '-') {
+            if (read() != '-') {
+                throw new IOException("Malformed multipart boundary");
+            }
+            finished = true;
+            return null;
+        }
+        while (c == ' ' || c == '\t') {
+            // Transport padding
+            c = read();
+        }
+        if (c != '\r' || read() != '\n') {
+            throw new IOException("Malformed multipart boundary");
+        }
+        
+        String name = null;
+        String filename = null;
+        String contentType = null;
+        for (String header : readHeaders().split("\r\n")) {
+            int colon = header.indexOf(':');
+            if (colon <= 0) {
+                continue;
+            }
+            String headerName = header.substring(0, colon).trim().toLowerCase(Locale.ROOT);
+            String value = header.substring(colon + 1).trim();
+            if (headerName.equals("content-disposition")) {
+                name = dispositionParameter(value, "name");
+                filename = dispositionParameter(value, "filename");
+            } else if (headerName.equals("content-type")) {
+                contentType = value;
+            }
+        }
+        current = new PartInputStream();
+        return new Part(name, filename, contentType, current);
+    }
+    
+    private String readHeaders() throws IOException {
+        ByteArrayOutputStream headers = new ByteArrayOutputStream();
+        int last = 0;
+        while (true) {
+            int c = read();
+            if (c == -1) {
+                throw new EOFException("Multipart body ended inside part headers");
+            }
+            headers.write(c);
+            last = (last << 8) | c;
+            if (headers.size() == 2 && (last & 0xffff) == 0x0d0a) {
+                // No headers, just the blank line
+                return "";
+            }
+            if (last == 0x0d0a0d0a) {
+                String text = headers.toString(StandardCharsets.UTF_8);
+                return text.substring(0, text.length() - 4);
+            }
+            if (headers.size() > MAX_HEADER_BYTES) {
+                throw new IOException("Multipart part headers are too large");
+            }
+        }
+    }
+    
+    private static String dispositionParameter(String disposition, String parameter) {
+        for (String part : disposition.split(";")) {
+            String trimmed = part.trim();
+            int equals = trimmed.indexOf('=');
+            if (equals > 0 && trimmed.substring(0, equals).trim().equalsIgnoreCase(parameter)) {
+                String value = trimmed.substring(equals + 1).trim();
+                if (value.length() > 1 && value.startsWith("\"") && value.endsWith("\"")) {
+                    value = value.substring(1, value.length() - 1);
+                }
+                return value;
+            }
+        }
+        return null;
+    }
+    
+    private int read() throws IOException {
+        if (head == tail && !fill()) {
+            return -1;
+        }
+        return buffer[head++] & 0xff;
+    }
+    
+    /**
+     * Move unread bytes to the front of the buffer and read more after them
+     * @return false if the body has ended and nothing is buffered
+     */
+    private boolean fill() throws IOException {
+        if (head > 0) {
+            System.arraycopy(buffer, head, buffer, 0, tail - head);
+            tail -= head;
+            head = 0;
+        }
+        if (!eof && tail < buffer.length) {
+            int read = in.read(buffer, tail, buffer.length - tail);
+            if (read == -1) {
+                eof = true;
+            } else {
+                tail += read;
+            }
+        }
+        return tail > head;
+    }
+    
+    /**
+     * @param maxStart Last position at which a match is of interest
+     * @return Position of the first delimiter starting between head and maxStart, or -1
+     */
+    private int indexOfDelimiter(int maxStart) {
+        int last = Math.min(tail - delimiter.length, maxStart);
+        byte first = delimiter[0];
+        outer:
+        for (int i = head; i <= last; i++) {
+            if (buffer[i] != first) {
+                continue;
+            }
+            for (int j = 1; j < delimiter.length; j++) {
+                if (buffer[i + j] != delimiter[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+    
+    /**
+     * Part - One part of the body; its content can be read until the next part is requested
+     */
+    static final class Part {
+        
+        private final String name;
+        private final String filename;
+        private final String contentType;
+        private final InputStream content;
+        
+        Part(String name, String filename, String contentType, InputStream content) {
+            this.name = name;
+            this.filename = filename;
+            this.contentType = contentType;
+            this.content = content;
+        }
+        
+        String getName() {
+            return name;
+        }
+        
+        /**
+         * @return File name of an uploaded file, or null for a plain form field
+         */
+        String getFilename() {
+            return filename;
+        }
+        
+        String getContentType() {
+            return contentType;
+        }
+        
+        InputStream getContent() {
+            return content;
+        }
+        
+        /**
+         * Read a form field's value
+         * @param maxBytes Longest value accepted
+         * @return Value decoded as UTF-8
+         * @throws IOException if the value cannot be read or is too long
+         */
+        String readString(int maxBytes) throws IOException {
+            byte[] value = content.readNBytes(maxBytes + 1);
+            if (value.length > maxBytes) {
+                throw new IOException("Form field " + name + " is longer than " + maxBytes + " bytes");
+            }
+            return new String(value, StandardCharsets.UTF_8);
+        }
+    }
+    
+    /**
+     * Content of the current part: the bytes up to the next delimiter
+     */
+    private final class PartInputStream extends InputStream {
+        
+        private boolean done;
+        
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+        }
+        
+        @Override
+        public int read(byte[] target, int offset, int length) throws IOException {
+            if (done || current != this) {
+                return -1;
+            }
+            if (length == 0) {
+                return 0;
+            }
+            while (true) {
+                // Only the bytes this call can return need to be searched
+                int delimiterAt = indexOfDelimiter(head + length);
+                // Without a match, the last bytes could still be the start of a delimiter split across reads
+                int available = delimiterAt >= 0 ? delimiterAt - head : tail - head - (delimiter.length - 1);
+                if (available > 0) {
+                    int count = Math.min(length, available);
+                    System.arraycopy(buffer, head, target, offset, count);
+                    head += count;
+                    return count;
+                }
+                if (delimiterAt == head) {
+                    head += delimiter.length;
+                    done = true;
+                    return -1;
+                }
+                if (eof) {
+                    throw new EOFException("Multipart body ended before its closing boundary");
+                }
+                fill();
+            }
+        }
+        
+        void skipRest() throws IOException {
+            byte[] skip = new byte[8192];
+            while (read(skip, 0, skip.length) != -1) {
+                // Discard
+            }
+        }
+    }
+}
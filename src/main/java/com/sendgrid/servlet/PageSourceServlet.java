@@ -2,10 +2,10 @@ package com.sendgrid.servlet;
 
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.net.URI;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import javax.servlet.ServletException;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
@@ -14,16 +14,27 @@ import javax.servlet.http.HttpServletResponse;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.json.JSONObject;
+import com.sendgrid.http.PageSourceCache;
 
 /**
- * Page Source Servlet - Fetches HTML source from a given URL
+ * Page Source Servlet - Fetches HTML source from a given URL, served from the shared page cache when possible
  */
-@WebServlet(name = "PageSourceServlet", urlPatterns = {"/page-source"})
+@WebServlet(name = "PageSourceServlet", urlPatterns = {"/page-source"}, asyncSupported = true)
 public class PageSourceServlet extends HttpServlet {
     
     private static final Logger logger = LogManager.getLogger(PageSourceServlet.class);
     private static final long serialVersionUID = 1L;
     
+    private transient PageSourceCache pageCache;
+    private transient AsyncEndpoint endpoint;
+    
+    @Override
+    public void init() throws ServletException {
+        super.init();
+        pageCache = PageSourceCache.get(getServletContext());
+        endpoint = AsyncEndpoint.fromConfig(getServletConfig(), 500, 15000);
+    }
+    
     @Override
     protected void doGet(HttpServletRequest request, HttpServletResponse response)
             throws ServletException, IOException {
@@ -44,48 +55,81 @@ public class PageSourceServlet extends HttpServlet {
             return;
         }
         
+        URI uri;
         try {
             // Validate URL
-            URL url = new URL(pageUrl.trim());
-            
-            logger.info("Fetching page source from: " + pageUrl);
-            
-            // Open connection
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-            connection.setRequestMethod("GET");
-            connection.setRequestProperty("User-Agent", "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36");
-            connection.setConnectTimeout(10000); // 10 seconds
-            connection.setReadTimeout(10000); // 10 seconds
-            
-            int statusCode = connection.getResponseCode();
-            
-            if (statusCode >= 200 && statusCode < 300) {
-                // Read the HTML content
-                BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream()));
-                StringBuilder htmlContent = new StringBuilder();
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    htmlContent.append(line).append("\n");
-                }
-                reader.close();
-                
-                jsonResponse.put("success", true);
-                jsonResponse.put("html_content", htmlContent.toString());
-                jsonResponse.put("statusCode", statusCode);
-            } else {
-                jsonResponse.put("success", false);
-                jsonResponse.put("error", "Failed to fetch page. HTTP Status: " + statusCode);
-                jsonResponse.put("statusCode", statusCode);
+            uri = new URI(pageUrl.trim());
+            if (!"http".equalsIgnoreCase(uri.getScheme()) && !"https".equalsIgnoreCase(uri.getScheme())) {
+                throw new IllegalArgumentException("Only http and https URLs are supported");
+            }
+            if (uri.getHost() == null) {
+                throw new IllegalArgumentException("URL has no host");
             }
-            
         } catch (Exception ex) {
-            logger.error("Error fetching page source: " + ex.getMessage(), ex);
+            logger.error("Error fetching page source: {}", ex.getMessage(), ex);
             jsonResponse.put("success", false);
             jsonResponse.put("error", "Error fetching page source: " + ex.getMessage());
+            out.print(jsonResponse.toString());
+            out.flush();
+            return;
         }
         
-        out.print(jsonResponse.toString());
-        out.flush();
+        CompletableFuture<PageSourceCache.Page> call = pageCache.fetch(uri);
+        if (call.isDone()) {
+            // Fresh cache hit: answer on the request thread without going asynchronous
+            writePage(call.join(), jsonResponse);
+            out.print(jsonResponse.toString());
+            out.flush();
+            return;
+        }
+        
+        AsyncEndpoint.Exchange exchange = endpoint.start(request, response);
+        if (exchange == null) {
+            call.cancel(false);
+            return;
+        }
+        
+        logger.info("Fetching page source from: {}", pageUrl);
+        exchange.track(call);
+        call.whenComplete((page, failure) -> {
+            if (failure instanceof CancellationException) {
+                // The request already completed (timeout); nothing left to answer
+                exchange.complete();
+                return;
+            }
+            if (failure instanceof CompletionException && failure.getCause() != null) {
+                failure = failure.getCause();
+            }
+            if (failure != null) {
+                logger.error("Error fetching page source: {}", failure.getMessage(), failure);
+                jsonResponse.put("success", false);
+                jsonResponse.put("error", "Error fetching page source: " + failure.getMessage());
+                exchange.send(jsonResponse);
+                return;
+            }
+            
+            writePage(page, jsonResponse);
+            exchange.send(jsonResponse);
+        });
+    }
+    
+    /**
+     * Fill the response envelope from a fetched or cached page
+     * @param page Page from the cache
+     * @param jsonResponse Response envelope
+     */
+    private void writePage(PageSourceCache.Page page, JSONObject jsonResponse) {
+        int statusCode = page.getStatusCode();
+        if (page.getBody() != null) {
+            jsonResponse.put("success", true);
+            jsonResponse.put("html_content", page.getBody());
+            jsonResponse.put("statusCode", statusCode);
+            jsonResponse.put("cache", page.getCacheStatus().name());
+        } else {
+            jsonResponse.put("success", false);
+            jsonResponse.put("error", "Failed to fetch page. HTTP Status: " + statusCode);
+            jsonResponse.put("statusCode", statusCode);
+        }
     }
 }
 
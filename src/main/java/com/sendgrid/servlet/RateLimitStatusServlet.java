@@ -0,0 +1,45 @@
+package com.sendgrid.servlet;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.json.JSONObject;
+import com.sendgrid.http.RateLimitScheduler;
+
+/**
+ * Rate Limit Status Servlet - Reports the SendGrid rate-limit budget and queue depth per endpoint family
+ */
+@WebServlet(name = "RateLimitStatusServlet", urlPatterns = {"/rate-limits"})
+public class RateLimitStatusServlet extends HttpServlet {
+    
+    private static final long serialVersionUID = 1L;
+    
+    private transient RateLimitScheduler scheduler;
+    
+    @Override
+    public void init() throws ServletException {
+        super.init();
+        scheduler = RateLimitScheduler.get(getServletContext());
+    }
+    
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader("Cache-Control", "no-store");
+        
+        JSONObject jsonResponse = new JSONObject();
+        jsonResponse.put("success", true);
+        jsonResponse.put("data", scheduler.status());
+        
+        PrintWriter out = response.getWriter();
+        out.print(jsonResponse.toString());
+        out.flush();
+    }
+}
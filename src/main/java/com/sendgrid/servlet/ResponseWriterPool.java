@@ -0,0 +1,74 @@
+package com.sendgrid.servlet;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.servlet.ServletContext;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Response Writer Pool - Threads that write asynchronous responses to the clients.
+ *
+ * Upstream answers arrive on the shared upstream I/O threads, and a blocking write to a slow or stalled browser
+ * would hold one of them until the socket drains, delaying every other upstream call in the application. Async
+ * requests therefore hand their response writes to this pool (see {@link AsyncEndpoint.Exchange#write}), where
+ * a slow client only delays its own writes. Idle threads time out, so the pool is empty between bursts.
+ */
+public class ResponseWriterPool implements Executor {
+    
+    private static final Logger logger = LogManager.getLogger(ResponseWriterPool.class);
+    
+    /** Servlet context attribute under which the shared instance is stored */
+    public static final String CONTEXT_ATTRIBUTE = ResponseWriterPool.class.getName();
+    
+    private static final long IDLE_SECONDS = 60;
+    
+    private final ThreadPoolExecutor executor;
+    
+    /**
+     * @param threads Most threads writing at once; further writes wait in a queue
+     */
+    public ResponseWriterPool(int threads) {
+        int size = Math.max(1, threads);
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(size, size, IDLE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "response-writer-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        executor.allowCoreThreadTimeOut(true);
+        logger.info("Response writer pool initialized (threads={})", size);
+    }
+    
+    /**
+     * Get the shared pool for a web application
+     * @param context Servlet context the pool was registered in
+     * @return Shared pool instance
+     */
+    public static ResponseWriterPool get(ServletContext context) {
+        ResponseWriterPool pool = (ResponseWriterPool) context.getAttribute(CONTEXT_ATTRIBUTE);
+        if (pool == null) {
+            throw new IllegalStateException("ResponseWriterPool has not been initialized for this web application");
+        }
+        return pool;
+    }
+    
+    /**
+     * @throws java.util.concurrent.RejectedExecutionException once the pool is closed
+     */
+    @Override
+    public void execute(Runnable task) {
+        executor.execute(task);
+    }
+    
+    /**
+     * Stop the threads; writes still queued are dropped
+     */
+    public void close() {
+        executor.shutdownNow();
+    }
+}
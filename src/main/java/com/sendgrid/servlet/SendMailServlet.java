@@ -0,0 +1,168 @@
+package com.sendgrid.servlet;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+import com.sendgrid.config.AppConfig;
+import com.sendgrid.helpers.mail.objects.Email;
+import com.sendgrid.mail.Recipient;
+import com.sendgrid.mail.TemplateMailSender;
+
+/**
+ * Send Mail Servlet - Sends a dynamic template to a list of recipients.
+ *
+ * The template, sender and batching options are query parameters; the body is the recipient list, as a JSON
+ * array or NDJSON of {"to", "name", "dynamic_template_data"} objects. The body is parsed as it arrives and
+ * recipients are sent in batches of up to 1000 while the rest is still being read, so a send of any size holds
+ * only the batches in flight. Each batch result, and each recipient rejected by validation, is streamed back as
+ * an NDJSON line, followed by a summary line.
+ */
+@WebServlet(name = "SendMailServlet", urlPatterns = {"/send"}, asyncSupported = true)
+public class SendMailServlet extends TemplateSendServlet {
+    
+    private static final Logger logger = LogManager.getLogger(SendMailServlet.class);
+    private static final long serialVersionUID = 1L;
+    
+    public SendMailServlet() {
+        super(4, 3600000);
+    }
+    
+    @Override
+    protected void doPost(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        
+        logger.info("SendMailServlet - POST request received");
+        
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        
+        AppConfig config = configService.get();
+        String apiKey = apiKey(config, response);
+        if (apiKey == null) {
+            return;
+        }
+        
+        String contentType = request.getContentType();
+        if (contentType != null && contentType.toLowerCase(Locale.ROOT).startsWith("application/x-www-form-urlencoded")) {
+            // Reading a parameter would consume a form body as parameters
+            writeError(response, "Send the recipients as a JSON array or NDJSON body", HttpServletResponse.SC_UNSUPPORTED_MEDIA_TYPE);
+            return;
+        }
+        
+        String templateId = trimmed(request.getParameter("template_id"));
+        if (!checkTemplateId(templateId, response)) {
+            return;
+        }
+        Email from = sender(config, trimmed(request.getParameter("from")), trimmed(request.getParameter("from_name")), response);
+        if (from == null) {
+            return;
+        }
+        
+        int batchSize;
+        int concurrency;
+        try {
+            batchSize = intRequestParameter(request, "batch_size", TemplateMailSender.MAX_BATCH_SIZE);
+            concurrency = intRequestParameter(request, "concurrency", defaultConcurrency);
+            checkBatchSize(batchSize);
+        } catch (IllegalArgumentException ex) {
+            writeError(response, ex.getMessage(), HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+        
+        if (request.getCharacterEncoding() == null) {
+            request.setCharacterEncoding("UTF-8");
+        }
+        Report report = startSend(request, response, apiKey, templateId, from, batchSize, concurrency);
+        if (report == null) {
+            return;
+        }
+        
+        // Read the body on this thread; adding a recipient blocks while the batches in flight are at the limit
+        Reader reader = request.getReader();
+        AtomicLong invalid = new AtomicLong();
+        String inputError = null;
+        try {
+            readRecipients(reader, report, invalid);
+        } catch (JSONException | IllegalArgumentException ex) {
+            inputError = ex.getMessage();
+            logger.warn("Stopped reading recipients for template {}: {}", templateId, inputError);
+            discardRest(reader);
+        } catch (IOException ex) {
+            if (report.isCancelled()) {
+                report.abort();
+                return;
+            }
+            inputError = "Error reading request body: " + ex.getMessage();
+            logger.warn("Stopped reading recipients for template {}: {}", templateId, ex.getMessage());
+        }
+        
+        JSONObject counts = new JSONObject();
+        counts.put("invalid", invalid.get());
+        report.finish(counts, inputError);
+    }
+    
+    /**
+     * Parse recipients from a JSON array or NDJSON body as it is read, adding each valid one to the send
+     * @throws IOException if the body cannot be read or the send was cancelled
+     * @throws JSONException if the body is not valid JSON
+     */
+    private static void readRecipients(Reader reader, Report report, AtomicLong invalid) throws IOException {
+        JSONTokener tokener = new JSONTokener(reader);
+        char first = tokener.nextClean();
+        boolean array = first == '[';
+        if (!array && first != 0) {
+            tokener.back();
+        }
+        long position = 0;
+        while (true) {
+            char next = tokener.nextClean();
+            if (next == 0 || (array && next == ']')) {
+                break;
+            }
+            if (array && position > 0) {
+                if (next != ',') {
+                    throw tokener.syntaxError("Expected ',' or ']' after recipient " + (position - 1));
+                }
+                tokener.nextClean();
+            }
+            tokener.back();
+            Object value = tokener.nextValue();
+            if (!(value instanceof JSONObject)) {
+                throw new IllegalArgumentException("Recipient " + position + " is not a JSON object");
+            }
+            try {
+                report.getSend().add(Recipient.fromJson((JSONObject) value), position);
+            } catch (IllegalArgumentException ex) {
+                invalid.incrementAndGet();
+                JSONObject rejected = new JSONObject();
+                rejected.put("recipient", position);
+                rejected.put("success", false);
+                rejected.put("error", ex.getMessage());
+                report.line(rejected);
+            }
+            position++;
+        }
+    }
+    
+    private static int intRequestParameter(HttpServletRequest request, String name, int defaultValue) {
+        String value = trimmed(request.getParameter(name));
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + name + ": " + value);
+        }
+    }
+}
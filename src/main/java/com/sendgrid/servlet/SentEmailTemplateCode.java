@@ -2,12 +2,12 @@ package com.sendgrid.servlet;
 
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.io.InputStream;
-import java.util.Properties;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
 import javax.servlet.ServletException;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
@@ -16,16 +16,40 @@ import javax.servlet.http.HttpServletResponse;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.json.JSONObject;
+import com.sendgrid.config.ConfigService;
+import com.sendgrid.http.RateLimitScheduler;
+import com.sendgrid.json.ErrorMessages;
+import com.sendgrid.json.JsonRelay;
+import com.sendgrid.logging.PayloadLog;
+import com.sendgrid.http.UpstreamHttpClient;
+import com.sendgrid.template.TemplateCatalog;
+import com.sendgrid.template.TemplateIds;
 
 /**
  * Send Email Template Code Servlet - Handles creating template versions in SendGrid
  */
-@WebServlet(name = "SentEmailTemplateCode", urlPatterns = {"/send-template-code"})
+@WebServlet(name = "SentEmailTemplateCode", urlPatterns = {"/send-template-code"}, asyncSupported = true)
 public class SentEmailTemplateCode extends HttpServlet {
     
     private static final Logger logger = LogManager.getLogger(SentEmailTemplateCode.class);
     private static final long serialVersionUID = 1L;
     
+    private transient ConfigService configService;
+    private transient UpstreamHttpClient upstreamClient;
+    private transient RateLimitScheduler scheduler;
+    private transient TemplateCatalog templateCatalog;
+    private transient AsyncEndpoint endpoint;
+    
+    @Override
+    public void init() throws ServletException {
+        super.init();
+        configService = ConfigService.get(getServletContext());
+        upstreamClient = UpstreamHttpClient.get(getServletContext());
+        scheduler = RateLimitScheduler.get(getServletContext());
+        templateCatalog = TemplateCatalog.get(getServletContext());
+        endpoint = AsyncEndpoint.fromConfig(getServletConfig(), 1000, 45000);
+    }
+    
     @Override
     protected void doGet(HttpServletRequest request, HttpServletResponse response)
             throws ServletException, IOException {
@@ -64,6 +88,14 @@ public class SentEmailTemplateCode extends HttpServlet {
             out.flush();
             return;
         }
+        if (!TemplateIds.isValid(templateId.trim())) {
+            // The ID becomes part of the request path
+            jsonResponse.put("success", false);
+            jsonResponse.put("error", "Invalid template ID");
+            out.print(jsonResponse.toString());
+            out.flush();
+            return;
+        }
         
         if (name == null || name.trim().isEmpty()) {
             jsonResponse.put("success", false);
@@ -74,7 +106,7 @@ public class SentEmailTemplateCode extends HttpServlet {
         }
         
         // Get API key
-        String apiKey = getApiKey();
+        String apiKey = configService.get().getSendGridApiKey();
         if (apiKey == null || apiKey.trim().isEmpty()) {
             logger.error("SendGrid API key is not configured");
             jsonResponse.put("success", false);
@@ -84,151 +116,136 @@ public class SentEmailTemplateCode extends HttpServlet {
             return;
         }
         
+        HttpRequest httpRequest;
+        String apiUrl = upstreamClient.sendGridUrl("/v3/templates/" + templateId.trim() + "/versions");
         try {
-            // Build request body
-            JSONObject requestBody = new JSONObject();
-            requestBody.put("template_id", templateId.trim());
-            requestBody.put("active", active != null && !active.trim().isEmpty() ? Integer.parseInt(active) : 1);
-            requestBody.put("name", name.trim());
-            requestBody.put("html_content", htmlContent != null ? htmlContent : "<!doctype><html><body></body></html>");
-            requestBody.put("generate_plain_content", generatePlainContent != null && 
-                          (generatePlainContent.equals("true") || generatePlainContent.equals("1")));
-            requestBody.put("subject", subject != null ? subject : "");
-            if (updatedAt != null && !updatedAt.trim().isEmpty()) {
-                requestBody.put("updated_at", updatedAt.trim());
-            }
-            requestBody.put("editor", editor != null ? editor : "code");
+            JSONObject requestBody = buildRequestBody(templateId, active, name, htmlContent, generatePlainContent,
+                    subject, updatedAt, editor);
             
             // Make POST request to SendGrid API
-            String apiUrl = "https://api.sendgrid.com/v3/templates/" + templateId.trim() + "/versions";
-            URL url = new URL(apiUrl);
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-            connection.setRequestMethod("POST");
-            connection.setRequestProperty("Authorization", "Bearer " + apiKey);
-            connection.setRequestProperty("Content-Type", "application/json");
-            connection.setDoOutput(true);
-            
-            // Write request body
-            connection.getOutputStream().write(requestBody.toString().getBytes("UTF-8"));
-            
-            logger.info("Sending request to SendGrid API: " + apiUrl);
-            logger.info("Request body: " + requestBody.toString());
+            httpRequest = upstreamClient.newRequest(apiUrl)
+                    .header("Authorization", "Bearer " + apiKey)
+                    .header("Content-Type", "application/json")
+                    .POST(HttpRequest.BodyPublishers.ofString(requestBody.toString(), StandardCharsets.UTF_8))
+                    .build();
             
-            int statusCode = connection.getResponseCode();
-            String responseBody;
-            
-            if (statusCode >= 200 && statusCode < 300) {
-                BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream()));
-                StringBuilder responseBuilder = new StringBuilder();
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    responseBuilder.append(line);
-                }
-                reader.close();
-                responseBody = responseBuilder.toString();
+            logger.info("Sending request to SendGrid API: {}", apiUrl);
+            PayloadLog.log("SendGrid request body", requestBody);
+        } catch (Exception ex) {
+            logger.error("Unexpected error occurred", ex);
+            jsonResponse.put("success", false);
+            jsonResponse.put("error", "An unexpected error occurred: " + ex.getMessage());
+            out.print(jsonResponse.toString());
+            out.flush();
+            return;
+        }
+        
+        AsyncEndpoint.Exchange exchange = endpoint.start(request, response);
+        if (exchange == null) {
+            return;
+        }
+        
+        // A created version echoes its html_content; relay it into the envelope instead of parsing and re-serializing
+        HttpResponse.BodyHandler<String> bodyHandler = responseInfo -> {
+            int statusCode = responseInfo.statusCode();
+            if (statusCode >= 400 || !JsonRelay.isJson(responseInfo.headers())) {
+                return HttpResponse.BodySubscribers.ofString(StandardCharsets.UTF_8);
+            }
+            if (!exchange.claim()) {
+                // Already timed out; drop the body
+                return HttpResponse.BodySubscribers.replacing(null);
+            }
+            return new JsonRelay(out, exchange::write, "{\"success\":true,\"statusCode\":" + statusCode + ",\"data\":", "}");
+        };
+        
+        CompletableFuture<HttpResponse<String>> call = scheduler.submit(RateLimitScheduler.VERSIONS, httpRequest, bodyHandler);
+        exchange.track(call);
+        call.whenComplete((httpResponse, failure) -> {
+            if (failure instanceof CancellationException) {
+                // The request already completed (timeout); nothing left to answer
+                exchange.complete();
+                return;
+            }
+            if (failure != null && exchange.isClaimed()) {
+                // The relayed body was cut off; the partial response cannot be repaired
+                logger.error("Relaying SendGrid response failed: {}", failure.getMessage());
+                exchange.finish();
+                return;
+            }
+            if (failure instanceof IOException) {
+                logger.error("IOException occurred while calling SendGrid API", failure);
+                jsonResponse.put("success", false);
+                jsonResponse.put("error", "Error calling SendGrid API: " + failure.getMessage());
+            } else if (failure != null) {
+                logger.error("Unexpected error occurred", failure);
+                jsonResponse.put("success", false);
+                jsonResponse.put("error", "An unexpected error occurred: " + failure.getMessage());
             } else {
-                BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getErrorStream()));
-                StringBuilder responseBuilder = new StringBuilder();
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    responseBuilder.append(line);
+                int statusCode = httpResponse.statusCode();
+                String responseBody = httpResponse.body();
+                
+                logger.info("SendGrid API Response - Status Code: {}", statusCode);
+                if (statusCode < 400) {
+                    // Cached templates embed their versions, so refresh the list and the stored template
+                    templateCatalog.refreshTemplates(apiKey, List.of(templateId.trim()));
                 }
-                reader.close();
-                responseBody = responseBuilder.toString();
-            }
-            
-            logger.info("SendGrid API Response - Status Code: " + statusCode);
-            
-            // Check if the response indicates an error
-            if (statusCode >= 400) {
-                String errorMessage = "SendGrid API error";
-                try {
-                    JSONObject errorJson = new JSONObject(responseBody);
-                    if (errorJson.has("errors")) {
-                        Object errors = errorJson.get("errors");
-                        if (errors instanceof org.json.JSONArray) {
-                            org.json.JSONArray errorsArray = (org.json.JSONArray) errors;
-                            if (errorsArray.length() > 0) {
-                                JSONObject firstError = errorsArray.getJSONObject(0);
-                                if (firstError.has("message")) {
-                                    errorMessage = firstError.getString("message");
-                                } else if (firstError.has("field")) {
-                                    errorMessage = "Error in field '" + firstError.getString("field") + "': " + 
-                                                  (firstError.has("message") ? firstError.getString("message") : "Invalid value");
-                                }
-                            }
-                        }
-                    } else if (errorJson.has("message")) {
-                        errorMessage = errorJson.getString("message");
-                    }
-                } catch (Exception e) {
-                    if (responseBody != null && !responseBody.isEmpty()) {
-                        errorMessage = responseBody;
-                    }
+                if (exchange.isClaimed()) {
+                    // Relayed straight to the client
+                    exchange.finish();
+                    return;
                 }
                 
-                jsonResponse.put("success", false);
-                jsonResponse.put("error", errorMessage);
-                jsonResponse.put("statusCode", statusCode);
-                jsonResponse.put("responseBody", responseBody);
-            } else {
-                // Success response
-                try {
-                    JSONObject sendGridResponse = new JSONObject(responseBody);
-                    jsonResponse.put("success", true);
-                    jsonResponse.put("statusCode", statusCode);
-                    jsonResponse.put("data", sendGridResponse);
-                } catch (Exception e) {
-                    jsonResponse.put("success", true);
+                // Check if the response indicates an error
+                if (statusCode >= 400) {
+                    jsonResponse.put("success", false);
+                    jsonResponse.put("error", ErrorMessages.sendGrid(responseBody));
                     jsonResponse.put("statusCode", statusCode);
                     jsonResponse.put("responseBody", responseBody);
+                } else {
+                    // Success without a JSON body
+                    try {
+                        JSONObject sendGridResponse = new JSONObject(responseBody);
+                        jsonResponse.put("success", true);
+                        jsonResponse.put("statusCode", statusCode);
+                        jsonResponse.put("data", sendGridResponse);
+                    } catch (Exception e) {
+                        jsonResponse.put("success", true);
+                        jsonResponse.put("statusCode", statusCode);
+                        jsonResponse.put("responseBody", responseBody);
+                    }
                 }
             }
-            
-        } catch (IOException ex) {
-            logger.error("IOException occurred while calling SendGrid API", ex);
-            jsonResponse.put("success", false);
-            jsonResponse.put("error", "Error calling SendGrid API: " + ex.getMessage());
-        } catch (Exception ex) {
-            logger.error("Unexpected error occurred", ex);
-            jsonResponse.put("success", false);
-            jsonResponse.put("error", "An unexpected error occurred: " + ex.getMessage());
-        }
-        
-        out.print(jsonResponse.toString());
-        out.flush();
+            exchange.send(jsonResponse);
+        });
     }
     
     /**
-     * Get SendGrid API key from properties file or environment variable
-     * @return API key string, or null if not found
+     * Build the SendGrid create-version request body from the form parameters
+     * @param templateId Template ID (required)
+     * @param active "1" or "0"; defaults to 1
+     * @param name Version name (required)
+     * @param htmlContent Version HTML; defaults to an empty document
+     * @param generatePlainContent "true" or "1" to have SendGrid generate the plain-text part
+     * @param subject Subject line; defaults to empty
+     * @param updatedAt Optional updated_at value
+     * @param editor Editor type; defaults to "code"
+     * @return Request body
+     * @throws NumberFormatException if active is not a number
      */
-    private String getApiKey() {
-        // First try to read from properties file
-        try {
-            InputStream inputStream = getClass().getClassLoader().getResourceAsStream("sendgrid.properties");
-            if (inputStream != null) {
-                Properties properties = new Properties();
-                properties.load(inputStream);
-                String apiKey = properties.getProperty("sendgrid.api.key");
-                if (apiKey != null && !apiKey.trim().isEmpty()) {
-                    logger.info("API key loaded from sendgrid.properties file");
-                    return apiKey.trim();
-                }
-                inputStream.close();
-            }
-        } catch (IOException ex) {
-            logger.warn("Could not read sendgrid.properties file: " + ex.getMessage());
+    static JSONObject buildRequestBody(String templateId, String active, String name, String htmlContent,
+            String generatePlainContent, String subject, String updatedAt, String editor) {
+        JSONObject requestBody = new JSONObject();
+        requestBody.put("template_id", templateId.trim());
+        requestBody.put("active", active != null && !active.trim().isEmpty() ? Integer.parseInt(active) : 1);
+        requestBody.put("name", name.trim());
+        requestBody.put("html_content", htmlContent != null ? htmlContent : "<!doctype><html><body></body></html>");
+        requestBody.put("generate_plain_content", generatePlainContent != null
+                && (generatePlainContent.equals("true") || generatePlainContent.equals("1")));
+        requestBody.put("subject", subject != null ? subject : "");
+        if (updatedAt != null && !updatedAt.trim().isEmpty()) {
+            requestBody.put("updated_at", updatedAt.trim());
         }
-        
-        // Fall back to environment variable
-        String apiKey = System.getenv("SENDGRID_API_KEY");
-        if (apiKey != null && !apiKey.trim().isEmpty()) {
-            logger.info("API key loaded from SENDGRID_API_KEY environment variable");
-            return apiKey.trim();
-        }
-        
-        return null;
+        requestBody.put("editor", editor != null ? editor : "code");
+        return requestBody;
     }
 }
-
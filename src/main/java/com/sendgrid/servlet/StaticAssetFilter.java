@@ -0,0 +1,128 @@
+package com.sendgrid.servlet;
+
+import java.io.IOException;
+import java.util.Locale;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import com.sendgrid.assets.StaticAssets;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Static Asset Filter - Serves pages, styles and scripts from the asset pipeline instead of the default servlet.
+ *
+ * The gzip representation is sent to clients that accept it, with Vary: Accept-Encoding. Fingerprinted files are
+ * cacheable for a year as immutable; everything else must be revalidated, which costs a 304 thanks to the ETag.
+ * Paths the pipeline does not know (images, fonts, ...) continue to the default servlet.
+ */
+public class StaticAssetFilter implements Filter {
+    
+    private static final Logger logger = LogManager.getLogger(StaticAssetFilter.class);
+    
+    private static final String IMMUTABLE = "public, max-age=31536000, immutable";
+    private static final String REVALIDATE = "no-cache";
+    
+    private StaticAssets assets;
+    
+    @Override
+    public void init(FilterConfig filterConfig) throws ServletException {
+        try {
+            assets = StaticAssets.build(filterConfig.getServletContext());
+        } catch (IOException e) {
+            throw new ServletException("Could not prepare static assets", e);
+        }
+    }
+    
+    @Override
+    public void doFilter(ServletRequest req, ServletResponse resp, FilterChain chain)
+            throws IOException, ServletException {
+        
+        HttpServletRequest request = (HttpServletRequest) req;
+        HttpServletResponse response = (HttpServletResponse) resp;
+        String method = request.getMethod();
+        StaticAssets.Asset asset = "GET".equals(method) || "HEAD".equals(method)
+                ? assets.get(request.getServletPath()) : null;
+        if (asset == null) {
+            chain.doFilter(request, response);
+            return;
+        }
+        
+        boolean gzip = asset.hasGzip() && acceptsGzip(request.getHeader("Accept-Encoding"));
+        String etag = asset.getEtag(gzip);
+        response.setHeader("Vary", "Accept-Encoding");
+        response.setHeader("ETag", etag);
+        response.setHeader("Cache-Control", asset.isImmutable() ? IMMUTABLE : REVALIDATE);
+        if (matches(request.getHeader("If-None-Match"), etag)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+        
+        byte[] content = asset.getContent(gzip);
+        response.setContentType(asset.getContentType());
+        if (gzip) {
+            response.setHeader("Content-Encoding", "gzip");
+        }
+        response.setContentLength(content.length);
+        if ("GET".equals(method)) {
+            try {
+                response.getOutputStream().write(content);
+            } catch (IOException ex) {
+                logger.debug("Client went away while sending {}: {}", request.getServletPath(), ex.getMessage());
+            }
+        }
+    }
+    
+    /**
+     * Whether an Accept-Encoding header allows gzip, honouring q=0 exclusions and the * wildcard
+     */
+    static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        Boolean wildcard = null;
+        for (String part : acceptEncoding.split(",")) {
+            String[] tokens = part.split(";");
+            String coding = tokens[0].trim().toLowerCase(Locale.ROOT);
+            boolean accepted = true;
+            for (int i = 1; i < tokens.length; i++) {
+                String parameter = tokens[i].trim();
+                if (parameter.startsWith("q=")) {
+                    try {
+                        accepted = Double.parseDouble(parameter.substring(2)) > 0;
+                    } catch (NumberFormatException ex) {
+                        accepted = false;
+                    }
+                }
+            }
+            if (coding.equals("gzip") || coding.equals("x-gzip")) {
+                return accepted;
+            }
+            if (coding.equals("*")) {
+                wildcard = accepted;
+            }
+        }
+        return wildcard != null && wildcard;
+    }
+    
+    private static boolean matches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            String value = candidate.trim();
+            if (value.startsWith("W/")) {
+                value = value.substring(2);
+            }
+            if (value.equals("*") || value.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -2,13 +2,16 @@ package com.sendgrid.servlet;
 
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.io.InputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.util.Properties;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+import java.util.function.Consumer;
 import javax.servlet.ServletException;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
@@ -16,18 +19,50 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.json.JSONException;
 import org.json.JSONObject;
 import org.json.JSONArray;
+import com.sendgrid.config.AppConfig;
+import com.sendgrid.config.ConfigService;
+import com.sendgrid.http.UpstreamHttpClient;
+import com.sendgrid.json.ErrorMessages;
+import com.sendgrid.json.JsonStrings;
+import com.sendgrid.logging.PayloadLog;
+import com.sendgrid.template.CodeFenceFilter;
+import com.sendgrid.template.CompletionCache;
+import com.sendgrid.template.EmailWrapper;
+import com.sendgrid.template.EmailWrapperRegistry;
 
 /**
  * Template AI Servlet - Handles ChatGPT API calls to generate HTML content
  */
-@WebServlet(name = "TemplateAIServlet", urlPatterns = {"/template-ai"})
+@WebServlet(name = "TemplateAIServlet", urlPatterns = {"/template-ai"}, asyncSupported = true)
 public class TemplateAIServlet extends HttpServlet {
     
     private static final Logger logger = LogManager.getLogger(TemplateAIServlet.class);
     private static final long serialVersionUID = 1L;
     
+    private static final String COMPLETIONS_PATH = "/v1/chat/completions";
+    // Chat completions for full templates routinely take far longer than SendGrid calls
+    private static final Duration OPENAI_TIMEOUT = Duration.ofSeconds(120);
+    private static final String MODEL = "gpt-4o-mini";
+    
+    private transient ConfigService configService;
+    private transient UpstreamHttpClient upstreamClient;
+    private transient EmailWrapperRegistry wrapperRegistry;
+    private transient CompletionCache completionCache;
+    private transient AsyncEndpoint endpoint;
+    
+    @Override
+    public void init() throws ServletException {
+        super.init();
+        configService = ConfigService.get(getServletContext());
+        upstreamClient = UpstreamHttpClient.get(getServletContext());
+        wrapperRegistry = EmailWrapperRegistry.get(getServletContext());
+        completionCache = CompletionCache.get(getServletContext());
+        endpoint = AsyncEndpoint.fromConfig(getServletConfig(), 500, 300000);
+    }
+    
     @Override
     protected void doGet(HttpServletRequest request, HttpServletResponse response)
             throws ServletException, IOException {
@@ -48,8 +83,14 @@ public class TemplateAIServlet extends HttpServlet {
         PrintWriter out = response.getWriter();
         JSONObject jsonResponse = new JSONObject();
         
-        // Get prompt from request
+        // Get prompt and optional wrapper name from request
         String prompt = request.getParameter("prompt");
+        String wrapperName = request.getParameter("wrapper");
+        if (wrapperName == null || wrapperName.trim().isEmpty()) {
+            wrapperName = EmailWrapperRegistry.DEFAULT_WRAPPER;
+        }
+        // stream=true relays the completion as Server-Sent Events while it is generated
+        boolean stream = "true".equals(request.getParameter("stream"));
         
         if (prompt == null || prompt.trim().isEmpty()) {
             jsonResponse.put("success", false);
@@ -60,7 +101,8 @@ public class TemplateAIServlet extends HttpServlet {
         }
         
         // Get OpenAI API key
-        String apiKey = getOpenAIApiKey();
+        AppConfig config = configService.get();
+        String apiKey = config.getOpenAIApiKey();
         if (apiKey == null || apiKey.trim().isEmpty()) {
             logger.error("OpenAI API key is not configured");
             jsonResponse.put("success", false);
@@ -70,234 +112,489 @@ public class TemplateAIServlet extends HttpServlet {
             return;
         }
         
-        try {
-            // Set the endpoint URL for ChatGPT
-            URL url = new URL("https://api.openai.com/v1/chat/completions");
-            
-            // Open HTTP connection
-            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-            conn.setRequestMethod("POST");
-            conn.setRequestProperty("Authorization", "Bearer " + apiKey);
-            conn.setRequestProperty("Content-Type", "application/json");
-            conn.setDoOutput(true);
-            
-            // Create request body (in JSON format)
-            JSONObject requestBody = new JSONObject();
-            requestBody.put("model", "gpt-4o-mini");
-            
-            JSONArray messages = new JSONArray();
-            
-            // System message
-            JSONObject systemMessage = new JSONObject();
-            systemMessage.put("role", "system");
-            systemMessage.put("content", getSystemPrompt());
-            messages.put(systemMessage);
-            
-            // User message with prompt
-            JSONObject userMessage = new JSONObject();
-            userMessage.put("role", "user");
-            userMessage.put("content", prompt);
-            messages.put(userMessage);
-            
-            requestBody.put("messages", messages);
-            
-            String jsonInputString = requestBody.toString();
-            
-            logger.info("Sending request to OpenAI API");
-            logger.debug("Request body: " + jsonInputString);
-            
-            // Send request
-            try (OutputStream os = conn.getOutputStream()) {
-                byte[] input = jsonInputString.getBytes("utf-8");
-                os.write(input, 0, input.length);
+        String systemPrompt = config.getOpenAISystemPrompt();
+        // fresh=true skips cached completions, e.g. to get a different result for the same prompt
+        boolean fresh = "true".equals(request.getParameter("fresh"));
+        
+        if (stream) {
+            Optional<String> cached = fresh ? Optional.empty() : completionCache.cached(MODEL, systemPrompt, prompt);
+            if (cached.isPresent()) {
+                writeCachedEvents(response, cached.get(), wrapperName);
+                return;
             }
-            
-            // Read response
-            int responseCode = conn.getResponseCode();
-            logger.info("OpenAI API Response Code: " + responseCode);
-            
-            String responseBody;
-            
-            if (responseCode >= 200 && responseCode < 300) {
-                BufferedReader reader = new BufferedReader(new InputStreamReader(conn.getInputStream()));
-                StringBuilder responseBuilder = new StringBuilder();
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    responseBuilder.append(line);
-                }
-                reader.close();
-                responseBody = responseBuilder.toString();
-                
-                // Parse response to extract HTML content
-                JSONObject openAIResponse = new JSONObject(responseBody);
-                JSONArray choices = openAIResponse.getJSONArray("choices");
-                if (choices.length() > 0) {
-                    JSONObject firstChoice = choices.getJSONObject(0);
-                    JSONObject message = firstChoice.getJSONObject("message");
-                    String content = message.getString("content");
-                    
-                    // Clean up the content - remove markdown code blocks if present
-                    String htmlContent = content.trim();
-                    if (htmlContent.startsWith("```html")) {
-                        htmlContent = htmlContent.substring(7);
-                    } else if (htmlContent.startsWith("```")) {
-                        htmlContent = htmlContent.substring(3);
-                    }
-                    if (htmlContent.endsWith("```")) {
-                        htmlContent = htmlContent.substring(0, htmlContent.length() - 3);
-                    }
-                    htmlContent = htmlContent.trim();
-                    
-                    // Wrap AI-generated content with header/footer template
-                    String finalHtmlContent = wrapWithTemplate(htmlContent);
-                    
-                    jsonResponse.put("success", true);
-                    jsonResponse.put("html_content", finalHtmlContent);
-                } else {
-                    jsonResponse.put("success", false);
-                    jsonResponse.put("error", "No response from AI");
-                }
+        }
+        
+        AsyncEndpoint.Exchange exchange = endpoint.start(request, response);
+        if (exchange == null) {
+            return;
+        }
+        
+        if (stream) {
+            streamCompletion(apiKey, systemPrompt, prompt, fresh, wrapperName, exchange);
+            return;
+        }
+        
+        final String selectedWrapper = wrapperName;
+        CompletableFuture<CompletionCache.Completion> call = completionCache.fetch(MODEL, systemPrompt, prompt, fresh,
+                deltas -> requestCompletion(buildRequest(apiKey, systemPrompt, prompt, false)));
+        exchange.track(call);
+        call.whenComplete((completion, failure) -> {
+            if (failure instanceof CancellationException) {
+                // The request already completed (timeout); nothing left to answer
+                exchange.complete();
+                return;
+            }
+            if (failure != null) {
+                exchange.send(failureResponse(failure));
             } else {
-                BufferedReader reader = new BufferedReader(new InputStreamReader(conn.getErrorStream()));
-                StringBuilder responseBuilder = new StringBuilder();
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    responseBuilder.append(line);
-                }
-                reader.close();
-                responseBody = responseBuilder.toString();
+                exchange.write(() -> writeCompletion(completion, selectedWrapper, exchange));
+            }
+        });
+    }
+    
+    /**
+     * Build the chat completion request
+     * @param apiKey OpenAI API key
+     * @param systemPrompt System prompt
+     * @param prompt User prompt
+     * @param stream true to request a streamed completion
+     * @return Request ready to send
+     */
+    private HttpRequest buildRequest(String apiKey, String systemPrompt, String prompt, boolean stream) {
+        // Create request body (in JSON format)
+        JSONObject requestBody = new JSONObject();
+        requestBody.put("model", MODEL);
+        
+        JSONArray messages = new JSONArray();
+        
+        // System message
+        JSONObject systemMessage = new JSONObject();
+        systemMessage.put("role", "system");
+        systemMessage.put("content", systemPrompt);
+        messages.put(systemMessage);
+        
+        // User message with prompt
+        JSONObject userMessage = new JSONObject();
+        userMessage.put("role", "user");
+        userMessage.put("content", prompt);
+        messages.put(userMessage);
+        
+        requestBody.put("messages", messages);
+        if (stream) {
+            requestBody.put("stream", true);
+        }
+        
+        logger.info("Sending request to OpenAI API");
+        PayloadLog.log("OpenAI request body", requestBody);
+        
+        return upstreamClient.newRequest(upstreamClient.openAIUrl(COMPLETIONS_PATH), OPENAI_TIMEOUT)
+                .header("Authorization", "Bearer " + apiKey)
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(requestBody.toString(), StandardCharsets.UTF_8))
+                .build();
+    }
+    
+    /**
+     * Send a buffered completion request
+     * @param httpRequest Chat completion request
+     * @return Future completed with the parsed completion; cancelling it aborts the OpenAI call
+     */
+    private CompletableFuture<CompletionCache.Completion> requestCompletion(HttpRequest httpRequest) {
+        CompletableFuture<HttpResponse<String>> call = upstreamClient.sendAsync("openai", httpRequest,
+                HttpResponse.BodyHandlers.ofString());
+        CompletableFuture<CompletionCache.Completion> completion = call.thenApply(this::parseCompletion);
+        completion.whenComplete((result, failure) -> {
+            if (failure instanceof CancellationException) {
+                call.cancel(true);
+            }
+        });
+        return completion;
+    }
+    
+    /**
+     * Extract the generated content from a buffered OpenAI response
+     * @param httpResponse OpenAI response
+     * @return Completion with the message content, or the upstream error
+     */
+    private CompletionCache.Completion parseCompletion(HttpResponse<String> httpResponse) {
+        int responseCode = httpResponse.statusCode();
+        logger.info("OpenAI API Response Code: {}", responseCode);
+        
+        String responseBody = httpResponse.body();
+        if (responseCode < 200 || responseCode >= 300) {
+            return CompletionCache.Completion.failure(responseCode, ErrorMessages.openAi(responseBody));
+        }
+        JSONArray choices = new JSONObject(responseBody).getJSONArray("choices");
+        if (choices.length() == 0) {
+            return CompletionCache.Completion.failure(responseCode, "No response from AI");
+        }
+        return CompletionCache.Completion.success(choices.getJSONObject(0).getJSONObject("message").getString("content"));
+    }
+    
+    /**
+     * Answer a streaming request from the completion cache: the same start, chunk and end events as a live stream
+     * @param response Current response
+     * @param content Cached message content
+     * @param wrapperName Requested wrapper name
+     */
+    private void writeCachedEvents(HttpServletResponse response, String content, String wrapperName) throws IOException {
+        Optional<EmailWrapper> wrapper = wrapperRegistry.find(wrapperName);
+        response.setContentType("text/event-stream");
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader("Cache-Control", "no-cache");
+        PrintWriter out = response.getWriter();
+        writeEvent(out, "start", "html", wrapper.map(EmailWrapper::getHead).orElse(""));
+        writeEvent(out, "chunk", "html", stripCodeFences(content).toString());
+        writeEvent(out, "end", "html", wrapper.map(EmailWrapper::getTail).orElse(""));
+    }
+    
+    /**
+     * Write a chat completion as the JSON response, spliced into the selected wrapper; runs as an exchange write
+     * @param completion Generated content or upstream error
+     * @param wrapperName Requested wrapper name
+     * @param exchange Request to complete
+     */
+    private void writeCompletion(CompletionCache.Completion completion, String wrapperName, AsyncEndpoint.Exchange exchange) {
+        JSONObject jsonResponse = new JSONObject();
+        try {
+            if (completion.isSuccess()) {
+                // Clean up the content - remove markdown code blocks if present
+                CharSequence htmlContent = stripCodeFences(completion.getContent());
                 
-                String errorMessage = "OpenAI API error";
-                try {
-                    JSONObject errorJson = new JSONObject(responseBody);
-                    if (errorJson.has("error")) {
-                        JSONObject error = errorJson.getJSONObject("error");
-                        if (error.has("message")) {
-                            errorMessage = error.getString("message");
-                        }
-                    }
-                } catch (Exception e) {
-                    if (responseBody != null && !responseBody.isEmpty()) {
-                        errorMessage = responseBody;
+                // Wrap AI-generated content with header/footer template, written straight to the response
+                Optional<EmailWrapper> wrapper = wrapperRegistry.find(wrapperName);
+                if (!wrapper.isPresent() && !EmailWrapperRegistry.NO_WRAPPER.equals(wrapperName)) {
+                    logger.warn("Template wrapper '{}' not found, returning AI content without wrapper", wrapperName);
+                }
+                if (exchange.claim()) {
+                    PrintWriter out = exchange.getResponse().getWriter();
+                    out.write("{\"success\":true,\"cache\":\"");
+                    out.write(completion.getCacheStatus().name());
+                    out.write("\",\"html_content\":\"");
+                    if (wrapper.isPresent()) {
+                        wrapper.get().writeJsonEscaped(out, htmlContent);
+                    } else {
+                        JsonStrings.writeEscaped(out, htmlContent);
                     }
+                    out.write("\"}");
+                    out.flush();
                 }
-                
-                jsonResponse.put("success", false);
-                jsonResponse.put("error", errorMessage);
-                jsonResponse.put("statusCode", responseCode);
+                exchange.complete();
+                return;
             }
-            
-        } catch (IOException ex) {
-            logger.error("IOException occurred while calling OpenAI API", ex);
             jsonResponse.put("success", false);
-            jsonResponse.put("error", "Error calling OpenAI API: " + ex.getMessage());
+            jsonResponse.put("error", completion.getError());
+            if (completion.getStatusCode() < 200 || completion.getStatusCode() >= 300) {
+                jsonResponse.put("statusCode", completion.getStatusCode());
+            }
         } catch (Exception ex) {
-            logger.error("Unexpected error occurred", ex);
-            jsonResponse.put("success", false);
-            jsonResponse.put("error", "An unexpected error occurred: " + ex.getMessage());
+            jsonResponse = failureResponse(ex);
         }
         
-        out.print(jsonResponse.toString());
-        out.flush();
+        exchange.send(jsonResponse);
     }
     
     /**
-     * Get OpenAI API key from properties file or environment variable
-     * @return API key string, or null if not found
+     * Build the error response for a failed OpenAI call
+     * @param failure Cause of the failure
+     * @return Response envelope
      */
-    private String getOpenAIApiKey() {
-        // First try to read from properties file
-        try {
-            InputStream inputStream = getClass().getClassLoader().getResourceAsStream("sendgrid.properties");
-            if (inputStream != null) {
-                Properties properties = new Properties();
-                properties.load(inputStream);
-                String apiKey = properties.getProperty("openai.api.key");
-                if (apiKey != null && !apiKey.trim().isEmpty()) {
-                    logger.info("OpenAI API key loaded from sendgrid.properties file");
-                    return apiKey.trim();
-                }
-                inputStream.close();
-            }
-        } catch (IOException ex) {
-            logger.warn("Could not read sendgrid.properties file: " + ex.getMessage());
+    private JSONObject failureResponse(Throwable failure) {
+        JSONObject jsonResponse = new JSONObject();
+        jsonResponse.put("success", false);
+        if (failure instanceof IOException) {
+            logger.error("IOException occurred while calling OpenAI API", failure);
+            jsonResponse.put("error", "Error calling OpenAI API: " + failure.getMessage());
+        } else {
+            logger.error("Unexpected error occurred", failure);
+            jsonResponse.put("error", "An unexpected error occurred: " + failure.getMessage());
         }
+        return jsonResponse;
+    }
+    
+    /**
+     * Relay a chat completion to the browser as Server-Sent Events while it is generated.
+     * The completion goes through the completion cache like a buffered one, so an identical request already in
+     * flight (streamed or buffered) is joined instead of calling OpenAI again, and the finished text is cached.
+     * Emits a "start" event with the wrapper head, "chunk" events with fence-stripped HTML as it arrives,
+     * and an "end" event with the wrapper tail; failures after the stream has started are sent as an "error" event.
+     * Failures before any content, such as upstream status errors, are answered with the usual JSON envelope.
+     */
+    private void streamCompletion(String apiKey, String systemPrompt, String prompt, boolean fresh, String wrapperName,
+            AsyncEndpoint.Exchange exchange) {
+        EventRelay relay = new EventRelay(exchange, wrapperRegistry.find(wrapperName));
+        CompletableFuture<CompletionCache.Completion> call = completionCache.stream(MODEL, systemPrompt, prompt, fresh,
+                relay::delta, deltas -> requestStream(buildRequest(apiKey, systemPrompt, prompt, true), deltas));
+        exchange.track(call);
+        call.whenComplete((completion, failure) -> {
+            if (failure instanceof CancellationException) {
+                // Stopped because the request completed first (client disconnect or timeout)
+                exchange.complete();
+            } else if (failure != null) {
+                relay.fail(failureResponse(failure), "Error streaming AI response: " + failure.getMessage());
+            } else if (!completion.isSuccess()) {
+                JSONObject jsonResponse = new JSONObject();
+                jsonResponse.put("success", false);
+                jsonResponse.put("error", completion.getError());
+                jsonResponse.put("statusCode", completion.getStatusCode());
+                relay.fail(jsonResponse, completion.getError());
+            } else {
+                relay.end();
+            }
+        });
+    }
+    
+    /**
+     * Send a streamed completion request, reporting the content as it arrives
+     * @param httpRequest Chat completion request with stream=true
+     * @param deltas Receives each piece of message content, on the upstream I/O thread
+     * @return Future completed with the whole completion; cancelling it aborts the OpenAI call
+     */
+    private CompletableFuture<CompletionCache.Completion> requestStream(HttpRequest httpRequest, Consumer<String> deltas) {
+        HttpResponse.BodyHandler<String> bodyHandler = responseInfo -> {
+            int responseCode = responseInfo.statusCode();
+            logger.info("OpenAI API Response Code: {} (streaming)", responseCode);
+            if (responseCode < 200 || responseCode >= 300) {
+                return HttpResponse.BodySubscribers.ofString(StandardCharsets.UTF_8);
+            }
+            return HttpResponse.BodySubscribers.fromLineSubscriber(new DeltaReader(deltas), DeltaReader::getContent,
+                    StandardCharsets.UTF_8, null);
+        };
         
-        // Fall back to environment variable
-        String apiKey = System.getenv("OPENAI_API_KEY");
-        if (apiKey != null && !apiKey.trim().isEmpty()) {
-            logger.info("OpenAI API key loaded from OPENAI_API_KEY environment variable");
-            return apiKey.trim();
+        CompletableFuture<HttpResponse<String>> call = upstreamClient.sendAsync("openai", httpRequest, bodyHandler);
+        CompletableFuture<CompletionCache.Completion> completion = call.thenApply(httpResponse -> {
+            int responseCode = httpResponse.statusCode();
+            if (responseCode < 200 || responseCode >= 300) {
+                return CompletionCache.Completion.failure(responseCode, ErrorMessages.openAi(httpResponse.body()));
+            }
+            if (httpResponse.body().isEmpty()) {
+                return CompletionCache.Completion.failure(responseCode, "No response from AI");
+            }
+            return CompletionCache.Completion.success(httpResponse.body());
+        });
+        completion.whenComplete((result, failure) -> {
+            if (failure instanceof CancellationException) {
+                call.cancel(true);
+            }
+        });
+        return completion;
+    }
+    
+    /**
+     * Write one Server-Sent Event whose data is a single-field JSON object, then flush it to the client
+     */
+    private static void writeEvent(PrintWriter out, String event, String field, String value) throws IOException {
+        out.write("event: ");
+        out.write(event);
+        out.write("\ndata: {\"");
+        out.write(field);
+        out.write("\":\"");
+        JsonStrings.writeEscaped(out, value);
+        out.write("\"}\n\n");
+        out.flush();
+    }
+    
+    /**
+     * Remove surrounding markdown code fences (```html ... ```) from AI output without copying it
+     * @param content Raw message content from the model
+     * @return View of the content between the fences, trimmed
+     */
+    static CharSequence stripCodeFences(String content) {
+        int start = 0;
+        int end = content.length();
+        while (start < end && Character.isWhitespace(content.charAt(start))) {
+            start++;
         }
-        
-        return null;
+        while (end > start && Character.isWhitespace(content.charAt(end - 1))) {
+            end--;
+        }
+        if (content.startsWith("```html", start)) {
+            start += 7;
+        } else if (content.startsWith("```", start)) {
+            start += 3;
+        }
+        if (end - start >= 3 && content.startsWith("```", end - 3)) {
+            end -= 3;
+        }
+        while (start < end && Character.isWhitespace(content.charAt(start))) {
+            start++;
+        }
+        while (end > start && Character.isWhitespace(content.charAt(end - 1))) {
+            end--;
+        }
+        return CharBuffer.wrap(content, start, end);
     }
     
     /**
-     * Get OpenAI system prompt from properties file
-     * @return System prompt string, or default prompt if not found
+     * Delta Reader - Collects the message content from OpenAI stream lines and reports each piece as it arrives.
+     *
+     * Runs on the upstream I/O threads and never touches a client response, so it reads the stream as fast as it
+     * arrives; a completion is small, and each browser's events queue on its own exchange.
      */
-    private String getSystemPrompt() {
-        // Default prompt
-        String defaultPrompt = "You are an expert HTML email template designer. Generate complete, valid HTML email templates. Always return only the HTML code without any markdown formatting, explanations, or code blocks. Return pure HTML that can be used directly in email templates.";
+    private static final class DeltaReader implements Flow.Subscriber<String> {
         
-        // Try to read from properties file
-        try {
-            InputStream inputStream = getClass().getClassLoader().getResourceAsStream("sendgrid.properties");
-            if (inputStream != null) {
-                Properties properties = new Properties();
-                properties.load(inputStream);
-                String prompt = properties.getProperty("openai.system.prompt");
-                if (prompt != null && !prompt.trim().isEmpty()) {
-                    logger.info("OpenAI system prompt loaded from sendgrid.properties file");
-                    inputStream.close();
-                    return prompt.trim();
-                }
-                inputStream.close();
+        private final Consumer<String> deltas;
+        private final StringBuilder content = new StringBuilder();
+        
+        DeltaReader(Consumer<String> deltas) {
+            this.deltas = deltas;
+        }
+        
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            subscription.request(Long.MAX_VALUE);
+        }
+        
+        @Override
+        public void onNext(String line) {
+            String delta;
+            try {
+                delta = parseDelta(line);
+            } catch (JSONException ex) {
+                logger.warn("Skipping malformed OpenAI stream line: {}", ex.getMessage());
+                return;
+            }
+            if (delta != null && !delta.isEmpty()) {
+                content.append(delta);
+                deltas.accept(delta);
             }
-        } catch (IOException ex) {
-            logger.warn("Could not read sendgrid.properties file for system prompt: " + ex.getMessage());
         }
         
-        // Fall back to default prompt
-        logger.info("Using default OpenAI system prompt");
-        return defaultPrompt;
+        @Override
+        public void onError(Throwable throwable) {
+            // Reported through the response future
+        }
+        
+        @Override
+        public void onComplete() {
+            // The content is taken by the finisher
+        }
+        
+        String getContent() {
+            return content.toString();
+        }
+        
+        /**
+         * @return Content delta carried by a "data:" line, or null for other lines
+         */
+        private static String parseDelta(String line) {
+            if (!line.startsWith("data:")) {
+                return null;
+            }
+            String data = line.substring(5).trim();
+            if ("[DONE]".equals(data)) {
+                return null;
+            }
+            JSONArray choices = new JSONObject(data).optJSONArray("choices");
+            if (choices == null || choices.length() == 0) {
+                return null;
+            }
+            JSONObject delta = choices.getJSONObject(0).optJSONObject("delta");
+            if (delta == null || !delta.has("content") || delta.isNull("content")) {
+                return null;
+            }
+            return delta.getString("content");
+        }
     }
     
     /**
-     * Wrap AI-generated content with header/footer template
-     * @param aiContent The AI-generated HTML content
-     * @return Complete HTML with header, AI content, and footer
+     * Event Relay - Writes one request's completion to its client as Server-Sent Events.
+     *
+     * Content arrives from the completion cache on the thread of the shared call and is written as exchange writes
+     * on the response writer pool, so a slow browser only delays its own events. The event stream starts with the
+     * first content; a completion that fails before that is answered with the JSON envelope instead. A browser
+     * that disconnects completes the request, which withdraws it from the shared call.
      */
-    private String wrapWithTemplate(String aiContent) {
-        try {
-            InputStream inputStream = getClass().getClassLoader().getResourceAsStream("email-template-wrapper.html");
-            if (inputStream != null) {
-                BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream));
-                StringBuilder templateBuilder = new StringBuilder();
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    templateBuilder.append(line).append("\n");
+    private static final class EventRelay {
+        
+        private final AsyncEndpoint.Exchange exchange;
+        private final Optional<EmailWrapper> wrapper;
+        // Both only used by exchange writes, which run one at a time
+        private final CodeFenceFilter fenceFilter = new CodeFenceFilter();
+        private PrintWriter out;
+        
+        EventRelay(AsyncEndpoint.Exchange exchange, Optional<EmailWrapper> wrapper) {
+            this.exchange = exchange;
+            this.wrapper = wrapper;
+        }
+        
+        void delta(String content) {
+            exchange.write(() -> {
+                if (start()) {
+                    write("chunk", "html", fenceFilter.accept(content));
                 }
-                reader.close();
-                inputStream.close();
-                
-                String template = templateBuilder.toString();
-                
-                // Replace the placeholder with AI-generated content
-                // Match the exact indentation from the template file (28 spaces)
-                String placeholder = "                            <!-- AI Code goes here Start -->\n                            <!-- AI Code goes here End-->";
-                String replacement = "                            <!-- AI Code goes here Start -->\n                            " + aiContent + "\n                            <!-- AI Code goes here End-->";
-                
-                return template.replace(placeholder, replacement);
+            });
+        }
+        
+        void end() {
+            exchange.write(() -> {
+                if (start()) {
+                    write("chunk", "html", fenceFilter.finish());
+                    write("end", "html", wrapper.map(EmailWrapper::getTail).orElse(""));
+                }
+                exchange.complete();
+            });
+        }
+        
+        /**
+         * @param jsonResponse Envelope for a stream that has not started
+         * @param message Error event text for a stream that has
+         */
+        void fail(JSONObject jsonResponse, String message) {
+            exchange.write(() -> {
+                if (out == null) {
+                    exchange.send(jsonResponse);
+                    return;
+                }
+                write("error", "error", message);
+                exchange.complete();
+            });
+        }
+        
+        /**
+         * Open the event stream on first use
+         * @return true if events can be written
+         */
+        private boolean start() {
+            if (exchange.isCompleted()) {
+                return false;
             }
-        } catch (IOException ex) {
-            logger.warn("Could not read email-template-wrapper.html file: " + ex.getMessage());
+            if (out != null) {
+                return true;
+            }
+            if (!exchange.claim()) {
+                // Already timed out
+                return false;
+            }
+            HttpServletResponse response = exchange.getResponse();
+            response.setContentType("text/event-stream");
+            response.setCharacterEncoding("UTF-8");
+            response.setHeader("Cache-Control", "no-cache");
+            // Stop reverse proxies from buffering the event stream
+            response.setHeader("X-Accel-Buffering", "no");
+            try {
+                out = response.getWriter();
+            } catch (IOException ex) {
+                exchange.complete();
+                return false;
+            }
+            write("start", "html", wrapper.map(EmailWrapper::getHead).orElse(""));
+            return !exchange.isCompleted();
         }
         
-        // Fallback: return AI content as-is if template not found
-        logger.warn("Template wrapper not found, returning AI content without wrapper");
-        return aiContent;
+        private void write(String event, String field, String value) {
+            if (exchange.isCompleted() || (value.isEmpty() && "chunk".equals(event))) {
+                return;
+            }
+            try {
+                writeEvent(out, event, field, value);
+            } catch (IOException ex) {
+                // PrintWriter does not throw; a failed write shows up in checkError() below
+            }
+            if (out.checkError()) {
+                logger.info("Client disconnected during AI streaming");
+                exchange.complete();
+            }
+        }
     }
 }
-
@@ -0,0 +1,62 @@
+package com.sendgrid.servlet;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.json.JSONObject;
+import com.sendgrid.mail.EngagementTracker;
+
+/**
+ * Template Engagement Servlet - Delivery and engagement counts per template, from the Event Webhook.
+ *
+ * The id parameter limits the response to one template. Answers from the in-memory counts and never calls SendGrid.
+ */
+@WebServlet(name = "TemplateEngagementServlet", urlPatterns = {"/templates/engagement"})
+public class TemplateEngagementServlet extends HttpServlet {
+    
+    private static final long serialVersionUID = 1L;
+    
+    private transient EngagementTracker tracker;
+    
+    @Override
+    public void init() throws ServletException {
+        super.init();
+        tracker = EngagementTracker.get(getServletContext());
+    }
+    
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        // Counts change with every webhook post
+        response.setHeader("Cache-Control", "no-store");
+        
+        JSONObject data;
+        String templateId = request.getParameter("id");
+        if (templateId != null && !templateId.trim().isEmpty()) {
+            data = new JSONObject();
+            JSONObject counts = tracker.toJson(templateId.trim());
+            if (counts != null) {
+                data.put(templateId.trim(), counts);
+            }
+        } else {
+            data = tracker.toJson();
+        }
+        
+        JSONObject jsonResponse = new JSONObject();
+        jsonResponse.put("success", true);
+        jsonResponse.put("statusCode", 200);
+        jsonResponse.put("events", EngagementTracker.EVENTS);
+        jsonResponse.put("updatedAt", tracker.getUpdatedAt());
+        jsonResponse.put("data", data);
+        PrintWriter out = response.getWriter();
+        out.print(jsonResponse.toString());
+        out.flush();
+    }
+}
@@ -2,6 +2,7 @@ package com.sendgrid.servlet;
 
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.io.Writer;
 import javax.servlet.ServletException;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
@@ -9,23 +10,42 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.json.JSONArray;
 import org.json.JSONObject;
-import java.io.InputStream;
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.util.Properties;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import com.sendgrid.config.ConfigService;
+import com.sendgrid.http.UpstreamException;
+import com.sendgrid.json.ErrorMessages;
+import com.sendgrid.template.TemplateCatalog;
+import com.sendgrid.template.TemplateStore;
 
 /**
  * Template List Servlet - Handles fetching list of SendGrid templates
+ * Supports limit, offset and prefix (name prefix) query parameters; refresh=true bypasses the cache.
+ * id returns one template from the local store with its full versions and every recorded revision.
  */
-@WebServlet(name = "TemplateListServlet", urlPatterns = {"/templates"})
+@WebServlet(name = "TemplateListServlet", urlPatterns = {"/templates"}, asyncSupported = true)
 public class TemplateListServlet extends HttpServlet {
     
     private static final Logger logger = LogManager.getLogger(TemplateListServlet.class);
     private static final long serialVersionUID = 1L;
     
+    private transient ConfigService configService;
+    private transient TemplateCatalog templateCatalog;
+    private transient TemplateStore templateStore;
+    private transient AsyncEndpoint endpoint;
+    
+    @Override
+    public void init() throws ServletException {
+        super.init();
+        configService = ConfigService.get(getServletContext());
+        templateCatalog = TemplateCatalog.get(getServletContext());
+        templateStore = TemplateStore.get(getServletContext());
+        endpoint = AsyncEndpoint.fromConfig(getServletConfig(), 1000, 60000);
+    }
+    
     @Override
     protected void doGet(HttpServletRequest request, HttpServletResponse response)
             throws ServletException, IOException {
@@ -36,14 +56,14 @@ public class TemplateListServlet extends HttpServlet {
         response.setCharacterEncoding("UTF-8");
         
         PrintWriter out = response.getWriter();
-        JSONObject jsonResponse = new JSONObject();
         
-        // Get API key from properties file or environment variable
-        String apiKey = getApiKey();
+        // Get API key resolved at startup from properties file or environment variable
+        String apiKey = configService.get().getSendGridApiKey();
         
         // Check if API key is set
         if (apiKey == null || apiKey.trim().isEmpty()) {
             logger.error("SendGrid API key is not configured");
+            JSONObject jsonResponse = new JSONObject();
             jsonResponse.put("success", false);
             jsonResponse.put("error", "SendGrid API key is not configured. Please set it in sendgrid.properties file or SENDGRID_API_KEY environment variable.");
             out.print(jsonResponse.toString());
@@ -51,136 +71,149 @@ public class TemplateListServlet extends HttpServlet {
             return;
         }
         
-        try {
-            // Make direct HTTP call to SendGrid API (same format as Postman)
-            String apiUrl = "https://api.sendgrid.com/v3/templates?generations=dynamic";
-            URL url = new URL(apiUrl);
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-            connection.setRequestMethod("GET");
-            connection.setRequestProperty("Authorization", "Bearer " + apiKey);
-            connection.setRequestProperty("Content-Type", "application/json");
-            
-            logger.info("Sending request to SendGrid API: " + apiUrl);
-            
-            int statusCode = connection.getResponseCode();
-            String responseBody;
-            
-            if (statusCode >= 200 && statusCode < 300) {
-                BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream()));
-                StringBuilder responseBuilder = new StringBuilder();
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    responseBuilder.append(line);
-                }
-                reader.close();
-                responseBody = responseBuilder.toString();
-            } else {
-                BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getErrorStream()));
-                StringBuilder responseBuilder = new StringBuilder();
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    responseBuilder.append(line);
-                }
-                reader.close();
-                responseBody = responseBuilder.toString();
-            }
-            
-            logger.info("SendGrid API Response - Status Code: " + statusCode);
-            
-            // Check if the response indicates an error
-            if (statusCode >= 400) {
-                // Try to parse error message from response body
-                String errorMessage = "SendGrid API error";
+        String templateId = request.getParameter("id");
+        if (templateId != null && !templateId.trim().isEmpty()) {
+            writeStoredTemplate(out, apiKey.trim(), templateId.trim());
+            out.flush();
+            return;
+        }
+        
+        int offset = parseNonNegative(request.getParameter("offset"), 0);
+        int limit = parseNonNegative(request.getParameter("limit"), Integer.MAX_VALUE);
+        String namePrefix = request.getParameter("prefix");
+        boolean forceRefresh = "true".equals(request.getParameter("refresh"));
+        
+        // Served from the in-memory catalog; SendGrid is only called on a cold cache or forced refresh
+        CompletableFuture<TemplateCatalog.Snapshot> pending = templateCatalog.getSnapshotAsync(apiKey.trim(), forceRefresh);
+        if (pending.isDone()) {
+            // Cache hit: answer on the request thread without going async
+            writeResponse(out, pending, offset, limit, namePrefix);
+            out.flush();
+            return;
+        }
+        
+        // Cold cache: release the worker thread until the catalog load finishes
+        AsyncEndpoint.Exchange exchange = endpoint.start(request, response);
+        if (exchange == null) {
+            return;
+        }
+        pending.whenComplete((snapshot, failure) -> exchange.write(() -> {
+            if (exchange.claim()) {
                 try {
-                    JSONObject errorJson = new JSONObject(responseBody);
-                    if (errorJson.has("errors")) {
-                        Object errors = errorJson.get("errors");
-                        if (errors instanceof org.json.JSONArray) {
-                            org.json.JSONArray errorsArray = (org.json.JSONArray) errors;
-                            if (errorsArray.length() > 0) {
-                                JSONObject firstError = errorsArray.getJSONObject(0);
-                                if (firstError.has("message")) {
-                                    errorMessage = firstError.getString("message");
-                                } else if (firstError.has("field")) {
-                                    errorMessage = "Error in field '" + firstError.getString("field") + "': " + 
-                                                  (firstError.has("message") ? firstError.getString("message") : "Invalid value");
-                                }
-                            }
-                        }
-                    } else if (errorJson.has("message")) {
-                        errorMessage = errorJson.getString("message");
-                    }
-                } catch (Exception e) {
-                    // If parsing fails, use the raw response body
-                    if (responseBody != null && !responseBody.isEmpty()) {
-                        errorMessage = responseBody;
-                    }
+                    writeResponse(out, pending, offset, limit, namePrefix);
+                    out.flush();
+                } catch (IOException ex) {
+                    logger.warn("Could not write response: {}", ex.getMessage());
                 }
+            }
+            exchange.complete();
+        }));
+    }
+    
+    /**
+     * Write the JSON response for a completed catalog lookup
+     * @param out Response writer
+     * @param completed Completed snapshot future
+     * @param offset Index of the first template to return
+     * @param limit Maximum number of templates to return
+     * @param namePrefix Optional template name prefix filter
+     * @throws IOException if the writer fails
+     */
+    private void writeResponse(Writer out, CompletableFuture<TemplateCatalog.Snapshot> completed, int offset, int limit,
+            String namePrefix) throws IOException {
+        JSONObject jsonResponse = new JSONObject();
+        TemplateCatalog.Snapshot snapshot;
+        try {
+            snapshot = completed.join();
+        } catch (CompletionException ex) {
+            Throwable cause = ex.getCause() != null ? ex.getCause() : ex;
+            if (cause instanceof UpstreamException) {
+                UpstreamException upstreamError = (UpstreamException) cause;
+                int statusCode = upstreamError.getStatusCode();
+                String responseBody = upstreamError.getResponseBody();
+                logger.info("SendGrid API Response - Status Code: {}", statusCode);
                 
                 jsonResponse.put("success", false);
-                jsonResponse.put("error", errorMessage);
+                jsonResponse.put("error", ErrorMessages.sendGrid(responseBody));
                 jsonResponse.put("statusCode", statusCode);
                 jsonResponse.put("responseBody", responseBody);
+            } else if (cause instanceof IOException) {
+                logger.error("IOException occurred while calling SendGrid API", cause);
+                jsonResponse.put("success", false);
+                jsonResponse.put("error", "Error calling SendGrid API: " + cause.getMessage());
             } else {
-                // Success response - SendGrid returns a JSON object with "templates" array
-                try {
-                    JSONObject sendGridResponse = new JSONObject(responseBody);
-                    org.json.JSONArray templatesArray = sendGridResponse.getJSONArray("templates");
-                    
-                    jsonResponse.put("success", true);
-                    jsonResponse.put("statusCode", statusCode);
-                    jsonResponse.put("data", templatesArray);
-                } catch (Exception e) {
-                    logger.error("Error parsing SendGrid response: " + e.getMessage());
-                    jsonResponse.put("success", false);
-                    jsonResponse.put("error", "Error parsing template list: " + e.getMessage());
-                }
+                logger.error("Unexpected error occurred", cause);
+                jsonResponse.put("success", false);
+                jsonResponse.put("error", "An unexpected error occurred: " + cause.getMessage());
             }
-            
-        } catch (IOException ex) {
-            logger.error("IOException occurred while calling SendGrid API", ex);
-            jsonResponse.put("success", false);
-            jsonResponse.put("error", "Error calling SendGrid API: " + ex.getMessage());
-        } catch (Exception ex) {
-            logger.error("Unexpected error occurred", ex);
-            jsonResponse.put("success", false);
-            jsonResponse.put("error", "An unexpected error occurred: " + ex.getMessage());
+            out.write(jsonResponse.toString());
+            return;
         }
         
-        out.print(jsonResponse.toString());
-        out.flush();
+        List<TemplateCatalog.Entry> matches = snapshot.filter(namePrefix);
+        int from = Math.min(offset, matches.size());
+        int to = (int) Math.min((long) from + limit, matches.size());
+        
+        // Cached entries are pre-serialized, so they are streamed into the envelope one by one instead of
+        // assembling the whole list in memory first
+        out.append("{\"success\":true,\"statusCode\":200")
+            .append(",\"total\":").append(String.valueOf(matches.size()))
+            .append(",\"offset\":").append(String.valueOf(from))
+            .append(",\"stale\":").append(String.valueOf(templateCatalog.isStale(snapshot)))
+            .append(",\"cachedAt\":").append(String.valueOf(snapshot.getFetchedAt()));
+        if (snapshot.getUpstreamError() != null) {
+            // SendGrid is unavailable; this is the last known good list
+            out.append(",\"upstreamError\":").append(JSONObject.quote("Error calling SendGrid API: " + snapshot.getUpstreamError()));
+        }
+        out.append(",\"data\":[");
+        for (int i = from; i < to; i++) {
+            if (i > from) {
+                out.write(',');
+            }
+            out.write(matches.get(i).getJson());
+        }
+        out.write("]}");
     }
     
     /**
-     * Get SendGrid API key from properties file or environment variable
-     * @return API key string, or null if not found
+     * Write one template from the local store, with its full versions and version history
+     * @param out Response writer
+     * @param apiKey SendGrid API key whose account is read
+     * @param templateId Template ID
+     * @throws IOException if the writer fails
      */
-    private String getApiKey() {
-        // First try to read from properties file
-        try {
-            InputStream inputStream = getClass().getClassLoader().getResourceAsStream("sendgrid.properties");
-            if (inputStream != null) {
-                Properties properties = new Properties();
-                properties.load(inputStream);
-                String apiKey = properties.getProperty("sendgrid.api.key");
-                if (apiKey != null && !apiKey.trim().isEmpty()) {
-                    logger.info("API key loaded from sendgrid.properties file");
-                    return apiKey.trim();
-                }
-                inputStream.close();
-            }
-        } catch (IOException ex) {
-            logger.warn("Could not read sendgrid.properties file: " + ex.getMessage());
+    private void writeStoredTemplate(Writer out, String apiKey, String templateId) throws IOException {
+        JSONObject jsonResponse = new JSONObject();
+        JSONObject template = templateStore.template(apiKey, templateId);
+        if (template == null) {
+            jsonResponse.put("success", false);
+            jsonResponse.put("error", "Template " + templateId + " is not in the local store yet");
+            jsonResponse.put("statusCode", 404);
+        } else {
+            jsonResponse.put("success", true);
+            jsonResponse.put("statusCode", 200);
+            jsonResponse.put("syncedAt", templateStore.getLastSyncedAt());
+            jsonResponse.put("data", template);
+            jsonResponse.put("history", new JSONArray(templateStore.history(apiKey, templateId)));
         }
-        
-        // Fall back to environment variable
-        String apiKey = System.getenv("SENDGRID_API_KEY");
-        if (apiKey != null && !apiKey.trim().isEmpty()) {
-            logger.info("API key loaded from SENDGRID_API_KEY environment variable");
-            return apiKey.trim();
+        out.write(jsonResponse.toString());
+    }
+    
+    /**
+     * Parse an optional non-negative integer query parameter
+     * @param value Raw parameter value
+     * @param defaultValue Value used when the parameter is missing or invalid
+     * @return Parsed value
+     */
+    private int parseNonNegative(String value, int defaultValue) {
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Math.max(0, Integer.parseInt(value.trim()));
+        } catch (NumberFormatException e) {
+            return defaultValue;
         }
-        
-        return null;
     }
 }
 
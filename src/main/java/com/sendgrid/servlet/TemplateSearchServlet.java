@@ -0,0 +1,114 @@
+package com.sendgrid.servlet;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import com.sendgrid.config.ConfigService;
+import com.sendgrid.template.TemplateCatalog;
+import com.sendgrid.template.TemplateSearchIndex;
+import com.sendgrid.template.TemplateStore;
+
+/**
+ * Template Search Servlet - Full-text search over template names, version subjects and version HTML
+ * Supports q (query; "double quotes" for a phrase) and limit (default 20, at most 100) query parameters.
+ * Answers from the local template store's index and never waits for SendGrid.
+ */
+@WebServlet(name = "TemplateSearchServlet", urlPatterns = {"/templates/search"})
+public class TemplateSearchServlet extends HttpServlet {
+    
+    private static final Logger logger = LogManager.getLogger(TemplateSearchServlet.class);
+    private static final long serialVersionUID = 1L;
+    
+    private static final int DEFAULT_LIMIT = 20;
+    private static final int MAX_LIMIT = 100;
+    
+    private transient ConfigService configService;
+    private transient TemplateCatalog templateCatalog;
+    private transient TemplateStore templateStore;
+    
+    @Override
+    public void init() throws ServletException {
+        super.init();
+        configService = ConfigService.get(getServletContext());
+        templateCatalog = TemplateCatalog.get(getServletContext());
+        templateStore = TemplateStore.get(getServletContext());
+    }
+    
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        
+        PrintWriter out = response.getWriter();
+        JSONObject jsonResponse = new JSONObject();
+        
+        String query = request.getParameter("q");
+        if (query == null || query.trim().isEmpty()) {
+            jsonResponse.put("success", false);
+            jsonResponse.put("error", "Search query (q) is required");
+            out.print(jsonResponse.toString());
+            out.flush();
+            return;
+        }
+        
+        String apiKey = configService.get().getSendGridApiKey();
+        if (apiKey == null || apiKey.trim().isEmpty()) {
+            logger.error("SendGrid API key is not configured");
+            jsonResponse.put("success", false);
+            jsonResponse.put("error", "SendGrid API key is not configured. Please set it in sendgrid.properties file or SENDGRID_API_KEY environment variable.");
+            out.print(jsonResponse.toString());
+            out.flush();
+            return;
+        }
+        
+        // Reading the catalog starts a sync when it is cold or stale; the index follows the store as it syncs
+        templateCatalog.getSnapshotAsync(apiKey.trim(), false);
+        
+        int limit = parseLimit(request.getParameter("limit"));
+        long started = System.nanoTime();
+        TemplateSearchIndex.Result result = templateStore.search(apiKey.trim(), query, limit);
+        long tookMicros = (System.nanoTime() - started) / 1000;
+        logger.info("Template search for {} chars matched {} templates in {}us", query.length(), result.getTotal(),
+                tookMicros);
+        
+        JSONArray hits = new JSONArray();
+        for (TemplateSearchIndex.Hit hit : result.getHits()) {
+            hits.put(hit.toJson());
+        }
+        jsonResponse.put("success", true);
+        jsonResponse.put("statusCode", 200);
+        jsonResponse.put("query", query);
+        jsonResponse.put("total", result.getTotal());
+        jsonResponse.put("tookMs", tookMicros / 1000.0);
+        jsonResponse.put("syncedAt", templateStore.getLastSyncedAt());
+        jsonResponse.put("data", hits);
+        out.print(jsonResponse.toString());
+        out.flush();
+    }
+    
+    /**
+     * Parse the limit query parameter
+     * @param value Raw parameter value
+     * @return Limit between 1 and MAX_LIMIT, DEFAULT_LIMIT when missing or invalid
+     */
+    private int parseLimit(String value) {
+        if (value == null || value.trim().isEmpty()) {
+            return DEFAULT_LIMIT;
+        }
+        try {
+            return Math.max(1, Math.min(MAX_LIMIT, Integer.parseInt(value.trim())));
+        } catch (NumberFormatException e) {
+            return DEFAULT_LIMIT;
+        }
+    }
+}
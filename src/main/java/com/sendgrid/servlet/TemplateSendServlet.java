@@ -0,0 +1,290 @@
+package com.sendgrid.servlet;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.concurrent.CancellationException;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONObject;
+import com.sendgrid.config.AppConfig;
+import com.sendgrid.config.ConfigService;
+import com.sendgrid.helpers.mail.objects.Email;
+import com.sendgrid.mail.Recipient;
+import com.sendgrid.mail.TemplateMailSender;
+import com.sendgrid.template.TemplateIds;
+
+/**
+ * Template Send Servlet - Common part of the endpoints that send a dynamic template to a stream of recipients.
+ *
+ * Subclasses check their own input with the helpers here, open the NDJSON response with {@link #startSend},
+ * add recipients to its send as they read them on the request thread, and end with {@link Report#finish}. Batch
+ * results are written as they complete and the summary line after the last batch.
+ */
+abstract class TemplateSendServlet extends HttpServlet {
+    
+    private static final Logger logger = LogManager.getLogger(TemplateSendServlet.class);
+    private static final long serialVersionUID = 1L;
+    
+    private final int defaultMaxConcurrent;
+    private final long defaultTimeoutMs;
+    
+    transient ConfigService configService;
+    private transient TemplateMailSender sender;
+    private transient AsyncEndpoint endpoint;
+    int defaultConcurrency;
+    private int maxConcurrency;
+    
+    /**
+     * @param defaultMaxConcurrent Sends running at once unless maxConcurrent is set in web.xml
+     * @param defaultTimeoutMs Longest send unless asyncTimeoutMs is set in web.xml
+     */
+    TemplateSendServlet(int defaultMaxConcurrent, long defaultTimeoutMs) {
+        this.defaultMaxConcurrent = defaultMaxConcurrent;
+        this.defaultTimeoutMs = defaultTimeoutMs;
+    }
+    
+    @Override
+    public void init() throws ServletException {
+        super.init();
+        configService = ConfigService.get(getServletContext());
+        sender = TemplateMailSender.get(getServletContext());
+        endpoint = AsyncEndpoint.fromConfig(getServletConfig(), defaultMaxConcurrent, defaultTimeoutMs);
+        defaultConcurrency = intParameter("defaultConcurrency", 4);
+        maxConcurrency = intParameter("maxConcurrency", 16);
+    }
+    
+    /**
+     * @return Configured SendGrid API key, or null after writing the error response
+     */
+    static String apiKey(AppConfig config, HttpServletResponse response) throws IOException {
+        String apiKey = config.getSendGridApiKey();
+        if (apiKey == null || apiKey.trim().isEmpty()) {
+            logger.error("SendGrid API key is not configured");
+            writeError(response, "SendGrid API key is not configured. Please set it in sendgrid.properties file or SENDGRID_API_KEY environment variable.", 0);
+            return null;
+        }
+        return apiKey;
+    }
+    
+    /**
+     * @return true if the template ID is present and valid; false after writing the error response
+     */
+    static boolean checkTemplateId(String templateId, HttpServletResponse response) throws IOException {
+        if (templateId == null) {
+            writeError(response, "Template ID is required", HttpServletResponse.SC_BAD_REQUEST);
+            return false;
+        }
+        if (!TemplateIds.isValid(templateId)) {
+            writeError(response, "Invalid template ID", HttpServletResponse.SC_BAD_REQUEST);
+            return false;
+        }
+        return true;
+    }
+    
+    /**
+     * @param fromEmail Sender address from the request, or null for the configured default
+     * @param fromName Sender name from the request, or null
+     * @return Sender, or null after writing the error response
+     */
+    static Email sender(AppConfig config, String fromEmail, String fromName, HttpServletResponse response)
+            throws IOException {
+        if (fromEmail == null) {
+            fromEmail = config.getMailFromEmail();
+            fromName = fromName != null ? fromName : config.getMailFromName();
+        }
+        if (fromEmail == null) {
+            writeError(response, "Sender is required: pass from or set SENDGRID_FROM_EMAIL", HttpServletResponse.SC_BAD_REQUEST);
+            return null;
+        }
+        if (!Recipient.isValidAddress(fromEmail)) {
+            writeError(response, "Invalid sender address: " + fromEmail, HttpServletResponse.SC_BAD_REQUEST);
+            return null;
+        }
+        return new Email(fromEmail, fromName);
+    }
+    
+    /**
+     * @throws IllegalArgumentException if batch_size is out of range
+     */
+    static void checkBatchSize(int batchSize) {
+        if (batchSize < 1 || batchSize > TemplateMailSender.MAX_BATCH_SIZE) {
+            throw new IllegalArgumentException("batch_size must be between 1 and " + TemplateMailSender.MAX_BATCH_SIZE);
+        }
+    }
+    
+    /**
+     * Go asynchronous, switch the response to NDJSON and start the send
+     * @param concurrency Requested batches in flight, capped by maxConcurrency
+     * @return Report for the send, or null if the endpoint is at capacity (the response has been written)
+     */
+    Report startSend(HttpServletRequest request, HttpServletResponse response, String apiKey, String templateId,
+            Email from, int batchSize, int concurrency) throws IOException {
+        AsyncEndpoint.Exchange exchange = endpoint.start(request, response);
+        if (exchange == null) {
+            return null;
+        }
+        // The stream is ours from here on; a timeout just ends it instead of writing a JSON error into it
+        exchange.claim();
+        response.setContentType("application/x-ndjson");
+        response.setCharacterEncoding("UTF-8");
+        Report report = new Report(exchange, response.getWriter(), templateId);
+        report.send = sender.start(apiKey, templateId, from, batchSize,
+                Math.max(1, Math.min(concurrency, maxConcurrency)),
+                result -> exchange.write(() -> report.line(result.toJson())));
+        exchange.track(report.send.getFuture());
+        return report;
+    }
+    
+    /**
+     * Read and throw away the rest of a body the send stopped reading after an input error. Closing a connection
+     * with unread input resets it, and the client may then lose the summary line before reading it. Ends quietly
+     * when the client goes away or the request times out.
+     */
+    static void discardRest(InputStream in) {
+        try {
+            in.transferTo(OutputStream.nullOutputStream());
+        } catch (IOException ex) {
+            // Nothing left to protect
+        }
+    }
+    
+    /**
+     * @see #discardRest(InputStream)
+     */
+    static void discardRest(Reader reader) {
+        try {
+            reader.transferTo(Writer.nullWriter());
+        } catch (IOException ex) {
+            // Nothing left to protect
+        }
+    }
+    
+    static String trimmed(String value) {
+        if (value == null || value.trim().isEmpty()) {
+            return null;
+        }
+        return value.trim();
+    }
+    
+    static void writeError(HttpServletResponse response, String message, int statusCode) throws IOException {
+        JSONObject jsonResponse = new JSONObject();
+        jsonResponse.put("success", false);
+        jsonResponse.put("error", message);
+        if (statusCode > 0) {
+            response.setStatus(statusCode);
+            jsonResponse.put("statusCode", statusCode);
+        }
+        PrintWriter out = response.getWriter();
+        out.print(jsonResponse.toString());
+        out.flush();
+    }
+    
+    int intParameter(String name, int defaultValue) {
+        String value = getInitParameter(name);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            logger.warn("Invalid init-param {}: {}. Using default: {}", name, value, defaultValue);
+            return defaultValue;
+        }
+    }
+    
+    /**
+     * Report - The NDJSON response of one send
+     */
+    static final class Report {
+        
+        private final AsyncEndpoint.Exchange exchange;
+        private final PrintWriter out;
+        private final String templateId;
+        private TemplateMailSender.Send send;
+        
+        private Report(AsyncEndpoint.Exchange exchange, PrintWriter out, String templateId) {
+            this.exchange = exchange;
+            this.out = out;
+            this.templateId = templateId;
+        }
+        
+        /**
+         * @return The send recipients are added to
+         */
+        TemplateMailSender.Send getSend() {
+            return send;
+        }
+        
+        /**
+         * @return true if the send was cancelled because the client went away or the request timed out
+         */
+        boolean isCancelled() {
+            return send.getFuture().isDone();
+        }
+        
+        /**
+         * End the response without a summary
+         */
+        void abort() {
+            exchange.complete();
+        }
+        
+        /**
+         * Write one NDJSON line; called on the reading thread and as exchange writes for batch results
+         */
+        void line(JSONObject json) {
+            if (exchange.isCompleted()) {
+                return;
+            }
+            boolean failed;
+            synchronized (out) {
+                out.write(json.toString());
+                out.write('\n');
+                out.flush();
+                failed = out.checkError();
+            }
+            if (failed) {
+                // Client went away; stop sending further batches
+                logger.warn("Client disconnected during send of template {}", templateId);
+                exchange.complete();
+            }
+        }
+        
+        /**
+         * Wait for the batches in flight without blocking, then write the summary line and end the response
+         * @param counts Input counts to add to the summary
+         * @param error Why reading stopped early, or null if the whole body was read
+         */
+        void finish(JSONObject counts, String error) {
+            try {
+                send.finish().whenComplete((summary, failure) -> {
+                    if (failure == null && !exchange.isCompleted()) {
+                        JSONObject json = summary.toJson();
+                        json.put("done", true);
+                        for (String key : counts.keySet()) {
+                            json.put(key, counts.get(key));
+                        }
+                        if (error != null) {
+                            // Recipients before the error were sent; the rest of the input was not
+                            json.put("error", error);
+                        }
+                        exchange.write(() -> line(json));
+                    } else if (failure != null && !(failure instanceof CancellationException)) {
+                        logger.error("Send of template {} failed: {}", templateId, failure.getMessage());
+                    }
+                    exchange.finish();
+                });
+            } catch (IOException ex) {
+                exchange.complete();
+            }
+        }
+    }
+}
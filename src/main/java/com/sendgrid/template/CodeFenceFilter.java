@@ -0,0 +1,113 @@
+package com.sendgrid.template;
+
+/**
+ * Code Fence Filter - Incrementally strips markdown code fences (```html ... ```) from streamed AI output.
+ *
+ * Produces the same result as trimming the complete text and removing a leading ```html / ``` and a trailing ```,
+ * but emits text as soon as it can no longer be part of a fence. Only leading text that could still turn into an
+ * opening fence, and a trailing run of whitespace/backticks, are held back between chunks. Not thread-safe.
+ */
+public class CodeFenceFilter {
+    
+    private static final String HTML_FENCE = "```html";
+    private static final String FENCE = "```";
+    
+    private enum State { OPENING, SKIP_WHITESPACE, BODY }
+    
+    private final StringBuilder pending = new StringBuilder();
+    private State state = State.OPENING;
+    
+    /**
+     * Feed the next chunk of model output
+     * @param chunk Text delta from the model
+     * @return Text that is now safe to emit (may be empty)
+     */
+    public String accept(CharSequence chunk) {
+        pending.append(chunk);
+        
+        if (state == State.OPENING) {
+            resolveOpening(false);
+        }
+        if (state == State.SKIP_WHITESPACE) {
+            skipWhitespace();
+        }
+        if (state != State.BODY) {
+            return "";
+        }
+        
+        // Hold back a trailing run that could still be closing-fence whitespace or backticks
+        int safeEnd = pending.length();
+        while (safeEnd > 0 && isFenceOrSpace(pending.charAt(safeEnd - 1))) {
+            safeEnd--;
+        }
+        String emitted = pending.substring(0, safeEnd);
+        pending.delete(0, safeEnd);
+        return emitted;
+    }
+    
+    /**
+     * Signal the end of the stream
+     * @return Remaining text with any closing fence and trailing whitespace removed
+     */
+    public String finish() {
+        if (state == State.OPENING) {
+            resolveOpening(true);
+        }
+        if (state == State.SKIP_WHITESPACE) {
+            skipWhitespace();
+        }
+        int end = trimmedEnd(pending.length());
+        if (end >= FENCE.length() && pending.substring(end - FENCE.length(), end).equals(FENCE)) {
+            end = trimmedEnd(end - FENCE.length());
+        }
+        String remaining = pending.substring(0, end);
+        pending.setLength(0);
+        return remaining;
+    }
+    
+    /**
+     * Drop leading whitespace and an opening fence once enough text has arrived to tell whether one is present
+     * @param endOfStream true if no more text will arrive
+     */
+    private void resolveOpening(boolean endOfStream) {
+        int start = 0;
+        while (start < pending.length() && Character.isWhitespace(pending.charAt(start))) {
+            start++;
+        }
+        String head = pending.substring(start, Math.min(pending.length(), start + HTML_FENCE.length()));
+        if (!endOfStream && head.length() < HTML_FENCE.length() && HTML_FENCE.startsWith(head)) {
+            // Could still become an opening fence
+            return;
+        }
+        
+        if (head.equals(HTML_FENCE)) {
+            start += HTML_FENCE.length();
+        } else if (head.startsWith(FENCE)) {
+            start += FENCE.length();
+        }
+        pending.delete(0, start);
+        state = State.SKIP_WHITESPACE;
+    }
+    
+    private void skipWhitespace() {
+        int start = 0;
+        while (start < pending.length() && Character.isWhitespace(pending.charAt(start))) {
+            start++;
+        }
+        pending.delete(0, start);
+        if (pending.length() > 0) {
+            state = State.BODY;
+        }
+    }
+    
+    private int trimmedEnd(int end) {
+        while (end > 0 && Character.isWhitespace(pending.charAt(end - 1))) {
+            end--;
+        }
+        return end;
+    }
+    
+    private static boolean isFenceOrSpace(char c) {
+        return c == '`' || Character.isWhitespace(c);
+    }
+}
@@ -0,0 +1,399 @@
+package com.sendgrid.template;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import javax.servlet.ServletContext;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Completion Cache - Coalesces identical AI generation requests and keeps recent results for a short time.
+ *
+ * Requests are identified by model, system prompt and user prompt. While a completion is being generated, further
+ * requests for the same key wait for that call instead of starting their own; the upstream call is only cancelled
+ * once every waiting request has gone (timeout or disconnect). Successful completions are then kept in a bounded
+ * LRU for the configured TTL, so a repeated prompt is answered without calling the model. A TTL of 0 keeps the
+ * coalescing but disables the result cache. Errors are shared with concurrent waiters but never cached.
+ *
+ * A call may report its content as it is generated. Streaming waiters ({@link #stream}) receive everything generated
+ * so far when they join and each later delta as it arrives; deltas are delivered on the call's thread, so listeners
+ * must hand them off rather than block. A streaming waiter on a buffered call gets the whole content at the end.
+ */
+public class CompletionCache {
+    
+    private static final Logger logger = LogManager.getLogger(CompletionCache.class);
+    
+    /** Servlet context attribute under which the shared instance is stored */
+    public static final String CONTEXT_ATTRIBUTE = CompletionCache.class.getName();
+    
+    private final int maxEntries;
+    private final long ttlMillis;
+    // Both guarded by this; entries is access-ordered
+    private final LinkedHashMap<List<String>, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<List<String>, Flight> inFlight = new HashMap<>();
+    
+    public CompletionCache(int maxEntries, long ttlSeconds) {
+        this.maxEntries = maxEntries;
+        this.ttlMillis = ttlSeconds * 1000;
+        logger.info("AI completion cache initialized (maxEntries={}, ttl={}s)", maxEntries, ttlSeconds);
+    }
+    
+    /**
+     * Get the shared cache for a web application
+     * @param context Servlet context the cache was registered in
+     * @return Shared cache instance
+     */
+    public static CompletionCache get(ServletContext context) {
+        CompletionCache cache = (CompletionCache) context.getAttribute(CONTEXT_ATTRIBUTE);
+        if (cache == null) {
+            throw new IllegalStateException("CompletionCache has not been initialized for this web application");
+        }
+        return cache;
+    }
+    
+    /**
+     * Look up a cached completion without starting a call
+     * @param model Model name
+     * @param systemPrompt System prompt sent with the request
+     * @param prompt User prompt
+     * @return Cached content, if a fresh successful completion is held
+     */
+    public Optional<String> cached(String model, String systemPrompt, String prompt) {
+        List<String> key = List.of(model, systemPrompt, prompt);
+        synchronized (this) {
+            Entry entry = freshEntry(key, System.currentTimeMillis());
+            return entry != null ? Optional.of(entry.content) : Optional.empty();
+        }
+    }
+    
+    /**
+     * Get a completion from the cache, from an identical call already in flight, or by starting the call.
+     * Cancelling the returned future withdraws this request; the call itself is cancelled when no request
+     * is waiting for it any more.
+     * @param model Model name
+     * @param systemPrompt System prompt sent with the request
+     * @param prompt User prompt
+     * @param fresh true to skip cached results (an in-flight call is still joined)
+     * @param call Starts the upstream call, given a sink for content deltas; invoked only if this request leads a
+     *             new flight
+     * @return Future completed with the completion, or exceptionally with the call's failure
+     */
+    public CompletableFuture<Completion> fetch(String model, String systemPrompt, String prompt, boolean fresh,
+            Function<Consumer<String>, CompletableFuture<Completion>> call) {
+        return fetch(model, systemPrompt, prompt, fresh, null, call);
+    }
+    
+    /**
+     * Like {@link #fetch}, but also receive the content as it is generated: first everything generated so far (the
+     * whole content for a cache hit), then each delta, and any remainder before the returned future completes
+     * @param model Model name
+     * @param systemPrompt System prompt sent with the request
+     * @param prompt User prompt
+     * @param fresh true to skip cached results (an in-flight call is still joined)
+     * @param deltas Receives the content in order; called on the call's thread and must not block
+     * @param call Starts the upstream call, given a sink for content deltas; invoked only if this request leads a
+     *             new flight
+     * @return Future completed with the completion, or exceptionally with the call's failure
+     */
+    public CompletableFuture<Completion> stream(String model, String systemPrompt, String prompt, boolean fresh,
+            Consumer<String> deltas, Function<Consumer<String>, CompletableFuture<Completion>> call) {
+        return fetch(model, systemPrompt, prompt, fresh, new Listener(deltas), call);
+    }
+    
+    private CompletableFuture<Completion> fetch(String model, String systemPrompt, String prompt, boolean fresh,
+            Listener listener, Function<Consumer<String>, CompletableFuture<Completion>> call) {
+        List<String> key = List.of(model, systemPrompt, prompt);
+        Flight flight = null;
+        Entry entry = null;
+        boolean leader = false;
+        synchronized (this) {
+            if (!fresh) {
+                entry = freshEntry(key, System.currentTimeMillis());
+            }
+            if (entry == null) {
+                flight = inFlight.get(key);
+                if (flight == null) {
+                    flight = new Flight(key);
+                    inFlight.put(key, flight);
+                    leader = true;
+                }
+                flight.waiters++;
+            }
+        }
+        
+        if (entry != null) {
+            if (listener != null) {
+                listener.accept(entry.content);
+            }
+            return CompletableFuture.completedFuture(Completion.success(entry.content, CacheStatus.HIT));
+        }
+        if (listener != null) {
+            flight.listen(listener);
+        }
+        CompletableFuture<Completion> waiter = join(flight, listener, leader ? CacheStatus.MISS : CacheStatus.SHARED);
+        if (leader) {
+            start(flight, call);
+        } else {
+            logger.info("Joining in-flight AI completion for an identical request");
+        }
+        return waiter;
+    }
+    
+    /**
+     * @return Number of cached completions
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+    
+    /**
+     * Drop every cached completion
+     */
+    public synchronized void clear() {
+        entries.clear();
+    }
+    
+    private Entry freshEntry(List<String> key, long now) {
+        Entry entry = entries.get(key);
+        if (entry != null && entry.expiresAt <= now) {
+            entries.remove(key);
+            return null;
+        }
+        return entry;
+    }
+    
+    private CompletableFuture<Completion> join(Flight flight, Listener listener, CacheStatus status) {
+        CompletableFuture<Completion> waiter = new CompletableFuture<>();
+        flight.shared.whenComplete((completion, failure) -> {
+            if (failure != null) {
+                waiter.completeExceptionally(failure);
+                return;
+            }
+            if (listener != null && completion.isSuccess()) {
+                // Content the call did not report as deltas, e.g. from a buffered call
+                listener.catchUp(completion.getContent());
+            }
+            waiter.complete(completion.withCacheStatus(status));
+        });
+        waiter.whenComplete((completion, failure) -> {
+            if (failure instanceof CancellationException) {
+                if (listener != null) {
+                    flight.unlisten(listener);
+                }
+                leave(flight);
+            }
+        });
+        return waiter;
+    }
+    
+    private void start(Flight flight, Function<Consumer<String>, CompletableFuture<Completion>> call) {
+        CompletableFuture<Completion> upstream;
+        try {
+            upstream = call.apply(flight::publish);
+        } catch (RuntimeException ex) {
+            upstream = CompletableFuture.failedFuture(ex);
+        }
+        flight.upstream = upstream;
+        upstream.whenComplete((completion, failure) -> {
+            synchronized (this) {
+                inFlight.remove(flight.key, flight);
+                if (failure == null && completion.isSuccess() && ttlMillis > 0) {
+                    entries.put(flight.key, new Entry(completion.getContent(), System.currentTimeMillis() + ttlMillis));
+                    while (entries.size() > maxEntries) {
+                        entries.remove(entries.keySet().iterator().next());
+                    }
+                }
+            }
+            if (failure != null) {
+                Throwable cause = failure instanceof CompletionException && failure.getCause() != null
+                        ? failure.getCause() : failure;
+                flight.shared.completeExceptionally(cause);
+            } else {
+                flight.shared.complete(completion);
+            }
+        });
+    }
+    
+    private void leave(Flight flight) {
+        synchronized (this) {
+            if (--flight.waiters > 0 || flight.shared.isDone()) {
+                return;
+            }
+            inFlight.remove(flight.key, flight);
+        }
+        // The leader registers before its own future can be cancelled, so the call has been started by now
+        CompletableFuture<Completion> upstream = flight.upstream;
+        if (upstream != null) {
+            upstream.cancel(true);
+        }
+    }
+    
+    /**
+     * Where a completion came from
+     */
+    public enum CacheStatus {
+        /** Served from the result cache */
+        HIT,
+        /** Shared with an identical request that was already in flight */
+        SHARED,
+        /** Generated for this request */
+        MISS
+    }
+    
+    /**
+     * Completion - Outcome of one generation: the model's message content, or an upstream error
+     */
+    public static final class Completion {
+        
+        private final int statusCode;
+        private final String content;
+        private final String error;
+        private final CacheStatus cacheStatus;
+        
+        private Completion(int statusCode, String content, String error, CacheStatus cacheStatus) {
+            this.statusCode = statusCode;
+            this.content = content;
+            this.error = error;
+            this.cacheStatus = cacheStatus;
+        }
+        
+        /**
+         * @param content Message content returned by the model
+         * @return Successful completion
+         */
+        public static Completion success(String content) {
+            return success(content, CacheStatus.MISS);
+        }
+        
+        private static Completion success(String content, CacheStatus cacheStatus) {
+            return new Completion(200, content, null, cacheStatus);
+        }
+        
+        /**
+         * @param statusCode Upstream HTTP status
+         * @param error Error message for the client
+         * @return Failed completion
+         */
+        public static Completion failure(int statusCode, String error) {
+            return new Completion(statusCode, null, error, CacheStatus.MISS);
+        }
+        
+        Completion withCacheStatus(CacheStatus status) {
+            return new Completion(statusCode, content, error, status);
+        }
+        
+        public boolean isSuccess() {
+            return content != null;
+        }
+        
+        public int getStatusCode() {
+            return statusCode;
+        }
+        
+        public String getContent() {
+            return content;
+        }
+        
+        public String getError() {
+            return error;
+        }
+        
+        public CacheStatus getCacheStatus() {
+            return cacheStatus;
+        }
+    }
+    
+    private static final class Entry {
+        
+        final String content;
+        final long expiresAt;
+        
+        Entry(String content, long expiresAt) {
+            this.content = content;
+            this.expiresAt = expiresAt;
+        }
+    }
+    
+    /**
+     * One upstream call and the requests waiting for it
+     */
+    private static final class Flight {
+        
+        final List<String> key;
+        final CompletableFuture<Completion> shared = new CompletableFuture<>();
+        volatile CompletableFuture<Completion> upstream;
+        // Guarded by the cache
+        int waiters;
+        // Both guarded by this flight
+        private final StringBuilder generated = new StringBuilder();
+        private final List<Listener> listeners = new ArrayList<>();
+        
+        Flight(List<String> key) {
+            this.key = key;
+        }
+        
+        /**
+         * Replay the content generated so far to a streaming waiter, then add it to the live listeners
+         */
+        synchronized void listen(Listener listener) {
+            if (generated.length() > 0) {
+                listener.accept(generated.toString());
+            }
+            listeners.add(listener);
+        }
+        
+        synchronized void unlisten(Listener listener) {
+            listeners.remove(listener);
+        }
+        
+        synchronized void publish(String delta) {
+            if (delta.isEmpty()) {
+                return;
+            }
+            generated.append(delta);
+            for (Listener listener : listeners) {
+                listener.accept(delta);
+            }
+        }
+    }
+    
+    /**
+     * Streaming waiter's delta sink, counting what it has been given
+     */
+    private static final class Listener {
+        
+        private final Consumer<String> deltas;
+        private int delivered;
+        
+        Listener(Consumer<String> deltas) {
+            this.deltas = deltas;
+        }
+        
+        void accept(String delta) {
+            delivered += delta.length();
+            try {
+                deltas.accept(delta);
+            } catch (RuntimeException ex) {
+                logger.warn("AI completion listener failed: {}", ex.getMessage());
+            }
+        }
+        
+        /**
+         * Deliver the end of the final content that was not streamed
+         */
+        void catchUp(String content) {
+            if (content.length() > delivered) {
+                accept(content.substring(delivered));
+            }
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package com.sendgrid.template;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import com.sendgrid.json.JsonStrings;
+
+/**
+ * Email Wrapper - A header/footer HTML template pre-split at the AI content marker.
+ *
+ * The head runs through the "AI Code goes here Start" comment and the tail starts at the matching End comment,
+ * so generated content is spliced in as head + content + tail without searching or copying the template per request.
+ * Both segments are also kept JSON-escaped for writing straight into a JSON response.
+ */
+public final class EmailWrapper {
+    
+    // Tolerates any spacing inside the comments and any indentation around them
+    private static final Pattern START_MARKER = Pattern.compile("([ \\t]*)<!--\\s*AI Code goes here Start\\s*-->");
+    private static final Pattern END_MARKER = Pattern.compile("[ \\t]*<!--\\s*AI Code goes here End\\s*-->");
+    
+    private final String name;
+    private final String head;
+    private final String tail;
+    private final String escapedHead;
+    private final String escapedTail;
+    private final long lastModified;
+    
+    private EmailWrapper(String name, String head, String tail, long lastModified) {
+        this.name = name;
+        this.head = head;
+        this.tail = tail;
+        this.escapedHead = JsonStrings.escape(head);
+        this.escapedTail = JsonStrings.escape(tail);
+        this.lastModified = lastModified;
+    }
+    
+    /**
+     * Split a wrapper template at its AI content markers
+     * @param name Wrapper name
+     * @param template Full wrapper HTML
+     * @param lastModified Modification time of the source, or 0 if unknown
+     * @return Compiled wrapper
+     * @throws IllegalArgumentException if the template has no start/end marker pair
+     */
+    static EmailWrapper compile(String name, String template, long lastModified) {
+        Matcher start = START_MARKER.matcher(template);
+        if (!start.find()) {
+            throw new IllegalArgumentException("Wrapper '" + name + "' has no <!-- AI Code goes here Start --> marker");
+        }
+        Matcher end = END_MARKER.matcher(template);
+        if (!end.find(start.end())) {
+            throw new IllegalArgumentException("Wrapper '" + name + "' has no <!-- AI Code goes here End--> marker");
+        }
+        
+        // Content goes on its own line, indented like the Start marker
+        String indent = start.group(1);
+        String head = template.substring(0, start.end()) + "\n" + indent;
+        String tail = "\n" + template.substring(end.start());
+        return new EmailWrapper(name, head, tail, lastModified);
+    }
+    
+    public String getName() {
+        return name;
+    }
+    
+    long getLastModified() {
+        return lastModified;
+    }
+    
+    /**
+     * Write head + content + tail as raw HTML
+     * @param out Destination writer
+     * @param content AI-generated HTML
+     * @throws IOException if the writer fails
+     */
+    public void writeHtml(Writer out, CharSequence content) throws IOException {
+        out.write(head);
+        out.append(content);
+        out.write(tail);
+    }
+    
+    /**
+     * Write head + content + tail escaped as the inside of a JSON string literal
+     * @param out Destination writer
+     * @param content AI-generated HTML
+     * @throws IOException if the writer fails
+     */
+    public void writeJsonEscaped(Writer out, CharSequence content) throws IOException {
+        out.write(escapedHead);
+        JsonStrings.writeEscaped(out, content);
+        out.write(escapedTail);
+    }
+    
+    public String getHead() {
+        return head;
+    }
+    
+    public String getTail() {
+        return tail;
+    }
+}
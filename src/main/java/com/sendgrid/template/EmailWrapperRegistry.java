@@ -0,0 +1,128 @@
+package com.sendgrid.template;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+import javax.servlet.ServletContext;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Email Wrapper Registry - Loads and caches compiled {@link EmailWrapper}s by name.
+ *
+ * "default" is email-template-wrapper.html; any other name maps to email-wrappers/&lt;name&gt;.html on the classpath.
+ * Wrappers are compiled once; in reload mode the source file's modification time is checked on each lookup
+ * so designers can edit a wrapper without restarting.
+ */
+public class EmailWrapperRegistry {
+    
+    private static final Logger logger = LogManager.getLogger(EmailWrapperRegistry.class);
+    
+    /** Servlet context attribute under which the shared instance is stored */
+    public static final String CONTEXT_ATTRIBUTE = EmailWrapperRegistry.class.getName();
+    
+    public static final String DEFAULT_WRAPPER = "default";
+    /** Name that selects no wrapper at all */
+    public static final String NO_WRAPPER = "none";
+    
+    private static final String DEFAULT_RESOURCE = "email-template-wrapper.html";
+    private static final String NAMED_RESOURCE_DIR = "email-wrappers/";
+    // The name becomes part of a resource path
+    private static final Pattern NAME_PATTERN = Pattern.compile("^[a-z0-9_-]+$");
+    
+    private final boolean reloadOnChange;
+    private final ConcurrentHashMap<String, EmailWrapper> wrappers = new ConcurrentHashMap<>();
+    
+    public EmailWrapperRegistry(boolean reloadOnChange) {
+        this.reloadOnChange = reloadOnChange;
+        // Compile the default wrapper eagerly so a broken template is reported at startup
+        find(DEFAULT_WRAPPER);
+        logger.info("Email wrapper registry initialized (reloadOnChange={})", reloadOnChange);
+    }
+    
+    /**
+     * Get the shared registry for a web application
+     * @param context Servlet context the registry was registered in
+     * @return Shared registry instance
+     */
+    public static EmailWrapperRegistry get(ServletContext context) {
+        EmailWrapperRegistry registry = (EmailWrapperRegistry) context.getAttribute(CONTEXT_ATTRIBUTE);
+        if (registry == null) {
+            throw new IllegalStateException("EmailWrapperRegistry has not been initialized for this web application");
+        }
+        return registry;
+    }
+    
+    /**
+     * Look up a compiled wrapper
+     * @param name Wrapper name (lowercase letters, digits, underscores and hyphens)
+     * @return Compiled wrapper, or empty if the name is unknown, invalid or "none"
+     */
+    public Optional<EmailWrapper> find(String name) {
+        if (name == null || name.trim().isEmpty()) {
+            name = DEFAULT_WRAPPER;
+        }
+        if (NO_WRAPPER.equals(name) || !NAME_PATTERN.matcher(name).matches()) {
+            return Optional.empty();
+        }
+        
+        EmailWrapper cached = wrappers.get(name);
+        if (cached != null && (!reloadOnChange || cached.getLastModified() == lastModified(resourceUrl(name)))) {
+            return Optional.of(cached);
+        }
+        
+        EmailWrapper loaded = load(name);
+        if (loaded == null) {
+            // Keep serving the last good version if a reload fails
+            return Optional.ofNullable(cached);
+        }
+        wrappers.put(name, loaded);
+        return Optional.of(loaded);
+    }
+    
+    private EmailWrapper load(String name) {
+        URL url = resourceUrl(name);
+        if (url == null) {
+            if (DEFAULT_WRAPPER.equals(name)) {
+                logger.warn("Template wrapper {} not found", DEFAULT_RESOURCE);
+            }
+            return null;
+        }
+        try (InputStream inputStream = url.openStream()) {
+            String template = new String(inputStream.readAllBytes(), StandardCharsets.UTF_8);
+            EmailWrapper wrapper = EmailWrapper.compile(name, template, lastModified(url));
+            logger.info("Compiled email wrapper '{}' from {}", name, url);
+            return wrapper;
+        } catch (IOException ex) {
+            logger.warn("Could not read email wrapper '{}': {}", name, ex.getMessage());
+        } catch (IllegalArgumentException ex) {
+            logger.warn(ex.getMessage());
+        }
+        return null;
+    }
+    
+    private URL resourceUrl(String name) {
+        String resource = DEFAULT_WRAPPER.equals(name) ? DEFAULT_RESOURCE : NAMED_RESOURCE_DIR + name + ".html";
+        return getClass().getClassLoader().getResource(resource);
+    }
+    
+    private static long lastModified(URL url) {
+        if (url == null || !"file".equals(url.getProtocol())) {
+            return 0;
+        }
+        try {
+            Path path = Paths.get(url.toURI());
+            return Files.getLastModifiedTime(path).toMillis();
+        } catch (IOException | URISyntaxException ex) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,575 @@
+package com.sendgrid.template;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.servlet.ServletContext;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import com.sendgrid.http.RateLimitScheduler;
+import com.sendgrid.http.UpstreamException;
+import com.sendgrid.http.UpstreamHttpClient;
+
+/**
+ * Template Catalog - In-memory cache of the account's dynamic templates.
+ *
+ * Reads are served from the last snapshot. Once a snapshot is older than the TTL it is still served (marked stale)
+ * while a single background refresh fetches every page from SendGrid; concurrent callers share that one refresh.
+ *
+ * Every refresh is followed by an incremental sync of the {@link TemplateStore}: only templates whose revision
+ * (updated_at of the template and its versions) differs from the stored copy are fetched with their full versions.
+ * The sync runs on its own thread, so the refresher only fetches the list and forced refreshes or cold loads never
+ * queue behind per-template fetches; refreshes that finish while a sync is pending replace its snapshot.
+ * On startup the catalog is seeded from the store, so templates can be listed before SendGrid has answered.
+ *
+ * When a refresh fails because SendGrid is unavailable (connection error, timeout, open circuit, 429 or 5xx), the
+ * last snapshot, or the stored templates on a cold start, is served stale with the upstream error attached instead
+ * of failing the request. Client errors such as a rejected API key still fail.
+ */
+public class TemplateCatalog {
+    
+    private static final Logger logger = LogManager.getLogger(TemplateCatalog.class);
+    
+    /** Servlet context attribute under which the shared instance is stored */
+    public static final String CONTEXT_ATTRIBUTE = TemplateCatalog.class.getName();
+    
+    private static final String TEMPLATES_PATH = "/v3/templates?generations=dynamic";
+    private static final String TEMPLATE_PATH = "/v3/templates/";
+    // Largest page size SendGrid accepts for the templates endpoint
+    private static final int PAGE_SIZE = 200;
+    // Guard against a pagination loop if the upstream keeps returning a next link
+    private static final int MAX_PAGES = 500;
+    
+    private final UpstreamHttpClient upstreamClient;
+    private final RateLimitScheduler scheduler;
+    private final TemplateStore store;
+    private final long ttlMillis;
+    private final long coldLoadTimeoutMillis;
+    private final ScheduledExecutorService refresher;
+    private final ExecutorService storeSync;
+    private final AtomicReference<Refresh> inFlight = new AtomicReference<>();
+    // Latest store sync waiting for the sync thread; a newer refresh replaces it
+    private final AtomicReference<Runnable> pendingSync = new AtomicReference<>();
+    
+    private volatile Snapshot snapshot;
+    private volatile String apiKey;
+    
+    public TemplateCatalog(UpstreamHttpClient upstreamClient, RateLimitScheduler scheduler, TemplateStore store,
+            long ttlSeconds, long refreshIntervalSeconds) {
+        this.upstreamClient = upstreamClient;
+        this.scheduler = scheduler;
+        this.store = store;
+        this.ttlMillis = TimeUnit.SECONDS.toMillis(ttlSeconds);
+        this.coldLoadTimeoutMillis = TimeUnit.SECONDS.toMillis(60);
+        
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "template-catalog-refresher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.setRemoveOnCancelPolicy(true);
+        this.refresher = executor;
+        this.storeSync = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "template-store-sync");
+            thread.setDaemon(true);
+            return thread;
+        });
+        
+        if (refreshIntervalSeconds > 0) {
+            refresher.scheduleWithFixedDelay(this::scheduledRefresh, refreshIntervalSeconds, refreshIntervalSeconds, TimeUnit.SECONDS);
+        }
+        logger.info("Template catalog initialized (ttl={}s, refreshInterval={}s)", ttlSeconds, refreshIntervalSeconds);
+    }
+    
+    /**
+     * Get the shared catalog for a web application
+     * @param context Servlet context the catalog was registered in
+     * @return Shared catalog instance
+     */
+    public static TemplateCatalog get(ServletContext context) {
+        TemplateCatalog catalog = (TemplateCatalog) context.getAttribute(CONTEXT_ATTRIBUTE);
+        if (catalog == null) {
+            throw new IllegalStateException("TemplateCatalog has not been initialized for this web application");
+        }
+        return catalog;
+    }
+    
+    /**
+     * Get the current template snapshot, loading it synchronously only when nothing usable is cached
+     * @param apiKey SendGrid API key used for upstream calls
+     * @param forceRefresh Wait for a fresh upstream fetch instead of serving the cached snapshot
+     * @return Template snapshot
+     * @throws IOException if no snapshot is cached and the upstream fetch fails
+     */
+    public Snapshot getSnapshot(String apiKey, boolean forceRefresh) throws IOException {
+        return await(getSnapshotAsync(apiKey, forceRefresh));
+    }
+    
+    /**
+     * Get the current template snapshot without blocking. The returned future is already complete when a usable
+     * snapshot is cached; otherwise it completes when the shared upstream fetch finishes.
+     * @param apiKey SendGrid API key used for upstream calls
+     * @param forceRefresh Wait for a fresh upstream fetch instead of serving the cached snapshot
+     * @return Future completed with the snapshot, or exceptionally if the upstream fetch fails
+     */
+    public CompletableFuture<Snapshot> getSnapshotAsync(String apiKey, boolean forceRefresh) {
+        Snapshot current;
+        synchronized (this) {
+            if (!apiKey.equals(this.apiKey)) {
+                // A different (rotated) key may see a different account; never serve the old key's data
+                this.apiKey = apiKey;
+                this.snapshot = null;
+            }
+            current = snapshot;
+        }
+        
+        if (current != null && !forceRefresh) {
+            if (current.isStale(ttlMillis)) {
+                refreshAsync(apiKey);
+            }
+            return CompletableFuture.completedFuture(current);
+        }
+        return refreshAsync(apiKey);
+    }
+    
+    /**
+     * Seed the catalog from the local store in the background, so the first reads do not wait for SendGrid. The
+     * stored snapshot carries the time of its last sync and is refreshed as soon as it is read past the TTL.
+     * @param apiKey SendGrid API key configured at startup
+     */
+    public void preload(String apiKey) {
+        refresher.execute(() -> {
+            Snapshot stored = storedSnapshot(apiKey);
+            synchronized (this) {
+                // A request may have supplied a different key or loaded a snapshot in the meantime
+                if (stored == null || snapshot != null || (this.apiKey != null && !this.apiKey.equals(apiKey))) {
+                    return;
+                }
+                this.apiKey = apiKey;
+                this.snapshot = stored;
+            }
+            logger.info("Template catalog preloaded {} templates from the local store", stored.getEntries().size());
+        });
+    }
+    
+    /**
+     * Refresh templates in the local store after they were changed through this application, and mark the
+     * snapshot stale so the list picks the change up too
+     * @param apiKey SendGrid API key the change was made with
+     * @param templateIds IDs of the changed templates
+     */
+    public void refreshTemplates(String apiKey, Collection<String> templateIds) {
+        invalidate();
+        storeSync.execute(() -> {
+            if (!store.isOpen(apiKey)) {
+                // The store holds another account; the next sync of this key's account covers the change
+                return;
+            }
+            for (String templateId : templateIds) {
+                try {
+                    store.putTemplate(fetchTemplate(apiKey, templateId));
+                } catch (IOException | RuntimeException ex) {
+                    logger.warn("Could not refresh template {} in the local store: {}", templateId, ex.getMessage());
+                }
+            }
+        });
+    }
+    
+    /**
+     * Check whether a snapshot is past the TTL and due for a background refresh
+     * @param snapshot Snapshot previously returned by this catalog
+     * @return true if stale
+     */
+    public boolean isStale(Snapshot snapshot) {
+        return snapshot.isStale(ttlMillis);
+    }
+    
+    /**
+     * Mark the cached snapshot as stale so the next read triggers a background refresh
+     */
+    public void invalidate() {
+        Snapshot current = snapshot;
+        if (current != null) {
+            snapshot = current.expired();
+        }
+    }
+    
+    /**
+     * Stop the background refresher and store sync
+     */
+    public void close() {
+        refresher.shutdownNow();
+        storeSync.shutdownNow();
+        logger.info("Template catalog closed");
+    }
+    
+    private Snapshot await(CompletableFuture<Snapshot> refresh) throws IOException {
+        try {
+            return refresh.get(coldLoadTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Error refreshing template catalog: " + cause.getMessage(), cause);
+        } catch (TimeoutException ex) {
+            throw new IOException("Timed out loading template catalog from SendGrid");
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while loading template catalog");
+        }
+    }
+    
+    /**
+     * Join the refresh in flight for this key, or start one. A refresh for another key is never shared: the new
+     * one replaces it as the refresh to join and runs after it on the refresher thread.
+     */
+    private CompletableFuture<Snapshot> refreshAsync(String key) {
+        while (true) {
+            Refresh existing = inFlight.get();
+            if (existing != null && existing.key.equals(key)) {
+                return existing.future;
+            }
+            Refresh created = new Refresh(key);
+            if (inFlight.compareAndSet(existing, created)) {
+                refresher.execute(() -> runRefresh(created));
+                return created.future;
+            }
+        }
+    }
+    
+    private void runRefresh(Refresh refresh) {
+        String key = refresh.key;
+        CompletableFuture<Snapshot> future = refresh.future;
+        Snapshot fetched;
+        try {
+            fetched = fetchAll(key);
+            synchronized (this) {
+                if (key.equals(apiKey)) {
+                    snapshot = fetched;
+                }
+            }
+            future.complete(fetched);
+        } catch (Throwable t) {
+            Snapshot fallback = outageFallback(key, t);
+            if (fallback != null) {
+                logger.warn("Template catalog refresh failed, serving {} stale templates: {}",
+                        fallback.getEntries().size(), t.getMessage());
+                future.complete(fallback);
+            } else {
+                logger.warn("Template catalog refresh failed: {}", t.getMessage());
+                future.completeExceptionally(t);
+            }
+            return;
+        } finally {
+            // A refresh for a newer key may have taken the slot already
+            inFlight.compareAndSet(refresh, null);
+        }
+        // Callers already have the list; bring the store up to date behind them without holding up the next refresh
+        if (pendingSync.getAndSet(() -> syncStore(key, fetched)) == null) {
+            try {
+                storeSync.execute(() -> pendingSync.getAndSet(null).run());
+            } catch (RejectedExecutionException ex) {
+                // Closed while refreshing
+                pendingSync.set(null);
+            }
+        }
+    }
+    
+    /**
+     * Pick the snapshot to serve when a refresh failed because SendGrid is unavailable, and keep it as the cached
+     * snapshot so further reads do not wait on the outage
+     * @return Last snapshot or the stored templates, marked with the upstream error; null if the failure is not an
+     *         outage or there is nothing to fall back to
+     */
+    private Snapshot outageFallback(String key, Throwable failure) {
+        if (failure instanceof UpstreamException) {
+            int statusCode = ((UpstreamException) failure).getStatusCode();
+            if (statusCode < 500 && statusCode != 429) {
+                return null;
+            }
+        } else if (!(failure instanceof IOException)) {
+            return null;
+        }
+        Snapshot base;
+        synchronized (this) {
+            // The cached snapshot belongs to whichever key was used last
+            base = key.equals(apiKey) ? snapshot : null;
+        }
+        if (base == null) {
+            base = storedSnapshot(key);
+            if (base == null) {
+                return null;
+            }
+        }
+        Snapshot fallback = base.unavailable(failure.getMessage());
+        synchronized (this) {
+            if (key.equals(apiKey) && (snapshot == null || snapshot.entries == fallback.entries)) {
+                snapshot = fallback;
+            }
+        }
+        return fallback;
+    }
+    
+    /**
+     * @return Snapshot of the templates in the local store as of its last sync, or null if it holds none
+     */
+    private Snapshot storedSnapshot(String key) {
+        store.open(key);
+        List<Entry> entries = new ArrayList<>();
+        for (JSONObject template : store.summaries()) {
+            entries.add(new Entry(template));
+        }
+        if (entries.isEmpty()) {
+            return null;
+        }
+        return new Snapshot(Collections.unmodifiableList(entries), store.getLastSyncedAt());
+    }
+    
+    /**
+     * Fetch the full versions of every template that changed since the store last saw it, and drop templates
+     * that no longer exist upstream. A template that fails to fetch keeps its old revision and is retried by the
+     * next sync.
+     */
+    private void syncStore(String key, Snapshot fetched) {
+        long started = System.currentTimeMillis();
+        store.open(key);
+        List<String> templateIds = new ArrayList<>();
+        int changed = 0;
+        int failed = 0;
+        for (Entry entry : fetched.getEntries()) {
+            if (!key.equals(apiKey)) {
+                // Key rotated mid-sync; the new key's account gets its own sync
+                return;
+            }
+            templateIds.add(entry.getId());
+            if (entry.revision.equals(store.revision(entry.getId()))) {
+                continue;
+            }
+            try {
+                store.putTemplate(fetchTemplate(key, entry.getId()));
+                changed++;
+            } catch (IOException | RuntimeException ex) {
+                failed++;
+                logger.warn("Could not sync template {} to the local store: {}", entry.getId(), ex.getMessage());
+            }
+        }
+        store.retain(templateIds);
+        store.markSynced(fetched.getFetchedAt());
+        logger.info("Template store synced: {} changed, {} unchanged, {} failed in {}ms", changed,
+                templateIds.size() - changed - failed, failed, System.currentTimeMillis() - started);
+    }
+    
+    private JSONObject fetchTemplate(String key, String templateId) throws IOException {
+        if (!TemplateIds.isValid(templateId)) {
+            // The ID becomes part of the request path
+            throw new IllegalArgumentException("Invalid template ID");
+        }
+        HttpRequest httpRequest = upstreamClient.newRequest(upstreamClient.sendGridUrl(TEMPLATE_PATH + templateId))
+                .header("Authorization", "Bearer " + key)
+                .header("Content-Type", "application/json")
+                .GET()
+                .build();
+        HttpResponse<String> httpResponse = scheduler.send(RateLimitScheduler.TEMPLATES, httpRequest);
+        if (httpResponse.statusCode() >= 400) {
+            throw new UpstreamException(httpResponse.statusCode(), httpResponse.body());
+        }
+        return new JSONObject(httpResponse.body());
+    }
+    
+    private void scheduledRefresh() {
+        // Nothing to refresh until a request has supplied an API key
+        String key = apiKey;
+        if (key != null) {
+            refreshAsync(key);
+        }
+    }
+    
+    private Snapshot fetchAll(String key) throws IOException {
+        long started = System.currentTimeMillis();
+        List<Entry> entries = new ArrayList<>();
+        String pageToken = null;
+        int pages = 0;
+        
+        do {
+            String apiUrl = upstreamClient.sendGridUrl(TEMPLATES_PATH) + "&page_size=" + PAGE_SIZE;
+            if (pageToken != null) {
+                apiUrl += "&page_token=" + URLEncoder.encode(pageToken, StandardCharsets.UTF_8);
+            }
+            
+            HttpRequest httpRequest = upstreamClient.newRequest(apiUrl)
+                    .header("Authorization", "Bearer " + key)
+                    .header("Content-Type", "application/json")
+                    .GET()
+                    .build();
+            HttpResponse<String> httpResponse = scheduler.send(RateLimitScheduler.TEMPLATES, httpRequest);
+            if (httpResponse.statusCode() >= 400) {
+                throw new UpstreamException(httpResponse.statusCode(), httpResponse.body());
+            }
+            
+            JSONObject page = new JSONObject(httpResponse.body());
+            JSONArray templates = page.has("result") ? page.getJSONArray("result") : page.optJSONArray("templates");
+            if (templates != null) {
+                for (int i = 0; i < templates.length(); i++) {
+                    entries.add(new Entry(templates.getJSONObject(i)));
+                }
+            }
+            pageToken = nextPageToken(page);
+            pages++;
+        } while (pageToken != null && pages < MAX_PAGES);
+        
+        logger.info("Template catalog refreshed: {} templates in {} page(s), {}ms", entries.size(), pages,
+                System.currentTimeMillis() - started);
+        return new Snapshot(Collections.unmodifiableList(entries), System.currentTimeMillis());
+    }
+    
+    private static String nextPageToken(JSONObject page) {
+        JSONObject metadata = page.optJSONObject("_metadata");
+        if (metadata == null) {
+            return null;
+        }
+        String next = metadata.optString("next", null);
+        if (next == null || next.isEmpty()) {
+            return null;
+        }
+        String query = URI.create(next).getRawQuery();
+        if (query == null) {
+            return null;
+        }
+        for (String param : query.split("&")) {
+            if (param.startsWith("page_token=")) {
+                return URLDecoder.decode(param.substring("page_token=".length()), StandardCharsets.UTF_8);
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Immutable view of the templates as of one refresh
+     */
+    public static final class Snapshot {
+        
+        private final List<Entry> entries;
+        private final long fetchedAt;
+        private final boolean expired;
+        private final String upstreamError;
+        
+        Snapshot(List<Entry> entries, long fetchedAt) {
+            this(entries, fetchedAt, false, null);
+        }
+        
+        private Snapshot(List<Entry> entries, long fetchedAt, boolean expired, String upstreamError) {
+            this.entries = entries;
+            this.fetchedAt = fetchedAt;
+            this.expired = expired;
+            this.upstreamError = upstreamError;
+        }
+        
+        public List<Entry> getEntries() {
+            return entries;
+        }
+        
+        public long getFetchedAt() {
+            return fetchedAt;
+        }
+        
+        /**
+         * @return Error of the refresh that failed while this snapshot was served in its place, or null
+         */
+        public String getUpstreamError() {
+            return upstreamError;
+        }
+        
+        boolean isStale(long ttlMillis) {
+            return expired || System.currentTimeMillis() - fetchedAt > ttlMillis;
+        }
+        
+        /**
+         * Filter by case-insensitive name prefix
+         * @param namePrefix Prefix to match, or null for all templates
+         * @return Matching entries in upstream order
+         */
+        public List<Entry> filter(String namePrefix) {
+            if (namePrefix == null || namePrefix.isEmpty()) {
+                return entries;
+            }
+            String prefix = namePrefix.toLowerCase(Locale.ROOT);
+            List<Entry> matches = new ArrayList<>();
+            for (Entry entry : entries) {
+                if (entry.normalizedName.startsWith(prefix)) {
+                    matches.add(entry);
+                }
+            }
+            return matches;
+        }
+        
+        Snapshot expired() {
+            return new Snapshot(entries, fetchedAt, true, upstreamError);
+        }
+        
+        Snapshot unavailable(String error) {
+            return new Snapshot(entries, fetchedAt, true, error);
+        }
+    }
+    
+    /**
+     * One cached template, kept pre-serialized so list responses never re-encode it
+     */
+    public static final class Entry {
+        
+        private final String id;
+        private final String normalizedName;
+        private final String json;
+        private final String revision;
+        
+        Entry(JSONObject template) {
+            this.id = template.optString("id");
+            this.normalizedName = template.optString("name").toLowerCase(Locale.ROOT);
+            this.json = template.toString();
+            this.revision = TemplateStore.revision(template);
+        }
+        
+        public String getId() {
+            return id;
+        }
+        
+        public String getJson() {
+            return json;
+        }
+    }
+    
+    /**
+     * A refresh in flight and the API key it fetches with
+     */
+    private static final class Refresh {
+        
+        private final String key;
+        private final CompletableFuture<Snapshot> future = new CompletableFuture<>();
+        
+        private Refresh(String key) {
+            this.key = key;
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package com.sendgrid.template;
+
+import java.util.regex.Pattern;
+
+/**
+ * Template IDs - Checks template IDs before they are put into a SendGrid request path
+ */
+public final class TemplateIds {
+    
+    private static final Pattern PATTERN = Pattern.compile("^[A-Za-z0-9_-]+$");
+    
+    private TemplateIds() {
+    }
+    
+    /**
+     * Check that a template ID holds only the characters SendGrid uses, so it cannot change the request path
+     * @param templateId Template ID, already trimmed
+     * @return true if the ID is safe to append to a URL path
+     */
+    public static boolean isValid(String templateId) {
+        return templateId != null && PATTERN.matcher(templateId).matches();
+    }
+}
@@ -0,0 +1,476 @@
+package com.sendgrid.template;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Template Search Index - In-memory inverted index over template names, version subjects and version HTML.
+ *
+ * Text is split into lowercase runs of letters and digits, so markup, attribute values and URLs are searchable
+ * too: a URL becomes its host, path and file name parts. Each term maps to the templates containing it with a
+ * count per field. Templates are ranked with BM25 over field-weighted counts, so a match in the name outweighs
+ * one in a subject, which outweighs one in the HTML.
+ *
+ * Query words must all match. A quoted phrase, or a single word that splits into several terms (such as a URL),
+ * must appear as consecutive terms. The index is updated one template at a time as the template store changes;
+ * searches only take the read lock, so they are not held up by a sync.
+ */
+public class TemplateSearchIndex {
+    
+    private static final String[] FIELD_NAMES = {"name", "subject", "html_content"};
+    private static final double[] FIELD_WEIGHTS = {3.0, 2.0, 1.0};
+    private static final int NAME = 0;
+    private static final int SUBJECT = 1;
+    private static final int CONTENT = 2;
+    private static final double K1 = 1.2;
+    private static final double B = 0.75;
+    private static final int MAX_TERM_LENGTH = 64;
+    private static final int SNIPPET_CONTEXT = 60;
+    private static final int MAX_SNIPPETS = 3;
+    
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    // Guarded by lock: template ID -> document, and term -> template ID -> count per field
+    private final Map<String, Document> documents = new HashMap<>();
+    private final Map<String, Map<String, int[]>> postings = new HashMap<>();
+    private double totalLength;
+    
+    /**
+     * Add a template, or replace the indexed copy of it
+     * @param template Template JSON with its full versions, as returned by SendGrid's single-template endpoint
+     */
+    public void put(JSONObject template) {
+        Document document = new Document(template);
+        lock.writeLock().lock();
+        try {
+            removeLocked(document.id);
+            documents.put(document.id, document);
+            totalLength += document.length;
+            for (Map.Entry<String, int[]> term : document.counts.entrySet()) {
+                postings.computeIfAbsent(term.getKey(), t -> new HashMap<>()).put(document.id, term.getValue());
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+    
+    /**
+     * @param templateId ID of a template that no longer exists
+     */
+    public void remove(String templateId) {
+        lock.writeLock().lock();
+        try {
+            removeLocked(templateId);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+    
+    /**
+     * Replace the whole index, e.g. after switching accounts
+     * @param templates Templates with their full versions
+     */
+    public void reset(Collection<JSONObject> templates) {
+        List<Document> built = new ArrayList<>(templates.size());
+        for (JSONObject template : templates) {
+            built.add(new Document(template));
+        }
+        lock.writeLock().lock();
+        try {
+            documents.clear();
+            postings.clear();
+            totalLength = 0;
+            for (Document document : built) {
+                documents.put(document.id, document);
+                totalLength += document.length;
+                for (Map.Entry<String, int[]> term : document.counts.entrySet()) {
+                    postings.computeIfAbsent(term.getKey(), t -> new HashMap<>()).put(document.id, term.getValue());
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+    
+    /**
+     * @return Number of distinct indexed terms
+     */
+    public int termCount() {
+        lock.readLock().lock();
+        try {
+            return postings.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    /**
+     * Find the templates matching every word and phrase of a query, best first
+     * @param query Query text; "double quotes" mark a phrase
+     * @param limit Maximum number of hits to return
+     * @return Matching templates with highlighted snippets, and the total number of matches
+     */
+    public Result search(String query, int limit) {
+        List<List<String>> clauses = parse(query);
+        if (clauses.isEmpty()) {
+            return Result.EMPTY;
+        }
+        Set<String> terms = new LinkedHashSet<>();
+        for (List<String> clause : clauses) {
+            terms.addAll(clause);
+        }
+        
+        List<Document> matches = new ArrayList<>();
+        List<Double> scores = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            // Start from the rarest term so the candidate set is as small as possible
+            List<Map<String, int[]>> termPostings = new ArrayList<>(terms.size());
+            for (String term : terms) {
+                Map<String, int[]> posting = postings.get(term);
+                if (posting == null) {
+                    return Result.EMPTY;
+                }
+                termPostings.add(posting);
+            }
+            Map<String, int[]> rarest = Collections.min(termPostings, Comparator.comparingInt(Map::size));
+            double averageLength = documents.isEmpty() ? 1 : Math.max(1, totalLength / documents.size());
+            candidates:
+            for (String templateId : rarest.keySet()) {
+                double score = 0;
+                Document document = documents.get(templateId);
+                for (Map<String, int[]> posting : termPostings) {
+                    int[] counts = posting.get(templateId);
+                    if (counts == null) {
+                        continue candidates;
+                    }
+                    double frequency = 0;
+                    for (int field = 0; field < counts.length; field++) {
+                        frequency += FIELD_WEIGHTS[field] * counts[field];
+                    }
+                    double idf = Math.log(1 + (documents.size() - posting.size() + 0.5) / (posting.size() + 0.5));
+                    double norm = K1 * (1 - B + B * document.length / averageLength);
+                    score += idf * frequency * (K1 + 1) / (frequency + norm);
+                }
+                for (List<String> clause : clauses) {
+                    if (clause.size() > 1 && !document.containsPhrase(clause)) {
+                        continue candidates;
+                    }
+                }
+                matches.add(document);
+                scores.add(score);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        
+        // Documents are immutable, so ranking and snippets need no lock
+        List<Integer> order = new ArrayList<>(matches.size());
+        for (int i = 0; i < matches.size(); i++) {
+            order.add(i);
+        }
+        order.sort(Comparator.comparingDouble((Integer i) -> -scores.get(i))
+                .thenComparing(i -> matches.get(i).name));
+        List<Hit> hits = new ArrayList<>();
+        for (int i = 0; i < Math.min(limit, order.size()); i++) {
+            Document document = matches.get(order.get(i));
+            hits.add(new Hit(document, scores.get(order.get(i)), document.snippets(terms)));
+        }
+        return new Result(matches.size(), hits);
+    }
+    
+    private void removeLocked(String templateId) {
+        Document previous = documents.remove(templateId);
+        if (previous == null) {
+            return;
+        }
+        totalLength -= previous.length;
+        for (String term : previous.counts.keySet()) {
+            Map<String, int[]> posting = postings.get(term);
+            if (posting != null) {
+                posting.remove(templateId);
+                if (posting.isEmpty()) {
+                    postings.remove(term);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Split a query into clauses: one term, or the consecutive terms of a phrase
+     */
+    static List<List<String>> parse(String query) {
+        List<List<String>> clauses = new ArrayList<>();
+        if (query == null) {
+            return clauses;
+        }
+        String[] parts = query.split("\"", -1);
+        for (int i = 0; i < parts.length; i++) {
+            // Odd parts were between quotes; an unbalanced trailing quote still counts as a phrase
+            List<String> words = i % 2 == 1 ? List.of(parts[i]) : List.of(parts[i].trim().split("\\s+"));
+            for (String word : words) {
+                List<String> terms = new ArrayList<>();
+                for (Token token : tokenize(word)) {
+                    terms.add(token.term);
+                }
+                if (!terms.isEmpty()) {
+                    clauses.add(terms);
+                }
+            }
+        }
+        return clauses;
+    }
+    
+    static List<Token> tokenize(String text) {
+        List<Token> tokens = new ArrayList<>();
+        int length = text.length();
+        int i = 0;
+        while (i < length) {
+            int codePoint = text.codePointAt(i);
+            if (!Character.isLetterOrDigit(codePoint)) {
+                i += Character.charCount(codePoint);
+                continue;
+            }
+            int start = i;
+            while (i < length && Character.isLetterOrDigit(codePoint = text.codePointAt(i))) {
+                i += Character.charCount(codePoint);
+            }
+            String term = text.substring(start, i).toLowerCase(Locale.ROOT);
+            if (term.length() <= MAX_TERM_LENGTH) {
+                tokens.add(new Token(term, start, i));
+            }
+        }
+        return tokens;
+    }
+    
+    private static String escapeHtml(CharSequence text) {
+        StringBuilder escaped = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '<':
+                    escaped.append("&lt;");
+                    break;
+                case '>':
+                    escaped.append("&gt;");
+                    break;
+                case '&':
+                    escaped.append("&amp;");
+                    break;
+                case '"':
+                    escaped.append("&quot;");
+                    break;
+                default:
+                    escaped.append(Character.isWhitespace(c) ? ' ' : c);
+            }
+        }
+        return escaped.toString();
+    }
+    
+    /**
+     * Token - A term and where it was found in the text
+     */
+    static final class Token {
+        
+        final String term;
+        final int start;
+        final int end;
+        
+        Token(String term, int start, int end) {
+            this.term = term;
+            this.start = start;
+            this.end = end;
+        }
+    }
+    
+    /**
+     * Document - Indexed text of one template: its name, and the subject and HTML of each version
+     */
+    private static final class Document {
+        
+        private final String id;
+        private final String name;
+        private final List<Field> fields = new ArrayList<>();
+        private final Map<String, int[]> counts = new HashMap<>();
+        private final double length;
+        
+        private Document(JSONObject template) {
+            this.id = template.getString("id");
+            this.name = template.optString("name");
+            fields.add(new Field(NAME, null, name));
+            JSONArray versions = template.optJSONArray("versions");
+            if (versions != null) {
+                for (int i = 0; i < versions.length(); i++) {
+                    JSONObject version = versions.optJSONObject(i);
+                    if (version != null) {
+                        fields.add(new Field(SUBJECT, version, version.optString("subject")));
+                        fields.add(new Field(CONTENT, version, version.optString("html_content")));
+                    }
+                }
+            }
+            double weighted = 0;
+            for (Field field : fields) {
+                for (String term : field.terms) {
+                    counts.computeIfAbsent(term, t -> new int[FIELD_NAMES.length])[field.kind]++;
+                }
+                weighted += FIELD_WEIGHTS[field.kind] * field.terms.length;
+            }
+            this.length = weighted;
+        }
+        
+        private boolean containsPhrase(List<String> phrase) {
+            for (Field field : fields) {
+                String[] terms = field.terms;
+                outer:
+                for (int i = 0; i + phrase.size() <= terms.length; i++) {
+                    for (int j = 0; j < phrase.size(); j++) {
+                        if (!terms[i + j].equals(phrase.get(j))) {
+                            continue outer;
+                        }
+                    }
+                    return true;
+                }
+            }
+            return false;
+        }
+        
+        /**
+         * Text around the first query term in each field that has one, HTML-escaped with every query term in
+         * the window wrapped in mark tags
+         */
+        private List<JSONObject> snippets(Set<String> queryTerms) {
+            List<JSONObject> snippets = new ArrayList<>();
+            for (Field field : fields) {
+                if (snippets.size() == MAX_SNIPPETS) {
+                    break;
+                }
+                List<Token> tokens = tokenize(field.text);
+                int first = -1;
+                for (int i = 0; i < tokens.size() && first < 0; i++) {
+                    if (queryTerms.contains(tokens.get(i).term)) {
+                        first = i;
+                    }
+                }
+                if (first < 0) {
+                    continue;
+                }
+                int from = Math.max(0, tokens.get(first).start - SNIPPET_CONTEXT);
+                int to = Math.min(field.text.length(), tokens.get(first).end + SNIPPET_CONTEXT);
+                StringBuilder text = new StringBuilder();
+                if (from > 0) {
+                    text.append("…");
+                }
+                int written = from;
+                for (int i = first; i < tokens.size() && tokens.get(i).end <= to; i++) {
+                    Token token = tokens.get(i);
+                    if (queryTerms.contains(token.term)) {
+                        text.append(escapeHtml(field.text.substring(written, token.start)))
+                            .append("<mark>").append(escapeHtml(field.text.substring(token.start, token.end)))
+                            .append("</mark>");
+                        written = token.end;
+                    }
+                }
+                text.append(escapeHtml(field.text.substring(written, to)));
+                if (to < field.text.length()) {
+                    text.append("…");
+                }
+                
+                JSONObject snippet = new JSONObject();
+                snippet.put("field", FIELD_NAMES[field.kind]);
+                if (field.versionId != null) {
+                    snippet.put("version_id", field.versionId);
+                    snippet.put("version_name", field.versionName);
+                }
+                snippet.put("text", text.toString().trim());
+                snippets.add(snippet);
+            }
+            return snippets;
+        }
+    }
+    
+    private static final class Field {
+        
+        private final int kind;
+        private final String versionId;
+        private final String versionName;
+        private final String text;
+        private final String[] terms;
+        
+        private Field(int kind, JSONObject version, String text) {
+            this.kind = kind;
+            this.versionId = version != null ? version.optString("id") : null;
+            this.versionName = version != null ? version.optString("name") : null;
+            this.text = text;
+            List<Token> tokens = tokenize(text);
+            this.terms = new String[tokens.size()];
+            for (int i = 0; i < terms.length; i++) {
+                terms[i] = tokens.get(i).term;
+            }
+        }
+    }
+    
+    /**
+     * Result - Total number of matching templates and the best of them
+     */
+    public static final class Result {
+        
+        static final Result EMPTY = new Result(0, Collections.emptyList());
+        
+        private final int total;
+        private final List<Hit> hits;
+        
+        private Result(int total, List<Hit> hits) {
+            this.total = total;
+            this.hits = hits;
+        }
+        
+        public int getTotal() {
+            return total;
+        }
+        
+        public List<Hit> getHits() {
+            return hits;
+        }
+    }
+    
+    /**
+     * Hit - One matching template with its score and highlighted snippets
+     */
+    public static final class Hit {
+        
+        private final String templateId;
+        private final String name;
+        private final double score;
+        private final List<JSONObject> snippets;
+        
+        private Hit(Document document, double score, List<JSONObject> snippets) {
+            this.templateId = document.id;
+            this.name = document.name;
+            this.score = score;
+            this.snippets = snippets;
+        }
+        
+        /**
+         * @return Hit as JSON: id, name, score and snippets (field, version_id, version_name, text)
+         */
+        public JSONObject toJson() {
+            JSONObject json = new JSONObject();
+            json.put("id", templateId);
+            json.put("name", name);
+            json.put("score", Math.round(score * 1000) / 1000.0);
+            json.put("snippets", new JSONArray(snippets));
+            return json;
+        }
+    }
+}
@@ -0,0 +1,497 @@
+package com.sendgrid.template;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import javax.servlet.ServletContext;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Template Store - Local, persistent copy of the account's templates and every version revision seen.
+ *
+ * Each account (identified by a hash of its API key, never the key itself) has an append-only journal of JSON
+ * lines in the store directory. A "template" record holds a template with its full versions as returned by
+ * SendGrid; a "version" record holds one historical revision; "delete" and "synced" records mark removed
+ * templates and completed syncs. The journal is replayed into memory when the account is opened and rewritten
+ * compactly once most of it is superseded. A damaged trailing line (e.g. after a crash) is skipped.
+ *
+ * Keeping every revision, keyed by version ID and updated_at, gives a version history that SendGrid itself does
+ * not: a version that is edited in place only ever shows its latest content there.
+ *
+ * The current templates are also kept in a {@link TemplateSearchIndex}, updated along with the store.
+ */
+public class TemplateStore {
+    
+    private static final Logger logger = LogManager.getLogger(TemplateStore.class);
+    
+    /** Servlet context attribute under which the shared instance is stored */
+    public static final String CONTEXT_ATTRIBUTE = TemplateStore.class.getName();
+    
+    // Version fields too large for the template list; kept in the store only
+    private static final Set<String> CONTENT_FIELDS = Set.of("html_content", "plain_content");
+    // Compact once the journal holds this many times more records than are live
+    private static final int COMPACT_RATIO = 2;
+    private static final int COMPACT_MIN_RECORDS = 100;
+    
+    private final Path directory;
+    private final TemplateSearchIndex searchIndex = new TemplateSearchIndex();
+    
+    // All guarded by this
+    private String account;
+    private BufferedWriter journal;
+    private int journalRecords;
+    private final Map<String, JSONObject> templates = new LinkedHashMap<>();
+    private final Map<String, Map<String, JSONObject>> history = new LinkedHashMap<>();
+    private long lastSyncedAt;
+    
+    public TemplateStore(Path directory) {
+        this.directory = directory;
+        logger.info("Template store initialized (directory={})", directory);
+    }
+    
+    /**
+     * Get the shared store for a web application
+     * @param context Servlet context the store was registered in
+     * @return Shared store instance
+     */
+    public static TemplateStore get(ServletContext context) {
+        TemplateStore store = (TemplateStore) context.getAttribute(CONTEXT_ATTRIBUTE);
+        if (store == null) {
+            throw new IllegalStateException("TemplateStore has not been initialized for this web application");
+        }
+        return store;
+    }
+    
+    /**
+     * Make the account behind an API key the current one, loading its journal if it is not already open
+     * @param apiKey SendGrid API key
+     */
+    public synchronized void open(String apiKey) {
+        String requested = accountOf(apiKey);
+        if (requested.equals(account)) {
+            return;
+        }
+        closeJournal();
+        account = requested;
+        templates.clear();
+        history.clear();
+        lastSyncedAt = 0;
+        journalRecords = 0;
+        
+        Path file = journalFile();
+        long started = System.currentTimeMillis();
+        if (Files.isRegularFile(file)) {
+            try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.isEmpty()) {
+                        continue;
+                    }
+                    try {
+                        apply(new JSONObject(line));
+                        journalRecords++;
+                    } catch (JSONException ex) {
+                        logger.warn("Skipping damaged template store record in {}: {}", file, ex.getMessage());
+                    }
+                }
+            } catch (IOException ex) {
+                logger.warn("Could not read template store {}: {}", file, ex.getMessage());
+            }
+        }
+        try {
+            Files.createDirectories(directory);
+            journal = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                    StandardOpenOption.APPEND);
+        } catch (IOException ex) {
+            logger.warn("Template store {} is not writable, keeping changes in memory only: {}", file, ex.getMessage());
+        }
+        logger.info("Template store loaded: {} templates, {} revisions from {} records in {}ms", templates.size(),
+                revisionCount(), journalRecords, System.currentTimeMillis() - started);
+        
+        started = System.currentTimeMillis();
+        searchIndex.reset(templates.values());
+        logger.info("Template search index built: {} templates, {} terms in {}ms", templates.size(),
+                searchIndex.termCount(), System.currentTimeMillis() - started);
+    }
+    
+    /**
+     * @param apiKey SendGrid API key
+     * @return true if the key's account is open
+     */
+    public synchronized boolean isOpen(String apiKey) {
+        return account != null && account.equals(accountOf(apiKey));
+    }
+    
+    /**
+     * @return true if no template is stored for the open account
+     */
+    public synchronized boolean isEmpty() {
+        return templates.isEmpty();
+    }
+    
+    /**
+     * @return Time of the last completed sync, or 0 if the account was never synced
+     */
+    public synchronized long getLastSyncedAt() {
+        return lastSyncedAt;
+    }
+    
+    /**
+     * @return Stored templates in list form (versions without their content), in store order
+     */
+    public synchronized List<JSONObject> summaries() {
+        List<JSONObject> summaries = new ArrayList<>(templates.size());
+        for (JSONObject template : templates.values()) {
+            summaries.add(summary(template));
+        }
+        return summaries;
+    }
+    
+    /**
+     * @param templateId Template ID
+     * @return Revision of the stored template (see {@link #revision(JSONObject)}), or null if not stored
+     */
+    public synchronized String revision(String templateId) {
+        JSONObject template = templates.get(templateId);
+        return template != null ? revision(template) : null;
+    }
+    
+    /**
+     * @param apiKey SendGrid API key of the caller
+     * @param templateId Template ID
+     * @return Copy of the stored template with its full versions, or null if the key's account does not have it
+     */
+    public synchronized JSONObject template(String apiKey, String templateId) {
+        if (!isOpen(apiKey)) {
+            return null;
+        }
+        JSONObject template = templates.get(templateId);
+        return template != null ? new JSONObject(template.toString()) : null;
+    }
+    
+    /**
+     * @param apiKey SendGrid API key of the caller
+     * @param templateId Template ID
+     * @return ID of the template's active version, or null if the template or an active version is not stored
+     */
+    public synchronized String activeVersionId(String apiKey, String templateId) {
+        if (!isOpen(apiKey)) {
+            return null;
+        }
+        JSONObject template = templates.get(templateId);
+        JSONArray versions = template != null ? template.optJSONArray("versions") : null;
+        if (versions != null) {
+            for (int i = 0; i < versions.length(); i++) {
+                JSONObject version = versions.optJSONObject(i);
+                if (version != null && version.optInt("active") == 1) {
+                    return version.optString("id", null);
+                }
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * @param apiKey SendGrid API key of the caller
+     * @param templateId Template ID
+     * @return Every recorded revision of the template's versions, oldest first, each with a recorded_at time
+     */
+    public synchronized List<JSONObject> history(String apiKey, String templateId) {
+        if (!isOpen(apiKey)) {
+            return Collections.emptyList();
+        }
+        Map<String, JSONObject> revisions = history.get(templateId);
+        if (revisions == null) {
+            return Collections.emptyList();
+        }
+        List<JSONObject> copies = new ArrayList<>(revisions.size());
+        for (JSONObject revision : revisions.values()) {
+            copies.add(new JSONObject(revision.toString()));
+        }
+        return copies;
+    }
+    
+    /**
+     * Search the current templates' names, version subjects and version HTML
+     * @param apiKey SendGrid API key of the caller
+     * @param query Query text (see {@link TemplateSearchIndex#search(String, int)})
+     * @param limit Maximum number of hits
+     * @return Search result; empty if the key's account is not open
+     */
+    public TemplateSearchIndex.Result search(String apiKey, String query, int limit) {
+        if (!isOpen(apiKey)) {
+            return TemplateSearchIndex.Result.EMPTY;
+        }
+        // Outside the store lock: the index has its own, and searching must not wait for journal writes
+        return searchIndex.search(query, limit);
+    }
+    
+    /**
+     * Store a template as returned by SendGrid's single-template endpoint (versions with content) and flush it
+     * @param template Template JSON
+     */
+    public synchronized void putTemplate(JSONObject template) {
+        JSONObject record = new JSONObject();
+        record.put("op", "template");
+        record.put("at", System.currentTimeMillis());
+        record.put("template", template);
+        append(record);
+        apply(record);
+        searchIndex.put(template);
+        flush();
+    }
+    
+    /**
+     * Remove every template that is not in the given set
+     * @param templateIds IDs of the templates that still exist upstream
+     */
+    public synchronized void retain(Collection<String> templateIds) {
+        Set<String> keep = new HashSet<>(templateIds);
+        for (String templateId : new ArrayList<>(templates.keySet())) {
+            if (!keep.contains(templateId)) {
+                JSONObject record = new JSONObject();
+                record.put("op", "delete");
+                record.put("template_id", templateId);
+                append(record);
+                apply(record);
+                searchIndex.remove(templateId);
+            }
+        }
+    }
+    
+    /**
+     * Record a completed sync, flush the journal and compact it if most of it is superseded
+     * @param syncedAt Sync time
+     */
+    public synchronized void markSynced(long syncedAt) {
+        JSONObject record = new JSONObject();
+        record.put("op", "synced");
+        record.put("at", syncedAt);
+        append(record);
+        apply(record);
+        flush();
+        
+        int live = templates.size() + revisionCount() + 1;
+        if (journalRecords > COMPACT_MIN_RECORDS && journalRecords > COMPACT_RATIO * live) {
+            compact();
+        }
+    }
+    
+    /**
+     * Flush and close the journal
+     */
+    public synchronized void close() {
+        closeJournal();
+        logger.info("Template store closed");
+    }
+    
+    /**
+     * Revision of a template as seen in either the template list or the single-template endpoint: its updated_at
+     * plus the ID and updated_at of each version. Two forms of the same template state give the same revision.
+     * @param template Template JSON
+     * @return Revision string
+     */
+    public static String revision(JSONObject template) {
+        Set<String> versions = new TreeSet<>();
+        JSONArray versionArray = template.optJSONArray("versions");
+        if (versionArray != null) {
+            for (int i = 0; i < versionArray.length(); i++) {
+                JSONObject version = versionArray.optJSONObject(i);
+                if (version != null) {
+                    versions.add(version.optString("id") + "@" + version.optString("updated_at"));
+                }
+            }
+        }
+        return template.optString("updated_at") + "|" + String.join(",", versions);
+    }
+    
+    private void apply(JSONObject record) {
+        switch (record.optString("op")) {
+            case "template":
+                JSONObject template = record.getJSONObject("template");
+                String templateId = template.getString("id");
+                templates.put(templateId, template);
+                JSONArray versions = template.optJSONArray("versions");
+                if (versions != null) {
+                    for (int i = 0; i < versions.length(); i++) {
+                        JSONObject version = versions.optJSONObject(i);
+                        if (version != null) {
+                            addRevision(templateId, version, record.optLong("at"));
+                        }
+                    }
+                }
+                break;
+            case "version":
+                addRevision(record.getString("template_id"), record.getJSONObject("version"), record.optLong("at"));
+                break;
+            case "delete":
+                // History is kept: it is the only record of what a deleted template contained
+                templates.remove(record.getString("template_id"));
+                break;
+            case "synced":
+                lastSyncedAt = record.getLong("at");
+                break;
+            default:
+                logger.warn("Ignoring unknown template store record: {}", record.optString("op"));
+        }
+    }
+    
+    private void addRevision(String templateId, JSONObject version, long recordedAt) {
+        String key = version.optString("id") + "@" + version.optString("updated_at");
+        Map<String, JSONObject> revisions = history.computeIfAbsent(templateId, id -> new LinkedHashMap<>());
+        if (!revisions.containsKey(key)) {
+            JSONObject revision = new JSONObject(version.toString());
+            if (!revision.has("recorded_at")) {
+                revision.put("recorded_at", recordedAt);
+            }
+            revisions.put(key, revision);
+        }
+    }
+    
+    private void append(JSONObject record) {
+        journalRecords++;
+        if (journal == null) {
+            return;
+        }
+        try {
+            journal.write(record.toString());
+            journal.newLine();
+        } catch (IOException ex) {
+            logger.warn("Could not write to template store, keeping changes in memory only: {}", ex.getMessage());
+            closeJournal();
+        }
+    }
+    
+    private void flush() {
+        if (journal == null) {
+            return;
+        }
+        try {
+            journal.flush();
+        } catch (IOException ex) {
+            logger.warn("Could not flush template store: {}", ex.getMessage());
+        }
+    }
+    
+    /**
+     * Rewrite the journal with only live records: every revision (so each keeps its recorded_at), then every
+     * current template, then the last sync time. The new file replaces the old one atomically.
+     */
+    private void compact() {
+        Path file = journalFile();
+        Path compacted = file.resolveSibling(file.getFileName() + ".compact");
+        int records = 0;
+        try (BufferedWriter writer = Files.newBufferedWriter(compacted, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, Map<String, JSONObject>> revisions : history.entrySet()) {
+                for (JSONObject revision : revisions.getValue().values()) {
+                    JSONObject record = new JSONObject();
+                    record.put("op", "version");
+                    record.put("template_id", revisions.getKey());
+                    record.put("version", revision);
+                    writer.write(record.toString());
+                    writer.newLine();
+                    records++;
+                }
+            }
+            for (JSONObject template : templates.values()) {
+                JSONObject record = new JSONObject();
+                record.put("op", "template");
+                record.put("template", template);
+                writer.write(record.toString());
+                writer.newLine();
+                records++;
+            }
+            JSONObject synced = new JSONObject();
+            synced.put("op", "synced");
+            synced.put("at", lastSyncedAt);
+            writer.write(synced.toString());
+            writer.newLine();
+            records++;
+        } catch (IOException ex) {
+            logger.warn("Could not compact template store: {}", ex.getMessage());
+            return;
+        }
+        
+        closeJournal();
+        try {
+            Files.move(compacted, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            logger.info("Template store compacted from {} to {} records", journalRecords, records);
+            journalRecords = records;
+            journal = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+        } catch (IOException ex) {
+            logger.warn("Could not replace template store after compaction: {}", ex.getMessage());
+        }
+    }
+    
+    private static JSONObject summary(JSONObject template) {
+        JSONObject summary = new JSONObject(template.toString());
+        JSONArray versions = summary.optJSONArray("versions");
+        if (versions != null) {
+            for (int i = 0; i < versions.length(); i++) {
+                JSONObject version = versions.optJSONObject(i);
+                if (version != null) {
+                    for (String field : CONTENT_FIELDS) {
+                        version.remove(field);
+                    }
+                }
+            }
+        }
+        return summary;
+    }
+    
+    private int revisionCount() {
+        int count = 0;
+        for (Map<String, JSONObject> revisions : history.values()) {
+            count += revisions.size();
+        }
+        return count;
+    }
+    
+    private Path journalFile() {
+        return directory.resolve("templates-" + account + ".jsonl");
+    }
+    
+    private void closeJournal() {
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException ex) {
+                logger.warn("Could not close template store: {}", ex.getMessage());
+            }
+            journal = null;
+        }
+    }
+    
+    private static String accountOf(String apiKey) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(apiKey.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder();
+            for (int i = 0; i < 8; i++) {
+                hex.append(Character.forDigit((digest[i] >> 4) & 0xf, 16)).append(Character.forDigit(digest[i] & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
@@ -0,0 +1,310 @@
+package com.sendgrid.template;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import javax.servlet.ServletContext;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONObject;
+import com.sendgrid.http.RateLimitScheduler;
+import com.sendgrid.http.UpstreamHttpClient;
+import com.sendgrid.json.ErrorMessages;
+import com.sendgrid.json.JsonRelay;
+
+/**
+ * Template Version Publisher - Creates template versions in SendGrid in bulk with bounded parallelism.
+ *
+ * At most the requested number of versions are in flight per batch. Calls go through the shared
+ * {@link RateLimitScheduler}, so every batch (and the single-version form) draws on the same versions budget and
+ * rate-limited items are retried after SendGrid's reset time.
+ */
+public class TemplateVersionPublisher {
+    
+    private static final Logger logger = LogManager.getLogger(TemplateVersionPublisher.class);
+    
+    /** Servlet context attribute under which the shared instance is stored */
+    public static final String CONTEXT_ATTRIBUTE = TemplateVersionPublisher.class.getName();
+    
+    private static final String VERSIONS_PATH = "/v3/templates/%s/versions";
+    
+    private final UpstreamHttpClient upstreamClient;
+    private final RateLimitScheduler scheduler;
+    
+    public TemplateVersionPublisher(UpstreamHttpClient upstreamClient, RateLimitScheduler scheduler) {
+        this.upstreamClient = upstreamClient;
+        this.scheduler = scheduler;
+    }
+    
+    /**
+     * Get the shared publisher for a web application
+     * @param context Servlet context the publisher was registered in
+     * @return Shared publisher instance
+     */
+    public static TemplateVersionPublisher get(ServletContext context) {
+        TemplateVersionPublisher publisher = (TemplateVersionPublisher) context.getAttribute(CONTEXT_ATTRIBUTE);
+        if (publisher == null) {
+            throw new IllegalStateException("TemplateVersionPublisher has not been initialized for this web application");
+        }
+        return publisher;
+    }
+    
+    /**
+     * Publish a batch of versions
+     * @param apiKey SendGrid API key
+     * @param versions Version payloads (template_id, name, html_content, subject, active, generate_plain_content,
+     *                 editor, updated_at)
+     * @param concurrency Maximum number of versions in flight at once
+     * @param listener Receives each item's result as it completes; calls are never concurrent
+     * @return Future completed when every item has a result; cancelling it stops further sends
+     */
+    public CompletableFuture<Void> publishAll(String apiKey, List<JSONObject> versions, int concurrency,
+            Consumer<Result> listener) {
+        Batch batch = new Batch(apiKey, versions, listener);
+        if (versions.isEmpty()) {
+            batch.done.complete(null);
+            return batch.done;
+        }
+        int workers = Math.max(1, Math.min(concurrency, versions.size()));
+        logger.info("Publishing {} template version(s) with concurrency {}", versions.size(), workers);
+        for (int i = 0; i < workers; i++) {
+            batch.startNext();
+        }
+        return batch.done;
+    }
+    
+    /**
+     * Build the SendGrid request body for one version, applying the same defaults as the single-version form
+     * @param item Version payload
+     * @return Request body
+     */
+    static JSONObject versionBody(JSONObject item) {
+        JSONObject requestBody = new JSONObject();
+        requestBody.put("template_id", item.optString("template_id").trim());
+        requestBody.put("active", activeFlag(item.opt("active")));
+        requestBody.put("name", item.optString("name").trim());
+        requestBody.put("html_content", item.optString("html_content", "<!doctype><html><body></body></html>"));
+        Object generatePlainContent = item.opt("generate_plain_content");
+        requestBody.put("generate_plain_content", Boolean.TRUE.equals(generatePlainContent)
+                || "true".equals(String.valueOf(generatePlainContent)) || "1".equals(String.valueOf(generatePlainContent)));
+        requestBody.put("subject", item.optString("subject", ""));
+        String updatedAt = item.optString("updated_at", "").trim();
+        if (!updatedAt.isEmpty()) {
+            requestBody.put("updated_at", updatedAt);
+        }
+        requestBody.put("editor", item.optString("editor", "code"));
+        return requestBody;
+    }
+    
+    private static int activeFlag(Object active) {
+        if (active instanceof Boolean) {
+            return (Boolean) active ? 1 : 0;
+        }
+        if (active == null || String.valueOf(active).trim().isEmpty()) {
+            return 1;
+        }
+        return Integer.parseInt(String.valueOf(active).trim());
+    }
+    
+    private CompletableFuture<Result> publish(Batch batch, int index, JSONObject item) {
+        String templateId = item.optString("template_id").trim();
+        if (templateId.isEmpty()) {
+            return CompletableFuture.completedFuture(Result.invalid(index, templateId, "Template ID is required"));
+        }
+        if (!TemplateIds.isValid(templateId)) {
+            // The ID becomes part of the request path
+            return CompletableFuture.completedFuture(Result.invalid(index, templateId, "Invalid template ID"));
+        }
+        if (item.optString("name").trim().isEmpty()) {
+            return CompletableFuture.completedFuture(Result.invalid(index, templateId, "Version name is required"));
+        }
+        
+        HttpRequest httpRequest;
+        try {
+            httpRequest = upstreamClient.newRequest(upstreamClient.sendGridUrl(String.format(VERSIONS_PATH, templateId)))
+                    .header("Authorization", "Bearer " + batch.apiKey)
+                    .header("Content-Type", "application/json")
+                    .POST(HttpRequest.BodyPublishers.ofString(versionBody(item).toString(), StandardCharsets.UTF_8))
+                    .build();
+        } catch (RuntimeException ex) {
+            return CompletableFuture.completedFuture(Result.invalid(index, templateId, ex.getMessage()));
+        }
+        
+        CompletableFuture<HttpResponse<String>> call = scheduler.submit(RateLimitScheduler.VERSIONS, httpRequest,
+                HttpResponse.BodyHandlers.ofString());
+        batch.track(call);
+        return call.handle((httpResponse, failure) -> {
+                    if (failure != null) {
+                        Throwable cause = failure instanceof CompletionException && failure.getCause() != null
+                                ? failure.getCause() : failure;
+                        return Result.failed(index, templateId, cause);
+                    }
+                    return Result.of(index, templateId, httpResponse);
+                });
+    }
+    
+    /**
+     * One publishAll call: hands out item indexes to a fixed number of workers, each starting the next item
+     * when its current one completes
+     */
+    private final class Batch {
+        
+        private final String apiKey;
+        private final List<JSONObject> versions;
+        private final Consumer<Result> listener;
+        private final AtomicInteger nextIndex = new AtomicInteger();
+        private final AtomicInteger remaining;
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+        private final Set<CompletableFuture<?>> calls = ConcurrentHashMap.newKeySet();
+        
+        Batch(String apiKey, List<JSONObject> versions, Consumer<Result> listener) {
+            this.apiKey = apiKey;
+            this.versions = versions;
+            this.listener = listener;
+            this.remaining = new AtomicInteger(versions.size());
+            done.whenComplete((ignored, failure) -> {
+                if (failure instanceof CancellationException) {
+                    // Withdraw queued calls and abort the ones in flight
+                    calls.forEach(call -> call.cancel(true));
+                }
+            });
+        }
+        
+        void track(CompletableFuture<?> call) {
+            calls.add(call);
+            call.whenComplete((response, failure) -> calls.remove(call));
+            if (done.isCancelled()) {
+                call.cancel(true);
+            }
+        }
+        
+        void startNext() {
+            if (done.isDone()) {
+                return;
+            }
+            int index = nextIndex.getAndIncrement();
+            if (index >= versions.size()) {
+                return;
+            }
+            publish(this, index, versions.get(index)).whenComplete((result, failure) -> {
+                if (failure != null) {
+                    result = Result.failed(index, versions.get(index).optString("template_id"), failure);
+                }
+                if (done.isDone()) {
+                    return;
+                }
+                synchronized (this) {
+                    try {
+                        listener.accept(result);
+                    } catch (RuntimeException ex) {
+                        logger.warn("Bulk publish listener failed: {}", ex.getMessage());
+                    }
+                }
+                if (remaining.decrementAndGet() == 0) {
+                    done.complete(null);
+                } else {
+                    startNext();
+                }
+            });
+        }
+    }
+    
+    /**
+     * Result - Outcome of publishing one version
+     */
+    public static final class Result {
+        
+        private final int index;
+        private final String templateId;
+        private final boolean success;
+        private final int statusCode;
+        private final String error;
+        private final String responseBody;
+        private final boolean jsonBody;
+        
+        private Result(int index, String templateId, boolean success, int statusCode, String error, String responseBody,
+                boolean jsonBody) {
+            this.index = index;
+            this.templateId = templateId;
+            this.success = success;
+            this.statusCode = statusCode;
+            this.error = error;
+            this.responseBody = responseBody;
+            this.jsonBody = jsonBody;
+        }
+        
+        static Result of(int index, String templateId, HttpResponse<String> httpResponse) {
+            int statusCode = httpResponse.statusCode();
+            boolean success = statusCode < 400;
+            return new Result(index, templateId, success, statusCode,
+                    success ? null : ErrorMessages.sendGrid(httpResponse.body()), httpResponse.body(),
+                    JsonRelay.isJson(httpResponse.headers()));
+        }
+        
+        static Result invalid(int index, String templateId, String error) {
+            return new Result(index, templateId, false, 0, error, null, false);
+        }
+        
+        static Result failed(int index, String templateId, Throwable failure) {
+            String message = failure instanceof CancellationException ? "Cancelled" : failure.getMessage();
+            return new Result(index, templateId, false, 0, "Error calling SendGrid API: " + message, null, false);
+        }
+        
+        public int getIndex() {
+            return index;
+        }
+        
+        public String getTemplateId() {
+            return templateId;
+        }
+        
+        public boolean isSuccess() {
+            return success;
+        }
+        
+        public int getStatusCode() {
+            return statusCode;
+        }
+        
+        /**
+         * Write the per-item result object in the servlet response format. A successful JSON response body is
+         * spliced in as "data" as-is rather than parsed and re-serialized.
+         * @param out Destination writer
+         * @throws IOException if the writer fails
+         */
+        public void writeJson(Writer out) throws IOException {
+            JSONObject json = new JSONObject();
+            json.put("index", index);
+            json.put("template_id", templateId);
+            json.put("success", success);
+            if (statusCode > 0) {
+                json.put("statusCode", statusCode);
+            }
+            if (error != null) {
+                json.put("error", error);
+            }
+            if (responseBody == null || responseBody.isEmpty()) {
+                out.write(json.toString());
+            } else if (success && jsonBody) {
+                String head = json.toString();
+                out.write(head, 0, head.length() - 1);
+                out.write(",\"data\":");
+                out.write(responseBody);
+                out.write('}');
+            } else {
+                json.put("responseBody", responseBody);
+                out.write(json.toString());
+            }
+        }
+    }
+}